@@ -0,0 +1,76 @@
+package org.janelia.dataaccess;
+
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+
+/**
+ * Creates N5 compression codecs from command line values of the form {@code name[:parameter]}:
+ * <ul>
+ * <li>{@code raw}</li>
+ * <li>{@code gzip[:level]} (level 1-9, default 6)</li>
+ * <li>{@code lz4[:blockSize]} (block size in bytes, default 65536)</li>
+ * <li>{@code bzip2[:blockSize]} (block size in units of 100k, 1-9, default 9)</li>
+ * <li>{@code xz[:preset]} (preset 0-9, default 6)</li>
+ * </ul>
+ */
+public class N5CompressionFactory
+{
+	/**
+	 * Compression for the final outputs such as converted tiles and fused images.
+	 */
+	public static final String DEFAULT = "gzip";
+
+	/**
+	 * Compression for the intermediate data such as histograms and float deconvolution tiles
+	 * that is written once and read back by the next step of the pipeline.
+	 */
+	public static final String DEFAULT_INTERMEDIATE = "lz4";
+
+	public static final String USAGE = "N5 compression: raw, gzip[:level], lz4[:blockSize], bzip2[:blockSize], or xz[:preset]";
+
+	public static Compression create( final String compression ) throws IllegalArgumentException
+	{
+		final String[] tokens = compression.trim().toLowerCase().split( ":" );
+		if ( tokens.length > 2 )
+			throw new IllegalArgumentException( "Invalid compression: " + compression + ". Expected " + USAGE );
+
+		final Integer parameter;
+		try
+		{
+			parameter = tokens.length > 1 ? Integer.parseInt( tokens[ 1 ] ) : null;
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "Invalid compression parameter: " + compression + ". Expected " + USAGE );
+		}
+
+		switch ( tokens[ 0 ] )
+		{
+		case "raw":
+			if ( parameter != null )
+				throw new IllegalArgumentException( "Raw compression does not have parameters" );
+			return new RawCompression();
+		case "gzip":
+			return parameter != null ? new GzipCompression( checkRange( parameter, 1, 9, compression ) ) : new GzipCompression();
+		case "lz4":
+			return parameter != null ? new Lz4Compression( checkRange( parameter, 1, Integer.MAX_VALUE, compression ) ) : new Lz4Compression();
+		case "bzip2":
+			return parameter != null ? new Bzip2Compression( checkRange( parameter, 1, 9, compression ) ) : new Bzip2Compression();
+		case "xz":
+			return parameter != null ? new XzCompression( checkRange( parameter, 0, 9, compression ) ) : new XzCompression();
+		default:
+			throw new IllegalArgumentException( "Unknown compression: " + compression + ". Expected " + USAGE );
+		}
+	}
+
+	private static int checkRange( final int parameter, final int min, final int max, final String compression )
+	{
+		if ( parameter < min || parameter > max )
+			throw new IllegalArgumentException( "Compression parameter of " + compression + " is out of range [" + min + ", " + max + "]" );
+		return parameter;
+	}
+}
@@ -5,11 +5,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.lang.NotImplementedException;
 import org.janelia.dataaccess.AbstractJSONDataProvider;
@@ -22,6 +21,8 @@ import org.janelia.saalfeldlab.n5.googlecloud.N5GoogleCloudStorageReader;
 import org.janelia.saalfeldlab.n5.googlecloud.N5GoogleCloudStorageWriter;
 import org.janelia.stitching.Utils;
 import org.janelia.util.ImageImporter;
+import org.janelia.util.TiffStreamWriter;
+import org.janelia.util.concurrent.BoundedTaskSubmitter;
 
 import com.google.api.gax.paging.Page;
 import com.google.cloud.storage.Blob;
@@ -32,7 +33,6 @@ import com.google.cloud.storage.Storage.BlobListOption;
 import com.google.cloud.storage.Storage.CopyRequest;
 import com.google.gson.GsonBuilder;
 
-import ij.IJ;
 import ij.ImagePlus;
 
 public class GoogleCloudDataProvider extends AbstractJSONDataProvider
@@ -64,6 +64,31 @@ public class GoogleCloudDataProvider extends AbstractJSONDataProvider
 		}
 	}
 
+	private static final int REQUEST_THREADS = 16;
+	private static final int MAX_PENDING_REQUESTS = 4 * REQUEST_THREADS;
+
+	// Google Cloud Storage accepts up to 100 requests in a single batch
+	private static final int MAX_DELETE_BATCH_SIZE = 100;
+
+	private static ExecutorService requestThreadPool;
+
+	/**
+	 * Returns a shared pool of daemon threads for issuing the copy and delete requests of the folder operations.
+	 */
+	private static synchronized ExecutorService getRequestThreadPool()
+	{
+		if ( requestThreadPool == null )
+		{
+			requestThreadPool = Executors.newFixedThreadPool( REQUEST_THREADS, runnable ->
+				{
+					final Thread thread = new Thread( runnable );
+					thread.setDaemon( true );
+					return thread;
+				} );
+		}
+		return requestThreadPool;
+	}
+
 	private final Storage storage;
 
 	public GoogleCloudDataProvider( final Storage storage )
@@ -103,6 +128,9 @@ public class GoogleCloudDataProvider extends AbstractJSONDataProvider
 		storage.copy( request ).getResult();
 	}
 
+	/**
+	 * Issues server-side copy requests in parallel while the listing is being paged through.
+	 */
 	@Override
 	public void copyFolder( final String srcLink, final String dstLink ) throws IOException
 	{
@@ -110,23 +138,27 @@ public class GoogleCloudDataProvider extends AbstractJSONDataProvider
 		final GoogleCloudStorageURI dstGoogleCloudUri = new GoogleCloudStorageURI( dstLink );
 
 		final String prefix = srcGoogleCloudUri.getKey().endsWith( "/" ) ? srcGoogleCloudUri.getKey() : srcGoogleCloudUri.getKey() + "/";
-		final Page< Blob > blobListing = storage.list( srcGoogleCloudUri.getBucket(), BlobListOption.prefix( prefix ) );
-		for ( final Iterator< Blob > blobIterator = blobListing.iterateAll().iterator(); blobIterator.hasNext(); )
+		final BoundedTaskSubmitter taskSubmitter = new BoundedTaskSubmitter( getRequestThreadPool(), MAX_PENDING_REQUESTS );
+		for ( Page< Blob > blobListing = storage.list( srcGoogleCloudUri.getBucket(), BlobListOption.prefix( prefix ) ); blobListing != null; blobListing = blobListing.getNextPage() )
 		{
-			final BlobId blobId = blobIterator.next().getBlobId();
-
-			final String objectPath = blobId.getName();
-			if ( !objectPath.startsWith( prefix ) )
-				throw new RuntimeException( "requested prefix does not match with actual prefix" );
-			final String objectRelativePath = objectPath.substring( prefix.length() );
-			final String objectNewPath = PathResolver.get( dstGoogleCloudUri.getKey(), objectRelativePath );
-
-			final CopyRequest request = CopyRequest.newBuilder()
-					.setSource( blobId )
-					.setTarget( BlobId.of( dstGoogleCloudUri.getBucket(), objectNewPath ) )
-					.build();
-			storage.copy( request ).getResult();
+			for ( final Blob blob : blobListing.getValues() )
+			{
+				final BlobId blobId = blob.getBlobId();
+
+				final String objectPath = blobId.getName();
+				if ( !objectPath.startsWith( prefix ) )
+					throw new RuntimeException( "requested prefix does not match with actual prefix" );
+				final String objectRelativePath = objectPath.substring( prefix.length() );
+				final String objectNewPath = PathResolver.get( dstGoogleCloudUri.getKey(), objectRelativePath );
+
+				final CopyRequest request = CopyRequest.newBuilder()
+						.setSource( blobId )
+						.setTarget( BlobId.of( dstGoogleCloudUri.getBucket(), objectNewPath ) )
+						.build();
+				taskSubmitter.submit( () -> storage.copy( request ).getResult() );
+			}
 		}
+		taskSubmitter.awaitAll();
 	}
 
 	@Override
@@ -150,16 +182,37 @@ public class GoogleCloudDataProvider extends AbstractJSONDataProvider
 		storage.delete( BlobId.of( googleCloudUri.getBucket(), googleCloudUri.getKey() ) );
 	}
 
+	/**
+	 * Deletes the objects in batches while the listing is being paged through, so the object names are never collected in memory.
+	 */
 	@Override
 	public void deleteFolder( final String link ) throws IOException
 	{
 		final GoogleCloudStorageURI googleCloudUri = new GoogleCloudStorageURI( link );
 		final String prefix = googleCloudUri.getKey().endsWith( "/" ) ? googleCloudUri.getKey() : googleCloudUri.getKey() + "/";
-		final List< BlobId > subBlobs = new ArrayList<>();
-		final Page< Blob > blobListing = storage.list( googleCloudUri.getBucket(), BlobListOption.prefix( prefix ) );
-		for ( final Iterator< Blob > blobIterator = blobListing.iterateAll().iterator(); blobIterator.hasNext(); )
-			subBlobs.add( blobIterator.next().getBlobId() );
-		storage.delete( subBlobs );
+		final BoundedTaskSubmitter taskSubmitter = new BoundedTaskSubmitter( getRequestThreadPool(), MAX_PENDING_REQUESTS );
+		List< BlobId > blobsToDelete = new ArrayList<>();
+		for ( Page< Blob > blobListing = storage.list( googleCloudUri.getBucket(), BlobListOption.prefix( prefix ) ); blobListing != null; blobListing = blobListing.getNextPage() )
+		{
+			for ( final Blob blob : blobListing.getValues() )
+			{
+				blobsToDelete.add( blob.getBlobId() );
+				if ( blobsToDelete.size() == MAX_DELETE_BATCH_SIZE )
+				{
+					submitDeleteBatch( taskSubmitter, blobsToDelete );
+					blobsToDelete = new ArrayList<>();
+				}
+			}
+		}
+		if ( !blobsToDelete.isEmpty() )
+			submitDeleteBatch( taskSubmitter, blobsToDelete );
+		taskSubmitter.awaitAll();
+	}
+
+	private void submitDeleteBatch( final BoundedTaskSubmitter taskSubmitter, final List< BlobId > blobsToDelete ) throws IOException
+	{
+		// the objects that do not exist anymore are reported as not deleted, this is not an error for deleting a folder
+		taskSubmitter.submit( () -> storage.delete( blobsToDelete ) );
 	}
 
 	@Override
@@ -189,22 +242,9 @@ public class GoogleCloudDataProvider extends AbstractJSONDataProvider
 	public void saveImage( final ImagePlus imp, final String link ) throws IOException
 	{
 		Utils.workaroundImagePlusNSlices( imp );
-		// Need to save as a local TIFF file and then upload to Google Cloud. IJ does not provide a way to convert ImagePlus to TIFF byte array.
-		Path tempPath = null;
-		try
-		{
-			tempPath = Files.createTempFile( null, ".tif" );
-			IJ.saveAsTiff( imp, tempPath.toString() );
-
-			final GoogleCloudStorageURI googleCloudUri = new GoogleCloudStorageURI( link );
-			final BlobInfo blobInfo = BlobInfo.newBuilder( googleCloudUri.getBucket(), googleCloudUri.getKey() ).build();
-			final byte[] bytes = Files.readAllBytes( tempPath );
-			storage.create( blobInfo, bytes );
-		}
-		finally
+		try ( final OutputStream out = getOutputStream( link ) )
 		{
-			if ( tempPath != null )
-				tempPath.toFile().delete();
+			TiffStreamWriter.write( imp, out );
 		}
 	}
 
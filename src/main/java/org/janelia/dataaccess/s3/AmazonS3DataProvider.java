@@ -1,16 +1,14 @@
 package org.janelia.dataaccess.s3;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.lang.NotImplementedException;
 import org.janelia.dataaccess.AbstractJSONDataProvider;
@@ -22,20 +20,18 @@ import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Reader;
 import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Writer;
 import org.janelia.stitching.Utils;
 import org.janelia.util.ImageImporter;
+import org.janelia.util.TiffStreamWriter;
+import org.janelia.util.concurrent.BoundedTaskSubmitter;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3URI;
 import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
 import com.amazonaws.services.s3.model.ListObjectsV2Request;
 import com.amazonaws.services.s3.model.ListObjectsV2Result;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
-import com.amazonaws.services.s3.transfer.Upload;
 import com.google.gson.GsonBuilder;
 
-import ij.IJ;
 import ij.ImagePlus;
 
 /**
@@ -45,44 +41,37 @@ import ij.ImagePlus;
  */
 public class AmazonS3DataProvider extends AbstractJSONDataProvider
 {
-	private class S3ObjectOutputStream extends ByteArrayOutputStream
-	{
-		private final AmazonS3URI uri;
-		private boolean closed;
+	private static final int REQUEST_THREADS = 16;
+	private static final int MAX_PENDING_REQUESTS = 4 * REQUEST_THREADS;
 
-		public S3ObjectOutputStream( final AmazonS3URI uri )
-		{
-	        this.uri = uri;
-	    }
+	// S3 accepts up to 1000 keys in a single delete request, which is also the maximum size of a listing page
+	private static final int MAX_DELETE_BATCH_SIZE = 1000;
 
-		@Override
-		public void close() throws IOException
-		{
-			if ( !closed )
-			{
-				super.flush();
-				final byte[] bytes = toByteArray();
+	private static ExecutorService requestThreadPool;
 
-				final ObjectMetadata objectMetadata = new ObjectMetadata();
-				objectMetadata.setContentLength( bytes.length );
-				try ( final InputStream data = new ByteArrayInputStream( bytes ) )
+	/**
+	 * Returns a shared pool of daemon threads for uploading the parts of the objects written through {@link #getOutputStream(String)},
+	 * and for issuing the copy and delete requests of the folder operations.
+	 */
+	private static synchronized ExecutorService getRequestThreadPool()
+	{
+		if ( requestThreadPool == null )
+		{
+			requestThreadPool = Executors.newFixedThreadPool( REQUEST_THREADS, runnable ->
 				{
-					s3.putObject( uri.getBucket(), uri.getKey(), data, objectMetadata );
-				}
-
-				super.close();
-				closed = true;
-			}
+					final Thread thread = new Thread( runnable );
+					thread.setDaemon( true );
+					return thread;
+				} );
 		}
+		return requestThreadPool;
 	}
 
 	private final AmazonS3 s3;
-	private final TransferManager s3TransferManager;
 
 	public AmazonS3DataProvider( final AmazonS3 s3 )
 	{
 		this.s3 = s3;
-		s3TransferManager = TransferManagerBuilder.standard().withS3Client( s3 ).build();
 	}
 
 	@Override
@@ -111,6 +100,9 @@ public class AmazonS3DataProvider extends AbstractJSONDataProvider
 		s3.deleteObject( s3Uri.getBucket(), s3Uri.getKey() );
 	}
 
+	/**
+	 * Deletes the objects in batches while the listing is being paged through, so the keys are never collected in memory.
+	 */
 	@Override
 	public void deleteFolder( final String link ) throws IOException
 	{
@@ -118,24 +110,30 @@ public class AmazonS3DataProvider extends AbstractJSONDataProvider
 		final String prefix = s3Uri.getKey().endsWith( "/" ) ? s3Uri.getKey() : s3Uri.getKey() + "/";
 		final ListObjectsV2Request listObjectsRequest = new ListObjectsV2Request()
 				.withBucketName( s3Uri.getBucket() )
-				.withPrefix( prefix );
+				.withPrefix( prefix )
+				.withMaxKeys( MAX_DELETE_BATCH_SIZE );
+
+		final BoundedTaskSubmitter taskSubmitter = new BoundedTaskSubmitter( getRequestThreadPool(), MAX_PENDING_REQUESTS );
 		ListObjectsV2Result objectsListing;
 		do
 		{
 			objectsListing = s3.listObjectsV2( listObjectsRequest );
-			final List< String > objectsToDelete = new ArrayList<>();
+			final List< KeyVersion > objectsToDelete = new ArrayList<>();
 			for ( final S3ObjectSummary object : objectsListing.getObjectSummaries() )
-				objectsToDelete.add( object.getKey() );
+				objectsToDelete.add( new KeyVersion( object.getKey() ) );
 
 			if ( !objectsToDelete.isEmpty() )
 			{
-				s3.deleteObjects( new DeleteObjectsRequest( s3Uri.getBucket() )
-						.withKeys( objectsToDelete.toArray( new String[objectsToDelete.size() ] ) )
-					);
+				// a listing page does not exceed the batch size, so each page is deleted with a single request
+				taskSubmitter.submit( () -> s3.deleteObjects( new DeleteObjectsRequest( s3Uri.getBucket() )
+						.withKeys( objectsToDelete )
+						.withQuiet( true )
+					) );
 			}
 			listObjectsRequest.setContinuationToken( objectsListing.getNextContinuationToken() );
 		}
 		while ( objectsListing.isTruncated() );
+		taskSubmitter.awaitAll();
 	}
 
 	@Override
@@ -149,6 +147,9 @@ public class AmazonS3DataProvider extends AbstractJSONDataProvider
 			);
 	}
 
+	/**
+	 * Issues server-side copy requests in parallel while the listing is being paged through.
+	 */
 	@Override
 	public void copyFolder( final String srcLink, final String dstLink ) throws IOException
 	{
@@ -159,6 +160,8 @@ public class AmazonS3DataProvider extends AbstractJSONDataProvider
 		final ListObjectsV2Request listObjectsRequest = new ListObjectsV2Request()
 				.withBucketName( srcS3Uri.getBucket() )
 				.withPrefix( prefix );
+
+		final BoundedTaskSubmitter taskSubmitter = new BoundedTaskSubmitter( getRequestThreadPool(), MAX_PENDING_REQUESTS );
 		ListObjectsV2Result objectsListing;
 		do
 		{
@@ -170,14 +173,15 @@ public class AmazonS3DataProvider extends AbstractJSONDataProvider
 					throw new RuntimeException( "requested prefix does not match with actual prefix" );
 				final String objectRelativePath = objectPath.substring( prefix.length() );
 				final String objectNewPath = PathResolver.get( dstS3Uri.getKey(), objectRelativePath );
-				s3.copyObject(
+				taskSubmitter.submit( () -> s3.copyObject(
 						srcS3Uri.getBucket(), objectPath,
 						dstS3Uri.getBucket(), objectNewPath
-					);
+					) );
 			}
 			listObjectsRequest.setContinuationToken( objectsListing.getNextContinuationToken() );
 		}
 		while ( objectsListing.isTruncated() );
+		taskSubmitter.awaitAll();
 	}
 
 	@Override
@@ -205,7 +209,7 @@ public class AmazonS3DataProvider extends AbstractJSONDataProvider
 	public OutputStream getOutputStream( final String link ) throws IOException
 	{
 		final AmazonS3URI s3Uri = decodeS3Uri( link );
-		return new S3ObjectOutputStream( s3Uri );
+		return new S3MultipartOutputStream( s3, s3Uri.getBucket(), s3Uri.getKey(), getRequestThreadPool() );
 	}
 
 	@Override
@@ -220,28 +224,9 @@ public class AmazonS3DataProvider extends AbstractJSONDataProvider
 	public void saveImage( final ImagePlus imp, final String link ) throws IOException
 	{
 		Utils.workaroundImagePlusNSlices( imp );
-		// Need to save as a local TIFF file and then upload to S3. IJ does not provide a way to convert ImagePlus to TIFF byte array.
-		Path tempPath = null;
-		try
-		{
-			tempPath = Files.createTempFile( null, ".tif" );
-			IJ.saveAsTiff( imp, tempPath.toString() );
-
-			final AmazonS3URI s3Uri = decodeS3Uri( link );
-			final Upload s3Upload = s3TransferManager.upload( s3Uri.getBucket(), s3Uri.getKey(), tempPath.toFile() );
-			try
-			{
-				s3Upload.waitForCompletion();
-			}
-			catch ( final InterruptedException e )
-			{
-				e.printStackTrace();
-			}
-		}
-		finally
+		try ( final OutputStream out = getOutputStream( link ) )
 		{
-			if ( tempPath != null )
-				tempPath.toFile().delete();
+			TiffStreamWriter.write( imp, out );
 		}
 	}
 
@@ -0,0 +1,297 @@
+package org.janelia.dataaccess.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Output stream that uploads the data to S3 while it is being written.
+ *
+ * The data is collected into part buffers of a fixed size. As soon as a buffer is full, it is uploaded as a part of a multipart upload
+ * in the background, and the writer continues with the next buffer. The number of buffers is bounded, so the writer blocks
+ * when all parts are in flight, and the memory footprint does not depend on the object size.
+ * The first buffer starts small and grows up to the part size, so that small objects such as attributes do not allocate a full part.
+ * Objects that fit into a single part are uploaded with a regular put request when the stream is closed.
+ *
+ * If any of the requests fails, the multipart upload is aborted and the error is thrown from {@link #write} or {@link #close()}.
+ */
+public class S3MultipartOutputStream extends OutputStream
+{
+	// S3 requires all parts except the last one to be at least 5MB
+	public static final int MIN_PART_SIZE = 5 << 20;
+
+	public static final int DEFAULT_PART_SIZE = 8 << 20;
+	public static final int DEFAULT_PARTS_IN_FLIGHT = 4;
+
+	static final int INITIAL_BUFFER_SIZE = 64 << 10;
+
+	private final AmazonS3 s3;
+	private final String bucket, key;
+	private final int partSize;
+	private final ExecutorService uploadExecutor;
+
+	// one extra buffer is being filled while the others are uploaded
+	private final BlockingQueue< byte[] > freeBuffers;
+	private final int maxBuffers;
+	private int allocatedBuffers;
+
+	private byte[] buffer;
+	private int position;
+
+	private String uploadId;
+	private final List< Future< PartETag > > partUploads = new ArrayList<>();
+	private boolean closed;
+
+	public S3MultipartOutputStream(
+			final AmazonS3 s3,
+			final String bucket,
+			final String key,
+			final ExecutorService uploadExecutor )
+	{
+		this( s3, bucket, key, DEFAULT_PART_SIZE, DEFAULT_PARTS_IN_FLIGHT, uploadExecutor );
+	}
+
+	public S3MultipartOutputStream(
+			final AmazonS3 s3,
+			final String bucket,
+			final String key,
+			final int partSize,
+			final int partsInFlight,
+			final ExecutorService uploadExecutor )
+	{
+		if ( partSize < MIN_PART_SIZE )
+			throw new IllegalArgumentException( "part size should be at least " + MIN_PART_SIZE + " bytes, got " + partSize );
+		if ( partsInFlight < 1 )
+			throw new IllegalArgumentException( "at least one part should be allowed to be in flight" );
+
+		this.s3 = s3;
+		this.bucket = bucket;
+		this.key = key;
+		this.partSize = partSize;
+		this.uploadExecutor = uploadExecutor;
+
+		maxBuffers = partsInFlight + 1;
+		freeBuffers = new ArrayBlockingQueue<>( maxBuffers );
+	}
+
+	@Override
+	public void write( final int b ) throws IOException
+	{
+		ensureOpenBuffer();
+		buffer[ position++ ] = ( byte ) b;
+		if ( position == partSize )
+			uploadPart();
+	}
+
+	@Override
+	public void write( final byte[] b, int off, int len ) throws IOException
+	{
+		while ( len > 0 )
+		{
+			ensureOpenBuffer();
+			final int chunk = Math.min( len, buffer.length - position );
+			System.arraycopy( b, off, buffer, position, chunk );
+			position += chunk;
+			off += chunk;
+			len -= chunk;
+			if ( position == partSize )
+				uploadPart();
+		}
+	}
+
+	/**
+	 * Does nothing because S3 does not accept parts smaller than {@link #MIN_PART_SIZE}, the data is uploaded when the part is full.
+	 */
+	@Override
+	public void flush() {}
+
+	@Override
+	public void close() throws IOException
+	{
+		if ( closed )
+			return;
+		closed = true;
+
+		try
+		{
+			if ( uploadId == null )
+			{
+				// the object fits into a single part
+				final int length = buffer != null ? position : 0;
+				final ObjectMetadata objectMetadata = new ObjectMetadata();
+				objectMetadata.setContentLength( length );
+				s3.putObject( bucket, key, new ByteArrayInputStream( buffer != null ? buffer : new byte[ 0 ], 0, length ), objectMetadata );
+			}
+			else
+			{
+				if ( buffer != null && position > 0 )
+					submitPart();
+
+				final List< PartETag > partETags = new ArrayList<>();
+				for ( final Future< PartETag > partUpload : partUploads )
+					partETags.add( getPartETag( partUpload ) );
+
+				s3.completeMultipartUpload( new CompleteMultipartUploadRequest( bucket, key, uploadId, partETags ) );
+			}
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			abort( e );
+			throw e instanceof IOException ? ( IOException ) e : new IOException( e );
+		}
+		finally
+		{
+			buffer = null;
+			freeBuffers.clear();
+		}
+	}
+
+	/**
+	 * Makes sure that there is space in the current buffer: takes the next part buffer, or grows the first one if it is smaller than the part size.
+	 */
+	private void ensureOpenBuffer() throws IOException
+	{
+		if ( closed )
+			throw new IOException( "stream is closed: s3://" + bucket + "/" + key );
+
+		if ( buffer != null && position == buffer.length )
+		{
+			// the buffer is uploaded as soon as it reaches the part size, so only the first buffer can be full here
+			buffer = Arrays.copyOf( buffer, ( int ) Math.min( 2L * buffer.length, partSize ) );
+		}
+		else if ( buffer == null )
+		{
+			buffer = freeBuffers.poll();
+			if ( buffer == null )
+			{
+				if ( allocatedBuffers < maxBuffers )
+				{
+					buffer = new byte[ allocatedBuffers == 0 ? Math.min( INITIAL_BUFFER_SIZE, partSize ) : partSize ];
+					++allocatedBuffers;
+				}
+				else
+				{
+					// all buffers are being uploaded, wait until one of them is released
+					try
+					{
+						buffer = freeBuffers.take();
+					}
+					catch ( final InterruptedException e )
+					{
+						closed = true;
+						final InterruptedIOException interruptedException = new InterruptedIOException( "interrupted while waiting for a part upload to complete" );
+						abort( interruptedException );
+						throw interruptedException;
+					}
+				}
+			}
+			position = 0;
+		}
+	}
+
+	private void uploadPart() throws IOException
+	{
+		try
+		{
+			if ( uploadId == null )
+				uploadId = s3.initiateMultipartUpload( new InitiateMultipartUploadRequest( bucket, key ) ).getUploadId();
+
+			// fail early if any of the previous parts could not be uploaded
+			for ( final Future< PartETag > partUpload : partUploads )
+				if ( partUpload.isDone() )
+					getPartETag( partUpload );
+
+			submitPart();
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			closed = true;
+			abort( e );
+			throw e instanceof IOException ? ( IOException ) e : new IOException( e );
+		}
+	}
+
+	private void submitPart()
+	{
+		final byte[] partBuffer = buffer;
+		final int partLength = position;
+		final int partNumber = partUploads.size() + 1;
+		final String partUploadId = uploadId;
+		buffer = null;
+		position = 0;
+
+		partUploads.add( uploadExecutor.submit( () ->
+			{
+				try
+				{
+					return s3.uploadPart( new UploadPartRequest()
+							.withBucketName( bucket )
+							.withKey( key )
+							.withUploadId( partUploadId )
+							.withPartNumber( partNumber )
+							.withPartSize( partLength )
+							.withInputStream( new ByteArrayInputStream( partBuffer, 0, partLength ) )
+						).getPartETag();
+				}
+				finally
+				{
+					freeBuffers.offer( partBuffer );
+				}
+			} ) );
+	}
+
+	/**
+	 * Cancels the pending parts and aborts the multipart upload. If the abort request fails, its error is attached to the original one.
+	 */
+	private void abort( final Exception cause )
+	{
+		for ( final Future< PartETag > partUpload : partUploads )
+			partUpload.cancel( true );
+
+		if ( uploadId != null )
+		{
+			try
+			{
+				s3.abortMultipartUpload( new AbortMultipartUploadRequest( bucket, key, uploadId ) );
+			}
+			catch ( final RuntimeException e )
+			{
+				cause.addSuppressed( e );
+			}
+			uploadId = null;
+		}
+	}
+
+	private static PartETag getPartETag( final Future< PartETag > partUpload ) throws IOException
+	{
+		try
+		{
+			return partUpload.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new InterruptedIOException( "interrupted while waiting for a part upload to complete" );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new IOException( "failed to upload a part", e.getCause() );
+		}
+	}
+}
@@ -1,47 +1,564 @@
 package org.janelia.flatfield;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.janelia.dataaccess.CloudN5WriterSupplier;
+import org.janelia.dataaccess.CloudURI;
 import org.janelia.dataaccess.DataProvider;
 import org.janelia.dataaccess.DataProviderFactory;
+import org.janelia.dataaccess.DataProviderType;
+import org.janelia.dataaccess.N5CompressionFactory;
 import org.janelia.dataaccess.PathResolver;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
 import org.janelia.stitching.TileInfo;
 import org.janelia.stitching.TileLoader;
+import org.janelia.stitching.TileLoader.TileType;
 import org.janelia.stitching.Utils;
+import org.janelia.util.N5PlaneBlockWriter;
+import org.janelia.util.SequentialTiffReader;
+import org.janelia.util.TiffSliceReader;
+import org.janelia.util.TiffSliceReader.TiffInputStreamSupplier;
+import org.janelia.util.concurrent.MultithreadedExecutor;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
 
-import ij.ImagePlus;
+import ij.io.FileInfo;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.ClampingConverter;
 import net.imglib2.converter.Converters;
-import net.imglib2.converter.RealConverter;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
-import net.imglib2.view.RandomAccessiblePairNullable;
-import net.imglib2.view.Views;
+import scala.Tuple2;
 
+/**
+ * Applies the flatfield correction to the tiles and saves the corrected tiles as N5 datasets of the same data type.
+ *
+ * The tiles are streamed instead of being loaded as a whole: N5 tiles are read block by block,
+ * and .tif tiles are read plane by plane through a single stream while only one layer of output blocks is kept in memory.
+ * The pixels are corrected on the primitive arrays, converted back to the input data type with clamping, and the output blocks are written directly.
+ *
+ * The correction runs on a thread pool that is shared by all tasks running on the same executor, so the number of threads per executor is bounded.
+ * N5 tiles are processed with one block per thread, so reading, correction and writing of different blocks overlap.
+ * The rows of every .tif plane are corrected in parallel.
+ */
 public class ApplyFlatfieldCorrection
 {
-	public static < T extends NativeType< T > & RealType< T >, U extends NativeType< U > & RealType< U > > void main( final String[] args ) throws Exception
+	private static class ApplyFlatfieldCorrectionCmdArgs implements Serializable
 	{
-		final String inputTileConfiguration = args[ 0 ];
-		final DataProvider dataProvider = DataProviderFactory.create( DataProviderFactory.detectType( inputTileConfiguration ) );
-		final TileInfo[] tiles = dataProvider.loadTiles( inputTileConfiguration );
-		final RandomAccessiblePairNullable< U, U > flatfield = FlatfieldCorrection.loadCorrectionImages( dataProvider, inputTileConfiguration, tiles[ 0 ].numDimensions() );
-		if ( flatfield == null )
-			throw new NullPointerException( "flatfield images were not found" );
+		private static final long serialVersionUID = -4538924763926341157L;
+
+		@Option(name = "-i", aliases = { "--inputConfigurationPath" }, required = true,
+				usage = "Path to an input tile configuration file. Multiple configurations (channels) can be passed at once.")
+		private List< String > inputChannelsPaths;
+
+		@Option(name = "-o", aliases = { "--n5OutputPath" }, required = false,
+				usage = "Path to an N5 output container (can be a filesystem path, an Amazon S3 link, or a Google Cloud link).")
+		private String n5OutputPath;
+
+		@Option(name = "-b", aliases = { "--blockSize" }, required = false,
+				usage = "Output block size as a comma-separated list (used for image file tiles, N5 tiles keep their block size).")
+		private String blockSizeStr = "128,128,64";
 
-		final String outputDirectory = PathResolver.get( PathResolver.getParent( inputTileConfiguration ), PathResolver.getFileName( inputTileConfiguration ) + "_test-apply-flatfield" );
-		int processed = 0;
-		for ( final TileInfo tile : tiles )
+		@Option(name = "--correctionThreads", required = false,
+				usage = "Number of threads on each executor that are shared by its tasks. "
+						+ "N5 tiles are corrected with one block in flight per thread, .tif tiles are corrected row-parallel one plane at a time.")
+		private int correctionThreads = 8;
+
+		@Option(name = "-c", aliases = { "--compression" }, required = false,
+				usage = "Compression of the output tiles. " + N5CompressionFactory.USAGE)
+		private String compression = N5CompressionFactory.DEFAULT;
+
+		private boolean parsedSuccessfully = false;
+
+		public ApplyFlatfieldCorrectionCmdArgs( final String... args ) throws IllegalArgumentException
 		{
-			final RandomAccessibleInterval< T > tileImg = TileLoader.loadTile( tile, dataProvider );
-			final FlatfieldCorrectedRandomAccessible< T, U > flatfieldCorrectedTileImg = new FlatfieldCorrectedRandomAccessible<>( tileImg, flatfield.toRandomAccessiblePair() );
-			final RandomAccessibleInterval< U > correctedImg = Views.interval( flatfieldCorrectedTileImg, tileImg );
-			final RandomAccessibleInterval< T > convertedImg = Converters.convert( correctedImg, new RealConverter<>(), Util.getTypeFromInterval( tileImg ) );
-			final ImagePlus correctedImp = Utils.copyToImagePlus( convertedImg );
-			dataProvider.saveImage( correctedImp, PathResolver.get( outputDirectory, PathResolver.getFileName( tile.getFilePath() ) ) );
+			final CmdLineParser parser = new CmdLineParser( this );
+			try
+			{
+				parser.parseArgument( args );
+				parsedSuccessfully = true;
+			}
+			catch ( final CmdLineException e )
+			{
+				System.err.println( e.getMessage() );
+				parser.printUsage( System.err );
+			}
+
+			// make sure that inputTileConfigurations contains absolute file paths if running on a traditional filesystem
+			for ( int i = 0; i < inputChannelsPaths.size(); ++i )
+				if ( !CloudURI.isCloudURI( inputChannelsPaths.get( i ) ) )
+					inputChannelsPaths.set( i, Paths.get( inputChannelsPaths.get( i ) ).toAbsolutePath().toString() );
 
-			System.out.println( "  processed " + (++processed) + " tiles out of " + tiles.length );
+			if ( n5OutputPath != null )
+			{
+				// make sure that n5OutputPath is absolute if running on a traditional filesystem
+				if ( !CloudURI.isCloudURI( n5OutputPath ) )
+					n5OutputPath = Paths.get( n5OutputPath ).toAbsolutePath().toString();
+			}
+			else
+			{
+				n5OutputPath = PathResolver.get( PathResolver.getParent( inputChannelsPaths.iterator().next() ), "tiles-flatfield.n5" );
+			}
 		}
+	}
+
+	/**
+	 * Output tile together with the amount of processed data and the time interval when it was processed.
+	 */
+	private static class CorrectedTile implements Serializable
+	{
+		private static final long serialVersionUID = 6394637411270457917L;
+
+		final int channel;
+		final TileInfo tile;
+		final String executorId;
+		final long bytes, startTime, endTime;
 
+		CorrectedTile( final int channel, final TileInfo tile, final String executorId, final long bytes, final long startTime, final long endTime )
+		{
+			this.channel = channel;
+			this.tile = tile;
+			this.executorId = executorId;
+			this.bytes = bytes;
+			this.startTime = startTime;
+			this.endTime = endTime;
+		}
+	}
+
+	private static final int MAX_PARTITIONS = 15000;
+
+	private static final String OUTPUT_CONFIGURATION_SUFFIX = "-flatfield";
+
+	// shared by all tasks running on the same executor
+	private static ExecutorService blockThreadPool;
+
+	public static void main( final String... args ) throws Exception
+	{
+		final ApplyFlatfieldCorrectionCmdArgs parsedArgs = new ApplyFlatfieldCorrectionCmdArgs( args );
+		if ( !parsedArgs.parsedSuccessfully )
+			throw new IllegalArgumentException( "argument format mismatch" );
+
+		try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
+				.setAppName( "ApplyFlatfieldCorrection" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			) )
+		{
+			run(
+					sparkContext,
+					parsedArgs.inputChannelsPaths,
+					parsedArgs.n5OutputPath,
+					CmdUtils.parseIntArray( parsedArgs.blockSizeStr ),
+					parsedArgs.correctionThreads,
+					N5CompressionFactory.create( parsedArgs.compression )
+				);
+		}
 		System.out.println( System.lineSeparator() + "Done" );
 	}
+
+	public static void run(
+			final JavaSparkContext sparkContext,
+			final List< String > inputChannelsPaths,
+			final String n5OutputPath,
+			final int[] blockSize,
+			final int correctionThreads,
+			final Compression compression ) throws IOException
+	{
+		final DataProviderType inputDataProviderType = DataProviderFactory.detectType( inputChannelsPaths.iterator().next() );
+		final DataProvider dataProvider = DataProviderFactory.create( inputDataProviderType );
+		final CloudN5WriterSupplier n5Supplier = new CloudN5WriterSupplier( n5OutputPath );
+
+		final List< String > channelNames = new ArrayList<>();
+		final List< TileInfo[] > channelTiles = new ArrayList<>();
+		final List< FlatfieldField > channelFlatfields = new ArrayList<>();
+		for ( final String channelPath : inputChannelsPaths )
+		{
+			final FlatfieldField flatfield = FlatfieldCorrection.loadFlatfieldField( dataProvider, channelPath );
+			if ( flatfield == null )
+				throw new NullPointerException( "flatfield images were not found for " + channelPath );
+
+			final String channelName = getChannelName( channelPath );
+			n5Supplier.get().createGroup( channelName );
+
+			channelNames.add( channelName );
+			channelTiles.add( dataProvider.loadTiles( channelPath ) );
+			channelFlatfields.add( flatfield );
+		}
+		final Broadcast< List< FlatfieldField > > broadcastedChannelFlatfields = sparkContext.broadcast( channelFlatfields );
+
+		final List< Tuple2< Integer, TileInfo > > channelTileTuples = new ArrayList<>();
+		for ( int channel = 0; channel < channelTiles.size(); ++channel )
+			for ( final TileInfo tile : channelTiles.get( channel ) )
+				channelTileTuples.add( new Tuple2<>( channel, tile ) );
+
+		System.out.println( "Applying flatfield correction to " + channelTileTuples.size() + " tiles..." );
+
+		final List< CorrectedTile > correctedTiles = sparkContext
+				.parallelize( channelTileTuples, Math.min( channelTileTuples.size(), MAX_PARTITIONS ) )
+				.map( channelTileTuple ->
+					{
+						final int channel = channelTileTuple._1();
+						final TileInfo tile = channelTileTuple._2();
+						final FlatfieldCorrector flatfield = new FlatfieldCorrector( broadcastedChannelFlatfields.value().get( channel ) );
+						final String outputDatasetPath = PathResolver.get( channelNames.get( channel ), PathResolver.getFileName( tile.getFilePath() ) );
+
+						final long startTime = System.currentTimeMillis();
+						final long bytes = correctTile(
+								tile,
+								DataProviderFactory.create( inputDataProviderType ),
+								n5Supplier.get(),
+								outputDatasetPath,
+								flatfield,
+								blockSize,
+								compression,
+								new MultithreadedExecutor( getBlockThreadPool( correctionThreads ), correctionThreads ) // not closed because the thread pool is shared
+							);
+						final long endTime = System.currentTimeMillis();
+
+						final TileInfo outputTile = tile.clone();
+						outputTile.setFilePath( PathResolver.get( n5OutputPath, outputDatasetPath ) );
+						return new CorrectedTile( channel, outputTile, SparkEnv.get().executorId(), bytes, startTime, endTime );
+					}
+				)
+				.collect();
+
+		broadcastedChannelFlatfields.destroy();
+
+		// save new tile configurations
+		for ( int channel = 0; channel < channelTiles.size(); ++channel )
+		{
+			final TileInfo[] outputTiles = new TileInfo[ channelTiles.get( channel ).length ];
+			int index = 0;
+			for ( final CorrectedTile correctedTile : correctedTiles )
+				if ( correctedTile.channel == channel )
+					outputTiles[ index++ ] = correctedTile.tile;
+			dataProvider.saveTiles( outputTiles, Utils.addFilenameSuffix( inputChannelsPaths.get( channel ), OUTPUT_CONFIGURATION_SUFFIX ) );
+		}
+
+		printThroughput( correctedTiles );
+	}
+
+	/**
+	 * Reports the throughput of every executor as the amount of input data divided by the time between
+	 * the start of its first task and the end of its last task (the tasks on an executor run concurrently).
+	 */
+	private static void printThroughput( final List< CorrectedTile > correctedTiles )
+	{
+		final Map< String, long[] > executorStats = new TreeMap<>();
+		for ( final CorrectedTile correctedTile : correctedTiles )
+		{
+			if ( !executorStats.containsKey( correctedTile.executorId ) )
+				executorStats.put( correctedTile.executorId, new long[] { 0, Long.MAX_VALUE, Long.MIN_VALUE } );
+			final long[] stats = executorStats.get( correctedTile.executorId );
+			stats[ 0 ] += correctedTile.bytes;
+			stats[ 1 ] = Math.min( correctedTile.startTime, stats[ 1 ] );
+			stats[ 2 ] = Math.max( correctedTile.endTime, stats[ 2 ] );
+		}
+
+		System.out.println( "Throughput per executor:" );
+		for ( final Entry< String, long[] > entry : executorStats.entrySet() )
+		{
+			final double megabytes = entry.getValue()[ 0 ] / 1e6;
+			final double seconds = Math.max( entry.getValue()[ 2 ] - entry.getValue()[ 1 ], 1 ) / 1e3;
+			System.out.println( String.format( "  executor %s: %.1fMB in %.1fs, %.1fMB/s", entry.getKey(), megabytes, seconds, megabytes / seconds ) );
+		}
+	}
+
+	/**
+	 * Corrects the tile and saves it as an N5 dataset.
+	 *
+	 * @return size of the input tile in bytes
+	 */
+	private static < T extends NativeType< T > & RealType< T > > long correctTile(
+			final TileInfo tile,
+			final DataProvider dataProvider,
+			final N5Writer n5Writer,
+			final String outputDatasetPath,
+			final FlatfieldCorrector flatfield,
+			final int[] blockSize,
+			final Compression compression,
+			final MultithreadedExecutor blockExecutor ) throws Exception
+	{
+		if ( TileLoader.getTileType( tile, dataProvider ) == TileType.N5_DATASET )
+		{
+			final String n5Path = PathResolver.getParent( PathResolver.getParent( tile.getFilePath() ) );
+			final N5Reader n5Reader = dataProvider.createN5Reader( n5Path );
+			final String inputDatasetPath = TileLoader.getChannelN5DatasetPath( tile );
+			final DatasetAttributes inputAttributes = n5Reader.getDatasetAttributes( inputDatasetPath );
+			if ( isSupported( inputAttributes.getDataType() ) )
+			{
+				correctN5Tile( n5Reader, inputDatasetPath, inputAttributes, n5Writer, outputDatasetPath, flatfield, compression, blockExecutor );
+				return Intervals.numElements( inputAttributes.getDimensions() ) * getBytesPerElement( inputAttributes.getDataType() );
+			}
+		}
+		else if ( tile.getFilePath().endsWith( ".tif" ) || tile.getFilePath().endsWith( ".tiff" ) )
+		{
+			final TiffInputStreamSupplier inSupplier = () -> dataProvider.getInputStream( tile.getFilePath() );
+			final FileInfo[] sliceFileInfos = TiffSliceReader.getSliceFileInfos( inSupplier );
+			final DataType dataType = sliceFileInfos != null && sliceFileInfos.length != 0 ? TiffSliceReader.getDataType( sliceFileInfos[ 0 ] ) : null;
+			if ( dataType != null )
+			{
+				correctTiffTile( tile, inSupplier, sliceFileInfos, dataType, n5Writer, outputDatasetPath, flatfield, blockSize, compression, blockExecutor );
+				return Intervals.numElements( tile.getSize() ) * getBytesPerElement( dataType );
+			}
+		}
+
+		// other image formats and data types are loaded and corrected as a whole
+		final RandomAccessibleInterval< T > tileImg = TileLoader.loadTile( tile, dataProvider );
+		checkFlatfieldDimensions( flatfield, Intervals.dimensionsAsLongArray( tileImg ), tile.getFilePath() );
+		final T type = Util.getTypeFromInterval( tileImg );
+		final RandomAccessibleInterval< T > convertedImg = Converters.convert(
+				flatfield.correct( tileImg ),
+				new ClampingConverter< FloatType, T >( type.getMinValue(), type.getMaxValue(), type.getMinValue(), type.getMaxValue() ),
+				type.createVariable()
+			);
+		N5Utils.save( convertedImg, n5Writer, outputDatasetPath, blockSize, compression );
+		return Intervals.numElements( tileImg ) * type.getBitsPerPixel() / 8;
+	}
+
+	/**
+	 * Corrects the N5 tile block by block, the output dataset has the same block size as the input dataset.
+	 */
+	private static void correctN5Tile(
+			final N5Reader n5Reader,
+			final String inputDatasetPath,
+			final DatasetAttributes inputAttributes,
+			final N5Writer n5Writer,
+			final String outputDatasetPath,
+			final FlatfieldCorrector flatfield,
+			final Compression compression,
+			final MultithreadedExecutor blockExecutor ) throws Exception
+	{
+		final long[] dimensions = inputAttributes.getDimensions();
+		checkFlatfieldDimensions( flatfield, dimensions, inputDatasetPath );
+		final int[] blockSize = inputAttributes.getBlockSize();
+		final DatasetAttributes outputAttributes = new DatasetAttributes( dimensions, blockSize, inputAttributes.getDataType(), compression );
+		n5Writer.createDataset( outputDatasetPath, outputAttributes );
+
+		final CellGrid cellGrid = new CellGrid( dimensions, blockSize );
+		final long numBlocks = Intervals.numElements( cellGrid.getGridDimensions() );
+		if ( numBlocks > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "too many blocks in " + inputDatasetPath );
+
+		blockExecutor.run( blockIndex ->
+			{
+				final long[] gridPosition = new long[ dimensions.length ], blockMin = new long[ dimensions.length ];
+				cellGrid.getCellGridPositionFlat( blockIndex, gridPosition );
+				for ( int d = 0; d < dimensions.length; ++d )
+					blockMin[ d ] = gridPosition[ d ] * blockSize[ d ];
+
+				try
+				{
+					final DataBlock< ? > block = n5Reader.readBlock( inputDatasetPath, inputAttributes, gridPosition );
+					if ( block == null )
+						return;
+
+					// the block is corrected in place and written into the output dataset
+					correctBlock( flatfield, block.getData(), block.getSize(), blockMin, dimensions );
+					n5Writer.writeBlock( outputDatasetPath, outputAttributes, block );
+				}
+				catch ( final IOException e )
+				{
+					throw new RuntimeException( e );
+				}
+			},
+			( int ) numBlocks
+		);
+	}
+
+	/**
+	 * Corrects the .tif tile plane by plane. The planes are read through a single stream, the rows of every plane are corrected
+	 * in parallel and converted back in place, and the output blocks are written as soon as their Z chunk is complete,
+	 * so only one layer of output blocks and one corrected plane are kept in memory per tile.
+	 */
+	private static void correctTiffTile(
+			final TileInfo tile,
+			final TiffInputStreamSupplier inSupplier,
+			final FileInfo[] sliceFileInfos,
+			final DataType dataType,
+			final N5Writer n5Writer,
+			final String outputDatasetPath,
+			final FlatfieldCorrector flatfield,
+			final int[] blockSize,
+			final Compression compression,
+			final MultithreadedExecutor blockExecutor ) throws Exception
+	{
+		final long[] dimensions = tile.getSize();
+		if ( dimensions.length != blockSize.length )
+			throw new RuntimeException( "dimensionality mismatch" );
+		if ( sliceFileInfos[ 0 ].width != dimensions[ 0 ] || sliceFileInfos[ 0 ].height != dimensions[ 1 ] || ( dimensions.length > 2 ? dimensions[ 2 ] : 1 ) != sliceFileInfos.length )
+		{
+			throw new RuntimeException( String.format(
+					"Image size %s does not match the value from metadata %s, filepath: %s",
+					Arrays.toString( new long[] { sliceFileInfos[ 0 ].width, sliceFileInfos[ 0 ].height, sliceFileInfos.length } ),
+					Arrays.toString( dimensions ),
+					tile.getFilePath()
+				) );
+		}
+		checkFlatfieldDimensions( flatfield, dimensions, tile.getFilePath() );
+
+		final DatasetAttributes outputAttributes = new DatasetAttributes( dimensions, blockSize, dataType, compression );
+		n5Writer.createDataset( outputDatasetPath, outputAttributes );
+		final N5PlaneBlockWriter planeBlockWriter = new N5PlaneBlockWriter( n5Writer, outputDatasetPath, outputAttributes );
+
+		final int width = ( int ) dimensions[ 0 ], height = ( int ) dimensions[ 1 ], planeSize = width * height;
+		final float[] correctedPlane = new float[ planeSize ];
+
+		try ( final SequentialTiffReader sliceReader = new SequentialTiffReader( inSupplier, sliceFileInfos ) )
+		{
+			for ( int z = 0; z < sliceFileInfos.length; ++z )
+			{
+				final Object pixels = sliceReader.readSlicePixels( z );
+				if ( pixels == null )
+					throw new RuntimeException( "Cannot read slice " + ( z + 1 ) + " of " + tile.getFilePath() );
+
+				// the plane is corrected in place, so it can be copied into the output blocks directly
+				final long planeOffset = ( long ) z * planeSize;
+				blockExecutor.run( y ->
+					{
+						flatfield.correct( pixels, y * width, correctedPlane, y * width, planeOffset + y * width, width );
+						convertWithClamping( correctedPlane, y * width, pixels, y * width, width );
+					},
+					height
+				);
+				planeBlockWriter.writePlane( z, pixels );
+			}
+		}
+	}
+
+	/**
+	 * Checks that the flatfield has been estimated for tiles of the same size, the correction of the flat arrays would silently wrap around otherwise.
+	 */
+	static void checkFlatfieldDimensions( final FlatfieldCorrector flatfield, final long[] tileDimensions, final String tilePath )
+	{
+		if ( !flatfield.isCompatible( tileDimensions ) )
+		{
+			throw new IllegalArgumentException( String.format(
+					"Flatfield size %s does not match the tile size %s, filepath: %s",
+					Arrays.toString( flatfield.getFieldDimensions() ),
+					Arrays.toString( tileDimensions ),
+					tilePath
+				) );
+		}
+	}
+
+	/**
+	 * Corrects the block data in place. Every line of the block is contiguous in the flattened tile,
+	 * so the lines are corrected using the primitive kernel of the corrector and converted back with clamping.
+	 */
+	static void correctBlock( final FlatfieldCorrector flatfield, final Object data, final int[] blockSize, final long[] blockMin, final long[] tileDimensions )
+	{
+		final int lineLength = blockSize[ 0 ];
+		final int numElements = ( int ) Intervals.numElements( blockSize );
+		final float[] corrected = new float[ numElements ];
+
+		final long[] linePosition = blockMin.clone();
+		for ( int pos = 0; pos < numElements; pos += lineLength )
+		{
+			flatfield.correct( data, pos, corrected, pos, IntervalIndexer.positionToIndex( linePosition, tileDimensions ), lineLength );
+
+			// move to the next line
+			for ( int d = 1; d < linePosition.length; ++d )
+			{
+				if ( ++linePosition[ d ] < blockMin[ d ] + blockSize[ d ] )
+					break;
+				linePosition[ d ] = blockMin[ d ];
+			}
+		}
+
+		convertWithClamping( corrected, 0, data, 0, numElements );
+	}
+
+	/**
+	 * Rounds the corrected values and clamps them to the value range of the output array type.
+	 */
+	private static void convertWithClamping( final float[] src, final int srcPos, final Object dst, final int dstPos, final int length )
+	{
+		if ( dst instanceof short[] )
+		{
+			final short[] data = ( short[] ) dst;
+			for ( int i = 0; i < length; ++i )
+				data[ dstPos + i ] = ( short ) Math.min( Math.max( Math.round( src[ srcPos + i ] ), 0 ), 0xffff );
+		}
+		else if ( dst instanceof byte[] )
+		{
+			final byte[] data = ( byte[] ) dst;
+			for ( int i = 0; i < length; ++i )
+				data[ dstPos + i ] = ( byte ) Math.min( Math.max( Math.round( src[ srcPos + i ] ), 0 ), 0xff );
+		}
+		else if ( dst instanceof float[] )
+		{
+			System.arraycopy( src, srcPos, dst, dstPos, length );
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Unsupported storage array: " + dst.getClass().getSimpleName() );
+		}
+	}
+
+	private static synchronized ExecutorService getBlockThreadPool( final int numThreads )
+	{
+		if ( blockThreadPool == null )
+		{
+			blockThreadPool = Executors.newFixedThreadPool( numThreads, runnable ->
+				{
+					final Thread thread = new Thread( runnable );
+					thread.setDaemon( true );
+					return thread;
+				}
+			);
+		}
+		return blockThreadPool;
+	}
+
+	private static boolean isSupported( final DataType dataType )
+	{
+		return dataType == DataType.UINT8 || dataType == DataType.UINT16 || dataType == DataType.FLOAT32;
+	}
+
+	private static int getBytesPerElement( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case UINT8:
+			return 1;
+		case UINT16:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+
+	private static String getChannelName( final String tileConfigPath )
+	{
+		final String filename = PathResolver.getFileName( tileConfigPath );
+		final int lastDotIndex = filename.lastIndexOf( '.' );
+		return lastDotIndex != -1 ? filename.substring( 0, lastDotIndex ) : filename;
+	}
 }
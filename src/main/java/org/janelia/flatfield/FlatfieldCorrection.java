@@ -6,6 +6,7 @@ import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -14,12 +15,15 @@ import org.janelia.dataaccess.DataProviderFactory;
 import org.janelia.dataaccess.PathResolver;
 import org.janelia.flatfield.FlatfieldCorrectionSolver.FlatfieldRegularizerMetadata;
 import org.janelia.flatfield.FlatfieldCorrectionSolver.FlatfieldRegularizerMetadata.RegularizerMode;
+import org.janelia.flatfield.FlatfieldCorrectionSolver.FlatfieldSolution;
 import org.janelia.flatfield.FlatfieldCorrectionSolver.FlatfieldSolutionMetadata;
 import org.janelia.flatfield.FlatfieldCorrectionSolver.ModelType;
 import org.janelia.flatfield.FlatfieldCorrectionSolver.RegularizerModelType;
+import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.stitching.TileInfo;
 import org.janelia.stitching.Utils;
+import org.janelia.util.concurrent.MultithreadedExecutor;
 import org.kohsuke.args4j.CmdLineException;
 
 import ij.ImagePlus;
@@ -39,8 +43,10 @@ import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.ConstantUtils;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
 import net.imglib2.view.RandomAccessiblePairNullable;
 import net.imglib2.view.Views;
 import scala.Tuple2;
@@ -58,6 +64,8 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 	public static final String referenceHistogramAttributeKey = "referenceHistogram";
 	public static final String referenceHistogramSettingsAttributeKey = "referenceHistogramSettings";
 
+	public static final String stackHistogramTilesHashAttributeKey = "stackHistogramTilesHash";
+
 	private static final int SCALE_LEVEL_MIN_PIXELS = 1;
 //	private static final int AVERAGE_SKIP_SLICES = 5;
 
@@ -85,6 +93,50 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 			final DataProvider dataProvider,
 			final String basePath,
 			final int dimensionality ) throws IOException
+	{
+		final Pair< RandomAccessibleInterval< U >, RandomAccessibleInterval< U > > correctionImages = loadCorrectionImagePair( dataProvider, basePath );
+		if ( correctionImages == null )
+			return null;
+
+		final RandomAccessibleInterval< U > scalingTermImg = correctionImages.getA();
+		final RandomAccessibleInterval< U > translationTermImg = correctionImages.getB();
+
+		final RandomAccessible< U > scalingTermImgExtended = ( scalingTermImg.numDimensions() < dimensionality ? Views.extendBorder( Views.stack( scalingTermImg ) ) : scalingTermImg );
+		final RandomAccessible< U > translationTermImgExtended = ( translationTermImg.numDimensions() < dimensionality ? Views.extendBorder( Views.stack( translationTermImg ) ) : translationTermImg );
+
+		return new RandomAccessiblePairNullable<>( scalingTermImgExtended, translationTermImgExtended );
+	}
+
+	/**
+	 * Loads the flatfield correction images as flat arrays for bulk correction of tiles.
+	 *
+	 * @return the corrector, or {@code null} if the flatfield images do not exist
+	 */
+	public static < U extends NativeType< U > & RealType< U > > FlatfieldCorrector loadCorrector(
+			final DataProvider dataProvider,
+			final String basePath ) throws IOException
+	{
+		final FlatfieldField flatfieldField = loadFlatfieldField( dataProvider, basePath );
+		return flatfieldField != null ? new FlatfieldCorrector( flatfieldField ) : null;
+	}
+
+	/**
+	 * Loads the flatfield fields as primitive arrays together with the pivot value, to be broadcast to the executors.
+	 * @return the flatfield, or {@code null} if it is not available
+	 */
+	public static < U extends NativeType< U > & RealType< U > > FlatfieldField loadFlatfieldField(
+			final DataProvider dataProvider,
+			final String basePath ) throws IOException
+	{
+		final Pair< RandomAccessibleInterval< U >, RandomAccessibleInterval< U > > correctionImages = loadCorrectionImagePair( dataProvider, basePath );
+		if ( correctionImages == null )
+			return null;
+		return new FlatfieldField( correctionImages.getA(), correctionImages.getB(), getPivotValue( dataProvider, basePath ) );
+	}
+
+	private static < U extends NativeType< U > & RealType< U > > Pair< RandomAccessibleInterval< U >, RandomAccessibleInterval< U > > loadCorrectionImagePair(
+			final DataProvider dataProvider,
+			final String basePath ) throws IOException
 	{
 		final String flatfieldFolderPath = getFlatfieldFolderForBasePath( basePath );
 
@@ -106,11 +158,7 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 
 		final RandomAccessibleInterval< U > scalingTermImg = ImagePlusImgs.from( scalingTermImp );
 		final RandomAccessibleInterval< U > translationTermImg = ImagePlusImgs.from( translationTermImp );
-
-		final RandomAccessible< U > scalingTermImgExtended = ( scalingTermImg.numDimensions() < dimensionality ? Views.extendBorder( Views.stack( scalingTermImg ) ) : scalingTermImg );
-		final RandomAccessible< U > translationTermImgExtended = ( translationTermImg.numDimensions() < dimensionality ? Views.extendBorder( Views.stack( translationTermImg ) ) : translationTermImg );
-
-		return new RandomAccessiblePairNullable<>( scalingTermImgExtended, translationTermImgExtended );
+		return new ValuePair<>( scalingTermImg, translationTermImg );
 	}
 
 	public static <
@@ -139,6 +187,44 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 		return dataProvider.createN5Reader( flatfieldFolderPath ).getAttribute( "/", pivotValueAttributeKey, Double.class );
 	}
 
+	/**
+	 * @return the stack histogram cached by a previous run for the same tiles (see {@link HistogramsCatalog#getTilesHash(TileInfo[])}),
+	 * 			or {@code null} if it is not available or has been collected from a different set of tiles
+	 */
+	public static StackHistogram loadStackHistogram( final DataProvider dataProvider, final String basePath, final TileInfo[] tiles ) throws IOException
+	{
+		final String flatfieldFolderPath = getFlatfieldFolderForBasePath( basePath );
+		if ( !dataProvider.fileExists( flatfieldFolderPath ) )
+			return null;
+
+		final N5Reader n5 = dataProvider.createN5Reader( flatfieldFolderPath );
+		final StackHistogram stackHistogram = StackHistogram.load( n5, "/" );
+		if ( stackHistogram == null )
+			return null;
+
+		if ( !HistogramsCatalog.getTilesHash( tiles ).equals( n5.getAttribute( "/", stackHistogramTilesHashAttributeKey, String.class ) ) )
+		{
+			System.out.println( "Ignoring the cached stack histogram because it has been collected from a different set of tiles" );
+			return null;
+		}
+		return stackHistogram;
+	}
+
+	/**
+	 * Caches the stack histogram in the flatfield folder along with the hash of the tiles it has been collected from.
+	 */
+	public static void saveStackHistogram( final DataProvider dataProvider, final String basePath, final TileInfo[] tiles, final StackHistogram stackHistogram ) throws IOException
+	{
+		final N5Writer n5 = dataProvider.createN5Writer( getFlatfieldFolderForBasePath( basePath ) );
+		stackHistogram.save( n5, "/" );
+		n5.setAttribute( "/", stackHistogramTilesHashAttributeKey, HistogramsCatalog.getTilesHash( tiles ) );
+	}
+
+	public static boolean flatfieldFolderExists( final DataProvider dataProvider, final String basePath ) throws IOException
+	{
+		return dataProvider.fileExists( getFlatfieldFolderForBasePath( basePath ) );
+	}
+
 	protected static String getFlatfieldFolderForBasePath( final String basePath )
 	{
 		final String basePathWithoutN5Suffix = Utils.removeFilenameSuffix( basePath, "-n5" );
@@ -156,7 +242,7 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 				//.set( "spark.driver.maxResultSize", "8g" )
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 				//.set( "spark.kryoserializer.buffer.max", "2047m" )
-				.registerKryoClasses( new Class[] { Integer.class, Long.class, float[].class, Short.class, Double.class, TreeMap.class, TreeMap[].class, long[].class, short[][].class, double[].class, List.class, Tuple2.class, Interval.class, FinalInterval.class, ArrayImg.class, DoubleType.class, DoubleArray.class } )
+				.registerKryoClasses( new Class[] { Integer.class, Long.class, float[].class, Short.class, Double.class, TreeMap.class, TreeMap[].class, long[].class, int[].class, short[].class, short[][].class, double[].class, List.class, Tuple2.class, Interval.class, FinalInterval.class, ArrayImg.class, DoubleType.class, DoubleArray.class } )
 				.set( "spark.rdd.compress", "true" )
 				//.set( "spark.executor.heartbeatInterval", "10000000" )
 				//.set( "spark.network.timeout", "10000000" )
@@ -177,7 +263,7 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 			run( channel );
 	}
 
-	public < A extends AffineGet & AffineSet, T extends NativeType< T > & RealType< T >, V extends TreeMap< Short, Integer > >
+	public < T extends NativeType< T > & RealType< T >, V extends TreeMap< Short, Integer > >
 	void run( final int channel ) throws IOException, URISyntaxException
 	{
 		final String inputChannelPath = args.inputChannelsPaths().get( channel );
@@ -203,19 +289,46 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 
 		final HistogramSettings histogramSettings;
 		final Double pivotValue;
+		HistogramsProvider singlePassHistogramsProvider = null;
 		if ( !args.getHistogramSettings().isValid() || args.backgroundIntensityValue( channel ) == null )
 		{
 			// if provided in the cmd args, set user-specified values, otherwise use estimated values
-			final StackHistogram stackHistogram = StackHistogram.getStackHistogram( sparkContext, tiles, defaultStackHistogramSettings );
-			if ( args.getHistogramSettings().isValid() )
+			StackHistogram stackHistogram = loadStackHistogram( dataProvider, inputChannelPath, tiles );
+			if ( stackHistogram != null )
 			{
-				histogramSettings = args.getHistogramSettings();
+				System.out.println( "Using cached stack histogram" );
+				histogramSettings = getHistogramSettings( stackHistogram );
+			}
+			else if ( args.singlePassHistograms() && HistogramsProvider.supportsSinglePass( tiles ) && HistogramsProvider.getSinglePassCacheSize( tiles, fullTileSize ) <= args.singlePassHistogramsMaxSizeMB() * 1024 * 1024 )
+			{
+				// collect the stack histogram together with the per-pixel histograms
+				singlePassHistogramsProvider = new HistogramsProvider(
+						sparkContext,
+						dataProvider,
+						workingInterval,
+						flatfieldFolderPath,
+						tiles,
+						fullTileSize,
+						this::getHistogramSettings,
+						args.compactHistograms(),
+						args.histogramsCompression()
+					);
+				stackHistogram = singlePassHistogramsProvider.getStackHistogram();
+				histogramSettings = singlePassHistogramsProvider.getHistogramSettings();
 			}
 			else
 			{
-				final Pair< Double, Double > intensityRange = stackHistogram.getIntensityRange( args.getMinMaxQuantiles() );
-				histogramSettings = new HistogramSettings( Math.floor( intensityRange.getA() ), Math.ceil( intensityRange.getB() ), args.getHistogramSettings().bins );
+				if ( args.singlePassHistograms() && !HistogramsProvider.supportsSinglePass( tiles ) )
+					System.out.println( "Single-pass histograms are supported only for 8-bit and 16-bit data, reading the input stack twice" );
+				else if ( args.singlePassHistograms() )
+					System.out.println( String.format(
+							"Single-pass histograms would cache %dMB of raw values which exceeds the limit of %dMB, reading the input stack twice",
+							HistogramsProvider.getSinglePassCacheSize( tiles, fullTileSize ) / ( 1024 * 1024 ), args.singlePassHistogramsMaxSizeMB() ) );
+
+				stackHistogram = StackHistogram.getStackHistogram( sparkContext, tiles, defaultStackHistogramSettings );
+				histogramSettings = getHistogramSettings( stackHistogram );
 			}
+			saveStackHistogram( dataProvider, inputChannelPath, tiles, stackHistogram );
 			pivotValue = args.backgroundIntensityValue( channel ) != null ? args.backgroundIntensityValue( channel ) : Math.round( stackHistogram.getPivotValue() );
 		}
 		else
@@ -227,14 +340,17 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 		System.out.println( "Histogram intensity range: min=" + histogramSettings.histMinValue + ", max=" + histogramSettings.histMaxValue );
 		System.out.println( "Background intensity value: " + pivotValue );
 
-		final HistogramsProvider histogramsProvider = new HistogramsProvider(
+		final HistogramsProvider histogramsProvider = singlePassHistogramsProvider != null ? singlePassHistogramsProvider : new HistogramsProvider(
 				sparkContext,
 				dataProvider,
 				workingInterval,
 				flatfieldFolderPath,
 				tiles,
 				fullTileSize,
-				histogramSettings
+				histogramSettings,
+				args.histogramTilesPerTask(),
+				args.compactHistograms(),
+				args.histogramsCompression()
 			);
 
 		final double[] referenceHistogram = histogramsProvider.getReferenceHistogram();
@@ -254,6 +370,47 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 		// save reference histogram settings
 		n5Writer.setAttribute( "/", referenceHistogramSettingsAttributeKey, histogramSettings );
 
+		// the in-memory solve keeps the full-scale histograms and the scale pyramid in double precision
+		final long histogramsSizeMB = Intervals.numElements( n5Writer.getDatasetAttributes( histogramsProvider.getHistogramsDataset() ).getDimensions() ) * Double.BYTES / ( 1 << 20 );
+		final Pair< RandomAccessibleInterval< DoubleType >, RandomAccessibleInterval< DoubleType > > unpivotedSolution;
+		if ( histogramsSizeMB < args.inMemorySolverMaxSizeMB() )
+		{
+			System.out.println( "Solving in memory on the driver (histograms size: " + histogramsSizeMB + "MB)" );
+			unpivotedSolution = FlatfieldCorrectionSolver.unpivotSolution( solveInMemory( dataProvider, histogramsProvider, histogramSettings, pivotValue ) );
+		}
+		else
+		{
+			unpivotedSolution = solveDistributed( dataProvider, histogramsProvider, histogramSettings, pivotValue, solutionPath );
+		}
+
+		// save final solution to the main folder for this channel
+		{
+			final ImagePlus sImp = ImageJFunctions.wrap( unpivotedSolution.getA(), scalingTermFilename );
+			final String sImpPath = PathResolver.get( flatfieldFolderPath, scalingTermFilename );
+			dataProvider.saveImage( sImp, sImpPath );
+		}
+
+		{
+			final ImagePlus tImp = ImageJFunctions.wrap( unpivotedSolution.getB(), translationTermFilename );
+			final String tImpPath = PathResolver.get( flatfieldFolderPath, translationTermFilename );
+			dataProvider.saveImage( tImp, tImpPath );
+		}
+
+		elapsed = System.nanoTime() - elapsed;
+		System.out.println( "----------" );
+		System.out.println( String.format( "Took %f mins", elapsed / 1e9 / 60 ) );
+	}
+
+	/**
+	 * Solves for the flatfield in a bottom-up fashion using the downsampled histograms and intermediate solutions stored in N5.
+	 */
+	private < A extends AffineGet & AffineSet > Pair< RandomAccessibleInterval< DoubleType >, RandomAccessibleInterval< DoubleType > > solveDistributed(
+			final DataProvider dataProvider,
+			final HistogramsProvider histogramsProvider,
+			final HistogramSettings histogramSettings,
+			final double pivotValue,
+			final String solutionPath ) throws IOException
+	{
 		// Generate downsampled histograms with half-pixel offset
 		final ShiftedDownsampling< A > shiftedDownsampling = new ShiftedDownsampling<>( sparkContext, histogramsProvider );
 		final FlatfieldCorrectionSolver solver = new FlatfieldCorrectionSolver( sparkContext, histogramsProvider );
@@ -376,20 +533,6 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 		saveSolutionComponent( dataProvider, solutionPath, iterations - 1, 0, unpivotedSolution.getA(), Utils.addFilenameSuffix( scalingTermFilename, "_offset" ) );
 		saveSolutionComponent( dataProvider, solutionPath, iterations - 1, 0, unpivotedSolution.getB(), Utils.addFilenameSuffix( translationTermFilename, "_offset" ) );
 
-		// save final solution to the main folder for this channel
-		{
-			final ImagePlus sImp = ImageJFunctions.wrap( unpivotedSolution.getA(), scalingTermFilename );
-			final String sImpPath = PathResolver.get( flatfieldFolderPath, scalingTermFilename );
-			dataProvider.saveImage( sImp, sImpPath );
-		}
-
-		{
-			final ImagePlus tImp = ImageJFunctions.wrap( unpivotedSolution.getB(), translationTermFilename );
-			final String tImpPath = PathResolver.get( flatfieldFolderPath, translationTermFilename );
-			dataProvider.saveImage( tImp, tImpPath );
-		}
-
-
 		// cleanup intermediate flatfield correction steps image data
 		// TODO: add cmd switch to disable this behavior if needed to inspect individual steps
 		System.out.println( "Cleaning up temporary files..." );
@@ -400,9 +543,100 @@ public class FlatfieldCorrection implements Serializable, AutoCloseable
 		solver.cleanupFlatfieldSolutionExports( dataProvider, histogramsProvider.getHistogramsN5BasePath() );
 		shiftedDownsampling.cleanupDownsampledHistograms();
 
-		elapsed = System.nanoTime() - elapsed;
-		System.out.println( "----------" );
-		System.out.println( String.format( "Took %f mins", elapsed / 1e9 / 60 ) );
+		return unpivotedSolution;
+	}
+
+	/**
+	 * Solves for the flatfield on the driver using the same scale levels and models as {@link #solveDistributed(DataProvider, HistogramsProvider, HistogramSettings, double, String)}.
+	 * The full-scale histograms are loaded into memory, and the downsampled histograms and intermediate solutions are not stored.
+	 */
+	private < A extends AffineGet & AffineSet > FlatfieldSolution solveInMemory(
+			final DataProvider dataProvider,
+			final HistogramsProvider histogramsProvider,
+			final HistogramSettings histogramSettings,
+			final double pivotValue ) throws IOException
+	{
+		final RandomAccessibleInterval< DoubleType > fullScaleHistograms = HistogramsProvider.loadHistograms(
+				dataProvider.createN5Reader( histogramsProvider.getHistogramsN5BasePath() ),
+				histogramsProvider.getHistogramsDataset()
+			);
+		final long[] fullScaleDimensions = new long[ fullScaleHistograms.numDimensions() - 1 ];
+		for ( int d = 0; d < fullScaleDimensions.length; ++d )
+			fullScaleDimensions[ d ] = fullScaleHistograms.dimension( d );
+
+		// the block size defines where the stored pyramid ends, so it is needed to generate the same scale levels in memory
+		final int[] fullScaleExtendedBlockSize = dataProvider.createN5Reader( histogramsProvider.getHistogramsN5BasePath() )
+				.getDatasetAttributes( histogramsProvider.getHistogramsDataset() ).getBlockSize();
+		final int[] fullScaleBlockSize = Arrays.copyOf( fullScaleExtendedBlockSize, fullScaleDimensions.length );
+
+		final ShiftedDownsampling< A > shiftedDownsampling = new ShiftedDownsampling<>( fullScaleDimensions, fullScaleBlockSize );
+		final double[] referenceHistogram = histogramsProvider.getReferenceHistogram();
+		final double[] binValues = HistogramMatching.getBinValues( histogramSettings );
+
+		final int startScale = findStartingScale( shiftedDownsampling ), endScale = 0;
+
+		try ( final MultithreadedExecutor threadPool = new MultithreadedExecutor( Math.max( Runtime.getRuntime().availableProcessors(), 1 ) ) )
+		{
+			Pair< RandomAccessibleInterval< DoubleType >, RandomAccessibleInterval< DoubleType > > downsampledSolution = null;
+
+			// solve in a bottom-up fashion (starting from the smallest scale level), single iteration
+			for ( int scale = startScale; scale >= endScale; scale-- )
+			{
+				final ModelType modelType = scale >= Math.round( ( double ) ( startScale + endScale ) / 2 ) ? ModelType.AffineModel : ModelType.FixedScalingAffineModel;
+				final RegularizerModelType regularizerModelType = scale == startScale ? RegularizerModelType.IdentityModel : RegularizerModelType.AffineModel;
+
+				final RandomAccessiblePairNullable< DoubleType, DoubleType > regularizer = regularizerModelType == RegularizerModelType.AffineModel ? FlatfieldCorrectionSolver.createRegularizer(
+						shiftedDownsampling,
+						downsampledSolution.getA(),
+						RegularizerMode.UPSAMPLE_CURRENT_SOLUTION,
+						downsampledSolution.getB(),
+						RegularizerMode.UPSAMPLE_CURRENT_SOLUTION,
+						scale
+					) : null;
+
+				System.out.println( "Solving for scale " + scale + ":  size=" + Arrays.toString( shiftedDownsampling.getDimensionsAtScale( scale ) ) + ",  model=" + modelType.toString() + ", regularizer=" + regularizerModelType.toString() );
+
+				final Pair< RandomAccessibleInterval< DoubleType >, RandomAccessibleInterval< DoubleType > > currentSolution = FlatfieldCorrectionSolver.leastSquaresInterpolationFitInMemory(
+						shiftedDownsampling.downsampleHistograms( fullScaleHistograms, scale, threadPool ),
+						regularizer,
+						modelType,
+						regularizerModelType,
+						referenceHistogram,
+						binValues,
+						pivotValue,
+						threadPool
+					);
+
+				// keep older scale of the fixed-component solution to avoid unnecessary chain of upscaling operations which reduces contrast
+				if ( scale != endScale && modelType == ModelType.FixedScalingAffineModel )
+					downsampledSolution = new ValuePair<>( downsampledSolution.getA(), currentSolution.getB() );
+				else
+					downsampledSolution = currentSolution;
+			}
+
+			final RandomAccessibleInterval< DoubleType > pivotValuesImg = ConstantUtils.constantRandomAccessibleInterval(
+					new DoubleType( pivotValue ),
+					downsampledSolution.getA().numDimensions(),
+					downsampledSolution.getA()
+				);
+			return new FlatfieldSolution( downsampledSolution, pivotValuesImg );
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Uses the histogram settings provided in the cmd args, or estimates the intensity range from the stack histogram.
+	 */
+	private HistogramSettings getHistogramSettings( final StackHistogram stackHistogram )
+	{
+		if ( args.getHistogramSettings().isValid() )
+			return args.getHistogramSettings();
+
+		final Pair< Double, Double > intensityRange = stackHistogram.getIntensityRange( args.getMinMaxQuantiles() );
+		return new HistogramSettings( Math.floor( intensityRange.getA() ), Math.ceil( intensityRange.getB() ), args.getHistogramSettings().bins );
 	}
 
 	private int findStartingScale( final ShiftedDownsampling< ? > shiftedDownsampling )
@@ -4,6 +4,8 @@ import java.nio.file.Paths;
 import java.util.List;
 
 import org.janelia.dataaccess.CloudURI;
+import org.janelia.dataaccess.N5CompressionFactory;
+import org.janelia.saalfeldlab.n5.Compression;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -57,6 +59,32 @@ public class FlatfieldCorrectionArguments
 			usage = "Quantile to determine max histogram value")
 	private Double histMaxQuantile;
 
+	@Option(name = "--histogramTilesPerTask", required = false,
+			usage = "Populate the histograms in tile-major order where every tile is read once, the given number of tiles at a time. "
+					+ "Each task accumulates partial histograms for the whole field of view (4 bytes per pixel and bin) across its tiles, and they are merged by block. "
+					+ "By default each task populates a single block reading the corresponding part of every tile.")
+	private int histogramTilesPerTask = 0;
+
+	@Option(name = "--compactHistograms", required = false,
+			usage = "Store the per-pixel histograms in single precision instead of double precision (only used if all possible counts are represented exactly)")
+	private boolean compactHistograms = false;
+
+	@Option(name = "--histogramsCompression", required = false,
+			usage = "Compression of the per-pixel histograms (they are read back only by the solver, so a fast codec is used by default). " + N5CompressionFactory.USAGE)
+	private String histogramsCompression = N5CompressionFactory.DEFAULT_INTERMEDIATE;
+
+	@Option(name = "--singlePassHistograms", required = false,
+			usage = "Read the input stack only once when the stack histogram is needed to estimate the histogram range or the background value: the stack histogram and the per-pixel values are collected together, and the per-pixel histograms are binned afterwards (8-bit and 16-bit data only)")
+	private boolean singlePassHistograms = false;
+
+	@Option(name = "--singlePassMaxSize", required = false,
+			usage = "The single-pass mode keeps the raw values of the input stack (2 bytes per value) cached in memory and on disk, so it falls back to reading the input stack twice if the cached values would take more than the given size (in MB)")
+	private long singlePassHistogramsMaxSizeMB = 50 * 1024;
+
+	@Option(name = "--inMemorySolverMaxSize", required = false,
+			usage = "Solve for the flatfield on the driver without storing the downsampled histograms and intermediate solutions if the per-pixel histograms take less than the given size (in MB). Disabled by default.")
+	private long inMemorySolverMaxSizeMB = 0;
+
 	private static final double defaultHistMinQuantile = 0.05;
 	private static final double defaultHistMaxQuantile = 0.95;
 
@@ -76,6 +104,9 @@ public class FlatfieldCorrectionArguments
 			parser.printUsage( System.err );
 		}
 
+		// fail early if the compression is not valid
+		N5CompressionFactory.create( histogramsCompression );
+
 		// validate min/max pair args
 		if ( ( histMinValue == null ) != ( histMaxValue == null ) )
 			throw new IllegalArgumentException( "histogram min/max values should be either both specified or omitted (will be estimated in this case)" );
@@ -108,6 +139,12 @@ public class FlatfieldCorrectionArguments
 	public List< String > inputChannelsPaths() { return inputChannelsPaths; }
 	public String cropMinMaxIntervalStr() { return cropMinMaxInterval; };
 	public boolean use2D() { return use2D; }
+	public int histogramTilesPerTask() { return histogramTilesPerTask; }
+	public boolean compactHistograms() { return compactHistograms; }
+	public Compression histogramsCompression() { return N5CompressionFactory.create( histogramsCompression ); }
+	public boolean singlePassHistograms() { return singlePassHistograms; }
+	public long singlePassHistogramsMaxSizeMB() { return singlePassHistogramsMaxSizeMB; }
+	public long inMemorySolverMaxSizeMB() { return inMemorySolverMaxSizeMB; }
 	public Pair< Double, Double > getMinMaxQuantiles() { return new ValuePair<>( histMinQuantile, histMaxQuantile ); }
 
 	public HistogramSettings getHistogramSettings()
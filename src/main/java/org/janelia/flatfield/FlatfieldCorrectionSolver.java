@@ -3,6 +3,7 @@ package org.janelia.flatfield;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
@@ -17,6 +18,7 @@ import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.N5RemoveSpark;
+import org.janelia.util.concurrent.MultithreadedExecutor;
 
 import mpicbg.models.Affine1D;
 import mpicbg.models.AffineModel1D;
@@ -24,15 +26,9 @@ import mpicbg.models.FixedScalingAffineModel1D;
 import mpicbg.models.FixedTranslationAffineModel1D;
 import mpicbg.models.IdentityModel;
 import mpicbg.models.IndependentlyInterpolatedAffineModel1D;
-import mpicbg.models.InterpolatedAffineModel1D;
-import mpicbg.models.InvertibleBoundable;
-import mpicbg.models.Model;
-import mpicbg.models.Point;
-import mpicbg.models.PointMatch;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
@@ -150,6 +146,10 @@ public class FlatfieldCorrectionSolver implements Serializable
 	private static final double INTERPOLATION_LAMBDA_SCALING = 0.5;
 	private static final double INTERPOLATION_LAMBDA_TRANSLATION = 0.5;
 
+	// min number of pixels processed by a single task, and max number of tasks per core
+	private static final long MIN_PIXELS_PER_TASK = 1 << 14;
+	private static final int TASKS_PER_CORE = 3;
+
 	private static final String INTERMEDIATE_EXPORTS_N5_GROUP = "flatfield-intermediate-exports";
 	private static final String SCALING_TERM_GROUP = "flatfield-solution-S";
 	private static final String TRANSLATION_TERM_GROUP = "flatfield-solution-T";
@@ -164,8 +164,7 @@ public class FlatfieldCorrectionSolver implements Serializable
 		this.histogramsProvider = histogramsProvider;
 	}
 
-	@SuppressWarnings( "unchecked" )
-	public < T extends RealType< T >, M extends Model< M > & Affine1D< M >, R extends Model< R > & Affine1D< R > & InvertibleBoundable > FlatfieldSolutionMetadata leastSquaresInterpolationFit(
+	public < T extends RealType< T > > FlatfieldSolutionMetadata leastSquaresInterpolationFit(
 			final int currentScaleLevel,
 			final String currentScaleHistogramsDataset,
 			final FlatfieldRegularizerMetadata regularizerMetadata,
@@ -195,215 +194,340 @@ public class FlatfieldCorrectionSolver implements Serializable
 		n5.createDataset( solutionMetadata.translationTermDataset, currentScaleHistogramsDimensions, currentScaleHistogramsBlockSize, DataType.FLOAT64, currentScaleHistogramsDatasetAttributes.getCompression() );
 //		n5.createDataset( flatfieldSolutionMetadata.pivotValuesDataset, currentScaleHistogramsDimensions, currentScaleHistogramsBlockSize, DataType.FLOAT64, currentScaleHistogramsDatasetAttributes.getCompression() );
 
-		final List< long[] > currentScaleBlockPositions = HistogramsProvider.getBlockPositions( currentScaleHistogramsDimensions, currentScaleHistogramsBlockSize );
-		sparkContext.parallelize( currentScaleBlockPositions, currentScaleBlockPositions.size() ).foreach( blockPosition ->
-			{
-				final CellGrid cellGrid = new CellGrid( currentScaleHistogramsDimensions, currentScaleHistogramsBlockSize );
-				final long[] cellMin = new long[ cellGrid.numDimensions() ], cellMax = new long[ cellGrid.numDimensions() ];
-				final int[] cellDimensions = new int[ cellGrid.numDimensions() ];
-				cellGrid.getCellDimensions( blockPosition, cellMin, cellDimensions );
-				for ( int d = 0; d < cellGrid.numDimensions(); ++d )
-					cellMax[ d ] = cellMin[ d ] + cellDimensions[ d ] - 1;
-				final Interval cellInterval = new FinalInterval( cellMin, cellMax );
+		// coarse scale levels consist of a few small blocks, so group the blocks into tasks of balanced size
+		final int numBatches = ( int ) Math.max( Math.min(
+				( Intervals.numElements( currentScaleHistogramsDimensions ) + MIN_PIXELS_PER_TASK - 1 ) / MIN_PIXELS_PER_TASK,
+				TASKS_PER_CORE * sparkContext.defaultParallelism() ), 1 );
+		final List< List< long[] > > currentScaleBlockBatches = HistogramsProvider.getBlockBatches( currentScaleHistogramsDimensions, currentScaleHistogramsBlockSize, numBatches );
+		System.out.println( "Processing " + currentScaleBlockBatches.stream().mapToInt( List::size ).sum() + " blocks in " + currentScaleBlockBatches.size() + " tasks" );
+
+		final Broadcast< double[] > broadcastedReferenceHistogram = sparkContext.broadcast( histogramsProvider.getReferenceHistogram() );
+		final Broadcast< double[] > broadcastedBinValues = sparkContext.broadcast( binValues );
 
+		sparkContext.parallelize( currentScaleBlockBatches, currentScaleBlockBatches.size() ).foreach( blockBatch ->
+			{
 				// open histograms dataset
 				final DataProvider dataProviderLocal = DataProviderFactory.create( histogramsProvider.getDataProviderType() );
 				final N5Writer n5Local = dataProviderLocal.createN5Writer( histogramsProvider.getHistogramsN5BasePath() );
-				final RandomAccessibleInterval< T > histogramsStorageImg = ( RandomAccessibleInterval ) N5Utils.open( n5Local, currentScaleHistogramsDataset );
-				final CompositeIntervalView< T, RealComposite< T > > histogramsImg = Views.collapseReal( histogramsStorageImg );
-				final IntervalView< RealComposite< T > > histogramsBlockImg = Views.interval( histogramsImg, cellInterval );
+				final CompositeIntervalView< T, RealComposite< T > > histogramsImg = HistogramsProvider.openHistograms( n5Local, currentScaleHistogramsDataset );
 
 				// open regularizer datasets
-				final RandomAccessiblePairNullable< DoubleType, DoubleType > regularizer;
-				if ( regularizerMetadata != null )
+				final RandomAccessiblePairNullable< DoubleType, DoubleType > regularizer = regularizerMetadata != null ? openRegularizer(
+						n5Local,
+						regularizerMetadata,
+						broadcastedShiftedDownsampling.value(),
+						currentScaleLevel
+					) : null;
+
+				final PixelModelFitter fitter = new PixelModelFitter(
+						modelType,
+						regularizerModelType,
+						broadcastedReferenceHistogram.value(),
+						broadcastedBinValues.value(),
+						pivotValue
+					);
+
+				final CellGrid cellGrid = new CellGrid( currentScaleHistogramsDimensions, currentScaleHistogramsBlockSize );
+				final long[] cellMin = new long[ cellGrid.numDimensions() ], cellMax = new long[ cellGrid.numDimensions() ];
+				final int[] cellDimensions = new int[ cellGrid.numDimensions() ];
+
+				for ( final long[] blockPosition : blockBatch )
 				{
-					final ShiftedDownsampling< ? > shiftedDownsamplingLocal = broadcastedShiftedDownsampling.value();
-
-					final RandomAccessibleInterval< DoubleType > scalingRegularizerSource = N5Utils.open( n5Local, regularizerMetadata.scalingRegularizerDataset );
-					final RandomAccessibleInterval< DoubleType > translationRegularizerSource = N5Utils.open( n5Local, regularizerMetadata.scalingRegularizerDataset );
-
-					final RandomAccessible< DoubleType > scalingRegularizer;
-					if ( regularizerMetadata.scalingRegularizerMode == RegularizerMode.UPSAMPLE_CURRENT_SOLUTION )
-						scalingRegularizer = shiftedDownsamplingLocal.upsampleImage( scalingRegularizerSource, currentScaleLevel );
-					else if ( regularizerMetadata.scalingRegularizerMode == RegularizerMode.DOWNSAMPLE_PREVIOUS_SOLUTION )
-						scalingRegularizer = shiftedDownsamplingLocal.downsampleImage( scalingRegularizerSource, currentScaleLevel );
-					else
-						throw new IllegalArgumentException( "unknown regularizer mode" );
-
-					final RandomAccessible< DoubleType > translationRegularizer;
-					if ( regularizerMetadata.translationRegularizerMode == RegularizerMode.UPSAMPLE_CURRENT_SOLUTION )
-						translationRegularizer = shiftedDownsamplingLocal.upsampleImage( translationRegularizerSource, currentScaleLevel );
-					else if ( regularizerMetadata.scalingRegularizerMode == RegularizerMode.DOWNSAMPLE_PREVIOUS_SOLUTION )
-						translationRegularizer = shiftedDownsamplingLocal.downsampleImage( translationRegularizerSource, currentScaleLevel );
-					else
-						throw new IllegalArgumentException( "unknown regularizer mode" );
-
-					regularizer = new RandomAccessiblePairNullable<>( scalingRegularizer, translationRegularizer );
+					cellGrid.getCellDimensions( blockPosition, cellMin, cellDimensions );
+					for ( int d = 0; d < cellGrid.numDimensions(); ++d )
+						cellMax[ d ] = cellMin[ d ] + cellDimensions[ d ] - 1;
+					final Interval cellInterval = new FinalInterval( cellMin, cellMax );
+
+					// solution data blocks
+					final IntervalView< DoubleType > scalingTermBlockImg = Views.translate( ArrayImgs.doubles( Intervals.dimensionsAsLongArray( cellInterval ) ), cellMin );
+					final IntervalView< DoubleType > translationTermBlockImg = Views.translate( ArrayImgs.doubles( Intervals.dimensionsAsLongArray( cellInterval ) ), cellMin );
+
+					fitter.fit( Views.interval( histogramsImg, cellInterval ), scalingTermBlockImg, translationTermBlockImg, regularizer );
+
+					N5Utils.saveBlock( scalingTermBlockImg, n5Local, solutionMetadata.scalingTermDataset, blockPosition );
+					N5Utils.saveBlock( translationTermBlockImg, n5Local, solutionMetadata.translationTermDataset, blockPosition );
+//					N5Utils.saveBlock( pivotValuesBlockImg, n5Local, flatfieldSolutionMetadata.pivotValuesDataset, blockPosition );
 				}
-				else
+			} );
+
+		broadcastedShiftedDownsampling.destroy();
+		broadcastedReferenceHistogram.destroy();
+		broadcastedBinValues.destroy();
+
+		return solutionMetadata;
+	}
+
+	/**
+	 * Fits the pixel models for the given histograms in memory, splitting the image into slabs along the last dimension that are processed in parallel.
+	 * Produces the same values as {@link #leastSquaresInterpolationFit(int, String, FlatfieldRegularizerMetadata, ShiftedDownsampling, ModelType, RegularizerModelType, HistogramSettings, double)}.
+	 *
+	 * @return scaling and translation images
+	 */
+	public static < T extends RealType< T > > Pair< RandomAccessibleInterval< DoubleType >, RandomAccessibleInterval< DoubleType > > leastSquaresInterpolationFitInMemory(
+			final RandomAccessibleInterval< T > histogramsStorageImg,
+			final RandomAccessiblePairNullable< DoubleType, DoubleType > regularizer,
+			final ModelType modelType,
+			final RegularizerModelType regularizerModelType,
+			final double[] referenceHistogram,
+			final double[] binValues,
+			final double pivotValue,
+			final MultithreadedExecutor threadPool ) throws InterruptedException, ExecutionException
+	{
+		final CompositeIntervalView< T, RealComposite< T > > histogramsImg = Views.collapseReal( histogramsStorageImg );
+		final long[] dimensions = Intervals.dimensionsAsLongArray( histogramsImg );
+		final RandomAccessibleInterval< DoubleType > scalingTermImg = ArrayImgs.doubles( dimensions );
+		final RandomAccessibleInterval< DoubleType > translationTermImg = ArrayImgs.doubles( dimensions );
+
+		// the fitters keep the scratch data, so every thread needs its own instance
+		final PixelModelFitter[] fitters = new PixelModelFitter[ threadPool.getNumThreads() ];
+		for ( int i = 0; i < fitters.length; ++i )
+			fitters[ i ] = new PixelModelFitter( modelType, regularizerModelType, referenceHistogram, binValues, pivotValue );
+
+		final int slabDimension = dimensions.length - 1;
+		threadPool.run(
+				( thread, slab ) ->
 				{
-					regularizer = null;
-				}
+					final long[] slabMin = new long[ dimensions.length ], slabMax = new long[ dimensions.length ];
+					for ( int d = 0; d < dimensions.length; ++d )
+						slabMax[ d ] = dimensions[ d ] - 1;
+					slabMin[ slabDimension ] = slabMax[ slabDimension ] = slab;
+					final Interval slabInterval = new FinalInterval( slabMin, slabMax );
+
+					fitters[ thread ].fit(
+							Views.interval( histogramsImg, slabInterval ),
+							Views.interval( scalingTermImg, slabInterval ),
+							Views.interval( translationTermImg, slabInterval ),
+							regularizer
+						);
+					return 0;
+				},
+				( int ) dimensions[ slabDimension ]
+			);
+
+		return new ValuePair<>( scalingTermImg, translationTermImg );
+	}
+
+	/**
+	 * Opens the stored scaling and translation regularizers and resamples each of them to the current scale level according to its own mode.
+	 */
+	static RandomAccessiblePairNullable< DoubleType, DoubleType > openRegularizer(
+			final N5Reader n5,
+			final FlatfieldRegularizerMetadata regularizerMetadata,
+			final ShiftedDownsampling< ? > shiftedDownsampling,
+			final int currentScaleLevel ) throws IOException
+	{
+		return createRegularizer(
+				shiftedDownsampling,
+				N5Utils.open( n5, regularizerMetadata.scalingRegularizerDataset ),
+				regularizerMetadata.scalingRegularizerMode,
+				N5Utils.open( n5, regularizerMetadata.translationRegularizerDataset ),
+				regularizerMetadata.translationRegularizerMode,
+				currentScaleLevel
+			);
+	}
+
+	/**
+	 * Creates the regularizer for the current scale level from the solution at another scale level.
+	 */
+	static RandomAccessiblePairNullable< DoubleType, DoubleType > createRegularizer(
+			final ShiftedDownsampling< ? > shiftedDownsampling,
+			final RandomAccessibleInterval< DoubleType > scalingRegularizerSource,
+			final RegularizerMode scalingRegularizerMode,
+			final RandomAccessibleInterval< DoubleType > translationRegularizerSource,
+			final RegularizerMode translationRegularizerMode,
+			final int currentScaleLevel )
+	{
+		return new RandomAccessiblePairNullable<>(
+				resampleRegularizer( shiftedDownsampling, scalingRegularizerSource, scalingRegularizerMode, currentScaleLevel ),
+				resampleRegularizer( shiftedDownsampling, translationRegularizerSource, translationRegularizerMode, currentScaleLevel )
+			);
+	}
 
-				// solution data blocks
-				final RandomAccessibleInterval< DoubleType > scalingTermBlockStorageImg = ArrayImgs.doubles( Intervals.dimensionsAsLongArray( cellInterval ) );
-				final RandomAccessibleInterval< DoubleType > translationTermBlockStorageImg = ArrayImgs.doubles( Intervals.dimensionsAsLongArray( cellInterval ) );
-				final RandomAccessibleInterval< DoubleType > pivotValuesBlockStorageImg = ArrayImgs.doubles( Intervals.dimensionsAsLongArray( cellInterval ) );
-				final IntervalView< DoubleType > scalingTermBlockImg = Views.translate( scalingTermBlockStorageImg, Intervals.minAsLongArray( cellInterval ) );
-				final IntervalView< DoubleType > translationTermBlockImg = Views.translate( translationTermBlockStorageImg, Intervals.minAsLongArray( cellInterval ) );
-				final IntervalView< DoubleType > pivotValuesBlockImg = Views.translate( pivotValuesBlockStorageImg, Intervals.minAsLongArray( cellInterval ) );
-
-				final Cursor< RealComposite< T > > histogramsBlockImgCursor = Views.flatIterable( histogramsBlockImg ).localizingCursor();
-				final Cursor< DoubleType > scalingTermBlockImgCursor = Views.flatIterable( scalingTermBlockImg ).cursor();
-				final Cursor< DoubleType > translationTermBlockImgCursor = Views.flatIterable( translationTermBlockImg ).cursor();
-				final Cursor< DoubleType > pivotValuesBlockImgCursor = Views.flatIterable( pivotValuesBlockImg ).cursor();
-
-				final RealComposite< T > referenceHistogram = new RealComposite<>(
-						( RandomAccess< T > ) ArrayImgs.doubles( histogramsProvider.getReferenceHistogram(), histogramSettings.bins ).randomAccess(),
-						histogramSettings.bins
+	private static RandomAccessible< DoubleType > resampleRegularizer(
+			final ShiftedDownsampling< ? > shiftedDownsampling,
+			final RandomAccessibleInterval< DoubleType > regularizerSource,
+			final RegularizerMode regularizerMode,
+			final int currentScaleLevel )
+	{
+		switch ( regularizerMode )
+		{
+		case UPSAMPLE_CURRENT_SOLUTION:
+			return shiftedDownsampling.upsampleImage( regularizerSource, currentScaleLevel );
+		case DOWNSAMPLE_PREVIOUS_SOLUTION:
+			return shiftedDownsampling.downsampleImage( regularizerSource, currentScaleLevel );
+		default:
+			throw new IllegalArgumentException( "unknown regularizer mode" );
+		}
+	}
+
+	/**
+	 * Fits the pixel models for a region of the histograms image.
+	 * Keeps the scratch data reused for all pixels, so an instance should not be shared between threads.
+	 */
+	static class PixelModelFitter
+	{
+		private final ModelType modelType;
+		private final RegularizerModelType regularizerModelType;
+		private final double[] referenceHistogram;
+		private final double[] binValues;
+		private final double pivotValue;
+
+		private final double[] histogramValues;
+		private final double[] regularizerValues = new double[] { 1, 0 };
+		private final double[] regularizerModelValues = new double[] { 1, 0 };
+		private final double[] estimatedModelValues = new double[ 2 ];
+		private final HistogramMatching.MatchStatistics matchStatistics = new HistogramMatching.MatchStatistics();
+
+		PixelModelFitter(
+				final ModelType modelType,
+				final RegularizerModelType regularizerModelType,
+				final double[] referenceHistogram,
+				final double[] binValues,
+				final double pivotValue )
+		{
+			this.modelType = modelType;
+			this.regularizerModelType = regularizerModelType;
+			this.referenceHistogram = referenceHistogram;
+			this.binValues = binValues;
+			this.pivotValue = pivotValue;
+
+			histogramValues = new double[ binValues.length ];
+
+			// the regularizer model is only needed for the identity case, otherwise it is defined by the regularizer values
+			if ( regularizerModelType == RegularizerModelType.IdentityModel )
+				( ( Affine1D< ? > ) new IdentityModel() ).toArray( regularizerModelValues );
+		}
+
+		/**
+		 * Writes the estimated scaling and translation for every pixel of the histograms region into the output images,
+		 * which should have the same interval and iteration order.
+		 */
+		< T extends RealType< T > > void fit(
+				final RandomAccessibleInterval< RealComposite< T > > histogramsImg,
+				final RandomAccessibleInterval< DoubleType > scalingTermImg,
+				final RandomAccessibleInterval< DoubleType > translationTermImg,
+				final RandomAccessiblePairNullable< DoubleType, DoubleType > regularizer )
+		{
+			final RandomAccessiblePairNullable< DoubleType, DoubleType >.RandomAccess regularizerRandomAccess = regularizer != null ? regularizer.randomAccess() : null;
+
+			final Cursor< RealComposite< T > > histogramsImgCursor = Views.flatIterable( histogramsImg ).localizingCursor();
+			final Cursor< DoubleType > scalingTermImgCursor = Views.flatIterable( scalingTermImg ).cursor();
+			final Cursor< DoubleType > translationTermImgCursor = Views.flatIterable( translationTermImg ).cursor();
+
+			while ( histogramsImgCursor.hasNext() )
+			{
+				final RealComposite< T > histogram = histogramsImgCursor.next();
+
+				HistogramMatching.matchHistograms(
+						HistogramMatching.getHistogramValues( histogram, histogramValues ),
+						referenceHistogram,
+						binValues,
+						matchStatistics.reset( pivotValue, pivotValue )
 					);
 
-				final long[] position = new long[ cellGrid.numDimensions() ];
-				while ( histogramsBlockImgCursor.hasNext() )
+				if ( regularizerRandomAccess != null )
 				{
-					final RealComposite< T > histogram = histogramsBlockImgCursor.next();
-					histogramsBlockImgCursor.localize( position );
+					regularizerRandomAccess.setPosition( histogramsImgCursor );
+					regularizerValues[ 0 ] = regularizerRandomAccess.getA() != null ? regularizerRandomAccess.getA().get() : 1;
+					regularizerValues[ 1 ] = regularizerRandomAccess.getB() != null ? regularizerRandomAccess.getB().get() : 0;
+				}
 
-					scalingTermBlockImgCursor.fwd();
-					translationTermBlockImgCursor.fwd();
-					pivotValuesBlockImgCursor.fwd();
+				fitInterpolatedModel(
+						modelType,
+						matchStatistics,
+						regularizerValues,
+						regularizerModelType == RegularizerModelType.IdentityModel ? regularizerModelValues : regularizerValues,
+						estimatedModelValues
+					);
 
-					final List< PointMatch > matches = HistogramMatching.generateHistogramMatches(
-							histogram,
-							referenceHistogram,
-							binValues
-						);
+				scalingTermImgCursor.next().set( estimatedModelValues[ 0 ] );
+				translationTermImgCursor.next().set( estimatedModelValues[ 1 ] );
+			}
+		}
+	}
 
-					// apply the offsets to the pointmatch values
-					final double[] offset = new double[] { pivotValue, pivotValue };
-					for ( final PointMatch match : matches )
-					{
-						final Point[] points = new Point[] { match.getP1(), match.getP2() };
-						for ( int i = 0; i < 2; ++i )
-							for ( final double[] value : new double[][] { points[ i ].getL(), points[ i ].getW() } )
-								value[ 0 ] -= offset[ i ];
-					}
-
-					final double[] regularizerValues;
-					if ( regularizer != null )
-					{
-						final RandomAccessiblePairNullable< DoubleType, DoubleType >.RandomAccess regularizerRandomAccess = regularizer.randomAccess();
-						regularizerRandomAccess.setPosition( position );
-
-						regularizerValues = new double[]
-							{
-								( regularizerRandomAccess.getA() != null ? regularizerRandomAccess.getA().get() : 1 ),
-								( regularizerRandomAccess.getB() != null ? regularizerRandomAccess.getB().get() : 0 )
-							};
-					}
-					else
-					{
-						regularizerValues = null;
-					}
-
-					final M model;
-					switch ( modelType )
-					{
-					case AffineModel:
-						model = ( M ) new AffineModel1D();
-						break;
-					case FixedTranslationAffineModel:
-						model = ( M ) new FixedTranslationAffineModel1D( regularizerValues == null ? 0 : regularizerValues[ 1 ] );
-						break;
-					case FixedScalingAffineModel:
-						model = ( M ) new FixedScalingAffineModel1D( regularizerValues == null ? 1 : regularizerValues[ 0 ] );
-						break;
-					default:
-						model = null;
-						break;
-					}
-
-					final M pivotedModel = ( M ) new InterpolatedAffineModel1D<>( model, new FixedTranslationAffineModel1D( 0 ), INTERPOLATION_LAMBDA_PIVOT );
-
-					boolean modelFound = false;
-					try
-					{
-//						modelFound = model.filter( matches, new ArrayList<>(), 4.0 );
-						pivotedModel.fit( matches );
-						modelFound = true;
-					}
-					catch ( final Exception e )
-					{
-						modelFound = false;
-						e.printStackTrace();
-					}
-
-
-					final R regularizerModel;
-					switch ( regularizerModelType )
-					{
-					case IdentityModel:
-						regularizerModel = ( R ) new IdentityModel();
-						break;
-					case AffineModel:
-						final AffineModel1D downsampledModel = new AffineModel1D();
-						downsampledModel.set(
-								regularizerValues != null ? regularizerValues[ 0 ] : 1,
-								regularizerValues != null ? regularizerValues[ 1 ] : 0 );
-						regularizerModel = ( R ) downsampledModel;
-						break;
-					default:
-						regularizerModel = null;
-						break;
-					}
-
-//					final R interpolatedRegularizer = ( R ) new InterpolatedAffineModel1D<>(
-//							regularizerModel,
-//							new IdentityModel(),
-//							INTERPOLATION_LAMBDA_IDENTITY );
-	//
-//					final M interpolatedModel = ( M ) ( modelFound ?
-//							new IndependentlyInterpolatedAffineModel1D<>(
-//									pivotedModel,
-//									interpolatedRegularizer,
-//									INTERPOLATION_LAMBDA_SCALING,
-//									INTERPOLATION_LAMBDA_TRANSLATION ) :
-//							interpolatedRegularizer );
-
-					final M interpolatedModel = ( M ) ( modelFound ?
-							new IndependentlyInterpolatedAffineModel1D<>(
-									pivotedModel,
-									regularizerModel,
-									INTERPOLATION_LAMBDA_SCALING,
-									INTERPOLATION_LAMBDA_TRANSLATION ) :
-								regularizerModel );
-
-					final double[] estimatedModelValues = new double[ 2 ];
-					interpolatedModel.toArray( estimatedModelValues );
-
-					scalingTermBlockImgCursor.get().set( estimatedModelValues[ 0 ] );
-					translationTermBlockImgCursor.get().set( estimatedModelValues[ 1 ] );
-					pivotValuesBlockImgCursor.get().set( offset[ 0 ] );
-				}
+	/**
+	 * Computes the same values as fitting {@code InterpolatedAffineModel1D( model, new FixedTranslationAffineModel1D( 0 ), INTERPOLATION_LAMBDA_PIVOT )}
+	 * to the histogram matches and interpolating it with the regularizer model using {@link IndependentlyInterpolatedAffineModel1D},
+	 * but directly from the weighted sums of the matches, without creating point matches and models for every pixel.
+	 *
+	 * @param regularizerValues
+	 * 			scaling and translation of the regularizer (used as the fixed parameter of {@link FixedScalingAffineModel1D} and {@link FixedTranslationAffineModel1D})
+	 * @param regularizerModelValues
+	 * 			scaling and translation of the regularizer model
+	 * @param estimatedModelValues
+	 * 			output scaling and translation, set to the regularizer model if the model cannot be fitted
+	 *
+	 * @return {@code true} if the model has been fitted
+	 */
+	static boolean fitInterpolatedModel(
+			final ModelType modelType,
+			final HistogramMatching.MatchStatistics matchStatistics,
+			final double[] regularizerValues,
+			final double[] regularizerModelValues,
+			final double[] estimatedModelValues )
+	{
+		final int count = matchStatistics.getCount();
+		final double sumWeights = matchStatistics.getSumWeights();
+		final double sumP = matchStatistics.getSumP(), sumQ = matchStatistics.getSumQ();
+		final double sumPP = matchStatistics.getSumPP(), sumPQ = matchStatistics.getSumPQ();
 
-				N5Utils.saveBlock( scalingTermBlockImg, n5Local, solutionMetadata.scalingTermDataset, blockPosition );
-				N5Utils.saveBlock( translationTermBlockImg, n5Local, solutionMetadata.translationTermDataset, blockPosition );
-//				N5Utils.saveBlock( pivotValuesBlockImg, n5Local, flatfieldSolutionMetadata.pivotValuesDataset, blockPosition );
-			} );
+		// the pivot model (fixed zero translation) is ill-defined if all matched values are at the pivot
+		boolean modelFound = count >= 1 && sumPP != 0;
 
-		broadcastedShiftedDownsampling.destroy();
+		final double modelScaling, modelTranslation;
+		switch ( modelType )
+		{
+		case AffineModel:
+			modelFound &= count >= 2 && !matchStatistics.isConstantP();
+			final double centerP = sumP / sumWeights, centerQ = sumQ / sumWeights;
+			modelScaling = ( sumPQ - centerP * sumQ ) / ( sumPP - centerP * sumP );
+			modelTranslation = centerQ - modelScaling * centerP;
+			break;
+		case FixedTranslationAffineModel:
+			modelTranslation = regularizerValues[ 1 ];
+			modelScaling = ( sumPQ - modelTranslation * sumP ) / sumPP;
+			break;
+		case FixedScalingAffineModel:
+			modelScaling = regularizerValues[ 0 ];
+			modelTranslation = ( sumQ - modelScaling * sumP ) / sumWeights;
+			break;
+		default:
+			throw new IllegalArgumentException( "unknown model type: " + modelType );
+		}
 
-		return solutionMetadata;
+		if ( !modelFound )
+		{
+			estimatedModelValues[ 0 ] = regularizerModelValues[ 0 ];
+			estimatedModelValues[ 1 ] = regularizerModelValues[ 1 ];
+			return false;
+		}
+
+		final double pivotScaling = sumPQ / sumPP;
+		final double pivotedScaling = ( 1 - INTERPOLATION_LAMBDA_PIVOT ) * modelScaling + INTERPOLATION_LAMBDA_PIVOT * pivotScaling;
+		final double pivotedTranslation = ( 1 - INTERPOLATION_LAMBDA_PIVOT ) * modelTranslation;
+
+		estimatedModelValues[ 0 ] = ( 1 - INTERPOLATION_LAMBDA_SCALING ) * pivotedScaling + INTERPOLATION_LAMBDA_SCALING * regularizerModelValues[ 0 ];
+		estimatedModelValues[ 1 ] = ( 1 - INTERPOLATION_LAMBDA_TRANSLATION ) * pivotedTranslation + INTERPOLATION_LAMBDA_TRANSLATION * regularizerModelValues[ 1 ];
+		return true;
 	}
 
 	public void cleanupFlatfieldSolutionExports( final DataProvider dataProvider, final String histogramsN5BasePath ) throws IOException
 	{
 		final DataProviderType dataProviderType = dataProvider.getType();
-		N5RemoveSpark.remove(
-				sparkContext,
-				() -> DataProviderFactory.create( dataProviderType ).createN5Writer( histogramsN5BasePath ),
-				INTERMEDIATE_EXPORTS_N5_GROUP
-			);
+		if ( dataProviderType == DataProviderType.FILESYSTEM )
+		{
+			N5RemoveSpark.remove(
+					sparkContext,
+					() -> DataProviderFactory.create( dataProviderType ).createN5Writer( histogramsN5BasePath ),
+					INTERMEDIATE_EXPORTS_N5_GROUP
+				);
+		}
+		else
+		{
+			// the whole group is under the same key prefix, so the object store provider removes it with batched delete requests
+			dataProvider.deleteFolder( PathResolver.get( histogramsN5BasePath, INTERMEDIATE_EXPORTS_N5_GROUP ) );
+		}
 	}
 
 
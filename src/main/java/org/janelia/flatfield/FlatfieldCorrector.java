@@ -0,0 +1,258 @@
+package org.janelia.flatfield;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.imageplus.ImagePlusImg;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.RandomAccessiblePair;
+import net.imglib2.view.Views;
+
+/**
+ * Applies the flatfield correction {@code value * S + T} to whole tiles using the correction fields stored as flat arrays
+ * in the layout of the tile (X varies fastest). If the fields have fewer dimensions than the tile (2D flatfield for 3D tiles),
+ * they are repeated along the remaining dimensions.
+ *
+ * Tiles backed by arrays ({@link ArrayImg}, {@link PlanarImg}, or cell images where every cell spans whole lines or planes)
+ * of 8-bit, 16-bit or float type are corrected in bulk, other tiles are corrected through {@link FlatfieldCorrectedRandomAccessible}.
+ * The corrector is serializable, so it can be broadcast to get a single copy of the arrays per executor.
+ *
+ * The fields are held in a {@link FlatfieldField}.
+ */
+public class FlatfieldCorrector implements Serializable
+{
+	private static final long serialVersionUID = 2516785263734916632L;
+
+	private final FlatfieldField field;
+
+	public FlatfieldCorrector( final FlatfieldField field )
+	{
+		this.field = field;
+	}
+
+	public < U extends RealType< U > > FlatfieldCorrector( final RandomAccessibleInterval< U > scalingImg, final RandomAccessibleInterval< U > translationImg )
+	{
+		this( new FlatfieldField( scalingImg, translationImg, null ) );
+	}
+
+	public FlatfieldField getField()
+	{
+		return field;
+	}
+
+	public long[] getFieldDimensions()
+	{
+		return field.getDimensions();
+	}
+
+	/**
+	 * Corrects unsigned 16-bit values: {@code dst[i] = src[i] * S[offset + i] + T[offset + i]},
+	 * where {@code offset} is the index of {@code src[0]} in the flattened tile.
+	 */
+	public void correct( final short[] src, final float[] dst, final long offset )
+	{
+		correct( src, 0, dst, 0, offset, src.length );
+	}
+
+	/**
+	 * Corrects unsigned 8-bit values: {@code dst[i] = src[i] * S[offset + i] + T[offset + i]},
+	 * where {@code offset} is the index of {@code src[0]} in the flattened tile.
+	 */
+	public void correct( final byte[] src, final float[] dst, final long offset )
+	{
+		correct( src, 0, dst, 0, offset, src.length );
+	}
+
+	/**
+	 * Corrects float values: {@code dst[i] = src[i] * S[offset + i] + T[offset + i]},
+	 * where {@code offset} is the index of {@code src[0]} in the flattened tile.
+	 */
+	public void correct( final float[] src, final float[] dst, final long offset )
+	{
+		correct( src, 0, dst, 0, offset, src.length );
+	}
+
+	/**
+	 * Creates the flatfield-corrected tile image. Array-backed tiles are corrected at once into a new image,
+	 * otherwise the correction is applied lazily on access.
+	 */
+	public < T extends RealType< T > > RandomAccessibleInterval< FloatType > correct( final RandomAccessibleInterval< T > img )
+	{
+		final long[] dimensions = Intervals.dimensionsAsLongArray( img );
+		final List< StorageChunk > storageChunks = isCompatible( dimensions ) ? getStorageChunks( img ) : null;
+		if ( storageChunks == null )
+			return Views.interval( new FlatfieldCorrectedRandomAccessible<>( img, toRandomAccessiblePair( img.numDimensions() ) ), img );
+
+		// write into the planes of the output image, the chunks of the source image may span multiple planes
+		final ImagePlusImg< FloatType, FloatArray > dst = ImagePlusImgs.floats( dimensions );
+		final long planeSize = dimensions.length > 1 ? dimensions[ 0 ] * dimensions[ 1 ] : dimensions[ 0 ];
+		for ( final StorageChunk storageChunk : storageChunks )
+		{
+			int srcPos = 0;
+			while ( srcPos < storageChunk.length )
+			{
+				final long offset = storageChunk.offset + srcPos;
+				final int dstPos = ( int ) ( offset % planeSize );
+				final int length = ( int ) Math.min( storageChunk.length - srcPos, planeSize - dstPos );
+				correct( storageChunk.data, srcPos, dst.getPlane( ( int ) ( offset / planeSize ) ).getCurrentStorageArray(), dstPos, offset, length );
+				srcPos += length;
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * Creates the view of the correction fields, where the fields are repeated along the extra dimension if needed.
+	 */
+	public RandomAccessiblePair< FloatType, FloatType > toRandomAccessiblePair( final int numDimensions )
+	{
+		return field.getCorrectionImages( numDimensions ).toRandomAccessiblePair();
+	}
+
+	/**
+	 * The fields can be applied to the flat arrays of the tile if they match the tile in the first dimensions.
+	 * Otherwise the flat indexes of the tile would wrap around the fields.
+	 */
+	public boolean isCompatible( final long[] dimensions )
+	{
+		final long[] fieldDimensions = field.getDimensions();
+		if ( fieldDimensions.length > dimensions.length )
+			return false;
+		for ( int d = 0; d < fieldDimensions.length; ++d )
+			if ( fieldDimensions[ d ] != dimensions[ d ] )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Corrects {@code length} values of an unsigned 8-bit, unsigned 16-bit or float array starting at {@code srcPos},
+	 * where {@code offset} is the index of {@code src[srcPos]} in the flattened tile.
+	 */
+	public void correct( final Object src, final int srcPos, final float[] dst, final int dstPos, final long offset, final int length )
+	{
+		final float[] scaling = field.getScaling(), translation = field.getTranslation();
+
+		// process the pixels in runs that do not wrap around the end of the correction fields
+		int fieldPos = ( int ) ( offset % scaling.length );
+		int done = 0;
+		while ( done < length )
+		{
+			final int runLength = Math.min( length - done, scaling.length - fieldPos );
+			final int srcStart = srcPos + done, dstStart = dstPos + done;
+			if ( src instanceof short[] )
+			{
+				final short[] data = ( short[] ) src;
+				for ( int i = 0; i < runLength; ++i )
+					dst[ dstStart + i ] = ( float ) ( ( data[ srcStart + i ] & 0xffff ) * ( double ) scaling[ fieldPos + i ] + translation[ fieldPos + i ] );
+			}
+			else if ( src instanceof byte[] )
+			{
+				final byte[] data = ( byte[] ) src;
+				for ( int i = 0; i < runLength; ++i )
+					dst[ dstStart + i ] = ( float ) ( ( data[ srcStart + i ] & 0xff ) * ( double ) scaling[ fieldPos + i ] + translation[ fieldPos + i ] );
+			}
+			else if ( src instanceof float[] )
+			{
+				final float[] data = ( float[] ) src;
+				for ( int i = 0; i < runLength; ++i )
+					dst[ dstStart + i ] = ( float ) ( data[ srcStart + i ] * ( double ) scaling[ fieldPos + i ] + translation[ fieldPos + i ] );
+			}
+			else
+			{
+				throw new IllegalArgumentException( "Unsupported storage array: " + src.getClass().getSimpleName() );
+			}
+			done += runLength;
+			fieldPos = 0;
+		}
+	}
+
+	/**
+	 * Collects the storage arrays of the image with their offsets in the flattened image,
+	 * or returns {@code null} if the image is not backed by arrays of a supported type.
+	 */
+	private static < T extends RealType< T > > List< StorageChunk > getStorageChunks( final RandomAccessibleInterval< T > img )
+	{
+		final T type = Util.getTypeFromInterval( img );
+		if ( !( type instanceof UnsignedShortType || type instanceof UnsignedByteType || type instanceof FloatType ) )
+			return null;
+
+		final List< StorageChunk > storageChunks = new ArrayList<>();
+		if ( img instanceof ArrayImg )
+		{
+			if ( !addStorageChunk( storageChunks, ( ( ArrayImg< ?, ? > ) img ).update( null ), 0, Intervals.numElements( img ) ) )
+				return null;
+		}
+		else if ( img instanceof PlanarImg )
+		{
+			final PlanarImg< ?, ? > planarImg = ( PlanarImg< ?, ? > ) img;
+			final long planeSize = img.numDimensions() > 1 ? img.dimension( 0 ) * img.dimension( 1 ) : img.dimension( 0 );
+			for ( int plane = 0; plane < planarImg.numSlices(); ++plane )
+				if ( !addStorageChunk( storageChunks, planarImg.getPlane( plane ), plane * planeSize, planeSize ) )
+					return null;
+		}
+		else if ( img instanceof AbstractCellImg )
+		{
+			// cells are contiguous in the flattened image only if they span the whole image in all dimensions except the last one
+			final AbstractCellImg< ?, ?, ?, ? > cellImg = ( AbstractCellImg< ?, ?, ?, ? > ) img;
+			final int lastDimension = img.numDimensions() - 1;
+			for ( int d = 0; d < lastDimension; ++d )
+				if ( cellImg.getCellGrid().cellDimension( d ) < img.dimension( d ) )
+					return null;
+
+			final long stride = Intervals.numElements( img ) / img.dimension( lastDimension );
+			final Cursor< ? > cellsCursor = cellImg.getCells().cursor();
+			while ( cellsCursor.hasNext() )
+			{
+				final Cell< ? > cell = ( Cell< ? > ) cellsCursor.next();
+				if ( !addStorageChunk( storageChunks, cell.getData(), cell.min( lastDimension ) * stride, cell.size() ) )
+					return null;
+			}
+		}
+		else
+		{
+			return null;
+		}
+		return storageChunks;
+	}
+
+	private static boolean addStorageChunk( final List< StorageChunk > storageChunks, final Object access, final long offset, final long length )
+	{
+		if ( !( access instanceof ArrayDataAccess ) )
+			return false;
+		final Object data = ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray();
+		if ( Array.getLength( data ) < length )
+			return false;
+		storageChunks.add( new StorageChunk( data, offset, ( int ) length ) );
+		return true;
+	}
+
+	private static class StorageChunk
+	{
+		final Object data;
+		final long offset;
+		final int length;
+
+		StorageChunk( final Object data, final long offset, final int length )
+		{
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
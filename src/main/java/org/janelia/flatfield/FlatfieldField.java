@@ -0,0 +1,127 @@
+package org.janelia.flatfield;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.RandomAccessiblePairNullable;
+import net.imglib2.view.Views;
+
+/**
+ * Flatfield correction fields (scaling term S and translation term T) stored as primitive arrays in the X-fastest order,
+ * together with the pivot value that was used for estimating them.
+ *
+ * This is the form in which the flatfield is broadcast to the Spark executors: Kryo writes only the arrays (see {@link FlatfieldFieldSerializer}),
+ * and the imglib2 views are created on the executors when they are first requested.
+ */
+@DefaultSerializer( FlatfieldField.FlatfieldFieldSerializer.class )
+public class FlatfieldField implements Serializable
+{
+	private static final long serialVersionUID = -3526455914367441385L;
+
+	private final long[] dimensions;
+	private final float[] scaling, translation;
+	private final Double pivotValue;
+
+	private transient RandomAccessiblePairNullable< FloatType, FloatType > correctionImages;
+	private transient int correctionImagesDimensionality;
+
+	public FlatfieldField( final long[] dimensions, final float[] scaling, final float[] translation, final Double pivotValue )
+	{
+		if ( scaling.length != Intervals.numElements( dimensions ) || translation.length != Intervals.numElements( dimensions ) )
+			throw new IllegalArgumentException( "flatfield arrays do not match the dimensions " + Arrays.toString( dimensions ) );
+
+		this.dimensions = dimensions;
+		this.scaling = scaling;
+		this.translation = translation;
+		this.pivotValue = pivotValue;
+	}
+
+	public < U extends RealType< U > > FlatfieldField( final RandomAccessibleInterval< U > scalingImg, final RandomAccessibleInterval< U > translationImg, final Double pivotValue )
+	{
+		this( Intervals.dimensionsAsLongArray( scalingImg ), toFloatArray( scalingImg ), toFloatArray( translationImg ), pivotValue );
+
+		if ( !Intervals.equalDimensions( scalingImg, translationImg ) )
+			throw new IllegalArgumentException( "scaling and translation images have different dimensions" );
+	}
+
+	public int numDimensions() { return dimensions.length; }
+	public long[] getDimensions() { return dimensions; }
+	public float[] getScaling() { return scaling; }
+	public float[] getTranslation() { return translation; }
+	public Double getPivotValue() { return pivotValue; }
+
+	/**
+	 * Returns the correction images in the same form as {@link FlatfieldCorrection#loadCorrectionImages}:
+	 * if the flatfield has fewer dimensions than the requested dimensionality, the images are extended along the last dimension.
+	 * The views are created once and reused for the subsequent requests with the same dimensionality.
+	 */
+	public synchronized RandomAccessiblePairNullable< FloatType, FloatType > getCorrectionImages( final int dimensionality )
+	{
+		if ( correctionImages == null || correctionImagesDimensionality != dimensionality )
+		{
+			correctionImages = new RandomAccessiblePairNullable<>(
+					extendToDimensionality( ArrayImgs.floats( scaling, dimensions ), dimensionality ),
+					extendToDimensionality( ArrayImgs.floats( translation, dimensions ), dimensionality )
+				);
+			correctionImagesDimensionality = dimensionality;
+		}
+		return correctionImages;
+	}
+
+	private static RandomAccessible< FloatType > extendToDimensionality( final RandomAccessibleInterval< FloatType > img, final int dimensionality )
+	{
+		return img.numDimensions() < dimensionality ? Views.extendBorder( Views.stack( img ) ) : img;
+	}
+
+	private static < U extends RealType< U > > float[] toFloatArray( final RandomAccessibleInterval< U > img )
+	{
+		final float[] array = new float[ ( int ) Intervals.numElements( img ) ];
+		final Cursor< U > cursor = Views.flatIterable( img ).cursor();
+		for ( int i = 0; i < array.length; ++i )
+			array[ i ] = cursor.next().getRealFloat();
+		return array;
+	}
+
+	/**
+	 * Writes the dimensions, the arrays and the pivot value directly.
+	 */
+	public static class FlatfieldFieldSerializer extends Serializer< FlatfieldField >
+	{
+		@Override
+		public void write( final Kryo kryo, final Output output, final FlatfieldField field )
+		{
+			output.writeInt( field.dimensions.length, true );
+			output.writeLongs( field.dimensions );
+			output.writeInt( field.scaling.length, true );
+			output.writeFloats( field.scaling );
+			output.writeFloats( field.translation );
+			output.writeBoolean( field.pivotValue != null );
+			if ( field.pivotValue != null )
+				output.writeDouble( field.pivotValue );
+		}
+
+		@Override
+		public FlatfieldField read( final Kryo kryo, final Input input, final Class< FlatfieldField > type )
+		{
+			final long[] dimensions = input.readLongs( input.readInt( true ) );
+			final int numElements = input.readInt( true );
+			final float[] scaling = input.readFloats( numElements );
+			final float[] translation = input.readFloats( numElements );
+			final Double pivotValue = input.readBoolean() ? input.readDouble() : null;
+			return new FlatfieldField( dimensions, scaling, translation, pivotValue );
+		}
+	}
+}
@@ -26,69 +26,162 @@ public class HistogramMatching
 		return binValues;
 	}
 
-	@SuppressWarnings( "unchecked" )
 	public static < T extends RealType< T > > List< PointMatch > generateHistogramMatches(
 			final RealComposite< T > hist1,
 			final RealComposite< T > hist2,
 			final double[] binValues )
 	{
 		final int bins = binValues.length;
-		final RealComposite< T >[] histograms = new RealComposite[] { hist1, hist2 };
+		final List< PointMatch > matches = new ArrayList<>();
+		matchHistograms(
+				getHistogramValues( hist1, new double[ bins ] ),
+				getHistogramValues( hist2, new double[ bins ] ),
+				binValues,
+				( value1, value2, weight ) -> matches.add(
+						new PointMatch(
+								new Point( new double[] { value1 } ),
+								new Point( new double[] { value2 } ),
+								weight )
+						)
+			);
+		return matches;
+	}
 
-		final double[] histQuantityTotal = new double[ 2 ];
-		for ( int i = 0; i < 2; ++i )
-			for ( int bin = 0; bin < bins; ++bin )
-				histQuantityTotal[ i ] += histograms[ i ].get( bin ).getRealDouble();
+	/**
+	 * Copies the histogram into {@code values} (which needs to have at least as many elements as there are bins).
+	 */
+	public static < T extends RealType< T > > double[] getHistogramValues( final RealComposite< T > hist, final double[] values )
+	{
+		for ( int bin = 0; bin < values.length; ++bin )
+			values[ bin ] = hist.get( bin ).getRealDouble();
+		return values;
+	}
 
-		assert Util.isApproxEqual( histQuantityTotal[ 0 ], histQuantityTotal[ 1 ], 1e-10 );
+	/**
+	 * Receives the bin values matched by {@link #matchHistograms(double[], double[], double[], MatchConsumer)}.
+	 */
+	@FunctionalInterface
+	public static interface MatchConsumer
+	{
+		public void accept( final double value1, final double value2, final double weight );
+	}
 
-		final double quantityTotal = ( histQuantityTotal[ 0 ] + histQuantityTotal[ 1 ] ) / 2;
-		final double quantitySkipLeft = Math.max( hist1.get( 0 ).getRealDouble(), hist2.get( 0 ).getRealDouble() );
-		final double quantitySkipRight = Math.max( hist1.get( bins - 1 ).getRealDouble(), hist2.get( bins - 1 ).getRealDouble() );
-		double quantityProcessed = 0;
+	/**
+	 * Walks both histograms at once and reports the matched bin values together with the matched quantity as the weight.
+	 * The quantities in the first and last bins (undersaturated/oversaturated values) are skipped.
+	 * Does not allocate any memory, so it can be called for every pixel.
+	 */
+	public static void matchHistograms(
+			final double[] hist1,
+			final double[] hist2,
+			final double[] binValues,
+			final MatchConsumer consumer )
+	{
+		final int bins = binValues.length;
 
-		final List< PointMatch > matches = new ArrayList<>();
+		double histQuantityTotal1 = 0, histQuantityTotal2 = 0;
+		for ( int bin = 0; bin < bins; ++bin )
+		{
+			histQuantityTotal1 += hist1[ bin ];
+			histQuantityTotal2 += hist2[ bin ];
+		}
+
+		assert Util.isApproxEqual( histQuantityTotal1, histQuantityTotal2, 1e-10 );
+
+		final double quantityTotal = ( histQuantityTotal1 + histQuantityTotal2 ) / 2;
+		final double quantitySkipLeft = Math.max( hist1[ 0 ], hist2[ 0 ] );
+		final double quantitySkipRight = Math.max( hist1[ bins - 1 ], hist2[ bins - 1 ] );
+		double quantityProcessed = 0;
 
-		final double[] quantity = new double[] { 0, 0 };
-		final int[] index = new int[] { -1, -1 };
+		double quantity1 = 0, quantity2 = 0;
+		int index1 = -1, index2 = -1;
 
 		while ( true )
 		{
-			for ( int i = 0; i < 2; ++i )
-			{
-				while ( quantity[ i ] <= 0 && index[ i ] < bins - 1 )
-					quantity[ i ] = histograms[ i ].get( ++index[ i ] ).getRealDouble();
+			while ( quantity1 <= 0 && index1 < bins - 1 )
+				quantity1 = hist1[ ++index1 ];
+			while ( quantity2 <= 0 && index2 < bins - 1 )
+				quantity2 = hist2[ ++index2 ];
 
-				// boundary condition
-				if ( quantity[ i ] <= 0 && index[ i ] == bins - 1 )
-					return matches;
-			}
+			// boundary condition
+			if ( ( quantity1 <= 0 && index1 == bins - 1 ) || ( quantity2 <= 0 && index2 == bins - 1 ) )
+				return;
 
-			final double quantityMin = Math.min( quantity[ 0 ], quantity[ 1 ] );
+			final double quantityMin = Math.min( quantity1, quantity2 );
 
 			// ignore the values that are less than minValue or greater than maxValue (i.e. undersaturated/oversaturated values)
 			if ( quantityProcessed + quantityMin > quantitySkipLeft && quantityTotal - quantityProcessed > quantitySkipRight )
 			{
-				assert index[ 0 ] > 0 && index[ 0 ] < bins - 1 && index[ 1 ] > 0 && index[ 1 ] < bins - 1;
-				if ( index[ 0 ] > 0 && index[ 0 ] < bins - 1 && index[ 1 ] > 0 && index[ 1 ] < bins - 1 )
+				assert index1 > 0 && index1 < bins - 1 && index2 > 0 && index2 < bins - 1;
+				if ( index1 > 0 && index1 < bins - 1 && index2 > 0 && index2 < bins - 1 )
 				{
 					final double weightLeft = quantityMin - Math.max( quantitySkipLeft - quantityProcessed, 0 );
 					final double weightRight = Math.min( quantityTotal - quantitySkipRight - quantityProcessed, quantityMin );
 					final double weightInner = quantityTotal - quantitySkipRight - quantitySkipLeft;
 					final double weight = Math.min( Math.min( weightLeft, weightRight ), weightInner );
 					if ( weight > 0 )
-						matches.add(
-								new PointMatch(
-										new Point( new double[] { binValues[ index[ 0 ] ] } ),
-										new Point( new double[] { binValues[ index[ 1 ] ] } ),
-										weight )
-								);
+						consumer.accept( binValues[ index1 ], binValues[ index2 ], weight );
 				}
 			}
 
 			quantityProcessed += quantityMin;
-			for ( int i = 0; i < 2; ++i )
-				quantity[ i ] -= quantityMin;
+			quantity1 -= quantityMin;
+			quantity2 -= quantityMin;
 		}
 	}
+
+	/**
+	 * Weighted sums of the histogram matches that are sufficient to fit 1D affine models in closed form.
+	 * The offsets are subtracted from the matched values of the first and second histogram respectively.
+	 * Can be reused for multiple pixels by calling {@link #reset(double, double)}.
+	 */
+	public static class MatchStatistics implements MatchConsumer
+	{
+		private double offset1, offset2;
+
+		private int count;
+		private double sumWeights, sumP, sumQ, sumPP, sumPQ;
+		private double firstP;
+		private boolean constantP;
+
+		public MatchStatistics reset( final double offset1, final double offset2 )
+		{
+			this.offset1 = offset1;
+			this.offset2 = offset2;
+			count = 0;
+			sumWeights = sumP = sumQ = sumPP = sumPQ = 0;
+			constantP = true;
+			return this;
+		}
+
+		@Override
+		public void accept( final double value1, final double value2, final double weight )
+		{
+			final double p = value1 - offset1, q = value2 - offset2;
+			final double wp = weight * p;
+			sumWeights += weight;
+			sumP += wp;
+			sumQ += weight * q;
+			sumPP += wp * p;
+			sumPQ += wp * q;
+
+			if ( count == 0 )
+				firstP = p;
+			else
+				constantP &= p == firstP;
+			++count;
+		}
+
+		public int getCount() { return count; }
+		public double getSumWeights() { return sumWeights; }
+		public double getSumP() { return sumP; }
+		public double getSumQ() { return sumQ; }
+		public double getSumPP() { return sumPP; }
+		public double getSumPQ() { return sumPQ; }
+
+		/**
+		 * @return {@code true} if all matches have the same value in the first histogram (and there is at least one match)
+		 */
+		public boolean isConstantP() { return count > 0 && constantP; }
+	}
 }
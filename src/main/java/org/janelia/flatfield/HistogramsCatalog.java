@@ -0,0 +1,246 @@
+package org.janelia.flatfield;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.stitching.TileInfo;
+
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+
+/**
+ * Catalog of the per-pixel histograms datasets that have been collected in a flatfield folder.
+ * Every dataset is keyed by the tile set it was collected from, the field of view interval it covers, and the binning.
+ *
+ * Histograms for a different binning can be derived from an existing dataset without reading the tiles if every new bin
+ * is a union of the existing bins (see {@link #getBinMapping(HistogramSettings, HistogramSettings)}), and histograms for a
+ * sub-interval can be derived from a dataset that covers a larger interval.
+ *
+ * The catalog is stored as an attribute of the group that contains the histograms datasets,
+ * and only the datasets where all histograms have been populated are added to it.
+ * The attribute is updated with a read-modify-write without any locking, so only a single job may collect histograms
+ * into a flatfield folder at a time, otherwise the entries added by concurrent jobs can be lost.
+ */
+public class HistogramsCatalog
+{
+	private static final String CATALOG_KEY = "histogramsCatalog";
+
+	public static class Entry
+	{
+		public final String dataset;
+		public final String tilesHash;
+		public final long[] min, max;
+		public final HistogramSettings histogramSettings;
+
+		public Entry( final String dataset, final String tilesHash, final Interval interval, final HistogramSettings histogramSettings )
+		{
+			this.dataset = dataset;
+			this.tilesHash = tilesHash;
+			this.min = Intervals.minAsLongArray( interval );
+			this.max = Intervals.maxAsLongArray( interval );
+			this.histogramSettings = histogramSettings;
+		}
+
+		public boolean isInterval( final Interval interval )
+		{
+			return Arrays.equals( min, Intervals.minAsLongArray( interval ) ) && Arrays.equals( max, Intervals.maxAsLongArray( interval ) );
+		}
+
+		public boolean isInterval( final Entry other )
+		{
+			return Arrays.equals( min, other.min ) && Arrays.equals( max, other.max );
+		}
+
+		public boolean contains( final Interval interval )
+		{
+			if ( min.length != interval.numDimensions() )
+				return false;
+			for ( int d = 0; d < min.length; ++d )
+				if ( interval.min( d ) < min[ d ] || interval.max( d ) > max[ d ] )
+					return false;
+			return true;
+		}
+	}
+
+	private final N5Writer n5;
+	private final String group;
+
+	public HistogramsCatalog( final N5Writer n5, final String group )
+	{
+		this.n5 = n5;
+		this.group = group;
+	}
+
+	public List< Entry > getEntries() throws IOException
+	{
+		final Entry[] entries = n5.exists( group ) ? n5.getAttribute( group, CATALOG_KEY, Entry[].class ) : null;
+		return entries != null ? new ArrayList<>( Arrays.asList( entries ) ) : new ArrayList<>();
+	}
+
+	/**
+	 * Adds the dataset to the catalog, or replaces the existing entry for the same dataset.
+	 * The entries for the same interval and binning that were collected from a different tile set are replaced as well,
+	 * and their datasets are deleted because they are stale and would not be referenced anymore.
+	 */
+	public void add( final Entry entry ) throws IOException
+	{
+		final List< Entry > entries = getEntries();
+		final List< Entry > replacedEntries = new ArrayList<>();
+		for ( final Entry existingEntry : entries )
+			if ( existingEntry.dataset.equals( entry.dataset ) || ( existingEntry.isInterval( entry ) && isSameBinning( existingEntry.histogramSettings, entry.histogramSettings ) ) )
+				replacedEntries.add( existingEntry );
+
+		entries.removeAll( replacedEntries );
+		entries.add( entry );
+		n5.setAttribute( group, CATALOG_KEY, entries.toArray( new Entry[ 0 ] ) );
+
+		for ( final Entry replacedEntry : replacedEntries )
+		{
+			if ( !replacedEntry.dataset.equals( entry.dataset ) && n5.datasetExists( replacedEntry.dataset ) )
+			{
+				System.out.println( "Removing histograms " + replacedEntry.dataset + " replaced by " + entry.dataset );
+				n5.remove( replacedEntry.dataset );
+			}
+		}
+	}
+
+	/**
+	 * @return the dataset for the given tiles, interval and binning, or {@code null} if it is not in the catalog
+	 */
+	public Entry find( final String tilesHash, final Interval interval, final HistogramSettings histogramSettings ) throws IOException
+	{
+		for ( final Entry entry : getEntries() )
+			if ( entry.tilesHash.equals( tilesHash ) && entry.isInterval( interval ) && isSameBinning( entry.histogramSettings, histogramSettings ) )
+				return entry;
+		return null;
+	}
+
+	/**
+	 * Finds the dataset from which the histograms for the given tiles, interval and binning can be derived.
+	 * If there are several such datasets, the one with the smallest interval and then the smallest number of bins is chosen as it is the cheapest to read.
+	 *
+	 * @return the source dataset, or {@code null} if the histograms cannot be derived from any dataset in the catalog
+	 */
+	public Entry findSource( final String tilesHash, final Interval interval, final HistogramSettings histogramSettings ) throws IOException
+	{
+		Entry source = null;
+		for ( final Entry entry : getEntries() )
+		{
+			if ( !entry.tilesHash.equals( tilesHash ) || !entry.contains( interval ) || getBinMapping( entry.histogramSettings, histogramSettings ) == null )
+				continue;
+
+			if ( source == null || getSize( entry ) < getSize( source ) || ( getSize( entry ) == getSize( source ) && entry.histogramSettings.bins < source.histogramSettings.bins ) )
+				source = entry;
+		}
+		return source;
+	}
+
+	/**
+	 * Maps the bins of the source binning to the bins of the target binning. Both binnings have tail bins at both ends.
+	 * The target binning can be derived if its min and max values are aligned with the bin boundaries of the source binning within its value range,
+	 * and every inner target bin spans the same number of inner source bins. The source bins outside of the target range are added to the tail bins.
+	 *
+	 * The only difference from binning the values directly is that values exactly equal to the target max value
+	 * are counted in the upper tail bin if the target max value is smaller than the source max value.
+	 *
+	 * @return target bin for every source bin, or {@code null} if the target binning cannot be derived from the source binning
+	 */
+	public static int[] getBinMapping( final HistogramSettings source, final HistogramSettings target )
+	{
+		final int sourceInnerBins = source.bins - 2, targetInnerBins = target.bins - 2;
+		if ( sourceInnerBins <= 0 || targetInnerBins <= 0 )
+			return null;
+
+		final double sourceBinWidth = ( source.histMaxValue - source.histMinValue ) / sourceInnerBins;
+		final double minPosition = ( target.histMinValue - source.histMinValue ) / sourceBinWidth;
+		final double maxPosition = ( target.histMaxValue - source.histMinValue ) / sourceBinWidth;
+		final long firstSourceBin = Math.round( minPosition ), lastSourceBin = Math.round( maxPosition );
+
+		// the target range should be within the source range and aligned with the source bin boundaries
+		if ( Math.abs( minPosition - firstSourceBin ) > 1e-6 || Math.abs( maxPosition - lastSourceBin ) > 1e-6 )
+			return null;
+		if ( firstSourceBin < 0 || lastSourceBin > sourceInnerBins || lastSourceBin <= firstSourceBin )
+			return null;
+		if ( ( lastSourceBin - firstSourceBin ) % targetInnerBins != 0 )
+			return null;
+
+		final int sourceBinsPerTargetBin = ( int ) ( ( lastSourceBin - firstSourceBin ) / targetInnerBins );
+		final int[] binMapping = new int[ source.bins ];
+		binMapping[ 0 ] = 0;
+		binMapping[ source.bins - 1 ] = target.bins - 1;
+		for ( int innerBin = 0; innerBin < sourceInnerBins; ++innerBin )
+		{
+			if ( innerBin < firstSourceBin )
+				binMapping[ innerBin + 1 ] = 0;
+			else if ( innerBin >= lastSourceBin )
+				binMapping[ innerBin + 1 ] = target.bins - 1;
+			else
+				binMapping[ innerBin + 1 ] = 1 + ( int ) ( innerBin - firstSourceBin ) / sourceBinsPerTargetBin;
+		}
+		return binMapping;
+	}
+
+	/**
+	 * Computes the hash of the tile set that identifies the input of the histograms: paths, sizes and types of the tiles in their order.
+	 */
+	public static String getTilesHash( final TileInfo[] tiles )
+	{
+		final StringBuilder sb = new StringBuilder();
+		for ( final TileInfo tile : tiles )
+			sb.append( tile.getFilePath() ).append( ';' ).append( Arrays.toString( tile.getSize() ) ).append( ';' ).append( tile.getType() ).append( '\n' );
+		return hash( sb.toString() );
+	}
+
+	/**
+	 * @return name of the histograms dataset for the given tiles, interval and binning
+	 */
+	public static String getDatasetName( final String tilesHash, final Interval interval, final HistogramSettings histogramSettings )
+	{
+		final String key = String.join( ";",
+				tilesHash,
+				Arrays.toString( Intervals.minAsLongArray( interval ) ),
+				Arrays.toString( Intervals.maxAsLongArray( interval ) ),
+				Double.toString( histogramSettings.histMinValue ),
+				Double.toString( histogramSettings.histMaxValue ),
+				Integer.toString( histogramSettings.bins )
+			);
+		return "histograms-" + hash( key ).substring( 0, 16 ) + "-n5";
+	}
+
+	private static boolean isSameBinning( final HistogramSettings histogramSettings, final HistogramSettings other )
+	{
+		return histogramSettings.bins == other.bins &&
+				Math.abs( histogramSettings.histMinValue - other.histMinValue ) < 1e-10 &&
+				Math.abs( histogramSettings.histMaxValue - other.histMaxValue ) < 1e-10;
+	}
+
+	private static long getSize( final Entry entry )
+	{
+		long size = 1;
+		for ( int d = 0; d < entry.min.length; ++d )
+			size *= entry.max[ d ] - entry.min[ d ] + 1;
+		return size;
+	}
+
+	private static String hash( final String str )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( str.getBytes( StandardCharsets.UTF_8 ) );
+			final StringBuilder sb = new StringBuilder();
+			for ( final byte b : digest )
+				sb.append( String.format( "%02x", b ) );
+			return sb.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+}
@@ -10,20 +10,25 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 import org.apache.commons.lang.NotImplementedException;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.storage.StorageLevel;
 import org.janelia.dataaccess.CloudURI;
 import org.janelia.dataaccess.DataProvider;
 import org.janelia.dataaccess.DataProviderFactory;
 import org.janelia.dataaccess.DataProviderType;
+import org.janelia.dataaccess.N5CompressionFactory;
 import org.janelia.dataaccess.PathResolver;
 import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.stitching.ImageType;
 import org.janelia.stitching.TileInfo;
 import org.janelia.stitching.TileLoader;
 import org.janelia.stitching.TileLoader.TileType;
@@ -38,6 +43,7 @@ import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
@@ -64,6 +70,9 @@ public class HistogramsProvider implements Serializable
 
 	private static final int MAX_PARTITIONS = 15000;
 
+	// largest integer value up to which all integers are exactly representable in single precision
+	private static final long MAX_EXACT_FLOAT32_COUNT = 1 << 24;
+
 	private transient final JavaSparkContext sparkContext;
 	private transient final DataProvider dataProvider;
 	private transient final TileInfo[] tiles;
@@ -72,9 +81,14 @@ public class HistogramsProvider implements Serializable
 	private final DataProviderType dataProviderType;
 
 	private final String histogramsN5BasePath;
-	private final String histogramsDataset;
+	private final String histogramsGroup;
+	private String histogramsDataset;
+
+	private final String tilesHash;
+	private final Compression compression;
 
-	private final HistogramSettings histogramSettings;
+	private HistogramSettings histogramSettings;
+	private transient StackHistogram stackHistogram;
 
 	private final long[] fieldOfViewSize;
 	private final int[] blockSize;
@@ -89,6 +103,70 @@ public class HistogramsProvider implements Serializable
 			final TileInfo[] tiles,
 			final long[] fullTileSize,
 			final HistogramSettings histogramSettings ) throws IOException, URISyntaxException
+	{
+		this( sparkContext, dataProvider, workingInterval, basePath, tiles, fullTileSize, histogramSettings, 0, false, N5CompressionFactory.create( N5CompressionFactory.DEFAULT_INTERMEDIATE ) );
+	}
+
+	/**
+	 * @param tilesPerTask
+	 * 			if positive, the histograms are populated in tile-major order: the tiles are read once, the given number of tiles at a time,
+	 * 			and each task accumulates partial histograms for all blocks which are then merged by block.
+	 * 			Every tile covers the whole field of view, so every task holds and shuffles the full histograms (4 bytes per pixel and bin).
+	 * 			Otherwise, each task populates a single block and reads the corresponding part of every tile.
+	 * @param compactStorage
+	 * 			if true, the histograms are stored in single precision when the counts can be represented exactly
+	 * 			(see {@link #getStorageDataType(long, boolean)}), otherwise in double precision
+	 * @param compression
+	 * 			compression of the histograms dataset if it needs to be created
+	 */
+	public HistogramsProvider(
+			final JavaSparkContext sparkContext,
+			final DataProvider dataProvider,
+			final Interval workingInterval,
+			final String basePath,
+			final TileInfo[] tiles,
+			final long[] fullTileSize,
+			final HistogramSettings histogramSettings,
+			final int tilesPerTask,
+			final boolean compactStorage,
+			final Compression compression ) throws IOException, URISyntaxException
+	{
+		this( sparkContext, dataProvider, workingInterval, basePath, tiles, fullTileSize, histogramSettings, null, tilesPerTask, compactStorage, compression );
+	}
+
+	/**
+	 * Reads the input tiles only once to collect both the stack histogram and the per-pixel histograms (see {@link #supportsSinglePass(TileInfo[])}).
+	 * The histogram settings are derived from the stack histogram before the per-pixel histograms are binned.
+	 *
+	 * @param histogramSettingsEstimator
+	 * 			derives the histogram settings for the per-pixel histograms from the stack histogram
+	 */
+	public HistogramsProvider(
+			final JavaSparkContext sparkContext,
+			final DataProvider dataProvider,
+			final Interval workingInterval,
+			final String basePath,
+			final TileInfo[] tiles,
+			final long[] fullTileSize,
+			final Function< StackHistogram, HistogramSettings > histogramSettingsEstimator,
+			final boolean compactStorage,
+			final Compression compression ) throws IOException, URISyntaxException
+	{
+		this( sparkContext, dataProvider, workingInterval, basePath, tiles, fullTileSize, null, histogramSettingsEstimator, 0, compactStorage, compression );
+	}
+
+	private HistogramsProvider(
+			final JavaSparkContext sparkContext,
+			final DataProvider dataProvider,
+			final Interval workingInterval,
+			final String basePath,
+			final TileInfo[] tiles,
+			final long[] fullTileSize,
+			final HistogramSettings histogramSettings,
+			final Function< StackHistogram, HistogramSettings > histogramSettingsEstimator,
+			final int tilesPerTask,
+			final boolean compactStorage,
+			final Compression compression ) throws IOException, URISyntaxException
 	{
 		this.sparkContext = sparkContext;
 		this.dataProvider = dataProvider;
@@ -96,21 +174,26 @@ public class HistogramsProvider implements Serializable
 		this.tiles = tiles;
 
 		this.histogramSettings = histogramSettings;
+		this.compression = compression;
 
 		dataProviderType = dataProvider.getType();
 
 		if ( dataProviderType == DataProviderType.FILESYSTEM )
 		{
 			histogramsN5BasePath = basePath;
-			histogramsDataset = HISTOGRAMS_N5_DATASET_NAME;
+			histogramsGroup = "";
 		}
 		else
 		{
 			final CloudURI cloudUri = new CloudURI( URI.create( basePath ) );
 			histogramsN5BasePath = DataProviderFactory.createBucketUri( cloudUri.getType(), cloudUri.getBucket() ).toString();
-			histogramsDataset = PathResolver.get( cloudUri.getKey(), HISTOGRAMS_N5_DATASET_NAME );
+			histogramsGroup = cloudUri.getKey();
 		}
 
+		// the dataset is chosen using the histograms catalog once the histogram settings are known
+		histogramsDataset = getHistogramsDatasetPath( HISTOGRAMS_N5_DATASET_NAME );
+		tilesHash = HistogramsCatalog.getTilesHash( tiles );
+
 		// set field of view size and block size
 		// check if tiles are single image files, or N5 datasets
 		final TileType tileType = TileLoader.getTileType( tiles[ 0 ], dataProvider );
@@ -155,7 +238,12 @@ public class HistogramsProvider implements Serializable
 		}
 		else
 		{
-			populateHistogramsN5();
+			// max number of values in a single histogram (slices are used as additional data points in 2D mode)
+			final long maxCount = tiles.length * ( use2D && fullTileSize.length > 2 ? fullTileSize[ 2 ] : 1 );
+			if ( histogramSettingsEstimator != null )
+				populateHistogramsSinglePass( histogramSettingsEstimator, getStorageDataType( maxCount, compactStorage ) );
+			else
+				populateHistogramsN5( tilesPerTask, getStorageDataType( maxCount, compactStorage ) );
 		}
 	}
 
@@ -166,31 +254,261 @@ public class HistogramsProvider implements Serializable
 	public String getHistogramsN5BasePath() { return histogramsN5BasePath; }
 	public String getHistogramsDataset() { return histogramsDataset; }
 
-	private < T extends NativeType< T > & RealType< T >, R extends RealType< R > > void populateHistogramsN5() throws IOException, URISyntaxException
+	public HistogramSettings getHistogramSettings() { return histogramSettings; }
+
+	/**
+	 * @return the stack histogram at native integer resolution if it has been collected together with the per-pixel histograms, or {@code null} otherwise
+	 */
+	public StackHistogram getStackHistogram() { return stackHistogram; }
+
+	/**
+	 * The single-pass mode keeps the raw values of the input stack at native resolution, so it is supported only for 8-bit and 16-bit data.
+	 */
+	public static boolean supportsSinglePass( final TileInfo[] tiles )
+	{
+		for ( final TileInfo tile : tiles )
+			if ( tile.getType() != ImageType.GRAY8 && tile.getType() != ImageType.GRAY16 )
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return size of the raw values that the single-pass mode keeps cached (in bytes): every value of every tile is stored as a 16-bit integer
+	 */
+	public static long getSinglePassCacheSize( final TileInfo[] tiles, final long[] fullTileSize )
+	{
+		return tiles.length * Intervals.numElements( fullTileSize ) * Short.BYTES;
+	}
+
+	/**
+	 * Chooses the data type for storing the histograms. The counts are integer but the histograms are stored in a floating point type
+	 * because the downsampled histograms are averaged in the same data type as the full-scale histograms,
+	 * so integer types would round them. Single precision is used if requested and it represents all possible counts exactly.
+	 *
+	 * @param maxCount
+	 * 			max number of values in a single histogram
+	 */
+	public static DataType getStorageDataType( final long maxCount, final boolean compactStorage )
 	{
+		return compactStorage && maxCount <= MAX_EXACT_FLOAT32_COUNT ? DataType.FLOAT32 : DataType.FLOAT64;
+	}
+
+	/**
+	 * Opens the histograms dataset as an image of histograms regardless of the data type that is used for storing them.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static < T extends RealType< T > > CompositeIntervalView< T, RealComposite< T > > openHistograms( final N5Reader n5, final String histogramsDataset ) throws IOException
+	{
+		final RandomAccessibleInterval< T > histogramsStorageImg = ( RandomAccessibleInterval ) N5Utils.open( n5, histogramsDataset );
+		return Views.collapseReal( histogramsStorageImg );
+	}
+
+	/**
+	 * Loads the histograms dataset into memory in double precision (the last dimension is for bins).
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static < T extends RealType< T > > RandomAccessibleInterval< DoubleType > loadHistograms( final N5Reader n5, final String histogramsDataset ) throws IOException
+	{
+		final RandomAccessibleInterval< T > histogramsStorageImg = ( RandomAccessibleInterval ) N5Utils.open( n5, histogramsDataset );
+		final RandomAccessibleInterval< DoubleType > histogramsImg = ArrayImgs.doubles( Intervals.dimensionsAsLongArray( histogramsStorageImg ) );
+		final Cursor< T > histogramsStorageImgCursor = Views.flatIterable( histogramsStorageImg ).cursor();
+		final Cursor< DoubleType > histogramsImgCursor = Views.flatIterable( histogramsImg ).cursor();
+		while ( histogramsImgCursor.hasNext() )
+			histogramsImgCursor.next().set( histogramsStorageImgCursor.next().getRealDouble() );
+		return histogramsImg;
+	}
+
+	private void populateHistogramsN5( final int tilesPerTask, final DataType storageDataType ) throws IOException
+	{
+		if ( findOrDeriveHistograms( storageDataType ) )
+			return;
+
 		System.out.println( "Binning the input stack and saving as N5 blocks..." );
 
+		final DataType dataType = createHistogramsDataset( storageDataType );
+		if ( dataType != null )
+		{
+			if ( tilesPerTask > 0 )
+				populateHistogramsTileMajor( getExtendedDimensions(), getExtendedBlockSize(), dataType, tilesPerTask );
+			else
+				populateHistogramsBlockMajor( getExtendedDimensions(), getExtendedBlockSize(), dataType );
+		}
+
+		registerHistograms();
+	}
+
+	/**
+	 * Looks up the histograms for the current tiles, field of view and binning in the catalog and sets {@link #histogramsDataset} accordingly.
+	 * If they have not been collected yet but can be derived from an existing dataset with finer binning or covering a larger interval,
+	 * derives them without reading the tiles.
+	 *
+	 * @return {@code true} if the histograms are available, {@code false} if they need to be populated from the tiles
+	 */
+	private boolean findOrDeriveHistograms( final DataType storageDataType ) throws IOException
+	{
+		final HistogramsCatalog catalog = getCatalog();
+		final Interval histogramsInterval = new FinalInterval( fieldOfViewSize );
+		registerLegacyHistograms( catalog, histogramsInterval );
+
+		final HistogramsCatalog.Entry entry = catalog.find( tilesHash, histogramsInterval, histogramSettings );
+		if ( entry != null )
+		{
+			histogramsDataset = entry.dataset;
+			System.out.println( "Using cached histograms " + histogramsDataset );
+			return true;
+		}
+
+		histogramsDataset = getHistogramsDatasetPath( HistogramsCatalog.getDatasetName( tilesHash, histogramsInterval, histogramSettings ) );
+
+		final HistogramsCatalog.Entry source = catalog.findSource( tilesHash, histogramsInterval, histogramSettings );
+		if ( source == null )
+			return false;
+
+		System.out.println( String.format(
+				"Deriving histograms from %s (min=%s, max=%s, bins=%d)",
+				source.dataset, source.histogramSettings.histMinValue, source.histogramSettings.histMaxValue, source.histogramSettings.bins ) );
+
+		final DataType dataType = createHistogramsDataset( storageDataType );
+		if ( dataType != null )
+			deriveHistograms( source, histogramsInterval, dataType );
+
+		registerHistograms();
+		return true;
+	}
+
+	/**
+	 * Marks all histograms as ready to skip block existence check, and adds the dataset to the catalog to reuse it in subsequent runs.
+	 */
+	private void registerHistograms() throws IOException
+	{
+		dataProvider.createN5Writer( histogramsN5BasePath ).setAttribute( histogramsDataset, ALL_HISTOGRAMS_EXIST_KEY, true );
+		getCatalog().add( new HistogramsCatalog.Entry( histogramsDataset, tilesHash, new FinalInterval( fieldOfViewSize ), histogramSettings ) );
+	}
+
+	/**
+	 * Adds the dataset with the fixed name that was used before the catalog was introduced, so that it can be reused or derived from.
+	 * It is assumed to be collected from the current tiles because the flatfield folder belongs to a single channel.
+	 */
+	private void registerLegacyHistograms( final HistogramsCatalog catalog, final Interval histogramsInterval ) throws IOException
+	{
+		final String legacyDataset = getHistogramsDatasetPath( HISTOGRAMS_N5_DATASET_NAME );
+		final N5Reader n5 = dataProvider.createN5Reader( histogramsN5BasePath );
+		if ( !n5.datasetExists( legacyDataset ) )
+			return;
+
+		for ( final HistogramsCatalog.Entry entry : catalog.getEntries() )
+			if ( entry.dataset.equals( legacyDataset ) )
+				return;
+
+		final Boolean allHistogramsExist = n5.getAttribute( legacyDataset, ALL_HISTOGRAMS_EXIST_KEY, Boolean.class );
+		final Double histMinValue = n5.getAttribute( legacyDataset, HISTOGRAM_MIN_VALUE_KEY, Double.class );
+		final Double histMaxValue = n5.getAttribute( legacyDataset, HISTOGRAM_MAX_VALUE_KEY, Double.class );
+		final Integer bins = n5.getAttribute( legacyDataset, HISTOGRAM_NUM_BINS_KEY, Integer.class );
+		if ( allHistogramsExist == null || !allHistogramsExist || histMinValue == null || histMaxValue == null || bins == null )
+			return;
+
+		final long[] legacyDimensions = n5.getDatasetAttributes( legacyDataset ).getDimensions();
+		if ( legacyDimensions.length != fieldOfViewSize.length + 1 || !Arrays.equals( Arrays.copyOf( legacyDimensions, fieldOfViewSize.length ), fieldOfViewSize ) || legacyDimensions[ fieldOfViewSize.length ] != bins )
+			return;
+
+		catalog.add( new HistogramsCatalog.Entry( legacyDataset, tilesHash, histogramsInterval, new HistogramSettings( histMinValue, histMaxValue, bins ) ) );
+	}
+
+	/**
+	 * Derives the histograms from the source dataset block by block: the source histograms in the corresponding part of the field of view are re-binned.
+	 */
+	private < T extends RealType< T > > void deriveHistograms( final HistogramsCatalog.Entry source, final Interval histogramsInterval, final DataType dataType )
+	{
+		final int[] binMapping = HistogramsCatalog.getBinMapping( source.histogramSettings, histogramSettings );
+		final String sourceDataset = source.dataset;
+		final long[] sourceOffset = new long[ fieldOfViewSize.length ];
+		for ( int d = 0; d < sourceOffset.length; ++d )
+			sourceOffset[ d ] = histogramsInterval.min( d ) - source.min[ d ];
+
+		final long[] extendedDimensions = getExtendedDimensions();
+		final int[] extendedBlockSize = getExtendedBlockSize();
+
+		final List< long[] > blockPositions = getBlockPositions( fieldOfViewSize, blockSize );
+		sparkContext.parallelize( blockPositions, Math.min( blockPositions.size(), MAX_PARTITIONS ) ).foreach( blockPosition ->
+			{
+				final long[] extendedBlockPosition = getExtendedBlockPosition( blockPosition );
+				final Interval extendedBlockInterval = getCellInterval( new CellGrid( extendedDimensions, extendedBlockSize ), extendedBlockPosition );
+				final Interval blockInterval = getCellInterval( new CellGrid( fieldOfViewSize, blockSize ), blockPosition );
+
+				final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
+				final N5Writer n5Local = dataProviderLocal.createN5Writer( histogramsN5BasePath );
+				final CompositeIntervalView< T, RealComposite< T > > sourceHistogramsImg = openHistograms( n5Local, sourceDataset );
+				final Cursor< RealComposite< T > > sourceHistogramsCursor = Views.flatIterable( Views.interval( sourceHistogramsImg, Intervals.translate( blockInterval, sourceOffset ) ) ).cursor();
+
+				final int[] histograms = new int[ ( int ) Intervals.numElements( extendedBlockInterval ) ];
+				final int numPixels = histograms.length / histogramSettings.bins;
+				for ( int pixel = 0; pixel < numPixels; ++pixel )
+				{
+					final RealComposite< T > sourceHistogram = sourceHistogramsCursor.next();
+					for ( int bin = 0; bin < binMapping.length; ++bin )
+						histograms[ binMapping[ bin ] * numPixels + pixel ] += ( int ) Math.round( sourceHistogram.get( bin ).getRealDouble() );
+				}
+
+				saveHistogramsBlock( n5Local, histogramsDataset, histograms, extendedBlockInterval, extendedBlockPosition, dataType );
+			} );
+	}
+
+	private HistogramsCatalog getCatalog() throws IOException
+	{
+		return new HistogramsCatalog( dataProvider.createN5Writer( histogramsN5BasePath ), histogramsGroup.isEmpty() ? "/" : histogramsGroup );
+	}
+
+	private String getHistogramsDatasetPath( final String datasetName )
+	{
+		return histogramsGroup.isEmpty() ? datasetName : PathResolver.get( histogramsGroup, datasetName );
+	}
+
+	private long[] getExtendedDimensions()
+	{
 		final long[] extendedDimensions = new long[ fieldOfViewSize.length + 1 ];
 		System.arraycopy( fieldOfViewSize, 0, extendedDimensions, 0, fieldOfViewSize.length );
 		extendedDimensions[ fieldOfViewSize.length ] = histogramSettings.bins;
+		return extendedDimensions;
+	}
 
+	private int[] getExtendedBlockSize()
+	{
 		final int[] extendedBlockSize = new int[ blockSize.length + 1 ];
 		System.arraycopy( blockSize, 0, extendedBlockSize, 0, blockSize.length );
 		extendedBlockSize[ blockSize.length ] = histogramSettings.bins;
+		return extendedBlockSize;
+	}
+
+	/**
+	 * Creates the histograms dataset, or validates the existing one against the current histogram settings.
+	 *
+	 * @return data type of the histograms dataset, or {@code null} if all histograms already exist
+	 */
+	private DataType createHistogramsDataset( final DataType storageDataType ) throws IOException
+	{
+		final long[] extendedDimensions = getExtendedDimensions();
+		final int[] extendedBlockSize = getExtendedBlockSize();
 
 		final N5Writer n5 = dataProvider.createN5Writer( histogramsN5BasePath );
+		final DataType dataType;
 		if ( !n5.datasetExists( histogramsDataset ) )
 		{
+			dataType = storageDataType;
 			n5.createDataset(
 					histogramsDataset,
 					extendedDimensions,
 					extendedBlockSize,
-					DataType.FLOAT64,
-					new GzipCompression()
+					dataType,
+					compression
 				);
 		}
 		else
 		{
+			// keep the data type of the existing histograms
+			dataType = n5.getDatasetAttributes( histogramsDataset ).getDataType();
+			if ( dataType != DataType.FLOAT32 && dataType != DataType.FLOAT64 )
+				throw new RuntimeException( "histograms-n5 has unsupported data type: " + dataType );
+
 			// validate existing histograms
 			if ( n5.getDatasetAttributes( histogramsDataset ).getNumDimensions() != extendedDimensions.length )
 				throw new RuntimeException( "histograms-n5 has different dimensionality than the field of view" );
@@ -206,7 +524,7 @@ public class HistogramsProvider implements Serializable
 			// skip this step if the flag 'allHistogramsExist' is set
 			final Boolean allHistogramsExist = n5.getAttribute( histogramsDataset, ALL_HISTOGRAMS_EXIST_KEY, Boolean.class );
 			if ( allHistogramsExist != null && allHistogramsExist )
-				return;
+				return null;
 		}
 
 		final Map< String, Object > histogramAttributes = new HashMap<>();
@@ -215,36 +533,189 @@ public class HistogramsProvider implements Serializable
 		histogramAttributes.put( HISTOGRAM_NUM_BINS_KEY, histogramSettings.bins );
 		n5.setAttributes( histogramsDataset, histogramAttributes );
 
+		System.out.println( "Storing histograms as " + dataType );
+		return dataType;
+	}
+
+	/**
+	 * Collects the stack histogram and the per-pixel histograms in a single pass over the input tiles.
+	 * Each task reads the corresponding part of every tile (in the same way as {@link #populateHistogramsBlockMajor(long[], int[], DataType)})
+	 * and keeps the raw values of the block. The blocks are cached until the stack histogram is collected at native integer resolution
+	 * and the histogram settings are derived from it. Then the cached values are re-binned into the per-pixel histograms.
+	 * The cached values take as much space as the input stack (see {@link #getSinglePassCacheSize(TileInfo[], long[])}).
+	 *
+	 * The stack histogram is stored with the histograms dataset. If a histograms dataset for the same tiles is in the catalog,
+	 * its stack histogram is used to derive the histogram settings first, and the tiles are not read at all
+	 * if the histograms for these settings are available or can be derived.
+	 */
+	private < T extends NativeType< T > & RealType< T > > void populateHistogramsSinglePass(
+			final Function< StackHistogram, HistogramSettings > histogramSettingsEstimator,
+			final DataType storageDataType ) throws IOException
+	{
+		if ( !supportsSinglePass( tiles ) )
+			throw new IllegalArgumentException( "single-pass histograms are supported only for 8-bit and 16-bit data" );
+
+		final StackHistogram cachedStackHistogram = findCatalogStackHistogram();
+		if ( cachedStackHistogram != null )
+		{
+			histogramSettings = histogramSettingsEstimator.apply( cachedStackHistogram );
+			if ( findOrDeriveHistograms( storageDataType ) )
+			{
+				stackHistogram = cachedStackHistogram;
+				System.out.println( "Using the stack histogram stored with the cached histograms" );
+				return;
+			}
+		}
+
+		System.out.println( "Collecting the stack histogram and the per-pixel values in a single pass..." );
+
+		// one bin per integer value (the tail bins are always empty)
+		final int maxValue = getMaxValue( tiles );
+		final HistogramSettings stackHistogramSettings = new HistogramSettings( -0.5, maxValue + 0.5, maxValue + 3 );
+
+		final Broadcast< TileInfo[] > broadcastedTiles = sparkContext.broadcast( tiles );
+
+		final List< long[] > blockPositions = getBlockPositions( fieldOfViewSize, blockSize );
+		final JavaRDD< Tuple2< long[], short[] > > blockValues = sparkContext.parallelize( blockPositions, Math.min( blockPositions.size(), MAX_PARTITIONS ) ).map( blockPosition ->
+			{
+				final Interval blockInterval = getCellInterval( new CellGrid( fieldOfViewSize, blockSize ), blockPosition );
+				final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
+				final TileInfo[] tilesLocal = broadcastedTiles.value();
+
+				// the values of each tile are stored in the flat iteration order of the block (slices follow each other in 2D mode)
+				short[] values = null;
+				int offset = 0;
+				for ( final TileInfo tile : tilesLocal )
+				{
+					final RandomAccessibleInterval< T > tileStorageImg = TileLoader.loadTile( tile, dataProviderLocal );
+					final RandomAccessibleInterval< T > tileBlockImg = Views.offsetInterval( tileStorageImg, getTileBlockInterval( tileStorageImg, blockInterval ) );
+					if ( values == null )
+					{
+						final long numValues = Intervals.numElements( tileBlockImg ) * tilesLocal.length;
+						if ( numValues > Integer.MAX_VALUE )
+							throw new RuntimeException( "too many values in a single block: " + numValues );
+						values = new short[ ( int ) numValues ];
+					}
+					for ( final T value : Views.flatIterable( tileBlockImg ) )
+						values[ offset++ ] = ( short ) ( int ) value.getRealDouble();
+				}
+
+				System.out.println( "Block min=" + Arrays.toString( Intervals.minAsLongArray( blockInterval ) ) + ", max=" + Arrays.toString( Intervals.maxAsLongArray( blockInterval ) ) + ": collected values of " + tilesLocal.length + " tiles" );
+				return new Tuple2<>( blockPosition, values );
+			} )
+			.persist( StorageLevel.MEMORY_AND_DISK_SER() );
+
+		final long[] stackHistogramCounts = blockValues.map( blockPositionAndValues ->
+			{
+				final long[] counts = new long[ stackHistogramSettings.bins ];
+				for ( final short value : blockPositionAndValues._2() )
+					++counts[ ( value & 0xffff ) + 1 ];
+				return counts;
+			} )
+			.treeReduce( ( histogram, other ) ->
+			{
+				for ( int bin = 0; bin < histogram.length; ++bin )
+					histogram[ bin ] += other[ bin ];
+				return histogram;
+			},
+			Integer.MAX_VALUE // max possible aggregation depth
+		);
+
+		stackHistogram = new StackHistogram( stackHistogramCounts, stackHistogramSettings );
+		histogramSettings = histogramSettingsEstimator.apply( stackHistogram );
+		System.out.println( "Derived histogram settings from the stack histogram: min=" + histogramSettings.histMinValue + ", max=" + histogramSettings.histMaxValue + ", bins=" + histogramSettings.bins );
+
+		if ( !findOrDeriveHistograms( storageDataType ) )
+		{
+			final DataType dataType = createHistogramsDataset( storageDataType );
+			if ( dataType != null )
+			{
+				final long[] extendedDimensions = getExtendedDimensions();
+				final int[] extendedBlockSize = getExtendedBlockSize();
+				blockValues.foreach( blockPositionAndValues ->
+					{
+						final long[] extendedBlockPosition = getExtendedBlockPosition( blockPositionAndValues._1() );
+						final Interval extendedBlockInterval = getCellInterval( new CellGrid( extendedDimensions, extendedBlockSize ), extendedBlockPosition );
+						final int[] histograms = new int[ ( int ) Intervals.numElements( extendedBlockInterval ) ];
+						final int numPixels = histograms.length / histogramSettings.bins;
+
+						// bins for all possible values
+						final Real1dBinMapper< DoubleType > binMapper = new Real1dBinMapper<>( histogramSettings.histMinValue, histogramSettings.histMaxValue, histogramSettings.bins, true );
+						final int[] valueBins = new int[ maxValue + 1 ];
+						final DoubleType value = new DoubleType();
+						for ( int i = 0; i < valueBins.length; ++i )
+						{
+							value.set( i );
+							valueBins[ i ] = ( int ) binMapper.map( value );
+						}
+
+						final short[] values = blockPositionAndValues._2();
+						for ( int offset = 0; offset < values.length; offset += numPixels )
+							for ( int pixel = 0; pixel < numPixels; ++pixel )
+								++histograms[ valueBins[ values[ offset + pixel ] & 0xffff ] * numPixels + pixel ];
+
+						final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
+						final N5Writer n5Local = dataProviderLocal.createN5Writer( histogramsN5BasePath );
+						saveHistogramsBlock( n5Local, histogramsDataset, histograms, extendedBlockInterval, extendedBlockPosition, dataType );
+					} );
+			}
+
+			registerHistograms();
+		}
+		stackHistogram.save( dataProvider.createN5Writer( histogramsN5BasePath ), histogramsDataset );
+
+		blockValues.unpersist();
+		broadcastedTiles.destroy();
+	}
+
+	/**
+	 * @return the stack histogram stored with any of the histograms datasets collected from the current tiles, or {@code null} if there is none
+	 */
+	private StackHistogram findCatalogStackHistogram() throws IOException
+	{
+		final N5Reader n5 = dataProvider.createN5Reader( histogramsN5BasePath );
+		for ( final HistogramsCatalog.Entry entry : getCatalog().getEntries() )
+		{
+			if ( entry.tilesHash.equals( tilesHash ) && n5.datasetExists( entry.dataset ) )
+			{
+				final StackHistogram catalogStackHistogram = StackHistogram.load( n5, entry.dataset );
+				if ( catalogStackHistogram != null )
+					return catalogStackHistogram;
+			}
+		}
+		return null;
+	}
+
+	private static int getMaxValue( final TileInfo[] tiles )
+	{
+		int maxValue = 0;
+		for ( final TileInfo tile : tiles )
+			maxValue = Math.max( ( int ) tile.getType().getType().getMaxValue(), maxValue );
+		return maxValue;
+	}
+
+	/**
+	 * Populates the histograms block by block. Each task reads the corresponding part of every tile.
+	 */
+	private < T extends NativeType< T > & RealType< T > > void populateHistogramsBlockMajor( final long[] extendedDimensions, final int[] extendedBlockSize, final DataType dataType )
+	{
 		final Broadcast< TileInfo[] > broadcastedTiles = sparkContext.broadcast( tiles );
 
 		final List< long[] > blockPositions = getBlockPositions( fieldOfViewSize, blockSize );
 		sparkContext.parallelize( blockPositions, Math.min( blockPositions.size(), MAX_PARTITIONS ) ).foreach( blockPosition ->
 			{
 				// create correct block interval including the 'bins' dimension
-				final long[] extendedBlockPosition = new long[ extendedBlockSize.length ];
-				System.arraycopy( blockPosition, 0, extendedBlockPosition, 0, blockPosition.length );
-				final CellGrid extendedCellGrid = new CellGrid( extendedDimensions, extendedBlockSize );
-				final long[] extendedCellMin = new long[ extendedCellGrid.numDimensions() ], extendedCellMax = new long[ extendedCellGrid.numDimensions() ];
-				final int[] extendedCellDimensions = new int[ extendedCellGrid.numDimensions() ];
-				extendedCellGrid.getCellDimensions( extendedBlockPosition, extendedCellMin, extendedCellDimensions );
-				for ( int d = 0; d < extendedCellGrid.numDimensions(); ++d )
-					extendedCellMax[ d ] = extendedCellMin[ d ] + extendedCellDimensions[ d ] - 1;
-				final Interval extendedBlockInterval = new FinalInterval( extendedCellMin, extendedCellMax );
+				final long[] extendedBlockPosition = getExtendedBlockPosition( blockPosition );
+				final Interval extendedBlockInterval = getCellInterval( new CellGrid( extendedDimensions, extendedBlockSize ), extendedBlockPosition );
 
 				// create histogram block
-				final RandomAccessibleInterval< DoubleType > histogramsStorageBlockImg = ArrayImgs.doubles( Intervals.dimensionsAsLongArray( extendedBlockInterval ) );
-				final RandomAccessibleInterval< R > histogramsGenericStorageBlockImg = ( RandomAccessibleInterval< R > ) histogramsStorageBlockImg;
-				final RandomAccessibleInterval< RealComposite< R > > histogramsBlockImg = Views.collapseReal( histogramsGenericStorageBlockImg );
-				final Real1dBinMapper< R > binMapper = new Real1dBinMapper<>( histogramSettings.histMinValue, histogramSettings.histMaxValue, histogramSettings.bins, true );
+				final int[] histograms = new int[ ( int ) Intervals.numElements( extendedBlockInterval ) ];
+				final RandomAccessibleInterval< IntType > histogramsStorageBlockImg = ArrayImgs.ints( histograms, Intervals.dimensionsAsLongArray( extendedBlockInterval ) );
+				final RandomAccessibleInterval< RealComposite< IntType > > histogramsBlockImg = Views.collapseReal( histogramsStorageBlockImg );
+				final Real1dBinMapper< T > binMapper = new Real1dBinMapper<>( histogramSettings.histMinValue, histogramSettings.histMaxValue, histogramSettings.bins, true );
 
 				// create an interval to be processed in each tile image
-				final CellGrid cellGrid = new CellGrid( fieldOfViewSize, blockSize );
-				final long[] cellMin = new long[ cellGrid.numDimensions() ], cellMax = new long[ cellGrid.numDimensions() ];
-				final int[] cellDimensions = new int[ cellGrid.numDimensions() ];
-				cellGrid.getCellDimensions( blockPosition, cellMin, cellDimensions );
-				for ( int d = 0; d < cellGrid.numDimensions(); ++d )
-					cellMax[ d ] = cellMin[ d ] + cellDimensions[ d ] - 1;
-				final Interval blockInterval = new FinalInterval( cellMin, cellMax );
+				final Interval blockInterval = getCellInterval( new CellGrid( fieldOfViewSize, blockSize ), blockPosition );
 
 				final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
 
@@ -253,73 +724,220 @@ public class HistogramsProvider implements Serializable
 				for ( final TileInfo tile : broadcastedTiles.value() )
 				{
 					final RandomAccessibleInterval< T > tileStorageImg = TileLoader.loadTile( tile, dataProviderLocal );
-					final Interval tileImgOffsetInterval;
-					if ( tileStorageImg.numDimensions() == 3 )
-					{
-						tileImgOffsetInterval = new FinalInterval(
-								new long[] { blockInterval.min( 0 ), blockInterval.min( 1 ), blockInterval.numDimensions() >= 3 ? blockInterval.min( 2 ) : tileStorageImg.min( 2 ) },
-								new long[] { blockInterval.max( 0 ), blockInterval.max( 1 ), blockInterval.numDimensions() >= 3 ? blockInterval.max( 2 ) : tileStorageImg.max( 2 ) }
-							);
-					}
-					else
-					{
-						tileImgOffsetInterval = new FinalInterval(
-								new long[] { blockInterval.min( 0 ), blockInterval.min( 1 ) },
-								new long[] { blockInterval.max( 0 ), blockInterval.max( 1 ) }
-							);
-					}
+					populateHistograms( tileStorageImg, blockInterval, histogramsBlockImg, binMapper );
 
-					final RandomAccessibleInterval< T > tileStorageImgInterval = Views.offsetInterval( tileStorageImg, tileImgOffsetInterval );
-					final Cursor< RealComposite< R > > histogramsBlockImgCursor = Views.flatIterable( histogramsBlockImg ).cursor();
+					if ( ++done % 20 == 0 )
+						System.out.println( "Block min=" + Arrays.toString( Intervals.minAsLongArray( blockInterval ) ) + ", max=" + Arrays.toString( Intervals.maxAsLongArray( blockInterval ) ) + ": processed " + done + " tiles" );
+				}
 
-					if ( tileStorageImg.numDimensions() == blockInterval.numDimensions() )
-					{
-						// handles the following cases:
-						// 1) FoV is 2D, tile is 2D
-						// 2) FoV is 3D, tile is 3D
-						final RandomAccessibleInterval< T > tileImgInterval = tileStorageImgInterval;
-						final Cursor< T > tileCursor = Views.flatIterable( tileImgInterval ).cursor();
-						while ( histogramsBlockImgCursor.hasNext() || tileCursor.hasNext() )
-						{
-							final RealComposite< R > histogram = histogramsBlockImgCursor.next();
-							final T value = tileCursor.next();
-							final long bin = binMapper.map( ( R ) value );
-							histogram.get( bin ).inc();
-						}
-					}
-					else
+				System.out.println( "Block min=" + Arrays.toString( Intervals.minAsLongArray( blockInterval ) ) + ", max=" + Arrays.toString( Intervals.maxAsLongArray( blockInterval ) ) + ": populated histograms" );
+
+				final N5Writer n5Local = dataProviderLocal.createN5Writer( histogramsN5BasePath );
+				saveHistogramsBlock( n5Local, histogramsDataset, histograms, extendedBlockInterval, extendedBlockPosition, dataType );
+			} );
+
+		broadcastedTiles.destroy();
+	}
+
+	/**
+	 * Populates the histograms tile by tile, so every tile is read only once instead of once per block.
+	 * The tile batches are distributed over a fixed number of tasks. Each task reads its batches one after another
+	 * (keeping only the tiles of the current batch in memory) and accumulates the partial histograms of all blocks across its batches.
+	 * Then it emits a single partial histograms block per field of view block, and the partial histograms are merged by block and saved.
+	 *
+	 * Every tile covers the whole field of view, so each task holds and shuffles the histograms for the whole field of view (4 bytes per pixel and bin).
+	 * The shuffle size is bounded by the number of tasks and does not grow with the number of tiles.
+	 */
+	private < T extends NativeType< T > & RealType< T > > void populateHistogramsTileMajor( final long[] extendedDimensions, final int[] extendedBlockSize, final DataType dataType, final int tilesPerTask )
+	{
+		final List< TileInfo[] > tileBatches = new ArrayList<>();
+		for ( int i = 0; i < tiles.length; i += tilesPerTask )
+			tileBatches.add( Arrays.copyOfRange( tiles, i, Math.min( i + tilesPerTask, tiles.length ) ) );
+
+		final long numBlocks = Intervals.numElements( new CellGrid( fieldOfViewSize, blockSize ).getGridDimensions() );
+		final int numTasks = Math.max( Math.min( tileBatches.size(), sparkContext.defaultParallelism() ), 1 );
+		final long histogramsBytes = Intervals.numElements( fieldOfViewSize ) * histogramSettings.bins * Integer.BYTES;
+		System.out.println( String.format(
+				"Populating histograms in tile-major order: %d batches of up to %d tiles in %d tasks, %d blocks; partial histograms per task: %.1fMB, total shuffle: %.1fMB",
+				tileBatches.size(), tilesPerTask, numTasks, numBlocks, histogramsBytes / 1e6, numTasks * histogramsBytes / 1e6 ) );
+
+		sparkContext.parallelize( tileBatches, numTasks ).mapPartitionsToPair( tileBatchesIterator ->
+				{
+					final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
+					final CellGrid cellGrid = new CellGrid( fieldOfViewSize, blockSize );
+					final CellGrid extendedCellGrid = new CellGrid( extendedDimensions, extendedBlockSize );
+					final Real1dBinMapper< T > binMapper = new Real1dBinMapper<>( histogramSettings.histMinValue, histogramSettings.histMaxValue, histogramSettings.bins, true );
+
+					// partial histograms are stored as counts in the same layout as the N5 block, and accumulated across all batches of the task
+					final int[][] partialHistograms = new int[ ( int ) numBlocks ][];
+					while ( tileBatchesIterator.hasNext() )
 					{
-						final RandomAccessibleInterval< RealComposite< T > > tileImgCompositeInterval = Views.collapseReal( tileStorageImgInterval );
-						final Cursor< RealComposite< T > > tileCompositeCursor = Views.flatIterable( tileImgCompositeInterval ).cursor();
+						final List< RandomAccessibleInterval< T > > tileImgs = new ArrayList<>();
+						for ( final TileInfo tile : tileBatchesIterator.next() )
+							tileImgs.add( TileLoader.loadTile( tile, dataProviderLocal ) );
 
-						// handles the following cases:
-						// 3) FoV is 2D, tile is 3D (last dimension in tile space is collapsed and used as additional data points)
-						while ( histogramsBlockImgCursor.hasNext() || tileCompositeCursor.hasNext() )
+						for ( int blockIndex = 0; blockIndex < numBlocks; ++blockIndex )
 						{
-							final RealComposite< R > histogram = histogramsBlockImgCursor.next();
-							final RealComposite< T > compositeValue = tileCompositeCursor.next();
-							for ( final T value : compositeValue )
-							{
-								final long bin = binMapper.map( ( R ) value );
-								histogram.get( bin ).inc();
-							}
+							final long[] blockPosition = new long[ cellGrid.numDimensions() ];
+							cellGrid.getCellGridPositionFlat( blockIndex, blockPosition );
+							final Interval blockInterval = getCellInterval( cellGrid, blockPosition );
+							final Interval extendedBlockInterval = getCellInterval( extendedCellGrid, getExtendedBlockPosition( blockPosition ) );
+
+							if ( partialHistograms[ blockIndex ] == null )
+								partialHistograms[ blockIndex ] = new int[ ( int ) Intervals.numElements( extendedBlockInterval ) ];
+							final RandomAccessibleInterval< IntType > partialHistogramsStorageImg = ArrayImgs.ints( partialHistograms[ blockIndex ], Intervals.dimensionsAsLongArray( extendedBlockInterval ) );
+							final RandomAccessibleInterval< RealComposite< IntType > > partialHistogramsImg = Views.collapseReal( partialHistogramsStorageImg );
+							for ( final RandomAccessibleInterval< T > tileImg : tileImgs )
+								populateHistograms( tileImg, blockInterval, partialHistogramsImg, binMapper );
 						}
 					}
 
-					if ( ++done % 20 == 0 )
-						System.out.println( "Block min=" + Arrays.toString( Intervals.minAsLongArray( blockInterval ) ) + ", max=" + Arrays.toString( Intervals.maxAsLongArray( blockInterval ) ) + ": processed " + done + " tiles" );
+					final List< Tuple2< Long, int[] > > blockPartialHistograms = new ArrayList<>();
+					for ( int blockIndex = 0; blockIndex < numBlocks; ++blockIndex )
+						if ( partialHistograms[ blockIndex ] != null )
+							blockPartialHistograms.add( new Tuple2<>( ( long ) blockIndex, partialHistograms[ blockIndex ] ) );
+					return blockPartialHistograms.iterator();
 				}
+			)
+			.reduceByKey(
+				( histograms, other ) ->
+				{
+					for ( int i = 0; i < histograms.length; ++i )
+						histograms[ i ] += other[ i ];
+					return histograms;
+				},
+				( int ) Math.min( numBlocks, MAX_PARTITIONS )
+			)
+			.foreach( blockIndexAndHistograms ->
+				{
+					final CellGrid cellGrid = new CellGrid( fieldOfViewSize, blockSize );
+					final long[] blockPosition = new long[ cellGrid.numDimensions() ];
+					cellGrid.getCellGridPositionFlat( blockIndexAndHistograms._1(), blockPosition );
+					final long[] extendedBlockPosition = getExtendedBlockPosition( blockPosition );
+					final Interval extendedBlockInterval = getCellInterval( new CellGrid( extendedDimensions, extendedBlockSize ), extendedBlockPosition );
 
-				System.out.println( "Block min=" + Arrays.toString( Intervals.minAsLongArray( blockInterval ) ) + ", max=" + Arrays.toString( Intervals.maxAsLongArray( blockInterval ) ) + ": populated histograms" );
+					final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
+					final N5Writer n5Local = dataProviderLocal.createN5Writer( histogramsN5BasePath );
+					saveHistogramsBlock( n5Local, histogramsDataset, blockIndexAndHistograms._2(), extendedBlockInterval, extendedBlockPosition, dataType );
+				}
+			);
+	}
 
-				final N5Writer n5Local = dataProviderLocal.createN5Writer( histogramsN5BasePath );
-				N5Utils.saveBlock( histogramsStorageBlockImg, n5Local, histogramsDataset, extendedBlockPosition );
-			} );
+	/**
+	 * Saves the histogram counts (stored in the same layout as the N5 block) using the given data type.
+	 */
+	private static void saveHistogramsBlock(
+			final N5Writer n5,
+			final String histogramsDataset,
+			final int[] histograms,
+			final Interval extendedBlockInterval,
+			final long[] extendedBlockPosition,
+			final DataType dataType ) throws IOException
+	{
+		final long[] extendedBlockDimensions = Intervals.dimensionsAsLongArray( extendedBlockInterval );
+		switch ( dataType )
+		{
+		case FLOAT32:
+			final float[] floatHistograms = new float[ histograms.length ];
+			for ( int i = 0; i < histograms.length; ++i )
+				floatHistograms[ i ] = histograms[ i ];
+			N5Utils.saveBlock( ArrayImgs.floats( floatHistograms, extendedBlockDimensions ), n5, histogramsDataset, extendedBlockPosition );
+			break;
+		case FLOAT64:
+			final double[] doubleHistograms = new double[ histograms.length ];
+			for ( int i = 0; i < histograms.length; ++i )
+				doubleHistograms[ i ] = histograms[ i ];
+			N5Utils.saveBlock( ArrayImgs.doubles( doubleHistograms, extendedBlockDimensions ), n5, histogramsDataset, extendedBlockPosition );
+			break;
+		default:
+			throw new IllegalArgumentException( "Unsupported data type for histograms: " + dataType );
+		}
+	}
 
-		broadcastedTiles.destroy();
+	/**
+	 * Adds the values of the tile image within the given field of view block to the histograms of the block.
+	 */
+	private static < T extends NativeType< T > & RealType< T >, H extends RealType< H > > void populateHistograms(
+			final RandomAccessibleInterval< T > tileStorageImg,
+			final Interval blockInterval,
+			final RandomAccessibleInterval< RealComposite< H > > histogramsBlockImg,
+			final Real1dBinMapper< T > binMapper )
+	{
+		final Interval tileImgOffsetInterval = getTileBlockInterval( tileStorageImg, blockInterval );
+		final RandomAccessibleInterval< T > tileStorageImgInterval = Views.offsetInterval( tileStorageImg, tileImgOffsetInterval );
+		final Cursor< RealComposite< H > > histogramsBlockImgCursor = Views.flatIterable( histogramsBlockImg ).cursor();
+
+		if ( tileStorageImg.numDimensions() == blockInterval.numDimensions() )
+		{
+			// handles the following cases:
+			// 1) FoV is 2D, tile is 2D
+			// 2) FoV is 3D, tile is 3D
+			final Cursor< T > tileCursor = Views.flatIterable( tileStorageImgInterval ).cursor();
+			while ( histogramsBlockImgCursor.hasNext() || tileCursor.hasNext() )
+			{
+				final RealComposite< H > histogram = histogramsBlockImgCursor.next();
+				final long bin = binMapper.map( tileCursor.next() );
+				histogram.get( bin ).inc();
+			}
+		}
+		else
+		{
+			final RandomAccessibleInterval< RealComposite< T > > tileImgCompositeInterval = Views.collapseReal( tileStorageImgInterval );
+			final Cursor< RealComposite< T > > tileCompositeCursor = Views.flatIterable( tileImgCompositeInterval ).cursor();
+
+			// handles the following cases:
+			// 3) FoV is 2D, tile is 3D (last dimension in tile space is collapsed and used as additional data points)
+			while ( histogramsBlockImgCursor.hasNext() || tileCompositeCursor.hasNext() )
+			{
+				final RealComposite< H > histogram = histogramsBlockImgCursor.next();
+				final RealComposite< T > compositeValue = tileCompositeCursor.next();
+				for ( final T value : compositeValue )
+				{
+					final long bin = binMapper.map( value );
+					histogram.get( bin ).inc();
+				}
+			}
+		}
+	}
 
-		// mark all histograms as ready to skip block existence check and save time for subsequent runs
-		n5.setAttribute( histogramsDataset, ALL_HISTOGRAMS_EXIST_KEY, true );
+	/**
+	 * @return the part of the tile image that corresponds to the given field of view block (including all slices if the field of view is 2D and the tile is 3D)
+	 */
+	private static Interval getTileBlockInterval( final Interval tileStorageImg, final Interval blockInterval )
+	{
+		final Interval tileImgOffsetInterval;
+		if ( tileStorageImg.numDimensions() == 3 )
+		{
+			tileImgOffsetInterval = new FinalInterval(
+					new long[] { blockInterval.min( 0 ), blockInterval.min( 1 ), blockInterval.numDimensions() >= 3 ? blockInterval.min( 2 ) : tileStorageImg.min( 2 ) },
+					new long[] { blockInterval.max( 0 ), blockInterval.max( 1 ), blockInterval.numDimensions() >= 3 ? blockInterval.max( 2 ) : tileStorageImg.max( 2 ) }
+				);
+		}
+		else
+		{
+			tileImgOffsetInterval = new FinalInterval(
+					new long[] { blockInterval.min( 0 ), blockInterval.min( 1 ) },
+					new long[] { blockInterval.max( 0 ), blockInterval.max( 1 ) }
+				);
+		}
+		return tileImgOffsetInterval;
+	}
+
+	private static long[] getExtendedBlockPosition( final long[] blockPosition )
+	{
+		final long[] extendedBlockPosition = new long[ blockPosition.length + 1 ];
+		System.arraycopy( blockPosition, 0, extendedBlockPosition, 0, blockPosition.length );
+		return extendedBlockPosition;
+	}
+
+	private static Interval getCellInterval( final CellGrid cellGrid, final long[] cellPosition )
+	{
+		final long[] cellMin = new long[ cellGrid.numDimensions() ], cellMax = new long[ cellGrid.numDimensions() ];
+		final int[] cellDimensions = new int[ cellGrid.numDimensions() ];
+		cellGrid.getCellDimensions( cellPosition, cellMin, cellDimensions );
+		for ( int d = 0; d < cellGrid.numDimensions(); ++d )
+			cellMax[ d ] = cellMin[ d ] + cellDimensions[ d ] - 1;
+		return new FinalInterval( cellMin, cellMax );
 	}
 
 	public double[] getReferenceHistogram() throws IOException
@@ -373,8 +991,7 @@ public class HistogramsProvider implements Serializable
 				{
 					final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
 					final N5Reader n5Local = dataProviderLocal.createN5Reader( histogramsN5BasePath );
-					final RandomAccessibleInterval< T > histogramsStorageImg = ( RandomAccessibleInterval< T > ) N5Utils.open( n5Local, histogramsDataset );
-					final CompositeIntervalView< T, RealComposite< T > > histogramsImg = Views.collapseReal( histogramsStorageImg );
+					final CompositeIntervalView< T, RealComposite< T > > histogramsImg = openHistograms( n5Local, histogramsDataset );
 
 					final Real1dBinMapper< T > binMapper = new Real1dBinMapper<>( histogramSettings.histMinValue, histogramSettings.histMaxValue, histogramSettings.bins, true );
 					final T binCenterValue = ( T ) new DoubleType();
@@ -440,8 +1057,7 @@ public class HistogramsProvider implements Serializable
 					final Iterable< long[] > pixelPositions = tuple._2();
 					final DataProvider dataProviderLocal = DataProviderFactory.create( dataProviderType );
 					final N5Reader n5Local = dataProviderLocal.createN5Reader( histogramsN5BasePath );
-					final RandomAccessibleInterval< T > histogramsStorageImg = ( RandomAccessibleInterval< T > ) N5Utils.open( n5Local, histogramsDataset );
-					final CompositeIntervalView< T, RealComposite< T > > histogramsImg = Views.collapseReal( histogramsStorageImg );
+					final CompositeIntervalView< T, RealComposite< T > > histogramsImg = openHistograms( n5Local, histogramsDataset );
 					final RandomAccess< RealComposite< T > > histogramsImgRandomAccess = histogramsImg.randomAccess();
 
 					final double[] accumulatedFilteredBlockHistogram = new double[ histogramSettings.bins ];
@@ -485,6 +1101,38 @@ public class HistogramsProvider implements Serializable
 		return blockPositions;
 	}
 
+	/**
+	 * Splits the blocks into the given number of batches of contiguous blocks (in flat grid order) containing approximately the same number of pixels.
+	 * Each batch contains at least one block, so the number of batches may be smaller if there are not enough blocks.
+	 */
+	public static List< List< long[] > > getBlockBatches( final long[] dimensions, final int[] blockSize, final int numBatches )
+	{
+		final CellGrid cellGrid = new CellGrid( dimensions, blockSize );
+		final List< long[] > blockPositions = getBlockPositions( dimensions, blockSize );
+		final int[] cellDimensions = new int[ cellGrid.numDimensions() ];
+		final long[] cellMin = new long[ cellGrid.numDimensions() ];
+		final double pixelsPerBatch = ( double ) Intervals.numElements( dimensions ) / Math.max( numBatches, 1 );
+
+		final List< List< long[] > > blockBatches = new ArrayList<>();
+		List< long[] > blockBatch = new ArrayList<>();
+		long processedPixels = 0;
+		for ( final long[] blockPosition : blockPositions )
+		{
+			cellGrid.getCellDimensions( blockPosition, cellMin, cellDimensions );
+			blockBatch.add( blockPosition );
+			processedPixels += Intervals.numElements( cellDimensions );
+
+			if ( processedPixels >= pixelsPerBatch * ( blockBatches.size() + 1 ) )
+			{
+				blockBatches.add( blockBatch );
+				blockBatch = new ArrayList<>();
+			}
+		}
+		if ( !blockBatch.isEmpty() )
+			blockBatches.add( blockBatch );
+		return blockBatches;
+	}
+
 	private boolean sliceHistogramsExist() throws IOException, URISyntaxException
 	{
 		// check if histograms exist in old slice-based format
@@ -5,16 +5,20 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.dataaccess.DataProvider;
 import org.janelia.dataaccess.DataProviderFactory;
 import org.janelia.dataaccess.DataProviderType;
+import org.janelia.dataaccess.PathResolver;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.spark.N5RemoveSpark;
 import org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid.N5OffsetScalePyramidSpark;
+import org.janelia.util.concurrent.MultithreadedExecutor;
 
 import bdv.export.Downsample;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
@@ -58,7 +62,6 @@ public class ShiftedDownsampling< A extends AffineGet & AffineSet >
 			);
 	}
 
-	@SuppressWarnings( "unchecked" )
 	public ShiftedDownsampling(
 			final JavaSparkContext sparkContext,
 			final DataProviderType dataProviderType,
@@ -70,17 +73,7 @@ public class ShiftedDownsampling< A extends AffineGet & AffineSet >
 		this.dataProviderType = dataProviderType;
 		this.histogramsN5BasePath = histogramsN5BasePath;
 
-		if ( workingInterval.numDimensions() == 2 )
-			downsamplingTransform = ( A ) new AffineTransform2D();
-		else if ( workingInterval.numDimensions() == 3 )
-			downsamplingTransform = ( A ) new AffineTransform3D();
-		else
-			downsamplingTransform = ( A ) new AffineTransform( workingInterval.numDimensions() );
-		for ( int d = 0; d < downsamplingTransform.numDimensions(); ++d )
-		{
-			downsamplingTransform.set( 0.5, d, d );
-			downsamplingTransform.set( -0.5, d, downsamplingTransform.numDimensions() );
-		}
+		downsamplingTransform = createDownsamplingTransform( workingInterval.numDimensions() );
 
 		final DataProvider dataProvider = DataProviderFactory.create( dataProviderType );
 
@@ -119,6 +112,76 @@ public class ShiftedDownsampling< A extends AffineGet & AffineSet >
 		}
 	}
 
+	/**
+	 * Creates the scale pyramid without storing the downsampled histograms.
+	 * The scale levels are the same as in the pyramid stored by {@link N5OffsetScalePyramidSpark} (see {@link #getScalePyramidDimensions(long[], int[])}),
+	 * and the downsampled histograms can be generated in memory using {@link #downsampleHistograms(RandomAccessibleInterval, int, MultithreadedExecutor)}.
+	 *
+	 * @param fullScaleDimensions
+	 * 			dimensions of the field of view (without the extra 'bins' dimension)
+	 * @param fullScaleBlockSize
+	 * 			block size of the full-scale histograms dataset (without the extra 'bins' dimension)
+	 */
+	public ShiftedDownsampling( final long[] fullScaleDimensions, final int[] fullScaleBlockSize )
+	{
+		sparkContext = null;
+		dataProviderType = null;
+		histogramsN5BasePath = null;
+		downsampledHistogramsGroupPath = null;
+		scalePyramidDatasetPaths = null;
+
+		downsamplingTransform = createDownsamplingTransform( fullScaleDimensions.length );
+		scalePyramidDatasetDimensions = getScalePyramidDimensions( fullScaleDimensions, fullScaleBlockSize );
+	}
+
+	/**
+	 * Derives the scale level dimensions in the same way as {@link N5OffsetScalePyramidSpark}:
+	 * scale level s is downsampled from the full scale by 2^s with an offset of 2^(s-1), and the incomplete pixels at the far end are discarded.
+	 * The pyramid ends with the first scale level that fits into a single block, or before a scale level that would be empty.
+	 */
+	static List< long[] > getScalePyramidDimensions( final long[] fullScaleDimensions, final int[] fullScaleBlockSize )
+	{
+		final List< long[] > scalePyramidDimensions = new ArrayList<>();
+		scalePyramidDimensions.add( fullScaleDimensions.clone() );
+		for ( int scale = 1; ; ++scale )
+		{
+			final long scaleFactor = 1L << scale, offset = scaleFactor / 2;
+			final long[] dimensions = new long[ fullScaleDimensions.length ];
+			for ( int d = 0; d < dimensions.length; ++d )
+				dimensions[ d ] = ( fullScaleDimensions[ d ] + offset ) / scaleFactor;
+
+			if ( Arrays.stream( dimensions ).min().getAsLong() < 1 )
+				break;
+
+			scalePyramidDimensions.add( dimensions );
+
+			boolean fitsIntoSingleBlock = true;
+			for ( int d = 0; d < dimensions.length; ++d )
+				fitsIntoSingleBlock &= dimensions[ d ] <= fullScaleBlockSize[ d ];
+			if ( fitsIntoSingleBlock )
+				break;
+		}
+		return scalePyramidDimensions;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static < A extends AffineGet & AffineSet > A createDownsamplingTransform( final int numDimensions )
+	{
+		final A downsamplingTransform;
+		if ( numDimensions == 2 )
+			downsamplingTransform = ( A ) new AffineTransform2D();
+		else if ( numDimensions == 3 )
+			downsamplingTransform = ( A ) new AffineTransform3D();
+		else
+			downsamplingTransform = ( A ) new AffineTransform( numDimensions );
+		for ( int d = 0; d < downsamplingTransform.numDimensions(); ++d )
+		{
+			downsamplingTransform.set( 0.5, d, d );
+			downsamplingTransform.set( -0.5, d, downsamplingTransform.numDimensions() );
+		}
+		return downsamplingTransform;
+	}
+
 	public < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > downsampleImage(
 			final RandomAccessibleInterval< T > fullComponent,
 			final int scale )
@@ -143,6 +206,44 @@ public class ShiftedDownsampling< A extends AffineGet & AffineSet >
 		return downsampledComponent;
 	}
 
+	/**
+	 * Downsamples the histograms in memory by applying {@link #downsampleImage(RandomAccessibleInterval, int)} to every bin in parallel.
+	 *
+	 * @param fullScaleHistograms
+	 * 			histograms at full scale where the last dimension is for bins
+	 */
+	public < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > downsampleHistograms(
+			final RandomAccessibleInterval< T > fullScaleHistograms,
+			final int scale,
+			final MultithreadedExecutor threadPool ) throws InterruptedException, ExecutionException
+	{
+		if ( scale == 0 )
+			return fullScaleHistograms;
+
+		final int binsDimension = fullScaleHistograms.numDimensions() - 1;
+		final long[] downsampledDimensions = scalePyramidDatasetDimensions.get( scale );
+		final long[] extendedDownsampledDimensions = new long[ fullScaleHistograms.numDimensions() ];
+		System.arraycopy( downsampledDimensions, 0, extendedDownsampledDimensions, 0, downsampledDimensions.length );
+		extendedDownsampledDimensions[ binsDimension ] = fullScaleHistograms.dimension( binsDimension );
+
+		final T type = Util.getTypeFromInterval( fullScaleHistograms );
+		final RandomAccessibleInterval< T > downsampledHistograms = new ArrayImgFactory< T >().create( extendedDownsampledDimensions, type );
+
+		threadPool.run(
+				bin ->
+				{
+					final RandomAccessibleInterval< T > downsampledBin = downsampleImage( Views.hyperSlice( fullScaleHistograms, binsDimension, bin ), scale );
+					final Cursor< T > srcCursor = Views.flatIterable( downsampledBin ).cursor();
+					final Cursor< T > dstCursor = Views.flatIterable( Views.hyperSlice( downsampledHistograms, binsDimension, bin ) ).cursor();
+					while ( dstCursor.hasNext() )
+						dstCursor.next().set( srcCursor.next() );
+				},
+				( int ) extendedDownsampledDimensions[ binsDimension ]
+			);
+
+		return downsampledHistograms;
+	}
+
 	@SuppressWarnings( "unchecked" )
 	public < T extends RealType< T > & NativeType< T > > RandomAccessible< T > upsampleImage(
 			final RandomAccessibleInterval< T > downsampledImg,
@@ -150,7 +251,7 @@ public class ShiftedDownsampling< A extends AffineGet & AffineSet >
 	{
 		// find the scale level of downsampledImg by comparing the dimensions
 		int oldScale = -1;
-		for ( int scale = scalePyramidDatasetPaths.size() - 1; scale >= 0; scale-- )
+		for ( int scale = scalePyramidDatasetDimensions.size() - 1; scale >= 0; scale-- )
 		{
 			if ( Intervals.equalDimensions( downsampledImg, new FinalInterval( scalePyramidDatasetDimensions.get( scale ) ) ) )
 			{
@@ -185,15 +286,27 @@ public class ShiftedDownsampling< A extends AffineGet & AffineSet >
 
 	public void cleanupDownsampledHistograms() throws IOException
 	{
+		// nothing is stored when the pyramid is generated in memory
+		if ( scalePyramidDatasetPaths == null )
+			return;
+
 		final DataProviderType dataProviderType = this.dataProviderType;
 		final String histogramsN5BasePath = this.histogramsN5BasePath;
 		final String downsampledHistogramsGroupPath = this.downsampledHistogramsGroupPath;
 
-		N5RemoveSpark.remove(
-				sparkContext,
-				() -> DataProviderFactory.create( dataProviderType ).createN5Writer( histogramsN5BasePath ),
-				downsampledHistogramsGroupPath
-			);
+		if ( dataProviderType == DataProviderType.FILESYSTEM )
+		{
+			N5RemoveSpark.remove(
+					sparkContext,
+					() -> DataProviderFactory.create( dataProviderType ).createN5Writer( histogramsN5BasePath ),
+					downsampledHistogramsGroupPath
+				);
+		}
+		else
+		{
+			// removing the pyramid dataset by dataset is slow on object stores, delete everything under the key prefix of the group instead
+			DataProviderFactory.create( dataProviderType ).deleteFolder( PathResolver.get( histogramsN5BasePath, downsampledHistogramsGroupPath ) );
+		}
 	}
 
 	public int getNumScales()
@@ -208,6 +321,8 @@ public class ShiftedDownsampling< A extends AffineGet & AffineSet >
 
 	public String getDatasetAtScale( final int scale )
 	{
+		if ( scalePyramidDatasetPaths == null )
+			throw new UnsupportedOperationException( "the scale pyramid is not stored" );
 		return scalePyramidDatasetPaths.get( scale );
 	}
 }
@@ -1,10 +1,13 @@
 package org.janelia.flatfield;
 
+import java.io.IOException;
 import java.util.Arrays;
 
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.dataaccess.DataProviderFactory;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.stitching.TileInfo;
 import org.janelia.stitching.TileLoader;
 
@@ -27,10 +30,13 @@ public class StackHistogram
 		CenterValue
 	}
 
+	private static final String STACK_HISTOGRAM_KEY = "stackHistogram";
+	private static final String STACK_HISTOGRAM_SETTINGS_KEY = "stackHistogramSettings";
+
 	private final long[] stackHistogram;
 	private final HistogramSettings stackHistogramSettings;
 
-	private StackHistogram( final long[] stackHistogram, final HistogramSettings stackHistogramSettings )
+	StackHistogram( final long[] stackHistogram, final HistogramSettings stackHistogramSettings )
 	{
 		this.stackHistogram = stackHistogram;
 		this.stackHistogramSettings = stackHistogramSettings;
@@ -112,6 +118,31 @@ public class StackHistogram
 		return centerBinValue.get();
 	}
 
+	/**
+	 * Stores the stack histogram in the attributes of the given group, so it can be reused instead of reading the input stack again.
+	 */
+	public void save( final N5Writer n5, final String group ) throws IOException
+	{
+		n5.setAttribute( group, STACK_HISTOGRAM_KEY, stackHistogram );
+		n5.setAttribute( group, STACK_HISTOGRAM_SETTINGS_KEY, stackHistogramSettings );
+	}
+
+	/**
+	 * @return the stack histogram stored in the attributes of the given group, or {@code null} if it has not been stored
+	 */
+	public static StackHistogram load( final N5Reader n5, final String group ) throws IOException
+	{
+		final long[] stackHistogram = n5.getAttribute( group, STACK_HISTOGRAM_KEY, long[].class );
+		final HistogramSettings stackHistogramSettings = n5.getAttribute( group, STACK_HISTOGRAM_SETTINGS_KEY, HistogramSettings.class );
+		if ( stackHistogram == null || stackHistogramSettings == null )
+			return null;
+
+		if ( stackHistogram.length != stackHistogramSettings.bins )
+			throw new RuntimeException( "stored stack histogram has different number of bins than its settings" );
+
+		return new StackHistogram( stackHistogram, stackHistogramSettings );
+	}
+
 	public static < T extends NativeType< T > & RealType< T > > StackHistogram getStackHistogram(
 			final JavaSparkContext sparkContext,
 			final TileInfo[] tiles,
@@ -1,34 +1,31 @@
 package org.janelia.stitching;
 
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
-import net.imglib2.Cursor;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.dataaccess.*;
 import org.janelia.saalfeldlab.n5.Compression;
-import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
-import org.janelia.util.ImageImporter;
+import org.janelia.util.BioformatsReaderPool;
+import org.janelia.util.N5PlaneBlockWriter;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
-import scala.Tuple3;
+import scala.Tuple2;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.Map.Entry;
@@ -53,6 +50,10 @@ public class ConvertCZITilesToN5Spark
 				usage = "Output block size as a comma-separated list.")
 		private String blockSizeStr = "128,128,64";
 
+		@Option(name = "-c", aliases = { "--compression" }, required = false,
+				usage = "Compression of the output tiles. " + N5CompressionFactory.USAGE)
+		private String compression = N5CompressionFactory.DEFAULT;
+
 		private boolean parsedSuccessfully = false;
 
 		public ConvertCZITilesToN5CmdArgs( final String... args ) throws IllegalArgumentException
@@ -107,7 +108,7 @@ public class ConvertCZITilesToN5Spark
 					parsedArgs.inputChannelsPaths.iterator().next(),
 					parsedArgs.n5OutputPath,
 					CmdUtils.parseIntArray( parsedArgs.blockSizeStr ),
-					new GzipCompression()
+					N5CompressionFactory.create( parsedArgs.compression )
 			);
 		}
 		System.out.println( "Done" );
@@ -190,8 +191,10 @@ public class ConvertCZITilesToN5Spark
 			}
 		}
 
-		// create tasks, parallelizing over channels, tiles, and intervals (which are grouped into Z chunks aligned with the block size and cover the entire XY plane of the tile)
-		final List< Tuple3< Integer, TileInfo, Interval > > tasks = new ArrayList<>();
+		// create tasks, parallelizing over tiles and intervals (which are grouped into Z chunks aligned with the block size and cover the entire XY plane of the tile).
+		// All channels of a Z chunk are converted within the same task, and the tasks reading from the same file are kept next to each other,
+		// so the pooled readers that have already parsed the container can be reused
+		final List< Tuple2< TileInfo, Interval > > tasks = new ArrayList<>();
 		for ( final TileInfo tile : inputTiles )
 		{
 			for ( long zPos = 0; zPos < tile.getSize( 2 ); zPos += blockSize[ 2 ] )
@@ -200,95 +203,105 @@ public class ConvertCZITilesToN5Spark
 						new long[] { 0, 0, zPos },
 						new long[] { tile.getSize(0) - 1, tile.getSize(1) - 1, Math.min(zPos + blockSize[2] - 1, tile.getSize(2) - 1) }
 				);
-				for ( int ch = 0; ch < numChannels; ++ch )
-					tasks.add( new Tuple3<>( ch, tile, taskInterval ) );
+				tasks.add( new Tuple2<>( tile, taskInterval ) );
 			}
 		}
 
+		final BioformatsReaderPool.Accumulators readerAccumulators = new BioformatsReaderPool.Accumulators( sparkContext );
+
 		sparkContext
 				.parallelize( tasks, Math.min( tasks.size(), MAX_PARTITIONS ) )
-				.foreach( channelAndInputTileAndInterval ->
+				.foreach( inputTileAndInterval ->
 						{
-							final int channel = channelAndInputTileAndInterval._1();
-							final TileInfo inputTile = channelAndInputTileAndInterval._2();
-							final Interval interval = channelAndInputTileAndInterval._3();
+							final TileInfo inputTile = inputTileAndInterval._1();
+							final Interval interval = inputTileAndInterval._2();
 
 							if ( inputTile.numDimensions() != blockSize.length )
 								throw new RuntimeException( "dimensionality mismatch" );
 
-							System.out.println("Opening image...");
-							long elapsedMsec = System.currentTimeMillis();
-							final ImagePlus[] imps = ImageImporter.openBioformatsImageSeries( inputTile.getFilePath() );
-							elapsedMsec = System.currentTimeMillis() - elapsedMsec;
-							System.out.println("Opened, took " + (elapsedMsec / 1000) + "s");
+							final BioformatsReaderPool readerPool = BioformatsReaderPool.getInstance();
+							final IFormatReader reader = readerPool.acquire( inputTile.getFilePath(), readerAccumulators );
 
-							final ImagePlus imp;
-							if ( singleCziContainer )
+							try
 							{
-								if ( inputTile.getIndex() >= imps.length )
-									throw new RuntimeException( "Identified that all tile images are stored in a single .czi container, but there are not enough images in the loaded image series (file=" + inputTile.getFilePath() + ", numImages=" + imps.length + ", tileIndex=" + inputTile.getIndex() );
-								imp = imps[ inputTile.getIndex() ];
-							}
-							else
-							{
-								if ( imps.length != 1 )
-									throw new RuntimeException( "Expected one tile image per .czi file, got " + imps.length + " images in file " + inputTile.getFilePath() );
-								imp = imps[ 0 ];
-							}
+								if ( singleCziContainer )
+								{
+									if ( inputTile.getIndex() >= reader.getSeriesCount() )
+										throw new RuntimeException( "Identified that all tile images are stored in a single .czi container, but there are not enough images in the loaded image series (file=" + inputTile.getFilePath() + ", numImages=" + reader.getSeriesCount() + ", tileIndex=" + inputTile.getIndex() );
+									reader.setSeries( inputTile.getIndex() );
+								}
+								else
+								{
+									if ( reader.getSeriesCount() != 1 )
+										throw new RuntimeException( "Expected one tile image per .czi file, got " + reader.getSeriesCount() + " images in file " + inputTile.getFilePath() );
+									reader.setSeries( 0 );
+								}
 
-							if ( imp.getNChannels() != numChannels )
-								throw new RuntimeException( "Number of channels in the metadata doesn't match the actual number of channels: " +
-										"metadata=" + numChannels + ", actual=" + imp.getNChannels() );
-
-							System.out.println( String.format(
-									"Converting interval min=%s,max=%s of tile %d, channel %d into N5",
-									Arrays.toString( Intervals.minAsLongArray( interval ) ),
-									Arrays.toString( Intervals.maxAsLongArray( interval ) ),
-									inputTile.getIndex(),
-									channel
-								) );
-
-							final T type = ( T ) inputTile.getType().getType();
-							final RandomAccessibleInterval< T > dstImg = Views.translate(
-									new ArrayImgFactory<>( type ).create(
-											imp.getWidth(),
-											imp.getHeight(),
-											interval.dimension( 2 )
-										),
-									Intervals.minAsLongArray( interval )
-								);
-
-							// Process the image slice by slice. If the full image wrapped into an imglib2-based image format,
-							// the entire image file is read into memory, which often leads to OutOfMemory errors.
-							for ( int zPos = ( int ) interval.min( 2 ); zPos <= interval.max( 2 ); ++zPos )
-							{
-								imp.setPosition( channel + 1, zPos + 1, imp.getT() );
-								final ImageProcessor sliceProcessor = imp.getProcessor();
+								if ( reader.getSizeC() != numChannels || reader.getRGBChannelCount() != 1 )
+									throw new RuntimeException( "Number of channels in the metadata doesn't match the actual number of channels: " +
+											"metadata=" + numChannels + ", actual=" + reader.getSizeC() + ( reader.getRGBChannelCount() != 1 ? " (RGB)" : "" ) );
+
+								if ( reader.getSizeX() != inputTile.getSize( 0 ) || reader.getSizeY() != inputTile.getSize( 1 ) )
+									throw new RuntimeException( "Tile size from metadata doesn't match actual image size: " +
+											"metadata=" + Arrays.toString( inputTile.getSize() ) + ", actual=" + Arrays.toString( new int[] { reader.getSizeX(), reader.getSizeY(), reader.getSizeZ() } ) );
 
-								final IntervalView< T > dstSliceImg = Views.hyperSlice( dstImg, 2, zPos );
-								final Cursor< T > dstSliceCursor = Views.iterable( dstSliceImg ).localizingCursor();
-								final int[] positionInSlice = new int[ 2 ];
-								while ( dstSliceCursor.hasNext() )
+								checkPixelType( reader.getPixelType(), inputTile.getType() );
+								final byte[] planeBytes = new byte[ reader.getSizeX() * reader.getSizeY() * FormatTools.getBytesPerPixel( reader.getPixelType() ) ];
+
+								for ( int channel = 0; channel < numChannels; ++channel )
 								{
-									dstSliceCursor.fwd();
-									dstSliceCursor.localize( positionInSlice );
-									dstSliceCursor.get().setReal( sliceProcessor.getf( positionInSlice[ 0 ], positionInSlice[ 1 ] ) );
+									System.out.println( String.format(
+											"Converting interval min=%s,max=%s of tile %d, channel %d into N5",
+											Arrays.toString( Intervals.minAsLongArray( interval ) ),
+											Arrays.toString( Intervals.maxAsLongArray( interval ) ),
+											inputTile.getIndex(),
+											channel
+										) );
+
+									// Read the image plane by plane and pack the planes into N5 blocks that are written as soon as the Z chunk is complete.
+									// If the full image wrapped into an imglib2-based image format, the entire image file is read into memory, which often leads to OutOfMemory errors.
+									final N5PlaneBlockWriter planeBlockWriter = new N5PlaneBlockWriter( n5Supplier.get(), getChannelTileDataset( channel, inputTile, singleCziContainer ) );
+									final Object plane = createArray( inputTile.getType(), planeBlockWriter.getPlaneSize() );
+									for ( int zPos = ( int ) interval.min( 2 ); zPos <= interval.max( 2 ); ++zPos )
+									{
+										reader.openBytes( reader.getIndex( zPos, channel, 0 ), planeBytes );
+										copyPlane( planeBytes, reader.isLittleEndian(), plane, planeBlockWriter.getPlaneSize() );
+										planeBlockWriter.writePlane( zPos, plane );
+									}
+									if ( !planeBlockWriter.isComplete() )
+										throw new RuntimeException( "Z chunk of the interval " + Arrays.toString( Intervals.minAsLongArray( interval ) ) + " is not aligned with the block grid" );
 								}
 							}
-
-							System.out.println("Saving interval into N5...");
-							final long[] gridOffset = new long[ blockSize.length ];
-							Arrays.setAll( gridOffset, d -> dstImg.min( d ) / blockSize[ d ] );
-							N5Utils.saveBlock(
-									dstImg,
-									n5Supplier.get(),
-									getChannelTileDataset( channel, inputTile, singleCziContainer ),
-									gridOffset
-								);
-							System.out.println("Saving interval into N5: done");
+							catch ( final Exception e )
+							{
+								// the reader may be left in an inconsistent state, so it is closed instead of being returned to the pool
+								try
+								{
+									reader.close();
+								}
+								catch ( final IOException closeException )
+								{
+									e.addSuppressed( closeException );
+								}
+								throw e;
+							}
+							readerPool.release( inputTile.getFilePath(), reader );
 						}
 				);
 
+		// Previously every (channel, tile, Z chunk) task parsed the container on its own
+		final long opened = readerAccumulators.opened.value();
+		final long avgOpenTimeMsec = opened != 0 ? readerAccumulators.openTimeMsec.value() / opened : 0;
+		System.out.println( "Bioformats readers: " + readerAccumulators );
+		System.out.println( String.format(
+				"Total time spent opening images: %ds for %d tasks (%d channels each); without pooled readers it would take ~%ds for %d per-channel tasks",
+				readerAccumulators.acquireTimeMsec.value() / 1000,
+				tasks.size(),
+				numChannels,
+				avgOpenTimeMsec * tasks.size() * numChannels / 1000,
+				tasks.size() * numChannels
+			) );
+
 		// create output tiles metadata
 		final Map< String, TileInfo[] > outputTilesChannels = new LinkedHashMap<>();
 		for ( int ch = 0; ch < numChannels; ++ch )
@@ -307,6 +320,58 @@ public class ConvertCZITilesToN5Spark
 		return outputTilesChannels;
 	}
 
+	private static void checkPixelType( final int pixelType, final ImageType imageType )
+	{
+		final boolean matches;
+		switch ( imageType )
+		{
+		case GRAY8:
+			matches = pixelType == FormatTools.UINT8;
+			break;
+		case GRAY16:
+			matches = pixelType == FormatTools.UINT16;
+			break;
+		case GRAY32:
+			matches = pixelType == FormatTools.FLOAT;
+			break;
+		default:
+			matches = false;
+		}
+		if ( !matches )
+			throw new UnsupportedOperationException( "Pixel type " + FormatTools.getPixelTypeString( pixelType ) + " cannot be converted to " + imageType + " without rescaling" );
+	}
+
+	private static Object createArray( final ImageType imageType, final int length )
+	{
+		switch ( imageType )
+		{
+		case GRAY8:
+			return new byte[ length ];
+		case GRAY16:
+			return new short[ length ];
+		case GRAY32:
+			return new float[ length ];
+		default:
+			throw new UnsupportedOperationException( "Unsupported image type: " + imageType );
+		}
+	}
+
+	/**
+	 * Copies the raw plane bytes as returned by the reader into the primitive array.
+	 */
+	private static void copyPlane( final byte[] planeBytes, final boolean littleEndian, final Object data, final int planeSize )
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap( planeBytes ).order( littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+		if ( data instanceof byte[] )
+			buffer.get( ( byte[] ) data, 0, planeSize );
+		else if ( data instanceof short[] )
+			buffer.asShortBuffer().get( ( short[] ) data, 0, planeSize );
+		else if ( data instanceof float[] )
+			buffer.asFloatBuffer().get( ( float[] ) data, 0, planeSize );
+		else
+			throw new UnsupportedOperationException( "Unsupported array type: " + data.getClass() );
+	}
+
 	private static String getChannelName( final int channel )
 	{
 		return "c" + channel;
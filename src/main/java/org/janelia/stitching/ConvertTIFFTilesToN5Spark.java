@@ -14,14 +14,19 @@ import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.dataaccess.*;
 import org.janelia.saalfeldlab.n5.Compression;
-import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.supplier.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
 import org.janelia.util.ImageImporter;
+import org.janelia.util.N5PlaneBlockWriter;
+import org.janelia.util.SequentialTiffReader;
+import org.janelia.util.TiffSliceReader;
+import org.janelia.util.TiffSliceReader.TiffInputStreamSupplier;
 
 import ij.ImagePlus;
+import ij.io.FileInfo;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.imageplus.ImagePlusImgs;
@@ -52,6 +57,10 @@ public class ConvertTIFFTilesToN5Spark
 				usage = "Output block size as a comma-separated list.")
 		private String blockSizeStr = "128,128,64";
 
+		@Option(name = "-c", aliases = { "--compression" }, required = false,
+				usage = "Compression of the output tiles. " + N5CompressionFactory.USAGE)
+		private String compression = N5CompressionFactory.DEFAULT;
+
 		private boolean parsedSuccessfully = false;
 
 		public ConvertTIFFTilesToN5CmdArgs( final String... args ) throws IllegalArgumentException
@@ -106,7 +115,7 @@ public class ConvertTIFFTilesToN5Spark
 					parsedArgs.inputChannelsPaths,
 					parsedArgs.n5OutputPath,
 					CmdUtils.parseIntArray( parsedArgs.blockSizeStr ),
-					new GzipCompression()
+					N5CompressionFactory.create( parsedArgs.compression )
 			);
 		}
 		System.out.println( "Done" );
@@ -205,6 +214,21 @@ public class ConvertTIFFTilesToN5Spark
 		// TODO: can consider pixel resolution to calculate isotropic block size in Z
 
 		final String tileDatasetPath = PathResolver.get( outputGroupPath, PathResolver.getFileName( inputTile.getFilePath() ) );
+
+		// grayscale .tif images are read plane by plane and packed into N5 blocks directly
+		if ( inputTile.getFilePath().endsWith( ".tif" ) || inputTile.getFilePath().endsWith( ".tiff" ) )
+		{
+			final DataProvider dataProvider = DataProviderFactory.create( DataProviderFactory.detectType( inputTile.getFilePath() ) );
+			final TiffInputStreamSupplier inSupplier = () -> dataProvider.getInputStream( inputTile.getFilePath() );
+			final FileInfo[] sliceFileInfos = TiffSliceReader.getSliceFileInfos( inSupplier );
+			final DataType dataType = sliceFileInfos != null && sliceFileInfos.length != 0 ? TiffSliceReader.getDataType( sliceFileInfos[ 0 ] ) : null;
+			if ( dataType != null )
+			{
+				convertTiffTileToN5( inputTile, inSupplier, sliceFileInfos, dataType, n5, tileDatasetPath, blockSize, n5Compression );
+				return tileDatasetPath;
+			}
+		}
+
 		final ImagePlus imp = ImageImporter.openImage( inputTile.getFilePath() );
 		final RandomAccessibleInterval< T > img = ImagePlusImgs.from( imp );
 
@@ -224,6 +248,45 @@ public class ConvertTIFFTilesToN5Spark
 		return tileDatasetPath;
 	}
 
+	/**
+	 * Reads the .tif tile plane by plane and writes the output blocks as soon as their Z chunk is complete,
+	 * so only one layer of blocks is kept in memory. The planes are read through a single stream, so the file is transferred only once.
+	 */
+	private static void convertTiffTileToN5(
+			final TileInfo inputTile,
+			final TiffInputStreamSupplier inSupplier,
+			final FileInfo[] sliceFileInfos,
+			final DataType dataType,
+			final N5Writer n5,
+			final String tileDatasetPath,
+			final int[] blockSize,
+			final Compression n5Compression ) throws IOException
+	{
+		final long[] dimensions = inputTile.getSize();
+		if ( sliceFileInfos[ 0 ].width != dimensions[ 0 ] || sliceFileInfos[ 0 ].height != dimensions[ 1 ] || ( dimensions.length > 2 ? dimensions[ 2 ] : 1 ) != sliceFileInfos.length )
+		{
+			throw new RuntimeException( String.format(
+					"Image size %s does not match the value from metadata %s, filepath: %s",
+					Arrays.toString( new long[] { sliceFileInfos[ 0 ].width, sliceFileInfos[ 0 ].height, sliceFileInfos.length } ),
+					Arrays.toString( dimensions ),
+					inputTile.getFilePath()
+				) );
+		}
+
+		n5.createDataset( tileDatasetPath, dimensions, blockSize, dataType, n5Compression );
+		final N5PlaneBlockWriter planeBlockWriter = new N5PlaneBlockWriter( n5, tileDatasetPath );
+		try ( final SequentialTiffReader sliceReader = new SequentialTiffReader( inSupplier, sliceFileInfos ) )
+		{
+			for ( int z = 0; z < sliceFileInfos.length; ++z )
+			{
+				final Object pixels = sliceReader.readSlicePixels( z );
+				if ( pixels == null )
+					throw new RuntimeException( "Cannot read slice " + ( z + 1 ) + " of " + inputTile.getFilePath() );
+				planeBlockWriter.writePlane( z, pixels );
+			}
+		}
+	}
+
 	private static Map< String, TileInfo[] > getTilesChannels( final List< String > inputChannelsPath ) throws IOException
 	{
 		final Map< String, TileInfo[] > tilesChannels = new LinkedHashMap<>();
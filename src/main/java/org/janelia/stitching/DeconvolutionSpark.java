@@ -16,13 +16,15 @@ import org.janelia.dataaccess.CloudURI;
 import org.janelia.dataaccess.DataProvider;
 import org.janelia.dataaccess.DataProviderFactory;
 import org.janelia.dataaccess.DataProviderType;
+import org.janelia.dataaccess.N5CompressionFactory;
 import org.janelia.dataaccess.PathResolver;
 import org.janelia.flatfield.FlatfieldCorrectedRandomAccessible;
 import org.janelia.flatfield.FlatfieldCorrection;
+import org.janelia.flatfield.FlatfieldField;
 import org.janelia.flatfield.HistogramSettings;
 import org.janelia.flatfield.StackHistogram;
 import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.stitching.TileLoader.TileType;
@@ -55,7 +57,6 @@ import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
-import net.imglib2.view.RandomAccessiblePairNullable;
 import net.imglib2.view.Views;
 import scala.Tuple2;
 import scala.Tuple3;
@@ -90,6 +91,14 @@ public class DeconvolutionSpark
 				usage = "If specified, the output images are saved as 32-bit float images. If omitted, they are converted into the value range of the input datatype (default).")
 		private boolean exportAsFloat = false;
 
+		@Option(name = "-c", aliases = { "--compression" }, required = false,
+				usage = "Compression of the output tiles. " + N5CompressionFactory.USAGE)
+		private String compression = N5CompressionFactory.DEFAULT;
+
+		@Option(name = "--intermediateCompression", required = false,
+				usage = "Compression of the intermediate 32-bit tiles that are converted into the input data type afterwards (not used with --outputFloat). " + N5CompressionFactory.USAGE)
+		private String intermediateCompression = N5CompressionFactory.DEFAULT_INTERMEDIATE;
+
 		private boolean parsedSuccessfully = false;
 
 		public DeconvolutionCmdArgs( final String... args ) throws IllegalArgumentException
@@ -165,7 +174,7 @@ public class DeconvolutionSpark
 	private static final HistogramSettings stackHistogramSettings = new HistogramSettings( 0., 65535., 16386 );
 	private static final Pair< Double, Double > intensityRangeQuantiles = new ValuePair<>( 0., 0.999999 );
 
-	public static < T extends NativeType< T > & RealType< T >, U extends NativeType< U > & RealType< U > > void main( final String[] args ) throws Exception
+	public static < T extends NativeType< T > & RealType< T > > void main( final String[] args ) throws Exception
 	{
 		final DeconvolutionCmdArgs parsedArgs = new DeconvolutionCmdArgs( args );
 		if ( !parsedArgs.parsedSuccessfully )
@@ -241,12 +250,13 @@ public class DeconvolutionSpark
 			channelDeconTilesFloatN5DatasetPaths.add( tileIndexToDatasetPath );
 		}
 
-		// create N5 datasets for output decon tiles
+		// create N5 datasets for output decon tiles (32-bit tiles are intermediate unless they are exported as is)
+		final Compression floatTilesCompression = N5CompressionFactory.create( parsedArgs.exportAsFloat ? parsedArgs.compression : parsedArgs.intermediateCompression );
 		final String n5DeconTilesFloatPath = PathResolver.get( outputImagesPath, "decon-tiles-float.n5" );
 		final N5Writer n5DeconTilesFloatWriter = dataProvider.createN5Writer( n5DeconTilesFloatPath );
 		for ( int ch = 0; ch < inputTileChannels.size(); ++ch )
 			for ( final TileInfo tile : inputTileChannels.get( ch ) )
-				n5DeconTilesFloatWriter.createDataset( channelDeconTilesFloatN5DatasetPaths.get( ch ).get( tile.getIndex() ), tile.getSize(), processingBlockSize, DataType.FLOAT32, new GzipCompression() );
+				n5DeconTilesFloatWriter.createDataset( channelDeconTilesFloatN5DatasetPaths.get( ch ).get( tile.getIndex() ), tile.getSize(), processingBlockSize, DataType.FLOAT32, floatTilesCompression );
 
 		// create spark context with speculation mode property
 		try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
@@ -256,10 +266,10 @@ public class DeconvolutionSpark
 			) )
 		{
 			// initialize flatfields for each channel
-			final List< RandomAccessiblePairNullable< U, U > > channelFlatfields = new ArrayList<>();
+			final List< FlatfieldField > channelFlatfields = new ArrayList<>();
 			for ( final String channelPath : parsedArgs.inputChannelsPaths )
-				channelFlatfields.add( FlatfieldCorrection.loadCorrectionImages( dataProvider, channelPath, inputTileChannels.get( 0 )[ 0 ].numDimensions() ) );
-			final Broadcast< List< RandomAccessiblePairNullable< U, U > > > broadcastedChannelFlatfields = sparkContext.broadcast( channelFlatfields );
+				channelFlatfields.add( FlatfieldCorrection.loadFlatfieldField( dataProvider, channelPath ) );
+			final Broadcast< List< FlatfieldField > > broadcastedChannelFlatfields = sparkContext.broadcast( channelFlatfields );
 
 			sparkContext.parallelize( channelIndicesAndTileBlocks, Math.min( channelIndicesAndTileBlocks.size(), MAX_PARTITIONS ) ).foreach( tileBlockAndChannelIndex ->
 				{
@@ -283,12 +293,14 @@ public class DeconvolutionSpark
 
 					// apply flatfield correction
 					final RandomAccessibleInterval< FloatType > sourceImgFloat;
-					final RandomAccessiblePairNullable< U, U > flatfield = broadcastedChannelFlatfields.value().get( channelIndex );
+					final FlatfieldField flatfield = broadcastedChannelFlatfields.value().get( channelIndex );
 					if ( flatfield != null )
 					{
-						final FlatfieldCorrectedRandomAccessible< FloatType, U > flatfieldCorrectedTileImg = new FlatfieldCorrectedRandomAccessible<>( tileImgFloat, flatfield.toRandomAccessiblePair() );
-						final RandomAccessibleInterval< U > correctedImg = Views.interval( flatfieldCorrectedTileImg, tileImgFloat );
-						sourceImgFloat = Converters.convert( correctedImg, new RealConverter<>(), new FloatType() );
+						final FlatfieldCorrectedRandomAccessible< FloatType, FloatType > flatfieldCorrectedTileImg = new FlatfieldCorrectedRandomAccessible<>(
+								tileImgFloat,
+								flatfield.getCorrectionImages( tileImgFloat.numDimensions() ).toRandomAccessiblePair()
+							);
+						sourceImgFloat = Views.interval( flatfieldCorrectedTileImg, tileImgFloat );
 					}
 					else
 					{
@@ -376,6 +388,7 @@ public class DeconvolutionSpark
 		if ( !parsedArgs.exportAsFloat )
 		{
 			System.out.println( "Need to convert data from float to " + inputImageType + ", collecting histogram of the resulting decon stack for each channel..." );
+			final String outputCompression = parsedArgs.compression;
 
 			// create the spark context again, this time without the speculation mode property
 			try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
@@ -470,7 +483,7 @@ public class DeconvolutionSpark
 						// save the converted decon tile image as an N5 dataset
 						final N5Writer localN5DeconTilesWriter = localDataProvider.createN5Writer( n5DeconTilesPath );
 						final String outputDatasetPath = channelDeconTilesConvertedN5DatasetPaths.get( channelIndex ).get( deconTileFloat.getIndex() );
-						N5Utils.save( convertedDeconTileImg, localN5DeconTilesWriter, outputDatasetPath, processingBlockSize, new GzipCompression() );
+						N5Utils.save( convertedDeconTileImg, localN5DeconTilesWriter, outputDatasetPath, processingBlockSize, N5CompressionFactory.create( outputCompression ) );
 
 						// delete intermediate 32-bit decon tile N5 dataset
 						final N5Writer localN5DeconTilesFloatWriter = localDataProvider.createN5Writer( n5DeconTilesFloatPath );
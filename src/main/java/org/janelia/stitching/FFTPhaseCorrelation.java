@@ -0,0 +1,874 @@
+package org.janelia.stitching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+
+import org.janelia.util.concurrent.MultithreadedExecutor;
+
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+import mpicbg.imglib.algorithm.fft.custom.PhaseCorrelationPeak;
+import mpicbg.imglib.custom.OffsetConverter;
+import mpicbg.imglib.custom.PointValidator;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Phase correlation of two imglib2 images operating directly on primitive float arrays.
+ * Behaves like {@link mpicbg.imglib.algorithm.fft.custom.PhaseCorrelation}: both images are extended by ~10% with mirroring and a smooth fade-out,
+ * padded to a fast FFT size, and the highest peaks of the phase correlation matrix are verified with cross correlation.
+ *
+ * FFT plans and all scratch buffers are cached per thread and keyed by the padded size,
+ * so that processing subsequent pairs of the same overlap size does not allocate large arrays.
+ * A workspace is dropped from the cache once its buffers exceed the size limit.
+ * The phase correlation matrix is stored in the cached buffer and remains valid only until the next call to {@link #process()} on the same thread.
+ */
+public class FFTPhaseCorrelation
+{
+	private static final float NORMALIZATION_THRESHOLD = 1e-5f;
+	private static final double RELATIVE_IMAGE_EXTENSION = 0.1;
+
+	private static final int MAX_CACHED_WORKSPACES = 2;
+	private static final long MAX_CACHED_WORKSPACE_BYTES = 512L * 1024 * 1024;
+
+	private static final ThreadLocal< Map< String, Workspace > > workspaces = ThreadLocal.withInitial( () ->
+		new LinkedHashMap< String, Workspace >( 4, 0.75f, true )
+		{
+			private static final long serialVersionUID = 3049863620893411683L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< String, Workspace > eldest )
+			{
+				return size() > MAX_CACHED_WORKSPACES;
+			}
+		} );
+
+	/**
+	 * Holds FFT plans and buffers for a particular padded size.
+	 */
+	static class Workspace
+	{
+		final int[] paddedSize;
+		final int numRealElements, numComplexElements;
+		final int[] complexStrides;
+
+		final FftReal fftReal;
+		final FftComplex[] fftComplex;
+
+		final float[] real;
+		final float[] complex1, complex2;
+		final float[] realLine, complexLine, complexLineIn, complexLineOut;
+
+		float[] image1 = new float[ 0 ], image2 = new float[ 0 ];
+		double[] integralSum1 = new double[ 0 ], integralSumSquares1 = new double[ 0 ];
+		double[] integralSum2 = new double[ 0 ], integralSumSquares2 = new double[ 0 ];
+
+		Workspace( final int[] paddedSize )
+		{
+			this.paddedSize = paddedSize.clone();
+			final int n = paddedSize.length;
+
+			final int halfSize = paddedSize[ 0 ] / 2 + 1;
+			int numReal = 1, numComplex = 1, maxSize = 0;
+			complexStrides = new int[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				complexStrides[ d ] = numComplex;
+				numReal *= paddedSize[ d ];
+				numComplex *= ( d == 0 ? halfSize : paddedSize[ d ] );
+				maxSize = Math.max( paddedSize[ d ], maxSize );
+			}
+			numRealElements = numReal;
+			numComplexElements = numComplex;
+
+			fftReal = new FftReal( paddedSize[ 0 ] );
+			fftComplex = new FftComplex[ n ];
+			for ( int d = 1; d < n; ++d )
+				fftComplex[ d ] = new FftComplex( paddedSize[ d ] );
+
+			real = new float[ numRealElements ];
+			complex1 = new float[ numComplexElements * 2 ];
+			complex2 = new float[ numComplexElements * 2 ];
+			realLine = new float[ paddedSize[ 0 ] ];
+			complexLine = new float[ halfSize * 2 ];
+			complexLineIn = new float[ maxSize * 2 ];
+			complexLineOut = new float[ maxSize * 2 ];
+		}
+
+		/**
+		 * @return total size of all buffers, including the image copies and the integral tables that grow with the processed images
+		 */
+		long sizeInBytes()
+		{
+			final long floats = ( long ) real.length + complex1.length + complex2.length
+					+ realLine.length + complexLine.length + complexLineIn.length + complexLineOut.length
+					+ image1.length + image2.length;
+			final long doubles = ( long ) integralSum1.length + integralSumSquares1.length + integralSum2.length + integralSumSquares2.length;
+			return floats * Float.BYTES + doubles * Double.BYTES;
+		}
+
+		void ensureImageCapacity( final int size1, final int size2 )
+		{
+			if ( image1.length < size1 )
+				image1 = new float[ size1 ];
+			if ( image2.length < size2 )
+				image2 = new float[ size2 ];
+		}
+
+		void ensureIntegralCapacity( final int size1, final int size2 )
+		{
+			if ( integralSum1.length < size1 )
+			{
+				integralSum1 = new double[ size1 ];
+				integralSumSquares1 = new double[ size1 ];
+			}
+			if ( integralSum2.length < size2 )
+			{
+				integralSum2 = new double[ size2 ];
+				integralSumSquares2 = new double[ size2 ];
+			}
+		}
+	}
+
+	private final RandomAccessibleInterval< FloatType > img1, img2;
+	private final int numDimensions;
+	private int numPeaks;
+	private boolean verifyWithCrossCorrelation;
+	private int[] minOverlapPx;
+
+	private PointValidator searchRadiusPointValidator;
+	private OffsetConverter offsetConverter;
+
+	private int numThreads = 1;
+	private int numVerifiedPeaks;
+	private long verificationTimeNanos;
+	private boolean timeLegacyVerification;
+	private long legacyVerificationTimeNanos;
+
+	private Workspace workspace;
+	private int[] dimensions1, dimensions2;
+	private List< PhaseCorrelationPeak > phaseCorrelationPeaks;
+
+	public FFTPhaseCorrelation( final RandomAccessibleInterval< FloatType > img1, final RandomAccessibleInterval< FloatType > img2, final int numPeaks, final boolean verifyWithCrossCorrelation )
+	{
+		if ( img1.numDimensions() != img2.numDimensions() )
+			throw new IllegalArgumentException( "Dimensionality of images is not the same" );
+
+		this.img1 = img1;
+		this.img2 = img2;
+		this.numPeaks = numPeaks;
+		this.verifyWithCrossCorrelation = verifyWithCrossCorrelation;
+		this.numDimensions = img1.numDimensions();
+
+		minOverlapPx = new int[ numDimensions ];
+		Arrays.fill( minOverlapPx, 3 );
+	}
+
+	public FFTPhaseCorrelation( final RandomAccessibleInterval< FloatType > img1, final RandomAccessibleInterval< FloatType > img2 )
+	{
+		this( img1, img2, 5, true );
+	}
+
+	public void setInvestigateNumPeaks( final int numPeaks ) { this.numPeaks = numPeaks; }
+	public void setVerifyWithCrossCorrelation( final boolean verifyWithCrossCorrelation ) { this.verifyWithCrossCorrelation = verifyWithCrossCorrelation; }
+	public void setMinimalPixelOverlap( final int[] minOverlapPx ) { this.minOverlapPx = minOverlapPx.clone(); }
+	public void setSearchRadiusPointValidator( final PointValidator searchRadiusPointValidator ) { this.searchRadiusPointValidator = searchRadiusPointValidator; }
+	public void setOffsetConverter( final OffsetConverter offsetConverter ) { this.offsetConverter = offsetConverter; }
+	public void setNumThreads( final int numThreads ) { this.numThreads = numThreads; }
+
+	/**
+	 * If set, the candidate shifts are additionally verified with {@link #testCrossCorrelation(int[], float[], int[], float[], int[], int[], long[])}
+	 * (without summed-area tables) using the same number of threads, and the time is reported by {@link #getLegacyVerificationTimeNanos()}.
+	 * The results of this second verification are discarded.
+	 */
+	public void setTimeLegacyVerification( final boolean timeLegacyVerification ) { this.timeLegacyVerification = timeLegacyVerification; }
+
+	/**
+	 * @return number of candidate shifts evaluated with cross correlation during the last call to {@link #process()}
+	 */
+	public int getNumVerifiedPeaks() { return numVerifiedPeaks; }
+
+	/**
+	 * @return time spent on verifying the candidate shifts with cross correlation during the last call to {@link #process()}
+	 */
+	public long getVerificationTimeNanos() { return verificationTimeNanos; }
+
+	/**
+	 * @return time spent on verifying the same candidate shifts without summed-area tables during the last call to {@link #process()},
+	 * 			or 0 if it has not been requested with {@link #setTimeLegacyVerification(boolean)}
+	 */
+	public long getLegacyVerificationTimeNanos() { return legacyVerificationTimeNanos; }
+
+	/**
+	 * @return peaks sorted in ascending order (the best peak is the last one)
+	 */
+	public List< PhaseCorrelationPeak > getAllShifts() { return phaseCorrelationPeaks; }
+	public PhaseCorrelationPeak getShift() { return phaseCorrelationPeaks.get( phaseCorrelationPeaks.size() - 1 ); }
+	public int[] getPhaseCorrelationMatrixSize() { return workspace.paddedSize.clone(); }
+
+	public void process()
+	{
+		dimensions1 = Intervals.dimensionsAsIntArray( img1 );
+		dimensions2 = Intervals.dimensionsAsIntArray( img2 );
+
+		final int[] paddedSize = getPaddedSize( dimensions1, dimensions2 );
+		workspace = getWorkspace( paddedSize );
+
+		final int[] originalOffset1 = new int[ numDimensions ], originalOffset2 = new int[ numDimensions ];
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			originalOffset1[ d ] = ( paddedSize[ d ] - dimensions1[ d ] ) / 2;
+			originalOffset2[ d ] = ( paddedSize[ d ] - dimensions2[ d ] ) / 2;
+		}
+
+		workspace.ensureImageCapacity( ( int ) Intervals.numElements( img1 ), ( int ) Intervals.numElements( img2 ) );
+		copyToArray( img1, workspace.image1 );
+		copyToArray( img2, workspace.image2 );
+
+		fillPadded( workspace.image1, dimensions1, originalOffset1, workspace.real, paddedSize );
+		forwardFFT( workspace, workspace.complex1 );
+
+		fillPadded( workspace.image2, dimensions2, originalOffset2, workspace.real, paddedSize );
+		forwardFFT( workspace, workspace.complex2 );
+
+		normalizeAndMultiplyByConjugate( workspace.complex1, workspace.complex2 );
+		inverseFFT( workspace, workspace.complex1 );
+
+		final int[] offset = new int[ numDimensions ];
+		for ( int d = 0; d < numDimensions; ++d )
+			offset[ d ] = originalOffset2[ d ] - originalOffset1[ d ];
+
+		phaseCorrelationPeaks = extractPhaseCorrelationPeaks( workspace.real, paddedSize, offset );
+
+		if ( verifyWithCrossCorrelation )
+			verifyWithCrossCorrelation();
+
+		// the image and integral buffers may have grown beyond the cache budget
+		if ( workspace.sizeInBytes() > MAX_CACHED_WORKSPACE_BYTES )
+			workspaces.get().remove( Arrays.toString( paddedSize ), workspace );
+	}
+
+	/**
+	 * Fits a quadratic function into the 3^n neighborhood of the peak in the phase correlation matrix.
+	 *
+	 * @return subpixel offset of the peak in the first n elements and the interpolated peak value in the last element
+	 */
+	public double[] getSubpixelPeakOffset( final PhaseCorrelationPeak peak )
+	{
+		final int n = numDimensions;
+		final int[] size = workspace.paddedSize;
+		final float[] pcm = workspace.real;
+		final int[] position = peak.getOriginalInvPCMPosition();
+
+		final int[] pos = new int[ n ];
+		final double value = valueAt( pcm, size, position, pos, -1, 0, -1, 0 );
+		final double[] gradient = new double[ n ];
+		final double[][] hessian = new double[ n ][ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			final double next = valueAt( pcm, size, position, pos, d, 1, -1, 0 );
+			final double prev = valueAt( pcm, size, position, pos, d, -1, -1, 0 );
+			gradient[ d ] = ( next - prev ) / 2;
+			hessian[ d ][ d ] = next - 2 * value + prev;
+
+			for ( int e = d + 1; e < n; ++e )
+			{
+				hessian[ d ][ e ] = hessian[ e ][ d ] = (
+						valueAt( pcm, size, position, pos, d, 1, e, 1 ) -
+						valueAt( pcm, size, position, pos, d, 1, e, -1 ) -
+						valueAt( pcm, size, position, pos, d, -1, e, 1 ) +
+						valueAt( pcm, size, position, pos, d, -1, e, -1 ) ) / 4;
+			}
+		}
+
+		final double[] subpixelOffset = solve( hessian, gradient );
+		final double[] result = new double[ n + 1 ];
+		double interpolatedValue = value;
+		for ( int d = 0; d < n; ++d )
+		{
+			// the offset is the negated solution of H * x = g
+			result[ d ] = subpixelOffset == null ? 0 : -subpixelOffset[ d ];
+			interpolatedValue += 0.5 * gradient[ d ] * result[ d ];
+		}
+		result[ n ] = interpolatedValue;
+		return result;
+	}
+
+	/**
+	 * Computes cross correlation between two images for a given shift (same as in {@link mpicbg.imglib.algorithm.fft.custom.PhaseCorrelation}).
+	 */
+	public static double testCrossCorrelation(
+			final int[] shift,
+			final float[] image1, final int[] dimensions1,
+			final float[] image2, final int[] dimensions2,
+			final int[] minOverlapPx,
+			final long[] numPixels )
+	{
+		final int n = dimensions1.length;
+		final int[] overlapSize = new int[ n ], offset1 = new int[ n ], offset2 = new int[ n ];
+		long numPx = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( shift[ d ] >= 0 )
+			{
+				// they are not overlapping (this might happen due to fft zeropadding and extension)
+				if ( shift[ d ] >= dimensions1[ d ] )
+					return noOverlap( numPixels );
+
+				offset1[ d ] = shift[ d ];
+				offset2[ d ] = 0;
+				overlapSize[ d ] = Math.min( dimensions1[ d ] - shift[ d ], dimensions2[ d ] );
+			}
+			else
+			{
+				offset1[ d ] = 0;
+				offset2[ d ] = -shift[ d ];
+				overlapSize[ d ] = Math.min( dimensions2[ d ] + shift[ d ], dimensions1[ d ] );
+			}
+
+			if ( overlapSize[ d ] < minOverlapPx[ d ] )
+				return noOverlap( numPixels );
+
+			numPx *= overlapSize[ d ];
+		}
+
+		if ( numPixels != null && numPixels.length > 0 )
+			numPixels[ 0 ] = numPx;
+
+		// iterate over the overlap line by line
+		final int lineLength = overlapSize[ 0 ];
+		final int numLines = ( int ) ( numPx / lineLength );
+		final int[] linePosition = new int[ n ];
+
+		double sum1 = 0, sum2 = 0;
+		for ( int line = 0; line < numLines; ++line )
+		{
+			final int start1 = IntegralCrossCorrelation.lineStart( linePosition, offset1, dimensions1 ), start2 = IntegralCrossCorrelation.lineStart( linePosition, offset2, dimensions2 );
+			for ( int x = 0; x < lineLength; ++x )
+			{
+				sum1 += image1[ start1 + x ];
+				sum2 += image2[ start2 + x ];
+			}
+			IntegralCrossCorrelation.nextLine( linePosition, overlapSize );
+		}
+
+		final double avg1 = sum1 / numPx, avg2 = sum2 / numPx;
+
+		Arrays.fill( linePosition, 0 );
+		double var1 = 0, var2 = 0, coVar = 0;
+		for ( int line = 0; line < numLines; ++line )
+		{
+			final int start1 = IntegralCrossCorrelation.lineStart( linePosition, offset1, dimensions1 ), start2 = IntegralCrossCorrelation.lineStart( linePosition, offset2, dimensions2 );
+			for ( int x = 0; x < lineLength; ++x )
+			{
+				final double dist1 = image1[ start1 + x ] - avg1;
+				final double dist2 = image2[ start2 + x ] - avg2;
+				coVar += dist1 * dist2;
+				var1 += dist1 * dist1;
+				var2 += dist2 * dist2;
+			}
+			IntegralCrossCorrelation.nextLine( linePosition, overlapSize );
+		}
+
+		var1 /= numPx;
+		var2 /= numPx;
+		coVar /= numPx;
+
+		final double stDev1 = Math.sqrt( var1 ), stDev2 = Math.sqrt( var2 );
+
+		// all pixels had the same color....
+		if ( stDev1 == 0 || stDev2 == 0 )
+			return ( stDev1 == stDev2 && avg1 == avg2 ) ? 1 : 0;
+
+		return coVar / ( stDev1 * stDev2 );
+	}
+
+	private void verifyWithCrossCorrelation()
+	{
+		final int[] size = workspace.paddedSize;
+		final List< PhaseCorrelationPeak > newPeakList = new ArrayList<>();
+
+		// get all the different possibilities
+		final int numPossibilities = 1 << numDimensions;
+		for ( final PhaseCorrelationPeak peak : phaseCorrelationPeaks )
+		{
+			for ( int i = 0; i < numPossibilities; ++i )
+			{
+				final int[] peakPosition = peak.getPosition();
+				for ( int d = 0; d < numDimensions; ++d )
+					if ( ( i & ( 1 << d ) ) != 0 )
+						peakPosition[ d ] += ( peakPosition[ d ] < 0 ? size[ d ] : -size[ d ] );
+
+				if ( searchRadiusPointValidator != null && !fallsIntoConfidenceInterval( peakPosition ) )
+					continue;
+
+				final PhaseCorrelationPeak newPeak = new PhaseCorrelationPeak( peakPosition, peak.getPhaseCorrelationPeak() );
+				newPeak.setOriginalInvPCMPosition( peak.getOriginalInvPCMPosition() );
+				newPeakList.add( newPeak );
+			}
+		}
+
+		final long verificationStart = System.nanoTime();
+
+		workspace.ensureIntegralCapacity( IntegralCrossCorrelation.IntegralImage.numTableElements( dimensions1 ), IntegralCrossCorrelation.IntegralImage.numTableElements( dimensions2 ) );
+		final IntegralCrossCorrelation crossCorrelation = new IntegralCrossCorrelation(
+				workspace.image1, dimensions1, workspace.image2, dimensions2,
+				workspace.integralSum1, workspace.integralSumSquares1, workspace.integralSum2, workspace.integralSumSquares2
+			);
+
+		final IntConsumer verifyPeak = i ->
+		{
+			final PhaseCorrelationPeak peak = newPeakList.get( i );
+			final long[] numPixels = new long[ 1 ];
+			peak.setCrossCorrelationPeak( ( float ) crossCorrelation.testCrossCorrelation( peak.getPosition(), minOverlapPx, numPixels ) );
+			peak.setNumPixels( numPixels[ 0 ] );
+
+			// sort by cross correlation peak
+			peak.setSortPhaseCorrelation( false );
+		};
+
+		forEachPeak( verifyPeak, newPeakList.size() );
+
+		numVerifiedPeaks = newPeakList.size();
+		verificationTimeNanos = System.nanoTime() - verificationStart;
+
+		legacyVerificationTimeNanos = 0;
+		if ( timeLegacyVerification )
+		{
+			final long legacyVerificationStart = System.nanoTime();
+			final double[] legacyCrossCorrelations = new double[ newPeakList.size() ];
+			forEachPeak( i -> legacyCrossCorrelations[ i ] = testCrossCorrelation( newPeakList.get( i ).getPosition(), workspace.image1, dimensions1, workspace.image2, dimensions2, minOverlapPx, null ), newPeakList.size() );
+			legacyVerificationTimeNanos = System.nanoTime() - legacyVerificationStart;
+		}
+
+		Collections.sort( newPeakList );
+		phaseCorrelationPeaks = newPeakList;
+	}
+
+	private void forEachPeak( final IntConsumer peakConsumer, final int numPeaks )
+	{
+		if ( numThreads > 1 && numPeaks > 1 )
+		{
+			try ( final MultithreadedExecutor threadPool = new MultithreadedExecutor( Math.min( numThreads, numPeaks ) ) )
+			{
+				threadPool.run( peakConsumer, numPeaks );
+			}
+			catch ( final InterruptedException | ExecutionException e )
+			{
+				throw new RuntimeException( "Cannot verify phase correlation peaks: " + e.getMessage(), e );
+			}
+		}
+		else
+		{
+			for ( int i = 0; i < numPeaks; ++i )
+				peakConsumer.accept( i );
+		}
+	}
+
+	private List< PhaseCorrelationPeak > extractPhaseCorrelationPeaks( final float[] pcm, final int[] size, final int[] offset )
+	{
+		final int n = size.length;
+		final int[] strides = new int[ n ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < n; ++d )
+			strides[ d ] = strides[ d - 1 ] * size[ d - 1 ];
+
+		// offsets of the neighboring pixels in the 3^n neighborhood (excluding the center)
+		final int numNeighbors = ( int ) Math.pow( 3, n ) - 1;
+		final int[][] neighborOffsets = new int[ numNeighbors ][ n ];
+		for ( int i = 0, k = 0; k < numNeighbors + 1; ++k )
+		{
+			final int[] neighborOffset = new int[ n ];
+			boolean isCenter = true;
+			for ( int d = 0, v = k; d < n; ++d, v /= 3 )
+			{
+				neighborOffset[ d ] = v % 3 - 1;
+				isCenter &= ( neighborOffset[ d ] == 0 );
+			}
+			if ( !isCenter )
+				neighborOffsets[ i++ ] = neighborOffset;
+		}
+
+		final float[] peakValues = new float[ numPeaks ];
+		final int[][] peakPositions = new int[ numPeaks ][];
+		final int[][] peakOriginalPositions = new int[ numPeaks ][];
+		Arrays.fill( peakValues, -Float.MAX_VALUE );
+
+		final int[] position = new int[ n ];
+		for ( int index = 0; index < pcm.length; ++index )
+		{
+			final float value = pcm[ index ];
+
+			boolean isMax = true;
+			for ( int i = 0; i < numNeighbors && isMax; ++i )
+			{
+				int neighborIndex = 0;
+				for ( int d = 0; d < n; ++d )
+				{
+					int p = position[ d ] + neighborOffsets[ i ][ d ];
+					if ( p < 0 )
+						p += size[ d ];
+					else if ( p >= size[ d ] )
+						p -= size[ d ];
+					neighborIndex += p * strides[ d ];
+				}
+				isMax = ( pcm[ neighborIndex ] <= value );
+			}
+
+			if ( isMax )
+			{
+				int lowestValueIndex = 0;
+				for ( int i = 1; i < numPeaks; ++i )
+					if ( peakValues[ i ] < peakValues[ lowestValueIndex ] )
+						lowestValueIndex = i;
+
+				// if this value is bigger than the lowest entry we replace it
+				if ( value > peakValues[ lowestValueIndex ] )
+				{
+					final int[] peakPosition = new int[ n ];
+					for ( int d = 0; d < n; ++d )
+					{
+						peakPosition[ d ] = ( ( position[ d ] + offset[ d ] ) % size[ d ] + size[ d ] ) % size[ d ];
+						if ( peakPosition[ d ] > size[ d ] / 2 )
+							peakPosition[ d ] -= size[ d ];
+					}
+
+					if ( searchRadiusPointValidator == null || anyPossibilityFallsIntoConfidenceInterval( peakPosition, size ) )
+					{
+						peakValues[ lowestValueIndex ] = value;
+						peakPositions[ lowestValueIndex ] = peakPosition;
+						peakOriginalPositions[ lowestValueIndex ] = position.clone();
+					}
+				}
+			}
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++position[ d ] < size[ d ] )
+					break;
+				position[ d ] = 0;
+			}
+		}
+
+		final List< PhaseCorrelationPeak > peakList = new ArrayList<>();
+		for ( int i = 0; i < numPeaks; ++i )
+		{
+			if ( peakPositions[ i ] != null )
+			{
+				final PhaseCorrelationPeak peak = new PhaseCorrelationPeak( peakPositions[ i ], peakValues[ i ] );
+				peak.setOriginalInvPCMPosition( peakOriginalPositions[ i ] );
+				peakList.add( peak );
+			}
+		}
+		Collections.sort( peakList );
+		return peakList;
+	}
+
+	private boolean anyPossibilityFallsIntoConfidenceInterval( final int[] position, final int[] size )
+	{
+		final int numPossibilities = 1 << position.length;
+		final int[] peakPosition = new int[ position.length ];
+		for ( int i = 0; i < numPossibilities; ++i )
+		{
+			for ( int d = 0; d < position.length; ++d )
+				peakPosition[ d ] = position[ d ] + ( ( i & ( 1 << d ) ) == 0 ? 0 : ( position[ d ] < 0 ? size[ d ] : -size[ d ] ) );
+
+			if ( fallsIntoConfidenceInterval( peakPosition ) )
+				return true;
+		}
+		return false;
+	}
+
+	private boolean fallsIntoConfidenceInterval( final int[] roiOffset )
+	{
+		final long[] tileOffset = offsetConverter.roiOffsetToTileOffset( roiOffset );
+		final double[] globalPosition = offsetConverter.tileOffsetToGlobalPosition( tileOffset );
+		return searchRadiusPointValidator.testPoint( globalPosition );
+	}
+
+	/**
+	 * Picks fast FFT sizes that fit both images extended by {@link #RELATIVE_IMAGE_EXTENSION}.
+	 * The first dimension uses the real-to-complex transform that requires even size.
+	 */
+	static int[] getPaddedSize( final int[] dimensions1, final int[] dimensions2 )
+	{
+		final int[] paddedSize = new int[ dimensions1.length ];
+		for ( int d = 0; d < paddedSize.length; ++d )
+		{
+			final int maxDim = Math.max( dimensions1[ d ], dimensions2[ d ] );
+			final int extendedDim = maxDim + Math.max( ( int ) Math.round( maxDim * RELATIVE_IMAGE_EXTENSION ), 2 );
+			paddedSize[ d ] = ( d == 0 ? FftReal.nfftFast( extendedDim ) : FftComplex.nfftFast( extendedDim ) );
+		}
+		return paddedSize;
+	}
+
+	private static Workspace getWorkspace( final int[] paddedSize )
+	{
+		final String key = Arrays.toString( paddedSize );
+		final Map< String, Workspace > threadWorkspaces = workspaces.get();
+		Workspace workspace = threadWorkspaces.get( key );
+		if ( workspace == null )
+		{
+			workspace = new Workspace( paddedSize );
+			if ( workspace.sizeInBytes() <= MAX_CACHED_WORKSPACE_BYTES )
+				threadWorkspaces.put( key, workspace );
+		}
+		return workspace;
+	}
+
+	private static void copyToArray( final RandomAccessibleInterval< FloatType > img, final float[] array )
+	{
+		final Cursor< FloatType > cursor = Views.flatIterable( img ).cursor();
+		for ( int i = 0; cursor.hasNext(); ++i )
+			array[ i ] = cursor.next().get();
+	}
+
+	/**
+	 * Places the image into the padded array at the given offset. The remaining space is filled by mirroring the image
+	 * and fading it out towards the borders of the padded array with a cosine window, so that there are no discontinuities in the periodic FFT space.
+	 */
+	private static void fillPadded( final float[] image, final int[] dimensions, final int[] originalOffset, final float[] padded, final int[] paddedSize )
+	{
+		final int n = dimensions.length;
+
+		final int[][] sourceIndex = new int[ n ][];
+		final float[][] weights = new float[ n ][];
+		final int[] sourceStrides = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			sourceStrides[ d ] = d == 0 ? 1 : sourceStrides[ d - 1 ] * dimensions[ d - 1 ];
+			sourceIndex[ d ] = new int[ paddedSize[ d ] ];
+			weights[ d ] = new float[ paddedSize[ d ] ];
+
+			final int fadeMin = originalOffset[ d ], fadeMax = paddedSize[ d ] - originalOffset[ d ] - dimensions[ d ];
+			for ( int p = 0; p < paddedSize[ d ]; ++p )
+			{
+				final int s = p - originalOffset[ d ];
+				final int distance, fadeDistance;
+				if ( s < 0 )
+				{
+					distance = -s;
+					fadeDistance = fadeMin;
+				}
+				else if ( s >= dimensions[ d ] )
+				{
+					distance = s - dimensions[ d ] + 1;
+					fadeDistance = fadeMax;
+				}
+				else
+				{
+					distance = 0;
+					fadeDistance = 1;
+				}
+
+				sourceIndex[ d ][ p ] = mirror( s, dimensions[ d ] ) * sourceStrides[ d ];
+				weights[ d ][ p ] = distance == 0 ? 1 : ( float ) ( 0.5 * ( 1 + Math.cos( Math.PI * distance / ( fadeDistance + 1 ) ) ) );
+			}
+		}
+
+		final int[] position = new int[ n ];
+		for ( int index = 0; index < padded.length; ++index )
+		{
+			int source = 0;
+			float weight = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				source += sourceIndex[ d ][ position[ d ] ];
+				weight *= weights[ d ][ position[ d ] ];
+			}
+			padded[ index ] = weight == 0 ? 0 : image[ source ] * weight;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++position[ d ] < paddedSize[ d ] )
+					break;
+				position[ d ] = 0;
+			}
+		}
+	}
+
+	private static int mirror( int s, final int size )
+	{
+		if ( size == 1 )
+			return 0;
+		final int period = 2 * size - 2;
+		s = ( ( s % period ) + period ) % period;
+		return s < size ? s : period - s;
+	}
+
+	private static void forwardFFT( final Workspace ws, final float[] complex )
+	{
+		final int[] size = ws.paddedSize;
+		final int halfSize = size[ 0 ] / 2 + 1;
+		final int numLines = ws.numRealElements / size[ 0 ];
+
+		// real-to-complex along the first dimension
+		for ( int line = 0; line < numLines; ++line )
+		{
+			System.arraycopy( ws.real, line * size[ 0 ], ws.realLine, 0, size[ 0 ] );
+			ws.fftReal.realToComplex( -1, ws.realLine, ws.complexLine );
+			System.arraycopy( ws.complexLine, 0, complex, line * halfSize * 2, halfSize * 2 );
+		}
+
+		// complex-to-complex along the remaining dimensions
+		for ( int d = 1; d < size.length; ++d )
+			complexToComplex( ws, complex, d, -1 );
+	}
+
+	private static void inverseFFT( final Workspace ws, final float[] complex )
+	{
+		final int[] size = ws.paddedSize;
+		final int halfSize = size[ 0 ] / 2 + 1;
+		final int numLines = ws.numRealElements / size[ 0 ];
+
+		for ( int d = size.length - 1; d >= 1; --d )
+			complexToComplex( ws, complex, d, 1 );
+
+		final float scale = 1.0f / ws.numRealElements;
+		for ( int line = 0; line < numLines; ++line )
+		{
+			System.arraycopy( complex, line * halfSize * 2, ws.complexLine, 0, halfSize * 2 );
+			ws.fftReal.complexToReal( 1, ws.complexLine, ws.realLine );
+			final int offset = line * size[ 0 ];
+			for ( int x = 0; x < size[ 0 ]; ++x )
+				ws.real[ offset + x ] = ws.realLine[ x ] * scale;
+		}
+	}
+
+	private static void complexToComplex( final Workspace ws, final float[] complex, final int d, final int sign )
+	{
+		final int length = ws.paddedSize[ d ];
+		final int stride = ws.complexStrides[ d ];
+		final int numOuter = ws.numComplexElements / ( stride * length );
+		final float[] lineIn = ws.complexLineIn, lineOut = ws.complexLineOut;
+
+		for ( int outer = 0; outer < numOuter; ++outer )
+		{
+			for ( int inner = 0; inner < stride; ++inner )
+			{
+				final int start = outer * stride * length + inner;
+				for ( int i = 0; i < length; ++i )
+				{
+					final int index = ( start + i * stride ) * 2;
+					lineIn[ i * 2 ] = complex[ index ];
+					lineIn[ i * 2 + 1 ] = complex[ index + 1 ];
+				}
+
+				ws.fftComplex[ d ].complexToComplex( sign, lineIn, lineOut );
+
+				for ( int i = 0; i < length; ++i )
+				{
+					final int index = ( start + i * stride ) * 2;
+					complex[ index ] = lineOut[ i * 2 ];
+					complex[ index + 1 ] = lineOut[ i * 2 + 1 ];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Normalizes both spectra and multiplies the first one by the complex conjugate of the second one in place.
+	 */
+	private static void normalizeAndMultiplyByConjugate( final float[] complex1, final float[] complex2 )
+	{
+		for ( int i = 0; i < complex1.length; i += 2 )
+		{
+			final float re1 = complex1[ i ], im1 = complex1[ i + 1 ];
+			final float re2 = complex2[ i ], im2 = complex2[ i + 1 ];
+			final float length1 = ( float ) Math.sqrt( re1 * re1 + im1 * im1 );
+			final float length2 = ( float ) Math.sqrt( re2 * re2 + im2 * im2 );
+
+			if ( length1 < NORMALIZATION_THRESHOLD || length2 < NORMALIZATION_THRESHOLD )
+			{
+				complex1[ i ] = complex1[ i + 1 ] = 0;
+			}
+			else
+			{
+				final float a = re1 / length1, b = im1 / length1;
+				final float c = re2 / length2, e = -im2 / length2;
+				complex1[ i ] = a * c - b * e;
+				complex1[ i + 1 ] = a * e + b * c;
+			}
+		}
+	}
+
+	private static double valueAt( final float[] pcm, final int[] size, final int[] center, final int[] pos, final int d1, final int o1, final int d2, final int o2 )
+	{
+		System.arraycopy( center, 0, pos, 0, center.length );
+		if ( d1 >= 0 )
+			pos[ d1 ] += o1;
+		if ( d2 >= 0 )
+			pos[ d2 ] += o2;
+
+		int index = 0, stride = 1;
+		for ( int d = 0; d < size.length; ++d )
+		{
+			final int p = ( ( pos[ d ] % size[ d ] ) + size[ d ] ) % size[ d ];
+			index += p * stride;
+			stride *= size[ d ];
+		}
+		return pcm[ index ];
+	}
+
+	/**
+	 * Solves a small linear system using Gaussian elimination with partial pivoting.
+	 * @return the solution, or null if the matrix is singular
+	 */
+	private static double[] solve( final double[][] matrix, final double[] rhs )
+	{
+		final int n = rhs.length;
+		final double[][] a = new double[ n ][];
+		for ( int i = 0; i < n; ++i )
+			a[ i ] = Arrays.copyOf( matrix[ i ], n + 1 );
+		for ( int i = 0; i < n; ++i )
+			a[ i ][ n ] = rhs[ i ];
+
+		for ( int col = 0; col < n; ++col )
+		{
+			int pivot = col;
+			for ( int row = col + 1; row < n; ++row )
+				if ( Math.abs( a[ row ][ col ] ) > Math.abs( a[ pivot ][ col ] ) )
+					pivot = row;
+
+			if ( Math.abs( a[ pivot ][ col ] ) < 1e-12 )
+				return null;
+
+			final double[] tmp = a[ col ];
+			a[ col ] = a[ pivot ];
+			a[ pivot ] = tmp;
+
+			for ( int row = col + 1; row < n; ++row )
+			{
+				final double factor = a[ row ][ col ] / a[ col ][ col ];
+				for ( int k = col; k <= n; ++k )
+					a[ row ][ k ] -= factor * a[ col ][ k ];
+			}
+		}
+
+		final double[] x = new double[ n ];
+		for ( int row = n - 1; row >= 0; --row )
+		{
+			double sum = a[ row ][ n ];
+			for ( int k = row + 1; k < n; ++k )
+				sum -= a[ row ][ k ] * x[ k ];
+			x[ row ] = sum / a[ row ][ row ];
+		}
+		return x;
+	}
+
+	private static double noOverlap( final long[] numPixels )
+	{
+		if ( numPixels != null && numPixels.length > 0 )
+			numPixels[ 0 ] = 0;
+		return 0;
+	}
+}
@@ -4,12 +4,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.IntConsumer;
 
 import org.janelia.dataaccess.DataProvider;
 import org.janelia.flatfield.FlatfieldCorrectedRandomAccessible;
+import org.janelia.util.concurrent.MultithreadedExecutor;
 
 import bdv.export.Downsample;
 import net.imglib2.Cursor;
@@ -90,13 +93,30 @@ public class FusionPerformer
 			final Number backgroundValue,
 			final RandomAccessiblePairNullable< U, U > flatfield,
 			final Map< Integer, Set< Integer > > pairwiseConnectionsMap ) throws Exception
+	{
+		return fuseTilesWithinCell( dataProvider, mode, tilesWithinCell, targetInterval, dataType, backgroundValue, flatfield, pairwiseConnectionsMap, 1 );
+	}
+
+	public static <
+		T extends RealType< T > & NativeType< T >,
+		U extends RealType< U > & NativeType< U > >
+	ImagePlusImg< T, ? > fuseTilesWithinCell(
+			final DataProvider dataProvider,
+			final FusionMode mode,
+			final List< TileInfo > tilesWithinCell,
+			final Interval targetInterval,
+			final T dataType,
+			final Number backgroundValue,
+			final RandomAccessiblePairNullable< U, U > flatfield,
+			final Map< Integer, Set< Integer > > pairwiseConnectionsMap,
+			final int numThreads ) throws Exception
 	{
 		switch ( mode )
 		{
 		case MAX_MIN_DISTANCE:
 			return fuseTilesWithinCellUsingMaxMinDistance( dataProvider, tilesWithinCell, targetInterval, dataType, backgroundValue, flatfield, pairwiseConnectionsMap );
 		case BLENDING:
-			return fuseTilesWithinCellUsingBlending( dataProvider, tilesWithinCell, targetInterval, dataType, backgroundValue, flatfield, pairwiseConnectionsMap );
+			return fuseTilesWithinCellUsingBlending( dataProvider, tilesWithinCell, targetInterval, dataType, backgroundValue, flatfield, pairwiseConnectionsMap, numThreads );
 		default:
 			throw new RuntimeException( "Unknown fusion mode" );
 		}
@@ -105,8 +125,7 @@ public class FusionPerformer
 
 	public static <
 		T extends RealType< T > & NativeType< T >,
-		U extends RealType< U > & NativeType< U >,
-		R extends RealType< R > & NativeType< R > >
+		U extends RealType< U > & NativeType< U > >
 	ImagePlusImg< T, ? > fuseTilesWithinCellUsingBlending(
 			final DataProvider dataProvider,
 			final List< TileInfo > tilesWithinCell,
@@ -116,173 +135,441 @@ public class FusionPerformer
 			final RandomAccessiblePairNullable< U, U > flatfield,
 			final Map< Integer, Set< Integer > > pairwiseConnectionsMap ) throws Exception
 	{
-		// initialize helper images for blending fusion strategy
-		final RandomAccessibleInterval< FloatType > weights = ArrayImgs.floats( Intervals.dimensionsAsLongArray( targetInterval ) );
-		final RandomAccessibleInterval< FloatType > values = ArrayImgs.floats( Intervals.dimensionsAsLongArray( targetInterval ) );
+		return fuseTilesWithinCellUsingBlending( dataProvider, tilesWithinCell, targetInterval, dataType, backgroundValue, flatfield, pairwiseConnectionsMap, 1 );
+	}
 
-		// initialize helper image for tile connections when exporting only overlaps
-		final RandomAccessibleInterval< Set< Integer > > tileIndexes;
-		if ( pairwiseConnectionsMap != null )
+	/**
+	 * Fuses the tiles within the cell using blending.
+	 * The weights and weighted values are accumulated in flat float arrays, and the cell is split into slabs along the last dimension
+	 * that are processed on {@code numThreads} threads. Every slab is owned by a single thread, and the tiles are accumulated
+	 * in the same order for every pixel, so the result does not depend on the number of threads.
+	 */
+	public static <
+		T extends RealType< T > & NativeType< T >,
+		U extends RealType< U > & NativeType< U > >
+	ImagePlusImg< T, ? > fuseTilesWithinCellUsingBlending(
+			final DataProvider dataProvider,
+			final List< TileInfo > tilesWithinCell,
+			final Interval targetInterval,
+			final T dataType,
+			final Number backgroundValue,
+			final RandomAccessiblePairNullable< U, U > flatfield,
+			final Map< Integer, Set< Integer > > pairwiseConnectionsMap,
+			final int numThreads ) throws Exception
+	{
+		return fuseUsingBlending(
+				tilesWithinCell,
+				createTileSourceLoader( dataProvider, targetInterval, flatfield ),
+				targetInterval,
+				dataType,
+				backgroundValue,
+				pairwiseConnectionsMap,
+				numThreads
+			);
+	}
+
+	public static <
+		T extends RealType< T > & NativeType< T >,
+		U extends RealType< U > & NativeType< U > >
+	ImagePlusImg< T, ? > fuseTilesWithinCellUsingMaxMinDistance(
+			final DataProvider dataProvider,
+			final List< TileInfo > tilesWithinCell,
+			final Interval targetInterval,
+			final T dataType,
+			final Number backgroundValue,
+			final RandomAccessiblePairNullable< U, U > flatfield,
+			final Map< Integer, Set< Integer > > pairwiseConnectionsMap ) throws Exception
+	{
+		return fuseUsingMaxMinDistance(
+				tilesWithinCell,
+				createTileSourceLoader( dataProvider, targetInterval, flatfield ),
+				targetInterval,
+				dataType,
+				backgroundValue,
+				pairwiseConnectionsMap
+			);
+	}
+
+	/**
+	 * Extracts the contribution of a single tile to the given cell for tile-centric fusion.
+	 *
+	 * @param rawTile
+	 * 			tile image (can be shared across multiple cells so the tile is loaded only once)
+	 * @param order
+	 * 			position of the tile in the tile configuration that defines the order of accumulation
+	 */
+	public static <
+		T extends RealType< T > & NativeType< T >,
+		U extends RealType< U > & NativeType< U >,
+		R extends RealType< R > & NativeType< R > >
+	TileContribution getTileContribution(
+			final RandomAccessibleInterval< T > rawTile,
+			final TileInfo tile,
+			final int order,
+			final Interval targetInterval,
+			final RandomAccessiblePairNullable< U, U > flatfield )
+	{
+		final TileSource< R > tileSource = createTileSource( rawTile, tile, targetInterval, flatfield );
+		final float[] values = new float[ ( int ) Intervals.numElements( tileSource.intersection ) ];
+		final Cursor< R > sourceCursor = Views.flatIterable( tileSource.source ).cursor();
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = sourceCursor.next().getRealFloat();
+		return new TileContribution( tile, order, tileSource.intersection, values );
+	}
+
+	/**
+	 * Fuses the cell from contributions of individual tiles obtained with {@link #getTileContribution(RandomAccessibleInterval, TileInfo, int, Interval, RandomAccessiblePairNullable)}.
+	 * The contributions are accumulated in the order of the tiles, so the result is the same as of {@link #fuseTilesWithinCell(DataProvider, FusionMode, List, Interval, NativeType, Number, RandomAccessiblePairNullable, Map, int)}.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ImagePlusImg< T, ? > fuseTileContributionsWithinCell(
+			final FusionMode mode,
+			final List< TileContribution > contributions,
+			final Interval targetInterval,
+			final T dataType,
+			final Number backgroundValue,
+			final Map< Integer, Set< Integer > > pairwiseConnectionsMap,
+			final int numThreads ) throws Exception
+	{
+		final List< TileContribution > sortedContributions = new ArrayList<>( contributions );
+		Collections.sort( sortedContributions, ( a, b ) -> Integer.compare( a.getOrder(), b.getOrder() ) );
+
+		final List< TileInfo > tiles = new ArrayList<>();
+		final Map< TileInfo, TileContribution > tileContributions = new IdentityHashMap<>();
+		for ( final TileContribution contribution : sortedContributions )
 		{
-			final int numElements = ( int ) Intervals.numElements( targetInterval );
-			final List< Set< Integer > > tileIndexesList = new ArrayList<>( numElements );
-			for ( int i = 0; i < numElements; ++i )
-				tileIndexesList.add( new HashSet<>() );
-			tileIndexes = new ListImg<>( tileIndexesList, Intervals.dimensionsAsLongArray( targetInterval ) );
+			tiles.add( contribution.getTile() );
+			tileContributions.put( contribution.getTile(), contribution );
 		}
-		else
+
+		final TileSourceLoader< FloatType > loader = tile ->
+		{
+			final TileContribution contribution = tileContributions.get( tile );
+			return new TileSource<>( tile, getOffset( tile, targetInterval ), contribution.getIntersection(), contribution.getValues() );
+		};
+
+		switch ( mode )
 		{
-			tileIndexes = null;
+		case MAX_MIN_DISTANCE:
+			return fuseUsingMaxMinDistance( tiles, loader, targetInterval, dataType, backgroundValue, pairwiseConnectionsMap );
+		case BLENDING:
+			return fuseUsingBlending( tiles, loader, targetInterval, dataType, backgroundValue, pairwiseConnectionsMap, numThreads );
+		default:
+			throw new RuntimeException( "Unknown fusion mode" );
 		}
+	}
 
-		for ( final TileInfo tile : tilesWithinCell )
+	/**
+	 * Pixel values of a tile within its intersection with the target interval.
+	 */
+	private static class TileSource< R extends RealType< R > >
+	{
+		final TileInfo tile;
+		final double[] offset;
+		final Interval intersection;
+		final RandomAccessibleInterval< R > source;
+
+		TileSource( final TileInfo tile, final double[] offset, final Interval intersection, final RandomAccessibleInterval< R > source )
+		{
+			this.tile = tile;
+			this.offset = offset;
+			this.intersection = intersection;
+			this.source = source;
+		}
+	}
+
+	@FunctionalInterface
+	private static interface TileSourceLoader< R extends RealType< R > >
+	{
+		TileSource< R > load( TileInfo tile ) throws Exception;
+	}
+
+	private static <
+		T extends RealType< T > & NativeType< T >,
+		U extends RealType< U > & NativeType< U >,
+		R extends RealType< R > & NativeType< R > >
+	TileSourceLoader< R > createTileSourceLoader(
+			final DataProvider dataProvider,
+			final Interval targetInterval,
+			final RandomAccessiblePairNullable< U, U > flatfield )
+	{
+		return tile ->
 		{
 			System.out.println( "Loading tile image " + tile.getFilePath() );
-			final Dimensions tileDimensions = tile.getBoundaries();
+			final RandomAccessibleInterval< T > rawTile = TileLoader.loadTile( tile, dataProvider );
+			return createTileSource( rawTile, tile, targetInterval, flatfield );
+		};
+	}
 
-			final FinalRealInterval intersection = IntervalsNullable.intersectReal(
-					new FinalRealInterval( tile.getPosition(), tile.getMax() ),
-					targetInterval );
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static <
+		T extends RealType< T > & NativeType< T >,
+		U extends RealType< U > & NativeType< U >,
+		R extends RealType< R > & NativeType< R > >
+	TileSource< R > createTileSource(
+			final RandomAccessibleInterval< T > rawTile,
+			final TileInfo tile,
+			final Interval targetInterval,
+			final RandomAccessiblePairNullable< U, U > flatfield )
+	{
+		final FinalRealInterval intersection = IntervalsNullable.intersectReal(
+				new FinalRealInterval( tile.getPosition(), tile.getMax() ),
+				targetInterval );
 
-			if ( intersection == null )
-				throw new IllegalArgumentException( "tilesWithinCell contains a tile that doesn't intersect with the target interval:\n" + "Tile " + tile.getIndex() + " at " + Arrays.toString( tile.getPosition() ) + " of size " + Arrays.toString( tile.getSize() ) + "\n" + "Output cell " + " at " + Arrays.toString( Intervals.minAsIntArray( targetInterval ) ) + " of size " + Arrays.toString( Intervals.dimensionsAsIntArray( targetInterval ) ) );
+		if ( intersection == null )
+			throw new IllegalArgumentException( "tilesWithinCell contains a tile that doesn't intersect with the target interval:\n" + "Tile " + tile.getIndex() + " at " + Arrays.toString( tile.getPosition() ) + " of size " + Arrays.toString( tile.getSize() ) + "\n" + "Output cell " + " at " + Arrays.toString( Intervals.minAsIntArray( targetInterval ) ) + " of size " + Arrays.toString( Intervals.dimensionsAsIntArray( targetInterval ) ) );
 
-			final double[] offset = new double[ targetInterval.numDimensions() ];
-			final long[] minIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
-			final long[] maxIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
-			for ( int d = 0; d < minIntersectionInTargetInterval.length; ++d )
+		final double[] offset = getOffset( tile, targetInterval );
+		final long[] minIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
+		final long[] maxIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
+		for ( int d = 0; d < minIntersectionInTargetInterval.length; ++d )
+		{
+			minIntersectionInTargetInterval[ d ] = ( long ) Math.floor( intersection.realMin( d ) ) - targetInterval.min( d );
+			maxIntersectionInTargetInterval[ d ] = ( long ) Math.ceil ( intersection.realMax( d ) ) - targetInterval.min( d );
+		}
+		final Interval intersectionIntervalInTargetInterval = new FinalInterval( minIntersectionInTargetInterval, maxIntersectionInTargetInterval );
+		final Translation translation = new Translation( offset );
+
+		final RandomAccessibleInterval< R > convertedTile = ( RandomAccessibleInterval ) Converters.convert( rawTile, new RealFloatConverter<>(), new FloatType() );
+		final RandomAccessible< R > extendedTile = Views.extendBorder( convertedTile );
+		final RealRandomAccessible< R > interpolatedTile = Views.interpolate( extendedTile, new NLinearInterpolatorFactory<>() );
+		final RandomAccessible< R > rasteredInterpolatedTile = Views.raster( RealViews.affine( interpolatedTile, translation ) );
+		final RandomAccessibleInterval< R > interpolatedTileInterval = Views.interval( rasteredInterpolatedTile, intersectionIntervalInTargetInterval );
+
+		final RandomAccessibleInterval< R > sourceInterval;
+		if ( flatfield != null )
+		{
+			final RandomAccessible< U >[] flatfieldComponents = new RandomAccessible[] { flatfield.getA(), flatfield.getB() }, adjustedFlatfieldComponents = new RandomAccessible[ 2 ];
+			for ( int i = 0; i < flatfieldComponents.length; ++i )
 			{
-				offset[ d ] = tile.getPosition( d ) - targetInterval.min( d );
-				minIntersectionInTargetInterval[ d ] = ( long ) Math.floor( intersection.realMin( d ) ) - targetInterval.min( d );
-				maxIntersectionInTargetInterval[ d ] = ( long ) Math.ceil ( intersection.realMax( d ) ) - targetInterval.min( d );
+				final RandomAccessibleInterval< U > flatfieldComponentInterval = Views.interval( flatfieldComponents[ i ], new FinalInterval( tile.getSize() ) );
+				final RandomAccessible< U > extendedFlatfieldComponent = Views.extendBorder( flatfieldComponentInterval );
+				final RealRandomAccessible< U > interpolatedFlatfieldComponent = Views.interpolate( extendedFlatfieldComponent, new NLinearInterpolatorFactory<>() );
+				final RandomAccessible< U > rasteredInterpolatedFlatfieldComponent = Views.raster( RealViews.affine( interpolatedFlatfieldComponent, translation ) );
+				adjustedFlatfieldComponents[ i ] = Views.interval( rasteredInterpolatedFlatfieldComponent, intersectionIntervalInTargetInterval );
 			}
-			final Interval intersectionIntervalInTargetInterval = new FinalInterval( minIntersectionInTargetInterval, maxIntersectionInTargetInterval );
-			final Translation translation = new Translation( offset );
+			final RandomAccessiblePair< U, U > adjustedFlatfield = new RandomAccessiblePair<>( adjustedFlatfieldComponents[ 0 ], adjustedFlatfieldComponents[ 1 ] );
+			final FlatfieldCorrectedRandomAccessible< R, U > flatfieldCorrectedTile = new FlatfieldCorrectedRandomAccessible<>( interpolatedTileInterval, adjustedFlatfield );
+			final RandomAccessibleInterval< U > flatfieldCorrectedInterval = Views.interval( flatfieldCorrectedTile, intersectionIntervalInTargetInterval );
+			sourceInterval = ( RandomAccessibleInterval ) Converters.convert( flatfieldCorrectedInterval, new RealFloatConverter<>(), new FloatType() );
+		}
+		else
+		{
+			sourceInterval = interpolatedTileInterval;
+		}
 
-			final RandomAccessibleInterval< T > rawTile = TileLoader.loadTile( tile, dataProvider );
-			final RandomAccessibleInterval< R > convertedTile = ( RandomAccessibleInterval ) Converters.convert( rawTile, new RealFloatConverter<>(), new FloatType() );
-			final RandomAccessible< R > extendedTile = Views.extendBorder( convertedTile );
-			final RealRandomAccessible< R > interpolatedTile = Views.interpolate( extendedTile, new NLinearInterpolatorFactory<>() );
-			final RandomAccessible< R > rasteredInterpolatedTile = Views.raster( RealViews.affine( interpolatedTile, translation ) );
-			final RandomAccessibleInterval< R > interpolatedTileInterval = Views.interval( rasteredInterpolatedTile, intersectionIntervalInTargetInterval );
-
-			final RandomAccessibleInterval< R > sourceInterval;
-			if ( flatfield != null )
+		return new TileSource<>( tile, offset, intersectionIntervalInTargetInterval, sourceInterval );
+	}
+
+	private static double[] getOffset( final TileInfo tile, final Interval targetInterval )
+	{
+		final double[] offset = new double[ targetInterval.numDimensions() ];
+		for ( int d = 0; d < offset.length; ++d )
+			offset[ d ] = tile.getPosition( d ) - targetInterval.min( d );
+		return offset;
+	}
+
+	private static <
+		T extends RealType< T > & NativeType< T >,
+		R extends RealType< R > >
+	ImagePlusImg< T, ? > fuseUsingBlending(
+			final List< TileInfo > tilesWithinCell,
+			final TileSourceLoader< R > tileSourceLoader,
+			final Interval targetInterval,
+			final T dataType,
+			final Number backgroundValue,
+			final Map< Integer, Set< Integer > > pairwiseConnectionsMap,
+			final int numThreads ) throws Exception
+	{
+		final int numDimensions = targetInterval.numDimensions();
+		final long[] targetDimensions = Intervals.dimensionsAsLongArray( targetInterval );
+		final int[] targetStrides = new int[ numDimensions ];
+		for ( int d = 0; d < numDimensions; ++d )
+			targetStrides[ d ] = ( d == 0 ? 1 : targetStrides[ d - 1 ] * ( int ) targetDimensions[ d - 1 ] );
+
+		// initialize helper arrays for blending fusion strategy
+		final int numElements = ( int ) Intervals.numElements( targetInterval );
+		final float[] weights = new float[ numElements ];
+		final float[] values = new float[ numElements ];
+
+		// initialize helper list for tile connections when exporting only overlaps
+		final List< Set< Integer > > tileIndexes = createTileIndexes( numElements, pairwiseConnectionsMap );
+
+		final int slabDimension = numDimensions - 1;
+		try ( final MultithreadedExecutor threadPool = numThreads > 1 ? new MultithreadedExecutor( numThreads ) : null )
+		{
+			for ( final TileInfo tile : tilesWithinCell )
 			{
-				final RandomAccessible< U >[] flatfieldComponents = new RandomAccessible[] { flatfield.getA(), flatfield.getB() }, adjustedFlatfieldComponents = new RandomAccessible[ 2 ];
-				for ( int i = 0; i < flatfieldComponents.length; ++i )
+				final TileSource< R > tileSource = tileSourceLoader.load( tile );
+				final Dimensions tileDimensions = tile.getBoundaries();
+
+				// blending weight is a product of per-dimension factors that depend only on the coordinate in the respective dimension
+				final double[][] blendingFactors = new double[ numDimensions ][];
+				for ( int d = 0; d < numDimensions; ++d )
 				{
-					final RandomAccessibleInterval< U > flatfieldComponentInterval = Views.interval( flatfieldComponents[ i ], new FinalInterval( tile.getSize() ) );
-					final RandomAccessible< U > extendedFlatfieldComponent = Views.extendBorder( flatfieldComponentInterval );
-					final RealRandomAccessible< U > interpolatedFlatfieldComponent = Views.interpolate( extendedFlatfieldComponent, new NLinearInterpolatorFactory<>() );
-					final RandomAccessible< U > rasteredInterpolatedFlatfieldComponent = Views.raster( RealViews.affine( interpolatedFlatfieldComponent, translation ) );
-					adjustedFlatfieldComponents[ i ] = Views.interval( rasteredInterpolatedFlatfieldComponent, intersectionIntervalInTargetInterval );
+					blendingFactors[ d ] = new double[ ( int ) tileSource.intersection.dimension( d ) ];
+					for ( int i = 0; i < blendingFactors[ d ].length; ++i )
+						blendingFactors[ d ][ i ] = getBlendingFactor( tileSource.intersection.min( d ) + i - tileSource.offset[ d ], tileDimensions.dimension( d ), FRACTION_BLENDED );
 				}
-				final RandomAccessiblePair< U, U > adjustedFlatfield = new RandomAccessiblePair<>( adjustedFlatfieldComponents[ 0 ], adjustedFlatfieldComponents[ 1 ] );
-				final FlatfieldCorrectedRandomAccessible< R, U > flatfieldCorrectedTile = new FlatfieldCorrectedRandomAccessible<>( interpolatedTileInterval, adjustedFlatfield );
-				final RandomAccessibleInterval< U > flatfieldCorrectedInterval = Views.interval( flatfieldCorrectedTile, intersectionIntervalInTargetInterval );
-				sourceInterval = ( RandomAccessibleInterval ) Converters.convert( flatfieldCorrectedInterval, new RealFloatConverter<>(), new FloatType() );
+
+				final Integer tileIndex = tile.getIndex();
+				final List< Interval > slabs = splitIntoSlabs( tileSource.intersection, slabDimension, numThreads );
+				final IntConsumer accumulateSlab = slab -> accumulateBlending(
+						Views.interval( tileSource.source, slabs.get( slab ) ),
+						tileSource.intersection,
+						blendingFactors,
+						targetStrides,
+						weights,
+						values,
+						tileIndexes,
+						tileIndex
+					);
+
+				if ( threadPool != null && slabs.size() > 1 )
+					threadPool.run( accumulateSlab, slabs.size() );
+				else
+					for ( int slab = 0; slab < slabs.size(); ++slab )
+						accumulateSlab.accept( slab );
 			}
-			else
+
+			final T fillType = dataType.createVariable();
+			if ( backgroundValue != null)
+				fillType.setReal( backgroundValue.doubleValue() );
+			final double fillValue = fillType.getRealDouble();
+
+			// initialize output image
+			final ImagePlusImg< T, ? > out = new ImagePlusImgFactory< T >().create( targetDimensions, dataType.createVariable() );
+			final List< Interval > outSlabs = splitIntoSlabs( new FinalInterval( targetDimensions ), slabDimension, numThreads );
+			final IntConsumer normalizeSlab = slab ->
 			{
-				sourceInterval = interpolatedTileInterval;
-			}
+				final Interval outSlab = outSlabs.get( slab );
+				final int slabStart = ( int ) outSlab.min( slabDimension ) * targetStrides[ slabDimension ];
+				final Cursor< T > outCursor = Views.flatIterable( Views.interval( out, outSlab ) ).cursor();
+				for ( int i = slabStart; outCursor.hasNext(); ++i )
+				{
+					final double weight = weights[ i ];
+					final double value = values[ i ];
+					final T outVal = outCursor.next();
+					outVal.setReal( weight == 0 ? fillValue : value / weight );
+
+					// retain only requested content within overlaps that corresponds to pairwise connections map
+					if ( tileIndexes != null && !isConnectedPixel( tileIndexes.get( i ), pairwiseConnectionsMap ) )
+						outVal.set( fillType );
+				}
+			};
 
-			final RandomAccessibleInterval< FloatType > weightsInterval = Views.interval( weights, intersectionIntervalInTargetInterval ) ;
-			final RandomAccessibleInterval< FloatType > valuesInterval = Views.interval( values, intersectionIntervalInTargetInterval ) ;
-			final RandomAccessibleInterval< Set< Integer > > tileIndexesInterval = tileIndexes != null ? Views.interval( tileIndexes, intersectionIntervalInTargetInterval ) : null;
+			if ( threadPool != null && outSlabs.size() > 1 )
+				threadPool.run( normalizeSlab, outSlabs.size() );
+			else
+				for ( int slab = 0; slab < outSlabs.size(); ++slab )
+					normalizeSlab.accept( slab );
 
-			final Cursor< R > sourceCursor = Views.flatIterable( sourceInterval ).localizingCursor();
-			final Cursor< FloatType > weightsCursor = Views.flatIterable( weightsInterval ).cursor();
-			final Cursor< FloatType > valuesCursor = Views.flatIterable( valuesInterval ).cursor();
-			final Cursor< Set< Integer > > tileIndexesCursor = tileIndexesInterval != null ? Views.flatIterable( tileIndexesInterval ).cursor() : null;
+			return out;
+		}
+	}
 
-			final double[] position = new double[ sourceCursor.numDimensions() ];
-			while ( sourceCursor.hasNext() || weightsCursor.hasNext() || valuesCursor.hasNext() || ( tileIndexesCursor != null && tileIndexesCursor.hasNext() ) )
+	private static < R extends RealType< R > > void accumulateBlending(
+			final RandomAccessibleInterval< R > sourceSlab,
+			final Interval intersectionInterval,
+			final double[][] blendingFactors,
+			final int[] targetStrides,
+			final float[] weights,
+			final float[] values,
+			final List< Set< Integer > > tileIndexes,
+			final Integer tileIndex )
+	{
+		final int numDimensions = sourceSlab.numDimensions();
+		final int lineLength = ( int ) sourceSlab.dimension( 0 );
+		final long numLines = Intervals.numElements( sourceSlab ) / lineLength;
+
+		// position of the current line relative to the intersection interval
+		final int[] linePosition = new int[ numDimensions ];
+		for ( int d = 1; d < numDimensions; ++d )
+			linePosition[ d ] = ( int ) ( sourceSlab.min( d ) - intersectionInterval.min( d ) );
+
+		final double[] xFactors = blendingFactors[ 0 ];
+		final Cursor< R > sourceCursor = Views.flatIterable( sourceSlab ).cursor();
+		for ( long line = 0; line < numLines; ++line )
+		{
+			int lineStart = ( int ) intersectionInterval.min( 0 ) * targetStrides[ 0 ];
+			for ( int d = 1; d < numDimensions; ++d )
+				lineStart += ( int ) ( intersectionInterval.min( d ) + linePosition[ d ] ) * targetStrides[ d ];
+
+			for ( int x = 0; x < lineLength; ++x )
 			{
 				final double value = sourceCursor.next().getRealDouble();
 
-				sourceCursor.localize( position );
-				for ( int d = 0; d < position.length; ++d )
-					position[ d ] -= offset[ d ];
-				final double weight = getBlendingWeight( position, tileDimensions, FRACTION_BLENDED );
+				double minDistance = 1;
+				minDistance *= xFactors[ x ];
+				for ( int d = 1; d < numDimensions; ++d )
+					minDistance *= blendingFactors[ d ][ linePosition[ d ] ];
+				final double weight = getBlendingWeight( minDistance );
 
-				final FloatType weightAccum = weightsCursor.next();
-				final FloatType valueAccum = valuesCursor.next();
-				weightAccum.setReal( weightAccum.getRealDouble() + weight );
-				valueAccum.setReal( valueAccum.getRealDouble() + value * weight );
+				final int i = lineStart + x;
+				weights[ i ] = ( float ) ( weights[ i ] + weight );
+				values[ i ] = ( float ) ( values[ i ] + value * weight );
 
-				if ( tileIndexesCursor != null )
-					tileIndexesCursor.next().add( tile.getIndex() );
+				if ( tileIndexes != null )
+					tileIndexes.get( i ).add( tileIndex );
 			}
-		}
-
-		final T fillType = dataType.createVariable();
-		if ( backgroundValue != null)
-			fillType.setReal( backgroundValue.doubleValue() );
-
-		// initialize output image
-		final ImagePlusImg< T, ? > out = new ImagePlusImgFactory< T >().create( Intervals.dimensionsAsLongArray( targetInterval ), dataType.createVariable() );
-		final Cursor< FloatType > weightsCursor = Views.flatIterable( weights ).cursor();
-		final Cursor< FloatType > valuesCursor = Views.flatIterable( values ).cursor();
-		final Cursor< T > outCursor = Views.flatIterable( out ).cursor();
-		while ( outCursor.hasNext() || weightsCursor.hasNext() || valuesCursor.hasNext() )
-		{
-			final double weight = weightsCursor.next().getRealDouble();
-			final double value = valuesCursor.next().getRealDouble();
-			outCursor.next().setReal( weight == 0 ? fillType.getRealDouble() : value / weight );
-		}
 
-		// retain only requested content within overlaps that corresponds to pairwise connections map
-		if ( tileIndexes != null )
-		{
-			outCursor.reset();
-			final Cursor< Set< Integer > > tileIndexesCursor = Views.flatIterable( tileIndexes ).cursor();
-			while ( outCursor.hasNext() || tileIndexesCursor.hasNext() )
+			for ( int d = 1; d < numDimensions; ++d )
 			{
-				boolean retainPixel = false;
-				final Set< Integer > tilesAtPoint = tileIndexesCursor.next();
-				for ( final Integer testTileIndex : tilesAtPoint )
-				{
-					final Set< Integer > connectedTileIndexes = pairwiseConnectionsMap.get( testTileIndex );
-					if ( connectedTileIndexes != null && !Collections.disjoint( tilesAtPoint, connectedTileIndexes ) )
-					{
-						retainPixel = true;
-						break;
-					}
-				}
-
-				outCursor.fwd();
-				if ( !retainPixel )
-					outCursor.get().set( fillType );
+				if ( ++linePosition[ d ] < sourceSlab.max( d ) - intersectionInterval.min( d ) + 1 )
+					break;
+				linePosition[ d ] = ( int ) ( sourceSlab.min( d ) - intersectionInterval.min( d ) );
 			}
 		}
-
-		return out;
 	}
-	private static double getBlendingWeight( final double[] location, final Dimensions dimensions, final double percentScaling )
+
+	/**
+	 * Splits the interval into at most {@code numSlabs} contiguous slabs along the given dimension.
+	 */
+	static List< Interval > splitIntoSlabs( final Interval interval, final int dimension, final int numSlabs )
 	{
-		// compute multiplicative distance to the respective borders [0...1]
-		double minDistance = 1;
+		final long size = interval.dimension( dimension );
+		final int count = ( int ) Math.max( Math.min( numSlabs, size ), 1 );
+		final List< Interval > slabs = new ArrayList<>( count );
+		final long[] min = Intervals.minAsLongArray( interval ), max = Intervals.maxAsLongArray( interval );
+		for ( int i = 0; i < count; ++i )
+		{
+			min[ dimension ] = interval.min( dimension ) + size * i / count;
+			max[ dimension ] = interval.min( dimension ) + size * ( i + 1 ) / count - 1;
+			slabs.add( new FinalInterval( min, max ) );
+		}
+		return slabs;
+	}
 
-		for ( int dim = 0; dim < location.length; ++dim )
+	private static boolean isConnectedPixel( final Set< Integer > tilesAtPoint, final Map< Integer, Set< Integer > > pairwiseConnectionsMap )
+	{
+		for ( final Integer testTileIndex : tilesAtPoint )
 		{
-			// the position in the image
-			final double localImgPos = location[ dim ];
+			final Set< Integer > connectedTileIndexes = pairwiseConnectionsMap.get( testTileIndex );
+			if ( connectedTileIndexes != null && !Collections.disjoint( tilesAtPoint, connectedTileIndexes ) )
+				return true;
+		}
+		return false;
+	}
 
-			// the distance to the border that is closer
-			double value = Math.max( 1, Math.min( localImgPos, dimensions.dimension( dim ) - 1 - localImgPos ) );
+	/**
+	 * Computes multiplicative distance to the respective border [0...1] in a single dimension.
+	 */
+	private static double getBlendingFactor( final double localImgPos, final long dimension, final double percentScaling )
+	{
+		// the distance to the border that is closer
+		double value = Math.max( 1, Math.min( localImgPos, dimension - 1 - localImgPos ) );
 
-			final float imgAreaBlend = Math.round( percentScaling * 0.5f * ( dimensions.dimension( dim ) - 1 ) );
+		final float imgAreaBlend = Math.round( percentScaling * 0.5f * ( dimension - 1 ) );
 
-			if ( value < imgAreaBlend )
-				value = value / imgAreaBlend;
-			else
-				value = 1;
+		if ( value < imgAreaBlend )
+			value = value / imgAreaBlend;
+		else
+			value = 1;
 
-			minDistance *= value;
-		}
+		return value;
+	}
 
+	private static double getBlendingWeight( final double minDistance )
+	{
 		if ( minDistance == 1 )
 			return 1;
 		else if ( minDistance <= 0 )
@@ -291,17 +578,15 @@ public class FusionPerformer
 			return ( Math.cos( (1 - minDistance) * Math.PI ) + 1 ) / 2;
 	}
 
-	public static <
+	private static <
 		T extends RealType< T > & NativeType< T >,
-		U extends RealType< U > & NativeType< U >,
-		R extends RealType< R > & NativeType< R > >
-	ImagePlusImg< T, ? > fuseTilesWithinCellUsingMaxMinDistance(
-			final DataProvider dataProvider,
+		R extends RealType< R > >
+	ImagePlusImg< T, ? > fuseUsingMaxMinDistance(
 			final List< TileInfo > tilesWithinCell,
+			final TileSourceLoader< R > tileSourceLoader,
 			final Interval targetInterval,
 			final T dataType,
 			final Number backgroundValue,
-			final RandomAccessiblePairNullable< U, U > flatfield,
 			final Map< Integer, Set< Integer > > pairwiseConnectionsMap ) throws Exception
 	{
 		// initialize output image
@@ -320,76 +605,19 @@ public class FusionPerformer
 		final RandomAccessibleInterval< FloatType > maxMinDistances = ArrayImgs.floats( Intervals.dimensionsAsLongArray( targetInterval ) );
 
 		// initialize helper image for tile connections when exporting only overlaps
-		final RandomAccessibleInterval< Set< Integer > > tileIndexes;
-		if ( pairwiseConnectionsMap != null )
-		{
-			final List< Set< Integer > > tileIndexesList = new ArrayList<>( ( int ) out.size() );
-			for ( int i = 0; i < out.size(); ++i )
-				tileIndexesList.add( new HashSet<>() );
-			tileIndexes = new ListImg<>( tileIndexesList, Intervals.dimensionsAsLongArray( targetInterval ) );
-		}
-		else
-		{
-			tileIndexes = null;
-		}
+		final List< Set< Integer > > tileIndexesList = createTileIndexes( ( int ) out.size(), pairwiseConnectionsMap );
+		final RandomAccessibleInterval< Set< Integer > > tileIndexes = tileIndexesList != null ? new ListImg<>( tileIndexesList, Intervals.dimensionsAsLongArray( targetInterval ) ) : null;
 
 		for ( final TileInfo tile : tilesWithinCell )
 		{
-			System.out.println( "Loading tile image " + tile.getFilePath() );
-
-			final FinalRealInterval intersection = IntervalsNullable.intersectReal(
-					new FinalRealInterval( tile.getPosition(), tile.getMax() ),
-					targetInterval );
-
-			if ( intersection == null )
-				throw new IllegalArgumentException( "tilesWithinCell contains a tile that doesn't intersect with the target interval:\n" + "Tile " + tile.getIndex() + " at " + Arrays.toString( tile.getPosition() ) + " of size " + Arrays.toString( tile.getSize() ) + "\n" + "Output cell " + " at " + Arrays.toString( Intervals.minAsIntArray( targetInterval ) ) + " of size " + Arrays.toString( Intervals.dimensionsAsIntArray( targetInterval ) ) );
-
-			final double[] offset = new double[ targetInterval.numDimensions() ];
-			final long[] minIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
-			final long[] maxIntersectionInTargetInterval = new long[ targetInterval.numDimensions() ];
-			for ( int d = 0; d < minIntersectionInTargetInterval.length; ++d )
-			{
-				offset[ d ] = tile.getPosition( d ) - targetInterval.min( d );
-				minIntersectionInTargetInterval[ d ] = ( long ) Math.floor( intersection.realMin( d ) ) - targetInterval.min( d );
-				maxIntersectionInTargetInterval[ d ] = ( long ) Math.ceil ( intersection.realMax( d ) ) - targetInterval.min( d );
-			}
-			final Interval intersectionIntervalInTargetInterval = new FinalInterval( minIntersectionInTargetInterval, maxIntersectionInTargetInterval );
-			final Translation translation = new Translation( offset );
-
-			final RandomAccessibleInterval< T > rawTile = TileLoader.loadTile( tile, dataProvider );
-			final RandomAccessibleInterval< R > convertedTile = ( RandomAccessibleInterval ) Converters.convert( rawTile, new RealFloatConverter<>(), new FloatType() );
-			final RandomAccessible< R > extendedTile = Views.extendBorder( convertedTile );
-			final RealRandomAccessible< R > interpolatedTile = Views.interpolate( extendedTile, new NLinearInterpolatorFactory<>() );
-			final RandomAccessible< R > rasteredInterpolatedTile = Views.raster( RealViews.affine( interpolatedTile, translation ) );
-			final RandomAccessibleInterval< R > interpolatedTileInterval = Views.interval( rasteredInterpolatedTile, intersectionIntervalInTargetInterval );
-
-			final RandomAccessibleInterval< R > sourceInterval;
-			if ( flatfield != null )
-			{
-				final RandomAccessible< U >[] flatfieldComponents = new RandomAccessible[] { flatfield.getA(), flatfield.getB() }, adjustedFlatfieldComponents = new RandomAccessible[ 2 ];
-				for ( int i = 0; i < flatfieldComponents.length; ++i )
-				{
-					final RandomAccessibleInterval< U > flatfieldComponentInterval = Views.interval( flatfieldComponents[ i ], new FinalInterval( tile.getSize() ) );
-					final RandomAccessible< U > extendedFlatfieldComponent = Views.extendBorder( flatfieldComponentInterval );
-					final RealRandomAccessible< U > interpolatedFlatfieldComponent = Views.interpolate( extendedFlatfieldComponent, new NLinearInterpolatorFactory<>() );
-					final RandomAccessible< U > rasteredInterpolatedFlatfieldComponent = Views.raster( RealViews.affine( interpolatedFlatfieldComponent, translation ) );
-					adjustedFlatfieldComponents[ i ] = Views.interval( rasteredInterpolatedFlatfieldComponent, intersectionIntervalInTargetInterval );
-				}
-				final RandomAccessiblePair< U, U > adjustedFlatfield = new RandomAccessiblePair<>( adjustedFlatfieldComponents[ 0 ], adjustedFlatfieldComponents[ 1 ] );
-				final FlatfieldCorrectedRandomAccessible< R, U > flatfieldCorrectedTile = new FlatfieldCorrectedRandomAccessible<>( interpolatedTileInterval, adjustedFlatfield );
-				final RandomAccessibleInterval< U > flatfieldCorrectedInterval = Views.interval( flatfieldCorrectedTile, intersectionIntervalInTargetInterval );
-				sourceInterval = ( RandomAccessibleInterval ) Converters.convert( flatfieldCorrectedInterval, new RealFloatConverter<>(), new FloatType() );
-			}
-			else
-			{
-				sourceInterval = interpolatedTileInterval;
-			}
+			final TileSource< R > tileSource = tileSourceLoader.load( tile );
+			final double[] offset = tileSource.offset;
 
-			final RandomAccessibleInterval< T > outInterval = Views.interval( out, intersectionIntervalInTargetInterval ) ;
-			final RandomAccessibleInterval< FloatType > maxMinDistanceInterval = Views.interval( maxMinDistances, intersectionIntervalInTargetInterval ) ;
-			final RandomAccessibleInterval< Set< Integer > > tileIndexesInterval = tileIndexes != null ? Views.interval( tileIndexes, intersectionIntervalInTargetInterval ) : null;
+			final RandomAccessibleInterval< T > outInterval = Views.interval( out, tileSource.intersection ) ;
+			final RandomAccessibleInterval< FloatType > maxMinDistanceInterval = Views.interval( maxMinDistances, tileSource.intersection ) ;
+			final RandomAccessibleInterval< Set< Integer > > tileIndexesInterval = tileIndexes != null ? Views.interval( tileIndexes, tileSource.intersection ) : null;
 
-			final Cursor< R > sourceCursor = Views.flatIterable( sourceInterval ).localizingCursor();
+			final Cursor< R > sourceCursor = Views.flatIterable( tileSource.source ).localizingCursor();
 			final Cursor< T > outCursor = Views.flatIterable( outInterval ).cursor();
 			final Cursor< FloatType > maxMinDistanceCursor = Views.flatIterable( maxMinDistanceInterval ).cursor();
 			final Cursor< Set< Integer > > tileIndexesCursor = tileIndexesInterval != null ? Views.flatIterable( tileIndexesInterval ).cursor() : null;
@@ -420,26 +648,13 @@ public class FusionPerformer
 		}
 
 		// retain only requested content within overlaps that corresponds to pairwise connections map
-		if ( tileIndexes != null )
+		if ( tileIndexesList != null )
 		{
 			final Cursor< T > outCursor = Views.flatIterable( out ).cursor();
-			final Cursor< Set< Integer > > tileIndexesCursor = Views.flatIterable( tileIndexes ).cursor();
-			while ( outCursor.hasNext() || tileIndexesCursor.hasNext() )
+			for ( int i = 0; outCursor.hasNext(); ++i )
 			{
-				boolean retainPixel = false;
-				final Set< Integer > tilesAtPoint = tileIndexesCursor.next();
-				for ( final Integer testTileIndex : tilesAtPoint )
-				{
-					final Set< Integer > connectedTileIndexes = pairwiseConnectionsMap.get( testTileIndex );
-					if ( connectedTileIndexes != null && !Collections.disjoint( tilesAtPoint, connectedTileIndexes ) )
-					{
-						retainPixel = true;
-						break;
-					}
-				}
-
 				outCursor.fwd();
-				if ( !retainPixel )
+				if ( !isConnectedPixel( tileIndexesList.get( i ), pairwiseConnectionsMap ) )
 					outCursor.get().set( fillType );
 			}
 		}
@@ -447,6 +662,17 @@ public class FusionPerformer
 		return out;
 	}
 
+	private static List< Set< Integer > > createTileIndexes( final int numElements, final Map< Integer, Set< Integer > > pairwiseConnectionsMap )
+	{
+		if ( pairwiseConnectionsMap == null )
+			return null;
+
+		final List< Set< Integer > > tileIndexes = new ArrayList<>( numElements );
+		for ( int i = 0; i < numElements; ++i )
+			tileIndexes.add( new HashSet<>() );
+		return tileIndexes;
+	}
+
 
 	/**
 	 * Performs the fusion of a collection of {@link TileInfo} objects within specified cell.
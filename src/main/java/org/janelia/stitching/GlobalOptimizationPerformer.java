@@ -80,6 +80,23 @@ public class GlobalOptimizationPerformer
 	public int remainingGraphSize;
 	public double avgDisplacement, maxDisplacement;
 
+	private final boolean leastSquaresSolver;
+
+	public GlobalOptimizationPerformer()
+	{
+		this( false );
+	}
+
+	/**
+	 * @param leastSquaresSolver
+	 * 			if true, the tile positions are found by solving the translation least-squares problem directly using {@link TranslationLeastSquaresSolver}
+	 * 			instead of the iterative optimization
+	 */
+	public GlobalOptimizationPerformer( final boolean leastSquaresSolver )
+	{
+		this.leastSquaresSolver = leastSquaresSolver;
+	}
+
 	public static void suppressOutput()
 	{
 		System.setOut( suppressedOut );
@@ -470,20 +487,34 @@ public class GlobalOptimizationPerformer
 
 				long elapsed = System.nanoTime();
 
-				final int iterations = 2000;
-				tc.preAlign();
-
-				TileUtil.optimizeConcurrently(
-						new ErrorStatistic( iterations + 1 ),
-						10,
-						iterations,
-						iterations,
-						1.f,
-						tc,
-						tc.getTiles(),
-						tc.getFixedTiles(),
-						1 // single-threaded because run with different configurations in parallel using Spark
-					);
+				final double avgError, maxError;
+				if ( leastSquaresSolver )
+				{
+					final TranslationLeastSquaresSolver solver = new TranslationLeastSquaresSolver( tc.getTiles(), tc.getFixedTiles() );
+					solver.solve();
+					avgError = solver.getAvgError();
+					maxError = solver.getMaxError();
+				}
+				else
+				{
+					final int iterations = 2000;
+					tc.preAlign();
+
+					TileUtil.optimizeConcurrently(
+							new ErrorStatistic( iterations + 1 ),
+							10,
+							iterations,
+							iterations,
+							1.f,
+							tc,
+							tc.getTiles(),
+							tc.getFixedTiles(),
+							1 // single-threaded because run with different configurations in parallel using Spark
+						);
+
+					avgError = tc.getError();
+					maxError = tc.getMaxError();
+				}
 
 				elapsed = System.nanoTime() - elapsed;
 
@@ -510,9 +541,6 @@ public class GlobalOptimizationPerformer
 				}
 
 
-				final double avgError = tc.getError();
-				final double maxError = tc.getMaxError();
-
 				itersCount++;
 
 
@@ -0,0 +1,285 @@
+package org.janelia.stitching;
+
+/**
+ * Evaluates normalized cross correlation of two images for arbitrary shifts.
+ *
+ * Summed-area tables of values and squared values are built once for both images,
+ * so the means and variances of any overlap are obtained in constant time, and only the cross term has to be accumulated over the overlap.
+ * The values are centered by the mean of the respective image before building the tables to preserve precision in the variance terms.
+ *
+ * Once constructed, the instance is read-only and can be used concurrently by multiple threads.
+ */
+public class IntegralCrossCorrelation
+{
+	private static final double VARIANCE_RELATIVE_EPSILON = 1e-10;
+
+	/**
+	 * Summed-area table of size (dim_0+1) x ... x (dim_n+1) where the first row in each dimension is zero.
+	 */
+	static class IntegralImage
+	{
+		final int[] dimensions;
+		final int[] strides;
+		final float[] values;
+		final float mean;
+		final double[] sum, sumSquares;
+		final double totalSumSquares;
+
+		IntegralImage( final float[] values, final int[] dimensions, final double[] sumBuffer, final double[] sumSquaresBuffer )
+		{
+			this.values = values;
+			this.dimensions = dimensions.clone();
+
+			final int n = dimensions.length;
+			strides = new int[ n ];
+			int numElements = 1, numTableElements = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				strides[ d ] = numTableElements;
+				numElements *= dimensions[ d ];
+				numTableElements *= dimensions[ d ] + 1;
+			}
+
+			double valueSum = 0;
+			for ( int i = 0; i < numElements; ++i )
+				valueSum += values[ i ];
+			mean = ( float ) ( valueSum / numElements );
+
+			sum = sumBuffer;
+			sumSquares = sumSquaresBuffer;
+
+			// place centered values at the table position shifted by one in every dimension
+			final int[] position = new int[ n ];
+			int index = 0;
+			for ( int i = 0; i < numTableElements; ++i )
+			{
+				boolean isBorder = false;
+				int valueTableIndex = 0;
+				for ( int d = 0; d < n; ++d )
+				{
+					isBorder |= ( position[ d ] == 0 );
+					valueTableIndex += position[ d ] * strides[ d ];
+				}
+
+				if ( isBorder )
+				{
+					sum[ valueTableIndex ] = sumSquares[ valueTableIndex ] = 0;
+				}
+				else
+				{
+					final double value = values[ index++ ] - mean;
+					sum[ valueTableIndex ] = value;
+					sumSquares[ valueTableIndex ] = value * value;
+				}
+
+				for ( int d = 0; d < n; ++d )
+				{
+					if ( ++position[ d ] <= dimensions[ d ] )
+						break;
+					position[ d ] = 0;
+				}
+			}
+
+			// cumulative sums along every dimension
+			for ( int d = 0; d < n; ++d )
+			{
+				final int stride = strides[ d ];
+				final int length = dimensions[ d ] + 1;
+				for ( int i = 0; i < numTableElements; ++i )
+				{
+					final int p = ( i / stride ) % length;
+					if ( p > 0 )
+					{
+						sum[ i ] += sum[ i - stride ];
+						sumSquares[ i ] += sumSquares[ i - stride ];
+					}
+				}
+			}
+			totalSumSquares = sumSquares[ numTableElements - 1 ];
+		}
+
+		/**
+		 * The box sums are differences of the table values, so their rounding error is relative to the sums over the whole image
+		 * rather than to the values within the box.
+		 *
+		 * @return variance of a box with the given number of pixels below which the box is considered to be constant
+		 */
+		double varianceEpsilon( final long numPixels )
+		{
+			return VARIANCE_RELATIVE_EPSILON * totalSumSquares / numPixels;
+		}
+
+		static int numTableElements( final int[] dimensions )
+		{
+			int numTableElements = 1;
+			for ( final int dim : dimensions )
+				numTableElements *= dim + 1;
+			return numTableElements;
+		}
+
+		/**
+		 * @return sums of values and squared values within the box [min, min+size)
+		 */
+		void boxSums( final int[] min, final int[] size, final double[] sums )
+		{
+			final int n = dimensions.length;
+			double s = 0, sq = 0;
+			for ( int corner = 0; corner < ( 1 << n ); ++corner )
+			{
+				int index = 0, lowerCorners = 0;
+				for ( int d = 0; d < n; ++d )
+				{
+					if ( ( corner & ( 1 << d ) ) != 0 )
+					{
+						index += ( min[ d ] + size[ d ] ) * strides[ d ];
+					}
+					else
+					{
+						index += min[ d ] * strides[ d ];
+						++lowerCorners;
+					}
+				}
+
+				if ( ( lowerCorners & 1 ) == 0 )
+				{
+					s += sum[ index ];
+					sq += sumSquares[ index ];
+				}
+				else
+				{
+					s -= sum[ index ];
+					sq -= sumSquares[ index ];
+				}
+			}
+			sums[ 0 ] = s;
+			sums[ 1 ] = sq;
+		}
+	}
+
+	private final IntegralImage integral1, integral2;
+
+	public IntegralCrossCorrelation( final float[] image1, final int[] dimensions1, final float[] image2, final int[] dimensions2 )
+	{
+		this(
+				image1, dimensions1, image2, dimensions2,
+				new double[ IntegralImage.numTableElements( dimensions1 ) ], new double[ IntegralImage.numTableElements( dimensions1 ) ],
+				new double[ IntegralImage.numTableElements( dimensions2 ) ], new double[ IntegralImage.numTableElements( dimensions2 ) ]
+			);
+	}
+
+	/**
+	 * Uses the provided buffers for storing the tables. Every buffer has to hold at least {@code prod(dim+1)} elements of the respective image.
+	 */
+	public IntegralCrossCorrelation(
+			final float[] image1, final int[] dimensions1, final float[] image2, final int[] dimensions2,
+			final double[] sumBuffer1, final double[] sumSquaresBuffer1, final double[] sumBuffer2, final double[] sumSquaresBuffer2 )
+	{
+		integral1 = new IntegralImage( image1, dimensions1, sumBuffer1, sumSquaresBuffer1 );
+		integral2 = new IntegralImage( image2, dimensions2, sumBuffer2, sumSquaresBuffer2 );
+	}
+
+	/**
+	 * Computes cross correlation between the two images for a given shift.
+	 * Gives the same result as {@link FFTPhaseCorrelation#testCrossCorrelation(int[], float[], int[], float[], int[], int[], long[])} up to rounding errors.
+	 */
+	public double testCrossCorrelation( final int[] shift, final int[] minOverlapPx, final long[] numPixels )
+	{
+		final int[] dimensions1 = integral1.dimensions, dimensions2 = integral2.dimensions;
+		final int n = dimensions1.length;
+		final int[] overlapSize = new int[ n ], offset1 = new int[ n ], offset2 = new int[ n ];
+		long numPx = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( shift[ d ] >= 0 )
+			{
+				// they are not overlapping (this might happen due to fft zeropadding and extension)
+				if ( shift[ d ] >= dimensions1[ d ] )
+					return noOverlap( numPixels );
+
+				offset1[ d ] = shift[ d ];
+				offset2[ d ] = 0;
+				overlapSize[ d ] = Math.min( dimensions1[ d ] - shift[ d ], dimensions2[ d ] );
+			}
+			else
+			{
+				offset1[ d ] = 0;
+				offset2[ d ] = -shift[ d ];
+				overlapSize[ d ] = Math.min( dimensions2[ d ] + shift[ d ], dimensions1[ d ] );
+			}
+
+			if ( overlapSize[ d ] < minOverlapPx[ d ] )
+				return noOverlap( numPixels );
+
+			numPx *= overlapSize[ d ];
+		}
+
+		if ( numPixels != null && numPixels.length > 0 )
+			numPixels[ 0 ] = numPx;
+
+		final double[] sums1 = new double[ 2 ], sums2 = new double[ 2 ];
+		integral1.boxSums( offset1, overlapSize, sums1 );
+		integral2.boxSums( offset2, overlapSize, sums2 );
+
+		// the cross term is the only one that depends on both images
+		final float[] image1 = integral1.values, image2 = integral2.values;
+		final float mean1 = integral1.mean, mean2 = integral2.mean;
+		final int lineLength = overlapSize[ 0 ];
+		final int numLines = ( int ) ( numPx / lineLength );
+		final int[] linePosition = new int[ n ];
+		double crossSum = 0;
+		for ( int line = 0; line < numLines; ++line )
+		{
+			final int start1 = lineStart( linePosition, offset1, dimensions1 ), start2 = lineStart( linePosition, offset2, dimensions2 );
+			for ( int x = 0; x < lineLength; ++x )
+				crossSum += ( double ) ( image1[ start1 + x ] - mean1 ) * ( image2[ start2 + x ] - mean2 );
+			nextLine( linePosition, overlapSize );
+		}
+
+		final double avg1 = sums1[ 0 ] / numPx, avg2 = sums2[ 0 ] / numPx;
+		final double var1 = Math.max( sums1[ 1 ] / numPx - avg1 * avg1, 0 );
+		final double var2 = Math.max( sums2[ 1 ] / numPx - avg2 * avg2, 0 );
+		final double coVar = crossSum / numPx - avg1 * avg2;
+
+		final double varianceEpsilon1 = integral1.varianceEpsilon( numPx ), varianceEpsilon2 = integral2.varianceEpsilon( numPx );
+		final boolean isConstant1 = var1 <= varianceEpsilon1, isConstant2 = var2 <= varianceEpsilon2;
+
+		// all pixels had the same color....
+		if ( isConstant1 || isConstant2 )
+		{
+			final double meanTolerance = Math.sqrt( varianceEpsilon1 ) + Math.sqrt( varianceEpsilon2 );
+			return ( isConstant1 && isConstant2 && Math.abs( ( avg1 + integral1.mean ) - ( avg2 + integral2.mean ) ) <= meanTolerance ) ? 1 : 0;
+		}
+
+		// rounding errors may push the ratio slightly outside of the valid range
+		final double stDev1 = Math.sqrt( var1 ), stDev2 = Math.sqrt( var2 );
+		return Math.max( -1, Math.min( coVar / ( stDev1 * stDev2 ), 1 ) );
+	}
+
+	private static double noOverlap( final long[] numPixels )
+	{
+		if ( numPixels != null && numPixels.length > 0 )
+			numPixels[ 0 ] = 0;
+		return 0;
+	}
+
+	static int lineStart( final int[] linePosition, final int[] offset, final int[] dimensions )
+	{
+		int index = 0, stride = 1;
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			index += ( linePosition[ d ] + offset[ d ] ) * stride;
+			stride *= dimensions[ d ];
+		}
+		return index;
+	}
+
+	static void nextLine( final int[] linePosition, final int[] overlapSize )
+	{
+		for ( int d = 1; d < overlapSize.length; ++d )
+		{
+			if ( ++linePosition[ d ] < overlapSize[ d ] )
+				break;
+			linePosition[ d ] = 0;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.janelia.stitching;
+
+import org.janelia.util.concurrent.SameThreadExecutorService;
+
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Overlap area of a tile prepared for pairwise stitching.
+ *
+ * The channel images (possibly flatfield-corrected views) are accumulated directly into a single float buffer,
+ * the average and the blur are computed in place, and the buffer is passed to phase correlation as is,
+ * so the overlap is not copied or converted back to the input data type.
+ * The sums of the values and squared values are computed together with the last pass over the buffer.
+ */
+public class OverlapImage
+{
+	private final long[] dimensions;
+	private final float[] data;
+	private int numChannels;
+	private boolean finished;
+	private double sum, sumSquares;
+
+	public OverlapImage( final Dimensions dimensions )
+	{
+		this.dimensions = Intervals.dimensionsAsLongArray( dimensions );
+		data = new float[ ( int ) Intervals.numElements( dimensions ) ];
+	}
+
+	/**
+	 * Adds the channel image to the average. The image has to be of the same size as the overlap.
+	 */
+	public < T extends RealType< T > > void addChannel( final RandomAccessibleInterval< T > channelImg )
+	{
+		if ( finished )
+			throw new IllegalStateException( "The overlap image has already been computed" );
+		if ( !Intervals.equalDimensions( channelImg, getImage() ) )
+			throw new IllegalArgumentException( "Channel image size does not match the overlap size" );
+
+		final Cursor< T > cursor = Views.flatIterable( channelImg ).cursor();
+		if ( numChannels == 0 )
+			for ( int i = 0; i < data.length; ++i )
+				data[ i ] = cursor.next().getRealFloat();
+		else
+			for ( int i = 0; i < data.length; ++i )
+				data[ i ] += cursor.next().getRealFloat();
+
+		++numChannels;
+	}
+
+	/**
+	 * Normalizes the accumulated channels and blurs the result in place if any of the {@code blurSigmas} is positive.
+	 */
+	public void finish( final double[] blurSigmas ) throws IncompatibleTypeException
+	{
+		if ( numChannels == 0 )
+			throw new IllegalStateException( "No channels have been added" );
+
+		boolean blur = false;
+		if ( blurSigmas != null )
+			for ( final double sigma : blurSigmas )
+				blur |= sigma > 0;
+
+		final float denom = numChannels;
+		sum = sumSquares = 0;
+		for ( int i = 0; i < data.length; ++i )
+		{
+			if ( numChannels > 1 )
+				data[ i ] /= denom;
+
+			if ( !blur )
+			{
+				final double val = data[ i ];
+				sum += val;
+				sumSquares += val * val;
+			}
+		}
+
+		if ( blur )
+		{
+			final RandomAccessibleInterval< FloatType > img = getImage();
+			Gauss3.gauss( blurSigmas, Views.extendMirrorSingle( img ), img, new SameThreadExecutorService() );
+
+			for ( int i = 0; i < data.length; ++i )
+			{
+				final double val = data[ i ];
+				sum += val;
+				sumSquares += val * val;
+			}
+		}
+
+		finished = true;
+	}
+
+	public RandomAccessibleInterval< FloatType > getImage()
+	{
+		return ArrayImgs.floats( data, dimensions );
+	}
+
+	/**
+	 * @return the part of the overlap image with the origin at zero
+	 */
+	public RandomAccessibleInterval< FloatType > getImage( final Interval roiPart )
+	{
+		return Views.zeroMin( Views.interval( getImage(), roiPart ) );
+	}
+
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	/**
+	 * Adds sums of the values and squared values within the given part of the overlap to {@code sums[0]} and {@code sums[1]}.
+	 * Uses the statistics collected by {@link #finish(double[])} if the part covers the whole overlap.
+	 *
+	 * @return number of pixels within the part
+	 */
+	public long addStatistics( final Interval roiPart, final double[] sums )
+	{
+		if ( !finished )
+			throw new IllegalStateException( "The overlap image has not been computed yet" );
+
+		if ( Intervals.equals( roiPart, getImage() ) )
+		{
+			sums[ 0 ] += sum;
+			sums[ 1 ] += sumSquares;
+			return data.length;
+		}
+
+		final Cursor< FloatType > cursor = Views.iterable( getImage( roiPart ) ).cursor();
+		while ( cursor.hasNext() )
+		{
+			final double val = cursor.next().getRealDouble();
+			sums[ 0 ] += val;
+			sums[ 1 ] += val * val;
+		}
+		return Intervals.numElements( roiPart );
+	}
+}
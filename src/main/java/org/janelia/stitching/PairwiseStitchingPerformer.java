@@ -28,6 +28,7 @@ import mpicbg.imglib.type.numeric.integer.UnsignedShortType;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.stitching.StitchingParameters;
 import mpicbg.stitching.custom.Peak;
+import net.imglib2.RandomAccessibleInterval;
 import stitching.utils.Log;
 
 /**
@@ -51,6 +52,12 @@ public class PairwiseStitchingPerformer
 		numThreads = n;
 	}
 
+	static boolean timeLegacyVerification;
+	public static void setTimeLegacyVerification( final boolean timeLegacy )
+	{
+		timeLegacyVerification = timeLegacy;
+	}
+
 	public static SerializablePairWiseStitchingResult[] stitchPairwise( final ImagePlus imp1, final ImagePlus imp2,
 			Roi roi1, Roi roi2, final int[] roiZ1, final int[] roiZ2,
 			final int timepoint1, final int timepoint2, final StitchingParameters params, final int numHighestPeaks,
@@ -428,6 +435,75 @@ public class PairwiseStitchingPerformer
 		//return new PairWiseStitchingResult( bestShift, bestPeak.getCrossCorrelationPeak(), bestPeak.getPhaseCorrelationPeak() );
 	}
 
+	/**
+	 * Computes phase correlation of two imglib2 images using {@link FFTPhaseCorrelation}.
+	 * The result is the same as of {@link #computePhaseCorrelation(Image, Image, int, boolean, int, PointValidator, OffsetConverter)},
+	 * but the FFT plans and buffers are reused across subsequent pairs processed by the same thread.
+	 */
+	public static SerializablePairWiseStitchingResult[] computePhaseCorrelation(
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > img1,
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > img2,
+			final int numPeaks, final boolean subpixelAccuracy, final int numHighestPeaks,
+			final PointValidator searchRadiusPointValidator, final OffsetConverter offsetConverter )
+	{
+		final FFTPhaseCorrelation phaseCorr = new FFTPhaseCorrelation( img1, img2 );
+		phaseCorr.setInvestigateNumPeaks( numPeaks );
+
+		phaseCorr.setSearchRadiusPointValidator( searchRadiusPointValidator );
+		phaseCorr.setOffsetConverter( offsetConverter );
+
+		if ( numThreads > 0 )
+			phaseCorr.setNumThreads( numThreads );
+		phaseCorr.setTimeLegacyVerification( timeLegacyVerification );
+
+		phaseCorr.process();
+
+		if ( timeLegacyVerification )
+			System.out.println( String.format( "Verified %d candidate shifts with cross correlation in %.1f ms with summed-area tables, %.1f ms without",
+					phaseCorr.getNumVerifiedPeaks(), phaseCorr.getVerificationTimeNanos() / 1e6, phaseCorr.getLegacyVerificationTimeNanos() / 1e6 ) );
+		else
+			System.out.println( String.format( "Verified %d candidate shifts with cross correlation in %.1f ms", phaseCorr.getNumVerifiedPeaks(), phaseCorr.getVerificationTimeNanos() / 1e6 ) );
+
+		// multiple peaks result
+		final List< PhaseCorrelationPeak > peaks = phaseCorr.getAllShifts();
+		final float[] shift = new float[ img1.numDimensions() ];
+		final SerializablePairWiseStitchingResult[] result = new SerializablePairWiseStitchingResult[ numHighestPeaks ];
+
+		System.out.println( "Obtaining " + numHighestPeaks + " highest peaks..." );
+
+		for ( int index = 0; index < result.length; index++ )
+		{
+			final int peakSortedDescIndex = peaks.size() - index - 1;
+			if ( peakSortedDescIndex < 0 )
+			{
+				result[ index ] = null;
+			}
+			else
+			{
+				final PhaseCorrelationPeak pcp = peaks.get( peakSortedDescIndex );
+
+				if ( subpixelAccuracy )
+				{
+					final double[] subpixelOffset = phaseCorr.getSubpixelPeakOffset( pcp );
+
+					for ( int d = 0; d < img1.numDimensions(); ++d )
+						shift[ d ] = ( float ) ( pcp.getPosition()[ d ] + subpixelOffset[ d ] );
+
+					result[ index ] = new SerializablePairWiseStitchingResult( null, shift.clone(), pcp.getCrossCorrelationPeak(), ( float ) subpixelOffset[ img1.numDimensions() ] );
+				}
+				else
+				{
+					for ( int d = 0; d < img1.numDimensions(); ++d )
+						shift[ d ] = pcp.getPosition()[ d ];
+
+					result[ index ] = new SerializablePairWiseStitchingResult( null, shift.clone(), pcp.getCrossCorrelationPeak(), pcp.getPhaseCorrelationPeak() );
+				}
+			}
+		}
+
+		return result;
+	}
+
 	/**
 	 * return an {@link Image}<T> as input for the PhaseCorrelation.
 	 *
@@ -2,7 +2,9 @@ package org.janelia.stitching;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -10,6 +12,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
+import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
 import org.janelia.dataaccess.CloudURI;
@@ -18,9 +21,9 @@ import org.janelia.dataaccess.DataProviderFactory;
 import org.janelia.dataaccess.DataProviderType;
 import org.janelia.dataaccess.PathResolver;
 import org.janelia.flatfield.FlatfieldCorrection;
+import org.janelia.flatfield.FlatfieldField;
 import org.janelia.flatfield.HistogramSettings;
 import org.janelia.flatfield.StackHistogram;
-import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.bdv.N5ExportMetadata;
@@ -33,12 +36,17 @@ import org.janelia.util.Conversions;
 
 import mpicbg.spim.data.sequence.FinalVoxelDimensions;
 import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.imageplus.ImagePlusImg;
+import net.imglib2.iterator.LocalizingIntervalIterator;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.RandomAccessiblePairNullable;
+import scala.Tuple2;
 
 /**
  * Fuses a set of tiles within a set of small square cells using linear blending.
@@ -47,7 +55,7 @@ import net.imglib2.view.RandomAccessiblePairNullable;
  * @author Igor Pisarev
  */
 
-public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T >, U extends NativeType< U > & RealType< U > > extends PipelineStepExecutor
+public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T > > extends PipelineStepExecutor
 {
 	private static final long serialVersionUID = -8151178964876747760L;
 
@@ -62,7 +70,7 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 	double[] normalizedVoxelDimensions;
 
 	Broadcast< Map< Integer, Set< Integer > > > broadcastedPairwiseConnectionsMap;
-	Broadcast< RandomAccessiblePairNullable< U, U > > broadcastedFlatfieldCorrection;
+	Broadcast< FlatfieldField > broadcastedFlatfieldCorrection;
 
 	private final HistogramSettings stackHistogramSettings = new HistogramSettings( 0., 16383., 4098 );
 
@@ -173,10 +181,9 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 
 			// prepare flatfield correction images
 			// use it as a folder with the input file's name
-			final RandomAccessiblePairNullable< U, U >  flatfieldCorrection = FlatfieldCorrection.loadCorrectionImages(
+			final FlatfieldField flatfieldCorrection = FlatfieldCorrection.loadFlatfieldField(
 					dataProvider,
-					absoluteChannelPathNoFinal,
-					job.getDimensionality()
+					absoluteChannelPathNoFinal
 				);
 			if ( flatfieldCorrection != null )
 				System.out.println( "[Flatfield correction] Broadcasting flatfield correction images" );
@@ -185,13 +192,13 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 			final Number backgroundValue;
 			if ( job.getArgs().fillBackground() )
 			{
-				final Double flatfieldBackgroundValue = FlatfieldCorrection.getPivotValue( dataProvider, absoluteChannelPathNoFinal );
+				final Double flatfieldBackgroundValue = flatfieldCorrection != null ? flatfieldCorrection.getPivotValue() : FlatfieldCorrection.getPivotValue( dataProvider, absoluteChannelPathNoFinal );
 				if ( flatfieldBackgroundValue != null ) {
 					backgroundValue = flatfieldBackgroundValue;
 				} else {
 					// The background value is not available and needs to be estimated.
 					// This is the case for deconvolved data, because in the Flatfield Correction step the background value is estimated only for raw data.
-					backgroundValue = estimateBackgroundValue( job.getTiles( channel ) );
+					backgroundValue = estimateBackgroundValue( dataProvider, absoluteChannelPathNoFinal, job.getTiles( channel ) );
 				}
 				System.out.println( "Using background intensity value of " + backgroundValue + " for filling in channel " + channel );
 
@@ -264,9 +271,9 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 		final int[] processingCellSize = getOptimalCellSize( tiles );
 		if ( !isTileConfigurationN5( tiles ) )
 		{
-			// When stored as .tif, full tile image will be loaded each time. Reduce number of reads by increasing processing block size
+			// When stored as .tif, tile images are read by full XY slices. Reduce number of slice reads by increasing processing block size in XY
 			final int increaseFactor = 2;
-			for ( int d = 0; d < processingCellSize.length; ++d )
+			for ( int d = 0; d < Math.min( processingCellSize.length, 2 ); ++d )
 				processingCellSize[ d ] *= increaseFactor * Math.round( normalizedVoxelDimensions[ d ] );
 		}
 		return processingCellSize;
@@ -296,16 +303,27 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 				Intervals.dimensionsAsLongArray( boundingBox ),
 				cellSize,
 				N5Utils.dataType( ( T ) tiles[ 0 ].getType().getType() ),
-				new GzipCompression()
+				job.getArgs().compression()
 			);
 
+		if ( job.getArgs().tileCentricFusion() )
+		{
+			fuseTileCentric( n5ExportPath, fullScaleOutputPath, tiles, backgroundValue, offset, dimensions, cellSize );
+			return;
+		}
+
 		final int[] processingCellSize = getProcessingCellSize( tiles );
 		System.out.println( "Fusing tile configuration into an N5 dataset with block size " + Arrays.toString( cellSize ) + " using processing block size " + Arrays.toString( processingCellSize ) );
 		final List< TileInfo > processingCells = TileOperations.divideSpace( boundingBox, new FinalDimensions( processingCellSize ) );
 
-		sparkContext.parallelize( processingCells, Math.min( processingCells.size(), MAX_PARTITIONS ) ).foreach( cell ->
+		// blending accumulation within every cell is parallelized using the cores allocated for the task
+		final int fusionThreads = Math.max( sparkContext.getConf().getInt( "spark.task.cpus", 1 ), 1 );
+
+		final Broadcast< TileSpatialIndex > broadcastedTileIndex = sparkContext.broadcast( new TileSpatialIndex( tiles ) );
+
+		sparkContext.parallelize( processingCells, Math.max( 1, Math.min( processingCells.size(), MAX_PARTITIONS ) ) ).foreach( cell ->
 			{
-				final List< TileInfo > tilesWithinCell = TileOperations.findTilesWithinSubregion( tiles, cell );
+				final List< TileInfo > tilesWithinCell = broadcastedTileIndex.value().findTilesWithinSubregion( cell );
 				if ( tilesWithinCell.isEmpty() && backgroundValue == null )
 					return;
 
@@ -328,13 +346,228 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 						cellBox,
 						dataType,
 						backgroundValue,
-						broadcastedFlatfieldCorrection.value(),
-						broadcastedPairwiseConnectionsMap.value()
+						getFlatfieldCorrectionImages(),
+						broadcastedPairwiseConnectionsMap.value(),
+						fusionThreads
 					);
 				final N5Writer n5Local = dataProviderLocal.createN5Writer( n5ExportPath );
 				N5Utils.saveBlock( outImg, n5Local, fullScaleOutputPath, cellGridPosition );
 			}
 		);
+
+		broadcastedTileIndex.destroy();
+	}
+
+	/**
+	 * Loads every tile only once and sends its interpolated values to all output blocks that it intersects.
+	 * The contributions are grouped by the position of the block in the cell grid, and every block is fused from its contributions
+	 * in the same order as in {@link #fuse(String, String, TileInfo[], Number)}, so the output is identical.
+	 */
+	private void fuseTileCentric(
+			final String n5ExportPath,
+			final String fullScaleOutputPath,
+			final TileInfo[] tiles,
+			final Number backgroundValue,
+			final long[] offset,
+			final long[] dimensions,
+			final int[] cellSize )
+	{
+		final long[] gridDimensions = new CellGrid( dimensions, cellSize ).getGridDimensions();
+		final long numCells = Intervals.numElements( gridDimensions );
+		System.out.println( "Fusing tile configuration into an N5 dataset with block size " + Arrays.toString( cellSize ) + " using tile-centric processing" );
+
+		// only the tiles that intersect the output region are processed, and the blocks that they cover are not filled with the background
+		final List< Integer > tileIndexes = new ArrayList<>();
+		final Set< Long > nonEmptyCellKeys = new HashSet<>();
+		for ( int i = 0; i < tiles.length; ++i )
+		{
+			final List< Long > cellKeys = getIntersectingCellKeys( tiles[ i ], offset, dimensions, cellSize, gridDimensions );
+			if ( !cellKeys.isEmpty() )
+			{
+				tileIndexes.add( i );
+				nonEmptyCellKeys.addAll( cellKeys );
+			}
+		}
+
+		// sort the tiles by their position (slowest dimension first) so that every partition contains a group of spatially adjacent tiles
+		Collections.sort( tileIndexes, ( i1, i2 ) ->
+			{
+				for ( int d = tiles[ i1 ].numDimensions() - 1; d >= 0; --d )
+				{
+					final int cmp = Double.compare( tiles[ i1 ].getPosition( d ), tiles[ i2 ].getPosition( d ) );
+					if ( cmp != 0 )
+						return cmp;
+				}
+				return Integer.compare( i1, i2 );
+			}
+		);
+
+		final int fusionThreads = Math.max( sparkContext.getConf().getInt( "spark.task.cpus", 1 ), 1 );
+		final FusionMode fusionMode = job.getArgs().blending() ? FusionMode.BLENDING : FusionMode.MAX_MIN_DISTANCE;
+		final ImageType tileType = tiles[ 0 ].getType();
+
+		// the requested subregion may contain no tiles, in which case there is nothing to distribute and only the background is written
+		if ( tileIndexes.isEmpty() )
+			System.out.println( "No tiles intersect the output region, skipping tile-centric processing" );
+		else
+			fuseTileContributions( n5ExportPath, fullScaleOutputPath, tiles, tileIndexes, backgroundValue, offset, dimensions, cellSize, gridDimensions, numCells, fusionMode, tileType, fusionThreads );
+
+		// fill the blocks that do not contain any tiles
+		if ( backgroundValue != null )
+		{
+			final List< Long > emptyCellKeys = new ArrayList<>();
+			for ( long cellKey = 0; cellKey < numCells; ++cellKey )
+				if ( !nonEmptyCellKeys.contains( cellKey ) )
+					emptyCellKeys.add( cellKey );
+
+			if ( !emptyCellKeys.isEmpty() )
+			{
+				sparkContext.parallelize( emptyCellKeys, Math.max( 1, Math.min( emptyCellKeys.size(), MAX_PARTITIONS ) ) ).foreach( cellKey ->
+						saveCell( n5ExportPath, fullScaleOutputPath, cellKey, new ArrayList<>(), tileType, fusionMode, backgroundValue, offset, dimensions, cellSize, gridDimensions, fusionThreads )
+					);
+			}
+		}
+	}
+
+	private void fuseTileContributions(
+			final String n5ExportPath,
+			final String fullScaleOutputPath,
+			final TileInfo[] tiles,
+			final List< Integer > tileIndexes,
+			final Number backgroundValue,
+			final long[] offset,
+			final long[] dimensions,
+			final int[] cellSize,
+			final long[] gridDimensions,
+			final long numCells,
+			final FusionMode fusionMode,
+			final ImageType tileType,
+			final int fusionThreads )
+	{
+		final JavaPairRDD< Long, TileContribution > tileContributions = sparkContext
+				.parallelize( tileIndexes, Math.max( 1, Math.min( tileIndexes.size(), MAX_PARTITIONS ) ) )
+				.flatMapToPair( tileIndex ->
+					{
+						final TileInfo tile = tiles[ tileIndex ];
+						final List< Long > cellKeys = getIntersectingCellKeys( tile, offset, dimensions, cellSize, gridDimensions );
+						final List< Tuple2< Long, TileContribution > > contributions = new ArrayList<>();
+						if ( cellKeys.isEmpty() )
+							return contributions.iterator();
+
+						System.out.println( "Loading tile image " + tile.getFilePath() + " for " + cellKeys.size() + " output blocks" );
+						final RandomAccessibleInterval< T > rawTile = TileLoader.loadTileIntoMemory( tile, job.getDataProvider() );
+						final long[] cellGridPosition = new long[ gridDimensions.length ];
+						for ( final Long cellKey : cellKeys )
+						{
+							IntervalIndexer.indexToPosition( cellKey, gridDimensions, cellGridPosition );
+							final TileInfo cell = getCell( cellGridPosition, offset, dimensions, cellSize );
+							contributions.add( new Tuple2<>( cellKey, FusionPerformer.getTileContribution(
+									rawTile,
+									tile,
+									tileIndex,
+									cell.getBoundaries(),
+									getFlatfieldCorrectionImages()
+								) ) );
+						}
+						return contributions.iterator();
+					}
+				);
+
+		tileContributions.groupByKey( ( int ) Math.max( 1, Math.min( numCells, MAX_PARTITIONS ) ) ).foreach( cellContributions ->
+			{
+				final List< TileContribution > contributions = new ArrayList<>();
+				for ( final TileContribution contribution : cellContributions._2() )
+					contributions.add( contribution );
+
+				saveCell( n5ExportPath, fullScaleOutputPath, cellContributions._1(), contributions, tileType, fusionMode, backgroundValue, offset, dimensions, cellSize, gridDimensions, fusionThreads );
+			}
+		);
+	}
+
+	private void saveCell(
+			final String n5ExportPath,
+			final String fullScaleOutputPath,
+			final long cellKey,
+			final List< TileContribution > contributions,
+			final ImageType tileType,
+			final FusionMode fusionMode,
+			final Number backgroundValue,
+			final long[] offset,
+			final long[] dimensions,
+			final int[] cellSize,
+			final long[] gridDimensions,
+			final int fusionThreads ) throws Exception
+	{
+		final long[] cellGridPosition = new long[ gridDimensions.length ];
+		IntervalIndexer.indexToPosition( cellKey, gridDimensions, cellGridPosition );
+		final TileInfo cell = getCell( cellGridPosition, offset, dimensions, cellSize );
+
+		final DataProvider dataProviderLocal = job.getDataProvider();
+		final T dataType = ( T ) tileType.getType();
+
+		final ImagePlusImg< T, ? > outImg = FusionPerformer.fuseTileContributionsWithinCell(
+				fusionMode,
+				contributions,
+				cell.getBoundaries(),
+				dataType,
+				backgroundValue,
+				broadcastedPairwiseConnectionsMap.value(),
+				fusionThreads
+			);
+		final N5Writer n5Local = dataProviderLocal.createN5Writer( n5ExportPath );
+		N5Utils.saveBlock( outImg, n5Local, fullScaleOutputPath, cellGridPosition );
+	}
+
+	/**
+	 * Expands the broadcasted flatfield into the correction images (once per executor).
+	 */
+	private RandomAccessiblePairNullable< FloatType, FloatType > getFlatfieldCorrectionImages()
+	{
+		final FlatfieldField flatfield = broadcastedFlatfieldCorrection.value();
+		return flatfield != null ? flatfield.getCorrectionImages( job.getDimensionality() ) : null;
+	}
+
+	/**
+	 * @return output block at the given position in the cell grid in global coordinates
+	 */
+	private static TileInfo getCell( final long[] cellGridPosition, final long[] offset, final long[] dimensions, final int[] cellSize )
+	{
+		final TileInfo cell = new TileInfo( cellGridPosition.length );
+		for ( int d = 0; d < cellGridPosition.length; ++d )
+		{
+			final long cellMin = cellGridPosition[ d ] * cellSize[ d ];
+			cell.setPosition( d, offset[ d ] + cellMin );
+			cell.setSize( d, Math.min( cellSize[ d ], dimensions[ d ] - cellMin ) );
+		}
+		return cell;
+	}
+
+	/**
+	 * @return flattened cell grid positions of the output blocks that the tile intersects
+	 */
+	private static List< Long > getIntersectingCellKeys( final TileInfo tile, final long[] offset, final long[] dimensions, final int[] cellSize, final long[] gridDimensions )
+	{
+		final List< Long > cellKeys = new ArrayList<>();
+		final long[] gridMin = new long[ gridDimensions.length ], gridMax = new long[ gridDimensions.length ];
+		for ( int d = 0; d < gridDimensions.length; ++d )
+		{
+			// extend the range by one cell on both sides to include the cells that only touch the tile (they are considered as overlapping)
+			gridMin[ d ] = Math.max( ( long ) Math.floor( ( tile.getPosition( d ) - offset[ d ] ) / cellSize[ d ] ) - 1, 0 );
+			gridMax[ d ] = Math.min( ( long ) Math.floor( ( tile.getMax( d ) - offset[ d ] ) / cellSize[ d ] ) + 1, gridDimensions[ d ] - 1 );
+			if ( gridMin[ d ] > gridMax[ d ] )
+				return cellKeys;
+		}
+
+		final LocalizingIntervalIterator gridIterator = new LocalizingIntervalIterator( gridMin, gridMax );
+		final long[] cellGridPosition = new long[ gridDimensions.length ];
+		while ( gridIterator.hasNext() )
+		{
+			gridIterator.fwd();
+			gridIterator.localize( cellGridPosition );
+			if ( TileOperations.overlap( tile, getCell( cellGridPosition, offset, dimensions, cellSize ) ) )
+				cellKeys.add( IntervalIndexer.positionToIndex( cellGridPosition, gridDimensions ) );
+		}
+		return cellKeys;
 	}
 
 	private Map< Integer, Set< Integer > > getPairwiseConnectionsMap( final String channelPath ) throws PipelineExecutionException
@@ -371,9 +604,18 @@ public class PipelineFusionStepExecutor< T extends NativeType< T > & RealType< T
 		return pairwiseConnectionsMap;
 	}
 
-	private double estimateBackgroundValue( final TileInfo[] tiles )
+	private double estimateBackgroundValue( final DataProvider dataProvider, final String channelPath, final TileInfo[] tiles ) throws IOException
 	{
-		final StackHistogram stackHistogram = StackHistogram.getStackHistogram( sparkContext, tiles, stackHistogramSettings );
+		// reuse the stack histogram if it has already been collected for these tiles
+		StackHistogram stackHistogram = FlatfieldCorrection.loadStackHistogram( dataProvider, channelPath, tiles );
+		if ( stackHistogram == null )
+		{
+			stackHistogram = StackHistogram.getStackHistogram( sparkContext, tiles, stackHistogramSettings );
+
+			// cache it only if the flatfield folder is already there, it should not be created as a side effect of the fusion
+			if ( FlatfieldCorrection.flatfieldFolderExists( dataProvider, channelPath ) )
+				FlatfieldCorrection.saveStackHistogram( dataProvider, channelPath, tiles, stackHistogram );
+		}
 		return stackHistogram.getPivotValue();
 	}
 
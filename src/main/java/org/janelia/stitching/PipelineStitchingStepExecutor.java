@@ -15,9 +15,6 @@ import java.util.TreeSet;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
-import net.imglib2.converter.RealConverter;
-import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.imageplus.ImagePlusImgFactory;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
@@ -26,34 +23,23 @@ import org.janelia.dataaccess.DataProvider;
 import org.janelia.dataaccess.PathResolver;
 import org.janelia.flatfield.FlatfieldCorrectedRandomAccessible;
 import org.janelia.flatfield.FlatfieldCorrection;
+import org.janelia.flatfield.FlatfieldField;
 import org.janelia.stitching.StitchingArguments.RematchingMode;
 import org.janelia.stitching.analysis.FilterAdjacentShifts;
 import org.janelia.util.Conversions;
-import org.janelia.util.concurrent.SameThreadExecutorService;
 
-import ij.ImagePlus;
 import mpicbg.imglib.custom.OffsetConverter;
-import net.imglib2.Cursor;
 import net.imglib2.FinalDimensions;
 import net.imglib2.Interval;
-import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.gauss3.Gauss3;
-import net.imglib2.converter.Converters;
-import net.imglib2.converter.RealFloatConverter;
-import net.imglib2.exception.IncompatibleTypeException;
-import net.imglib2.img.imageplus.ImagePlusImg;
-import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.iterator.IntervalIterator;
 import net.imglib2.type.NativeType;
-import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
-import net.imglib2.view.RandomAccessiblePairNullable;
 import net.imglib2.view.Views;
 
 /**
@@ -360,7 +346,7 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 	 * It uses phase correlation for measuring similarity between two images.
 	 * @throws IOException
 	 */
-	private < T extends NativeType< T > & RealType< T >, U extends NativeType< U > & RealType< U > > List< SerializablePairWiseStitchingResult[] > computePairwiseShifts( final List< TilePair > overlappingTiles, final String statsTileConfigurationPath ) throws PipelineExecutionException, IOException
+	private < T extends NativeType< T > & RealType< T > > List< SerializablePairWiseStitchingResult[] > computePairwiseShifts( final List< TilePair > overlappingTiles, final String statsTileConfigurationPath ) throws PipelineExecutionException, IOException
 	{
 		final DataProvider dataProvider = job.getDataProvider();
 
@@ -392,10 +378,10 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 		final int dividedParts = 1;
 
 		System.out.println( "Broadcasting flatfield correction images" );
-		final List< RandomAccessiblePairNullable< U, U > > flatfieldCorrectionForChannels = new ArrayList<>();
+		final List< FlatfieldField > flatfieldCorrectionForChannels = new ArrayList<>();
 		for ( final String channelPath : job.getArgs().inputTileConfigurations() )
-			flatfieldCorrectionForChannels.add( FlatfieldCorrection.loadCorrectionImages( dataProvider, channelPath, job.getDimensionality() ) );
-		final Broadcast< List< RandomAccessiblePairNullable< U, U > > > broadcastedFlatfieldCorrectionForChannels = sparkContext.broadcast( flatfieldCorrectionForChannels );
+			flatfieldCorrectionForChannels.add( FlatfieldCorrection.loadFlatfieldField( dataProvider, channelPath ) );
+		final Broadcast< List< FlatfieldField > > broadcastedFlatfieldCorrectionForChannels = sparkContext.broadcast( flatfieldCorrectionForChannels );
 
 		final List< Map< Integer, TileInfo > > tileChannelMappingByIndex = new ArrayList<>();
 		for ( int channel = 0; channel < job.getChannels(); ++channel )
@@ -408,10 +394,23 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 		final LongAccumulator noOverlapWithinConfidenceIntervalPairsCount = sparkContext.sc().longAccumulator();
 		final LongAccumulator noPeaksWithinConfidenceIntervalPairsCount = sparkContext.sc().longAccumulator();
 
-		final JavaRDD< TilePair > rdd = sparkContext.parallelize( overlappingTiles, overlappingTiles.size() );
+		// group pairs sharing a tile into the same partitions so that the tile images can be reused from the executor-local cache
+		final long tileCacheSizeBytes = job.getArgs().tileCacheSizeBytes();
+		final TileImageCache.Accumulators tileCacheAccumulators = tileCacheSizeBytes > 0 ? new TileImageCache.Accumulators( sparkContext ) : null;
+		final int pairsPerTask = Math.max( job.getArgs().pairsPerTask(), 1 );
+		final List< TilePair > sortedOverlappingTiles = pairsPerTask > 1 ? TileOperations.sortPairsByTileLocality( overlappingTiles ) : overlappingTiles;
+		final int numPartitions = Math.max( ( int ) Math.ceil( ( double ) sortedOverlappingTiles.size() / pairsPerTask ), 1 );
+		System.out.println( "Processing " + pairsPerTask + " pairs per task in " + numPartitions + " partitions" + ( tileCacheSizeBytes > 0 ? ", tile cache size: " + tileCacheSizeBytes / ( 1024 * 1024 ) + "MB" : "" ) );
+
+		// candidate shifts of every pair are verified in parallel using the cores allocated for the task
+		final int verificationThreads = Math.max( sparkContext.getConf().getInt( "spark.task.cpus", 1 ), 1 );
+		final boolean timeLegacyVerification = job.getArgs().timeLegacyVerification();
+
+		final JavaRDD< TilePair > rdd = sparkContext.parallelize( sortedOverlappingTiles, numPartitions );
 		final JavaRDD< SerializablePairWiseStitchingResult[] > pairwiseStitching = rdd.map( pairOfTiles ->
 			{
 				final DataProvider dataProviderLocal = job.getDataProvider();
+				final TileImageCache tileCache = tileCacheSizeBytes > 0 ? TileImageCache.getInstance( tileCacheSizeBytes ) : null;
 
 				// stats
 				final TileSearchRadiusEstimator localSearchRadiusEstimator = broadcastedSearchRadiusEstimator.value();
@@ -419,7 +418,7 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 
 				final TileInfo[] pair = pairOfTiles.toArray();
 				final Interval[] overlaps = new Boundaries[ pair.length ];
-				final ImagePlus[] imps = new ImagePlus[ pair.length ];
+				final OverlapImage[] overlapImgs = new OverlapImage[ pair.length ];
 
 				final TileInfo fixedTile = pair[ 0 ], movingTile = pair[ 1 ];
 
@@ -580,8 +579,7 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 					else
 						channelIndices = IntStream.range( 0, job.getChannels() ).boxed().collect( Collectors.toList() ); // all channels
 
-					T inputType = null;
-					final RandomAccessibleInterval< FloatType > avgChannelImg = ArrayImgs.floats( Intervals.dimensionsAsLongArray( overlaps[ j ] ) );
+					final OverlapImage overlapImg = new OverlapImage( overlaps[ j ] );
 
 					for ( final int channel : channelIndices )
 					{
@@ -600,16 +598,12 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 							throw new PipelineExecutionException( pairOfTiles + ": cannot find corresponding tile for this channel" );
 
 						// FIXME: throw exception in case some image files are missing (or, check for missing files beforehand)
-						final RandomAccessibleInterval< T > img = TileLoader.loadTile( tileInfo, dataProviderLocal );
+						final RandomAccessibleInterval< T > img = tileCache != null ? tileCache.loadTile( tileInfo, dataProviderLocal, tileCacheAccumulators ) : TileLoader.loadTile( tileInfo, dataProviderLocal );
 						if ( img == null )
 							throw new PipelineExecutionException( "Cannot load tile image: " + tileInfo.getFilePath() );
 
 						final T type = Util.getTypeFromInterval( img );
 
-						// store input type
-						if ( inputType == null )
-							inputType = type;
-
 //						if ( imp != null )
 						{
 							// warn if image type and/or size do not match metadata
@@ -620,25 +614,19 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 
 							final RandomAccessibleInterval< T > imgCrop = Views.interval( img, overlaps[ j ] );
 
-							final RandomAccessibleInterval< FloatType > sourceInterval;
-							final RandomAccessiblePairNullable< U, U > flatfield = broadcastedFlatfieldCorrectionForChannels.value().get( channel );
+							// flatfield correction is applied on the fly while the channel is accumulated
+							final FlatfieldField flatfield = broadcastedFlatfieldCorrectionForChannels.value().get( channel );
 							if ( flatfield != null )
 							{
 								System.out.println( "Flat-fielding image.." );
-								final FlatfieldCorrectedRandomAccessible< T, U > flatfieldCorrected = new FlatfieldCorrectedRandomAccessible<>( imgCrop, flatfield.toRandomAccessiblePair() );
-								final RandomAccessibleInterval< U > correctedImg = Views.interval( flatfieldCorrected, imgCrop );
-								sourceInterval = Converters.convert( correctedImg, new RealFloatConverter<>(), new FloatType() );
+								final FlatfieldCorrectedRandomAccessible< T, FloatType > flatfieldCorrected = new FlatfieldCorrectedRandomAccessible<>( imgCrop, flatfield.getCorrectionImages( imgCrop.numDimensions() ).toRandomAccessiblePair() );
+								overlapImg.addChannel( Views.interval( flatfieldCorrected, imgCrop ) );
 							}
 							else
 							{
-								sourceInterval = Converters.convert( imgCrop, new RealFloatConverter<>(), new FloatType() );
+								overlapImg.addChannel( imgCrop );
 							}
 
-							final Cursor< FloatType > srcCursor = Views.flatIterable( sourceInterval ).cursor();
-							final Cursor< FloatType > dstCursor = Views.flatIterable( avgChannelImg ).cursor();
-							while ( dstCursor.hasNext() || srcCursor.hasNext() )
-								dstCursor.next().add( srcCursor.next() );
-
 							++channelsUsed;
 						}
 					}
@@ -646,28 +634,16 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 					if ( channelsUsed == 0 )
 						throw new PipelineExecutionException( pairOfTiles + ": images are missing in all channels" );
 
-					// normalize if needed
-					if ( channelsUsed > 1 )
-					{
-						final FloatType denom = new FloatType( channelsUsed );
-						final Cursor< FloatType > dstCursor = Views.iterable( avgChannelImg ).cursor();
-						while ( dstCursor.hasNext() )
-							dstCursor.next().div( denom );
-					}
-
 					if ( blurSigma > 0 )
-					{
-						System.out.println( String.format( "Blurring the overlap area of size %s with sigmas=%s (s=%f)", Arrays.toString( Intervals.dimensionsAsLongArray( avgChannelImg ) ), Arrays.toString( blurSigmas ), blurSigma ) );
-						blur( avgChannelImg, blurSigmas );
-					}
+						System.out.println( String.format( "Blurring the overlap area of size %s with sigmas=%s (s=%f)", Arrays.toString( overlapImg.getDimensions() ), Arrays.toString( blurSigmas ), blurSigma ) );
 
-					// convert the output image to the input datatype
-					final RandomAccessibleInterval< T > convertedResultingImgToInputType = Converters.convert( avgChannelImg, new RealConverter<>(), inputType );
-					imps[ j ] = Utils.copyToImagePlus( convertedResultingImgToInputType );
+					// average the channels and blur in place
+					overlapImg.finish( blurSigma > 0 ? blurSigmas : null );
+					overlapImgs[ j ] = overlapImg;
 				}
 
 				// divide hyperplane with long edges into subintervals
-				final Boundaries fullRoi = new Boundaries( Conversions.toLongArray( Utils.getImagePlusDimensions( imps[ 0 ] ) ) );
+				final Boundaries fullRoi = new Boundaries( overlapImgs[ 0 ].getDimensions() );
 				final int[] roiPartsCount = new int[ fullRoi.numDimensions() ];
 				Arrays.fill( roiPartsCount, dividedParts );
 				roiPartsCount[ shortEdgeDimension ] = 1;
@@ -679,46 +655,12 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 				for ( int roiPartIndex = 0; roiPartIndex < roiParts.size(); ++roiPartIndex )
 				{
 					final Boundaries roiPartInterval = roiParts.get( roiPartIndex ).getBoundaries();
-					final ImagePlus[] roiPartImps = new ImagePlus[ 2 ];
-					for ( int i = 0; i < 2; ++i )
-					{
-						if ( roiParts.size() > 1 )
-						{
-							final RandomAccessibleInterval< T > roiImg = ImagePlusImgs.from( imps[ i ] );
-							final RandomAccessibleInterval< T > roiPartImg = Views.offsetInterval( roiImg, roiPartInterval );
-							final ImagePlusImg< T, ? > roiPartDst = new ImagePlusImgFactory<>( Util.getTypeFromInterval( roiImg ) ).create( Intervals.dimensionsAsLongArray( roiPartInterval ) );
-							final Cursor< T > srcCursor = Views.flatIterable( roiPartImg ).cursor();
-							final Cursor< T > dstCursor = Views.flatIterable( roiPartDst ).cursor();
-							while ( dstCursor.hasNext() || srcCursor.hasNext() )
-								dstCursor.next().set( srcCursor.next() );
-							roiPartImps[ i ] = roiPartDst.getImagePlus();
-							Utils.workaroundImagePlusNSlices( roiPartImps[ i ] );
-						}
-						else
-						{
-							roiPartImps[ i ] = imps[ i ];
-						}
-					}
-
 					// compute variance within this ROI for both images
-					double pixelSum = 0, pixelSumSquares = 0;
+					final double[] pixelSums = new double[ 2 ];
 					long pixelCount = 0;
 					for ( int i = 0; i < 2; ++i )
-					{
-						final ImagePlusImg< T, ? > roiImg = ImagePlusImgs.from( roiPartImps[ i ] );
-						final Cursor< T > roiImgCursor = Views.iterable( roiImg ).cursor();
-						while ( roiImgCursor.hasNext() )
-						{
-							final double val = roiImgCursor.next().getRealDouble();
-							pixelSum += val;
-							pixelSumSquares += Math.pow( val, 2 );
-						}
-						pixelCount += roiImg.size();
-					}
-					final double variance = pixelSumSquares / pixelCount - Math.pow( pixelSum / pixelCount, 2 );
-
-					final int timepoint = 1;
-					PairwiseStitchingPerformer.setThreads( 1 ); // TODO: determine automatically based on parallelism / smth else. Or, use different values for local/cluster configurations
+						pixelCount += overlapImgs[ i ].addStatistics( roiPartInterval, pixelSums );
+					final double variance = pixelSums[ 1 ] / pixelCount - Math.pow( pixelSums[ 0 ] / pixelCount, 2 );
 
 					// for transforming 'overlap offset' to 'global offset'
 					final long[][] roiToTileOffset = new long[ 2 ][];
@@ -736,8 +678,15 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 
 					final OffsetConverter offsetConverter = new FinalOffsetConverter( roiToTileOffset, globalOffset );
 
-					final SerializablePairWiseStitchingResult[] results = PairwiseStitchingPerformer.stitchPairwise(
-							roiPartImps[0], roiPartImps[1], null, null, null, null, timepoint, timepoint, job.getParams(), 1,
+					PairwiseStitchingPerformer.setThreads( verificationThreads );
+					PairwiseStitchingPerformer.setTimeLegacyVerification( timeLegacyVerification );
+
+					final List< RandomAccessibleInterval< FloatType > > roiPartImgs = new ArrayList<>();
+					for ( int i = 0; i < 2; ++i )
+						roiPartImgs.add( overlapImgs[ i ].getImage( roiPartInterval ) );
+
+					final SerializablePairWiseStitchingResult[] results = PairwiseStitchingPerformer.computePhaseCorrelation(
+							roiPartImgs.get( 0 ), roiPartImgs.get( 1 ), job.getParams().checkPeaks, job.getParams().subpixelAccuracy, 1,
 							searchRadius, offsetConverter
 						);
 
@@ -764,14 +713,8 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 
 						roiPartsResults[ roiPartIndex ] = result;
 					}
-
-					for ( int i = 0; i < 2; i++ )
-						roiPartImps[ i ].close();
 				}
 
-				for ( int i = 0; i < 2; i++ )
-					imps[ i ].close();
-
 				System.out.println( "Stitched tile pair " + pairOfTiles + ", got " + roiPartsResults.length + " matches" );
 				return roiPartsResults;
 			} );
@@ -797,19 +740,13 @@ public class PipelineStitchingStepExecutor extends PipelineStepExecutor
 		System.out.println( "    not enough neighbors within estimation window: " + notEnoughNeighborsWithinConfidenceIntervalPairsCount.value() );
 		System.out.println( "    <= 1px overlap within search radius: " + noOverlapWithinConfidenceIntervalPairsCount.value() );
 		System.out.println( "    no peaks found within search radius: " + noPeaksWithinConfidenceIntervalPairsCount.value() );
+		if ( tileCacheAccumulators != null )
+			System.out.println( "Tile cache: " + tileCacheAccumulators );
 		System.out.println();
 
 		return stitchingResults;
 	}
 
-	private static < T extends NumericType< T > > void blur(
-			final RandomAccessibleInterval< T > image,
-			final double[] sigmas ) throws IncompatibleTypeException
-	{
-		final RandomAccessible< T > extendedImage = Views.extendMirrorSingle( image );
-		Gauss3.gauss( sigmas, extendedImage, image, new SameThreadExecutorService() );
-	}
-
 	public static Pair< Interval, Interval > adjustOverlappingRegion( final TilePair tilePair, final SearchRadius combinedSearchRadius )
 	{
 		// adjust the ROI to capture the search radius entirely
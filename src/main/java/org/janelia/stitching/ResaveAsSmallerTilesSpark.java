@@ -15,8 +15,8 @@ import org.janelia.dataaccess.CloudURI;
 import org.janelia.dataaccess.DataProvider;
 import org.janelia.dataaccess.DataProviderFactory;
 import org.janelia.dataaccess.PathResolver;
-import org.janelia.flatfield.FlatfieldCorrectedRandomAccessible;
 import org.janelia.flatfield.FlatfieldCorrection;
+import org.janelia.flatfield.FlatfieldCorrector;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -33,9 +33,9 @@ import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.img.imageplus.ImagePlusImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
-import net.imglib2.view.RandomAccessiblePairNullable;
 import net.imglib2.view.Views;
 
 public class ResaveAsSmallerTilesSpark implements Serializable, AutoCloseable
@@ -137,7 +137,7 @@ public class ResaveAsSmallerTilesSpark implements Serializable, AutoCloseable
 			processChannel( inputTileConfiguration );
 	}
 
-	private < U extends NativeType< U > & RealType< U > > void processChannel( final String inputTileConfiguration ) throws IOException
+	private void processChannel( final String inputTileConfiguration ) throws IOException
 	{
 		final DataProvider sourceDataProvider = DataProviderFactory.create( DataProviderFactory.detectType( inputTileConfiguration ) );
 		final TileInfo[] tiles = sourceDataProvider.loadTiles( inputTileConfiguration );
@@ -148,8 +148,8 @@ public class ResaveAsSmallerTilesSpark implements Serializable, AutoCloseable
 
 		final Broadcast< List< Interval > > broadcastedNewTilesIntervalsInSingleTile = sparkContext.broadcast( newTilesIntervalsInSingleTile );
 
-		final RandomAccessiblePairNullable< U, U > flatfield = FlatfieldCorrection.loadCorrectionImages( sourceDataProvider, inputTileConfiguration, tiles[ 0 ].numDimensions() );
-		final Broadcast< RandomAccessiblePairNullable< U, U > > broadcastedFlatfield = sparkContext.broadcast( flatfield );
+		final FlatfieldCorrector flatfield = FlatfieldCorrection.loadCorrector( sourceDataProvider, inputTileConfiguration );
+		final Broadcast< FlatfieldCorrector > broadcastedFlatfield = sparkContext.broadcast( flatfield );
 
 		final List< TileInfo > newTiles = sparkContext.parallelize( Arrays.asList( tiles ), tiles.length ).flatMap(
 				tile -> resaveTileAsSmallerTiles( tile, broadcastedNewTilesIntervalsInSingleTile.value(), broadcastedFlatfield.value() ).iterator()
@@ -174,10 +174,10 @@ public class ResaveAsSmallerTilesSpark implements Serializable, AutoCloseable
 		sourceDataProvider.saveTiles( newTiles.toArray( new TileInfo[ 0 ] ), newTilesConfigurationPath );
 	}
 
-	private < T extends NativeType< T > & RealType< T >, U extends NativeType< U > & RealType< U > > List< TileInfo > resaveTileAsSmallerTiles(
+	private < T extends NativeType< T > & RealType< T > > List< TileInfo > resaveTileAsSmallerTiles(
 			final TileInfo tile,
 			final List< Interval > newTilesIntervalsInSingleTile,
-			final RandomAccessiblePairNullable< U, U > flatfield ) throws IOException, ImgLibException
+			final FlatfieldCorrector flatfield ) throws IOException, ImgLibException
 	{
 		final DataProvider sourceDataProvider = DataProviderFactory.create( DataProviderFactory.detectType( tile.getFilePath() ) );
 		final RandomAccessibleInterval< T > tileImg = TileLoader.loadTile( tile, sourceDataProvider );
@@ -187,8 +187,7 @@ public class ResaveAsSmallerTilesSpark implements Serializable, AutoCloseable
 		if ( flatfield != null )
 		{
 			System.out.println( "Flat-fielding image.." );
-			final FlatfieldCorrectedRandomAccessible< T, U > flatfieldCorrected = new FlatfieldCorrectedRandomAccessible<>( tileImg, flatfield.toRandomAccessiblePair() );
-			final RandomAccessibleInterval< U > correctedImg = Views.interval( flatfieldCorrected, tileImg );
+			final RandomAccessibleInterval< FloatType > correctedImg = flatfield.correct( tileImg );
 			sourceImg = Converters.convert( correctedImg, new RealConverter<>(), tileImageType.createVariable() );
 		}
 		else
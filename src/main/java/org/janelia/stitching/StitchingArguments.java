@@ -5,6 +5,8 @@ import java.nio.file.Paths;
 import java.util.List;
 
 import org.janelia.dataaccess.CloudURI;
+import org.janelia.dataaccess.N5CompressionFactory;
+import org.janelia.saalfeldlab.n5.Compression;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -45,6 +47,10 @@ public class StitchingArguments implements Serializable {
 			usage = "X/Y N5 block size in the exported volume")
 	private int fusionCellSize = 128;
 
+	@Option(name = "--compression", required = false,
+			usage = "Compression of the exported volume. " + N5CompressionFactory.USAGE)
+	private String compression = N5CompressionFactory.DEFAULT;
+
 	@Option(name = "-b", aliases = { "--blurSigma" }, required = false,
 			usage = "Sigma value of the gaussian blur preapplied to the images before stitching")
 	private double blurSigma = 2.0;
@@ -75,6 +81,10 @@ public class StitchingArguments implements Serializable {
 			usage = "Optimize tile configurations that don't contain any leaves (thus all edges are properly constrained)")
 	private boolean noLeaves = false;
 
+	@Option(name = "--leastSquaresOptimizer", required = false,
+			usage = "Find tile translations by solving the least-squares problem directly instead of using the iterative global optimization")
+	private boolean leastSquaresOptimizer = false;
+
 	@Option(name = "--overlaps", required = false,
 			usage = "Export overlaps channel based on which connections between tiles have been used for final stitching")
 	private boolean exportOverlaps = false;
@@ -83,10 +93,26 @@ public class StitchingArguments implements Serializable {
 			usage = "Export the dataset using blending strategy instead of hardcut (max.min.distance)")
 	private boolean blending = false;
 
+	@Option(name = "--tileCentricFusion", required = false,
+			usage = "Fuse by loading every tile once and sending its contributions to the output blocks it intersects instead of reading all tiles for every output block")
+	private boolean tileCentricFusion = false;
+
 	@Option(name = "--fillBackground", aliases = { "--fill" }, required = false,
 			usage = "Fill the outer space in N5 export with the background value of the data instead of zero")
 	private boolean fillBackground = false;
 
+	@Option(name = "--tileCacheSize", required = false,
+			usage = "Size of the executor-local tile image cache in megabytes that is shared across pairwise stitching tasks (0 means no caching)")
+	private long tileCacheSizeMB = 0;
+
+	@Option(name = "--pairsPerTask", required = false,
+			usage = "Number of tile pairs processed within a single Spark task. Pairs sharing a tile are grouped together, so values greater than 1 improve the tile cache hit rate")
+	private int pairsPerTask = 1;
+
+	@Option(name = "--timeLegacyVerification", required = false,
+			usage = "Also verify the candidate shifts of every pair without summed-area tables (walking every overlap) and log both verification times. Only meant for benchmarking as it makes the verification slower")
+	private boolean timeLegacyVerification = false;
+
 	/**
 	 * Toggle pipeline stages. By default all stages are executed.
 	 */
@@ -114,6 +140,9 @@ public class StitchingArguments implements Serializable {
 			parser.printUsage( System.err );
 		}
 
+		// fail early if the compression is not valid
+		N5CompressionFactory.create( compression );
+
 		if ( !stitchOnly && !fuseOnly )
 			throw new IllegalArgumentException( "Please specify mode: --stitch / --fuse" );
 
@@ -166,13 +195,19 @@ public class StitchingArguments implements Serializable {
 	public Integer registrationChannelIndex() { return registrationChannelIndex; }
 	public int minStatsNeighborhood() { return minStatsNeighborhood; }
 	public int fusionCellSize() { return fusionCellSize; }
+	public Compression compression() { return N5CompressionFactory.create( compression ); }
 	public double blurSigma() { return blurSigma; }
 	public boolean useAllPairs() { return allPairs; }
 	public boolean noLeaves() { return noLeaves; }
+	public boolean leastSquaresOptimizer() { return leastSquaresOptimizer; }
 	public boolean exportOverlaps() { return exportOverlaps; }
 	public boolean blending() { return blending; }
+	public boolean tileCentricFusion() { return tileCentricFusion; }
 	public boolean fillBackground() { return fillBackground; }
 	public boolean allowFusingStage() { return allowFusingStage; }
+	public long tileCacheSizeBytes() { return tileCacheSizeMB * 1024 * 1024; }
+	public int pairsPerTask() { return pairsPerTask; }
+	public boolean timeLegacyVerification() { return timeLegacyVerification; }
 
 	public boolean stitchOnly() { return stitchOnly; }
 	public boolean fuseOnly() { return fuseOnly; }
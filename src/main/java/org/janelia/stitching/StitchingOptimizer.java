@@ -5,7 +5,10 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -38,8 +41,10 @@ public class StitchingOptimizer implements Serializable
 		return Math.min( INITIAL_MAX_ALLOWED_ERROR + iteration * MAX_ALLOWED_ERROR_STEP, MAX_ALLOWED_ERROR_LIMIT );
 	}
 
-	private static final class OptimizationParameters
+	static final class OptimizationParameters implements Serializable
 	{
+		private static final long serialVersionUID = 2585421862335361364L;
+
 		public final double minCrossCorrelation;
 		public final double minVariance;
 
@@ -50,8 +55,10 @@ public class StitchingOptimizer implements Serializable
 		}
 	}
 
-	private static final class OptimizationResult implements Comparable< OptimizationResult >
+	static final class OptimizationResult implements Comparable< OptimizationResult >, Serializable
 	{
+		private static final long serialVersionUID = -1420512536287447541L;
+
 		public final OptimizationParameters optimizationParameters;
 		public final double maxAllowedError;
 		public final int fullGraphSize;
@@ -122,6 +129,26 @@ public class StitchingOptimizer implements Serializable
 		}
 	}
 
+	/**
+	 * Set of pairs retained by one or more parameter combinations.
+	 */
+	static final class OptimizationCandidate implements Serializable
+	{
+		private static final long serialVersionUID = 6071340968287536227L;
+
+		public final BitSet validPairs;
+		public final int numValidPairs;
+		public final int graphSize;
+		public final List< OptimizationParameters > optimizationParametersList = new ArrayList<>();
+
+		public OptimizationCandidate( final BitSet validPairs, final int graphSize )
+		{
+			this.validPairs = validPairs;
+			this.numValidPairs = validPairs.cardinality();
+			this.graphSize = graphSize;
+		}
+	}
+
 	private final StitchingJob job;
 	private transient final JavaSparkContext sparkContext;
 
@@ -161,7 +188,7 @@ public class StitchingOptimizer implements Serializable
 				System.out.println( "Stitching iteration " + iteration + ": Determined optimization parameters:  min.cross.correlation=" + bestOptimizationParameters.minCrossCorrelation + ", min.variance=" + bestOptimizationParameters.minVariance );
 
 				final Vector< ComparePair > comparePairs = createComparePairs( shifts, bestOptimizationParameters );
-				final GlobalOptimizationPerformer optimizationPerformer = new GlobalOptimizationPerformer();
+				final GlobalOptimizationPerformer optimizationPerformer = new GlobalOptimizationPerformer( job.getArgs().leastSquaresOptimizer() );
 				final List< ImagePlusTimePoint > optimized = optimizationPerformer.optimize( comparePairs, job.getParams(), null, logWriter );
 
 				// Update tile positions
@@ -240,62 +267,64 @@ public class StitchingOptimizer implements Serializable
 			for ( double testMinVariance = 0; testMinVariance <= 300; testMinVariance += 1 + ( int ) testMinVariance / 10 )
 				optimizationParametersList.add( new OptimizationParameters( testMinCrossCorrelation, testMinVariance ) );
 
+		final Broadcast< List< SerializablePairWiseStitchingResult[] > > broadcastedShifts = sparkContext.broadcast( shifts );
 		final Broadcast< StitchingParameters > broadcastedStitchingParameters = sparkContext.broadcast( job.getParams() );
-
-		final boolean noLeaves = job.getArgs().noLeaves();
+		final int fullGraphSize = job.getTiles( job.getMainChannelIndex() ).length;
+		final boolean leastSquaresOptimizer = job.getArgs().leastSquaresOptimizer();
 
 		GlobalOptimizationPerformer.suppressOutput();
 
-		final List< OptimizationResult > optimizationResultList = new ArrayList<>( sparkContext.parallelize( optimizationParametersList, optimizationParametersList.size() ).map( optimizationParameters ->
-			{
-				final Vector< ComparePair > comparePairs = createComparePairs( shifts, optimizationParameters );
-
-				if ( noLeaves && hasLeaves( comparePairs ) )
-					return null;
-
-				int validPairs = 0;
-				for ( final ComparePair pair : comparePairs )
-					if ( pair.getIsValidOverlap() )
-						++validPairs;
-
-				final GlobalOptimizationPerformer optimizationPerformer = new GlobalOptimizationPerformer();
-				optimizationPerformer.optimize( comparePairs, broadcastedStitchingParameters.value() );
-				final OptimizationResult optimizationResult = new OptimizationResult(
-						optimizationParameters,
-						maxAllowedError,
-						job.getTiles( job.getMainChannelIndex() ).length,
-						optimizationPerformer.remainingGraphSize,
-						validPairs,
-						optimizationPerformer.avgDisplacement,
-						optimizationPerformer.maxDisplacement );
-				return optimizationResult;
-			}
-		).collect() );
+		final ParameterScan scan = scanOptimizationParameters(
+				shifts,
+				optimizationParametersList,
+				maxAllowedError,
+				job.getArgs().noLeaves(),
+				Math.max( sparkContext.defaultParallelism(), 1 ),
+				batch -> sparkContext.parallelize( batch, batch.size() ).map( candidate ->
+					{
+						final Vector< ComparePair > comparePairs = createComparePairs( broadcastedShifts.value(), candidate.validPairs );
+						final GlobalOptimizationPerformer optimizationPerformer = new GlobalOptimizationPerformer( leastSquaresOptimizer );
+						optimizationPerformer.optimize( comparePairs, broadcastedStitchingParameters.value() );
+						return new OptimizationResult(
+								candidate.optimizationParametersList.get( 0 ),
+								maxAllowedError,
+								fullGraphSize,
+								optimizationPerformer.remainingGraphSize,
+								candidate.numValidPairs,
+								optimizationPerformer.avgDisplacement,
+								optimizationPerformer.maxDisplacement );
+					}
+				).collect()
+			);
 
 		GlobalOptimizationPerformer.restoreOutput();
+		broadcastedShifts.destroy();
 		broadcastedStitchingParameters.destroy();
 
-		if ( noLeaves )
+		if ( job.getArgs().noLeaves() )
 		{
-			final int sizeBefore = optimizationResultList.size();
-			optimizationResultList.removeAll( Collections.singleton( null ) );
-			final int sizeAfter = optimizationResultList.size();
 			System.out.println( "" );
 			System.out.println( "-----------" );
 			System.out.println( "no leaves mode ON" );
 			System.out.println( "" );
-			System.out.println( "pairs before: " + sizeBefore );
-			System.out.println( "pairs after: " + sizeAfter );
+			System.out.println( "pairs before: " + optimizationParametersList.size() );
+			System.out.println( "pairs after: " + ( optimizationParametersList.size() - scan.parametersWithLeaves ) );
 			System.out.println( "-----------" );
 			System.out.println( "" );
 		}
 
-		Collections.sort( optimizationResultList );
+		final int numCandidates = scan.numCandidates, evaluatedCandidates = scan.evaluatedCandidates, prunedParameters = scan.prunedParameters;
+		final List< OptimizationResult > optimizationResultList = scan.results;
+
+		System.out.println( String.format(
+				"Optimizer parameter scan: %d parameter combinations, %d distinct sets of pairs, %d sets optimized, %d sets (%d combinations) skipped",
+				optimizationParametersList.size(), numCandidates, evaluatedCandidates, scan.prunedCandidates.size(), prunedParameters ) );
 
 		if ( logWriter != null )
 		{
 			logWriter.println();
 			logWriter.println( "Scanning parameter space for the optimizer: min.cross.correlation and min.variance:" );
+			logWriter.println( "(" + optimizationParametersList.size() + " combinations, " + numCandidates + " distinct sets of pairs, " + evaluatedCandidates + " optimized, " + prunedParameters + " skipped)" );
 			logWriter.println();
 			for ( final OptimizationResult optimizationResult : optimizationResultList )
 				logWriter.println(
@@ -307,12 +336,251 @@ public class StitchingOptimizer implements Serializable
 						";  cross.corr=" + String.format( "%.2f", optimizationResult.optimizationParameters.minCrossCorrelation ) +
 						", variance=" + String.format( "%.2f", optimizationResult.optimizationParameters.minVariance )
 					);
+
+			if ( !scan.prunedCandidates.isEmpty() )
+			{
+				logWriter.println();
+				logWriter.println( "Skipped combinations that cannot produce a better result than the best one within the accepted error range:" );
+				for ( final OptimizationCandidate prunedCandidate : scan.prunedCandidates )
+					for ( final OptimizationParameters optimizationParameters : prunedCandidate.optimizationParametersList )
+						logWriter.println(
+								"graph<=" + prunedCandidate.graphSize +
+								", pairs=" + prunedCandidate.numValidPairs +
+								";  cross.corr=" + String.format( "%.2f", optimizationParameters.minCrossCorrelation ) +
+								", variance=" + String.format( "%.2f", optimizationParameters.minVariance )
+							);
+			}
 		}
 
 		return optimizationResultList.get( 0 ).optimizationParameters;
 	}
 
+	/**
+	 * Runs the optimizer for a batch of candidates and returns one result per candidate in the same order.
+	 */
+	@FunctionalInterface
+	static interface OptimizationCandidateEvaluator
+	{
+		List< OptimizationResult > evaluate( List< OptimizationCandidate > batch );
+	}
+
+	/**
+	 * Results of the parameter scan along with the counts for reporting.
+	 */
+	static final class ParameterScan
+	{
+		/** results for all evaluated parameter combinations sorted from best to worst (see {@link #compareResults(OptimizationResult, OptimizationResult)}) */
+		final List< OptimizationResult > results;
+		/** candidates that were not optimized because they cannot beat the best result */
+		final List< OptimizationCandidate > prunedCandidates;
+		final int numCandidates, evaluatedCandidates, prunedParameters, parametersWithLeaves;
+
+		ParameterScan( final List< OptimizationResult > results, final List< OptimizationCandidate > prunedCandidates, final int numCandidates, final int evaluatedCandidates, final int parametersWithLeaves )
+		{
+			this.results = results;
+			this.prunedCandidates = prunedCandidates;
+			this.numCandidates = numCandidates;
+			this.evaluatedCandidates = evaluatedCandidates;
+			this.parametersWithLeaves = parametersWithLeaves;
+
+			int prunedParameters = 0;
+			for ( final OptimizationCandidate prunedCandidate : prunedCandidates )
+				prunedParameters += prunedCandidate.optimizationParametersList.size();
+			this.prunedParameters = prunedParameters;
+		}
+	}
+
+	/**
+	 * Evaluates the parameter combinations without running the optimizer more often than needed:
+	 * the combinations that retain the same set of pairs are optimized once, the candidates are evaluated in batches
+	 * starting from the largest graph, and the sweep stops once the remaining candidates cannot beat the best result within the accepted error range.
+	 */
+	static ParameterScan scanOptimizationParameters(
+			final List< SerializablePairWiseStitchingResult[] > shifts,
+			final List< OptimizationParameters > optimizationParametersList,
+			final double maxAllowedError,
+			final boolean noLeaves,
+			final int batchSize,
+			final OptimizationCandidateEvaluator evaluator )
+	{
+		// parameter combinations that retain the same set of pairs lead to the same solution, so the optimization is done once for each such set
+		final Map< BitSet, OptimizationCandidate > candidatesMap = new LinkedHashMap<>();
+		for ( final OptimizationParameters optimizationParameters : optimizationParametersList )
+		{
+			final BitSet validPairs = getValidPairs( shifts, optimizationParameters );
+			if ( !candidatesMap.containsKey( validPairs ) )
+				candidatesMap.put( validPairs, new OptimizationCandidate( validPairs, getLargestGraphSize( shifts, validPairs ) ) );
+			candidatesMap.get( validPairs ).optimizationParametersList.add( optimizationParameters );
+		}
+
+		final List< OptimizationCandidate > candidates = new ArrayList<>();
+		int parametersWithLeaves = 0;
+		for ( final OptimizationCandidate candidate : candidatesMap.values() )
+		{
+			if ( noLeaves && hasLeaves( shifts, candidate.validPairs ) )
+				parametersWithLeaves += candidate.optimizationParametersList.size();
+			else
+				candidates.add( candidate );
+		}
+
+		// the size of the resulting graph is known before the optimization, so the most promising candidates are evaluated first
+		final boolean considerRemainingPairs = Math.round( maxAllowedError ) <= 10;
+		Collections.sort( candidates, ( c1, c2 ) -> -compareGraphs( c1.graphSize, c1.numValidPairs, c2.graphSize, c2.numValidPairs, considerRemainingPairs ) );
+
+		final List< OptimizationResult > optimizationResultList = new ArrayList<>();
+		final List< OptimizationCandidate > prunedCandidates = new ArrayList<>();
+		OptimizationResult bestResultWithinError = null;
+		int evaluatedCandidates = 0;
+		while ( evaluatedCandidates < candidates.size() )
+		{
+			// stop when the remaining candidates cannot produce a better result than the best one found within the accepted error range
+			if ( bestResultWithinError != null )
+			{
+				final OptimizationCandidate nextCandidate = candidates.get( evaluatedCandidates );
+				if ( compareGraphs( nextCandidate.graphSize, nextCandidate.numValidPairs, bestResultWithinError.remainingGraphSize, bestResultWithinError.remainingPairs, considerRemainingPairs ) < 0 )
+				{
+					prunedCandidates.addAll( candidates.subList( evaluatedCandidates, candidates.size() ) );
+					break;
+				}
+			}
+
+			final List< OptimizationCandidate > batch = new ArrayList<>( candidates.subList( evaluatedCandidates, Math.min( evaluatedCandidates + batchSize, candidates.size() ) ) );
+			evaluatedCandidates += batch.size();
+
+			final List< OptimizationResult > batchResults = evaluator.evaluate( batch );
+			for ( int i = 0; i < batch.size(); ++i )
+			{
+				final OptimizationResult batchResult = batchResults.get( i );
+				for ( final OptimizationParameters optimizationParameters : batch.get( i ).optimizationParametersList )
+					optimizationResultList.add( new OptimizationResult(
+							optimizationParameters,
+							maxAllowedError,
+							batchResult.fullGraphSize,
+							batchResult.remainingGraphSize,
+							batchResult.remainingPairs,
+							batchResult.avgDisplacement,
+							batchResult.maxDisplacement ) );
+
+				if ( batchResult.maxDisplacement <= maxAllowedError && ( bestResultWithinError == null || batchResult.compareTo( bestResultWithinError ) < 0 ) )
+					bestResultWithinError = batchResult;
+			}
+		}
+
+		// the results are no longer produced in the order of the parameter grid, so the ties are broken explicitly
+		Collections.sort( optimizationResultList, StitchingOptimizer::compareResults );
+		return new ParameterScan( optimizationResultList, prunedCandidates, candidatesMap.size(), evaluatedCandidates, parametersWithLeaves );
+	}
+
+	/**
+	 * Orders the results by {@link OptimizationResult#compareTo(OptimizationResult)}, and the results with the same score by their thresholds
+	 * (min.cross.correlation first, then min.variance, both ascending). This is the order of the parameter grid,
+	 * so the same combination is chosen as by the exhaustive sweep that sorted the results of the entire grid with a stable sort.
+	 */
+	static int compareResults( final OptimizationResult result1, final OptimizationResult result2 )
+	{
+		final int scoreCompare = result1.compareTo( result2 );
+		if ( scoreCompare != 0 )
+			return scoreCompare;
+
+		final int minCrossCorrelationCompare = Double.compare( result1.optimizationParameters.minCrossCorrelation, result2.optimizationParameters.minCrossCorrelation );
+		if ( minCrossCorrelationCompare != 0 )
+			return minCrossCorrelationCompare;
+
+		return Double.compare( result1.optimizationParameters.minVariance, result2.optimizationParameters.minVariance );
+	}
+
+	/**
+	 * Compares the graphs in the same way as {@link OptimizationResult#compareTo(OptimizationResult)} does for the results within the accepted error range.
+	 *
+	 * @return positive value if the first graph is better
+	 */
+	private static int compareGraphs( final int graphSize1, final int numPairs1, final int graphSize2, final int numPairs2, final boolean considerRemainingPairs )
+	{
+		if ( graphSize1 != graphSize2 )
+			return Integer.compare( graphSize1, graphSize2 );
+		return considerRemainingPairs ? Integer.compare( numPairs1, numPairs2 ) : 0;
+	}
+
+	/**
+	 * @return flags for all pairwise shifts (in the order of iteration over {@code shifts}) that are used with the given parameters
+	 */
+	private static BitSet getValidPairs( final List< SerializablePairWiseStitchingResult[] > shifts, final OptimizationParameters optimizationParameters )
+	{
+		final BitSet validPairs = new BitSet();
+		int pairIndex = 0;
+		for ( final SerializablePairWiseStitchingResult[] pairMulti : shifts )
+		{
+			for ( final SerializablePairWiseStitchingResult pair : pairMulti )
+			{
+				validPairs.set( pairIndex++,
+						pair.getIsValidOverlap()
+						&& pair.getCrossCorrelation() > optimizationParameters.minCrossCorrelation
+						&& pair.getVariance() != null && pair.getVariance().doubleValue() > optimizationParameters.minVariance
+					);
+			}
+		}
+		return validPairs;
+	}
+
+	/**
+	 * @return number of tiles in the largest connected graph formed by the given pairs, same as the size of the graph that the optimizer uses
+	 */
+	private static int getLargestGraphSize( final List< SerializablePairWiseStitchingResult[] > shifts, final BitSet validPairs )
+	{
+		final Map< Integer, Integer > parents = new HashMap<>();
+		int pairIndex = 0;
+		for ( final SerializablePairWiseStitchingResult[] pairMulti : shifts )
+		{
+			for ( final SerializablePairWiseStitchingResult pair : pairMulti )
+			{
+				if ( validPairs.get( pairIndex++ ) )
+				{
+					final int root1 = findRoot( parents, pair.getTilePair().getA().getIndex() );
+					final int root2 = findRoot( parents, pair.getTilePair().getB().getIndex() );
+					if ( root1 != root2 )
+						parents.put( root1, root2 );
+				}
+			}
+		}
+
+		final Map< Integer, Integer > graphSizes = new HashMap<>();
+		int largestGraphSize = 0;
+		for ( final Integer tileIndex : new ArrayList<>( parents.keySet() ) )
+		{
+			final int root = findRoot( parents, tileIndex );
+			final int graphSize = graphSizes.getOrDefault( root, 0 ) + 1;
+			graphSizes.put( root, graphSize );
+			largestGraphSize = Math.max( graphSize, largestGraphSize );
+		}
+		return largestGraphSize;
+	}
+
+	private static int findRoot( final Map< Integer, Integer > parents, final int tileIndex )
+	{
+		if ( !parents.containsKey( tileIndex ) )
+			parents.put( tileIndex, tileIndex );
+
+		int root = tileIndex;
+		while ( parents.get( root ) != root )
+			root = parents.get( root );
+
+		// path compression
+		int node = tileIndex;
+		while ( node != root )
+		{
+			final int next = parents.get( node );
+			parents.put( node, root );
+			node = next;
+		}
+		return root;
+	}
+
 	private Vector< ComparePair > createComparePairs( final List< SerializablePairWiseStitchingResult[] > shifts, final OptimizationParameters optimizationParameters )
+	{
+		return createComparePairs( shifts, getValidPairs( shifts, optimizationParameters ) );
+	}
+
+	private Vector< ComparePair > createComparePairs( final List< SerializablePairWiseStitchingResult[] > shifts, final BitSet validPairs )
 	{
 		// Create fake tile objects so that they don't hold any image data
 		// required by the GlobalOptimization
@@ -334,6 +602,7 @@ public class StitchingOptimizer implements Serializable
 		}
 
 		final Vector< ComparePair > comparePairs = new Vector<>();
+		int pairIndex = 0;
 		for ( final SerializablePairWiseStitchingResult[] pairMulti : shifts )
 		{
 			for ( final SerializablePairWiseStitchingResult pair : pairMulti )
@@ -344,11 +613,7 @@ public class StitchingOptimizer implements Serializable
 
 				comparePair.setRelativeShift( pair.getOffset() == null ? null : pair.getOffset().clone() );
 				comparePair.setCrossCorrelation( pair.getCrossCorrelation() );
-				comparePair.setIsValidOverlap(
-						pair.getIsValidOverlap()
-						&& pair.getCrossCorrelation() > optimizationParameters.minCrossCorrelation
-						&& pair.getVariance() != null && pair.getVariance().doubleValue() > optimizationParameters.minVariance
-					);
+				comparePair.setIsValidOverlap( validPairs.get( pairIndex++ ) );
 
 				comparePairs.addElement( comparePair );
 			}
@@ -357,20 +622,24 @@ public class StitchingOptimizer implements Serializable
 		return comparePairs;
 	}
 
-	private boolean hasLeaves( final Vector< ComparePair > comparePairs )
+	private static boolean hasLeaves( final List< SerializablePairWiseStitchingResult[] > shifts, final BitSet validPairs )
 	{
 		final Map< Integer, Set< Integer > > connections = new TreeMap<>();
-		for ( final ComparePair comparePair : comparePairs )
+		int pairIndex = 0;
+		for ( final SerializablePairWiseStitchingResult[] pairMulti : shifts )
 		{
-			if ( !comparePair.getIsValidOverlap() )
-				continue;
-
-			final int[] ind = new int[] { comparePair.getTile1().getImpId(), comparePair.getTile2().getImpId() };
-			for ( int i = 0; i < 2; ++i )
+			for ( final SerializablePairWiseStitchingResult pair : pairMulti )
 			{
-				if ( !connections.containsKey( ind[ i ] ) )
-					connections.put( ind[ i ], new TreeSet<>() );
-				connections.get( ind[ i ] ).add( ind[ ( i + 1 ) % 2 ] );
+				if ( !validPairs.get( pairIndex++ ) )
+					continue;
+
+				final int[] ind = new int[] { pair.getTilePair().getA().getIndex(), pair.getTilePair().getB().getIndex() };
+				for ( int i = 0; i < 2; ++i )
+				{
+					if ( !connections.containsKey( ind[ i ] ) )
+						connections.put( ind[ i ], new TreeSet<>() );
+					connections.get( ind[ i ] ).add( ind[ ( i + 1 ) % 2 ] );
+				}
 			}
 		}
 		for ( final Set< Integer > value : connections.values() )
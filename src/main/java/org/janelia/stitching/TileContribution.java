@@ -0,0 +1,60 @@
+package org.janelia.stitching;
+
+import java.io.Serializable;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Interpolated (and flatfield-corrected) pixel values of a single tile within an output cell.
+ * Used for tile-centric fusion where every tile is loaded once and its contributions are sent to the cells it intersects.
+ *
+ * The values are stored for the intersection of the tile with the cell only, in the coordinate space of the cell (relative to its min).
+ * Blending weights and distances to the tile borders are not stored since they can be computed from the tile position and size.
+ */
+public class TileContribution implements Serializable
+{
+	private static final long serialVersionUID = -3563493526658297946L;
+
+	private final TileInfo tile;
+	private final int order;
+	private final long[] min, max;
+	private final float[] values;
+
+	/**
+	 * @param tile
+	 * 			the tile that contributes to the cell
+	 * @param order
+	 * 			position of the tile in the tile configuration, contributions are accumulated in this order
+	 * @param intersection
+	 * 			intersection of the tile with the cell in the coordinate space of the cell
+	 * @param values
+	 * 			pixel values within the intersection in flat iteration order
+	 */
+	public TileContribution( final TileInfo tile, final int order, final Interval intersection, final float[] values )
+	{
+		this.tile = tile;
+		this.order = order;
+		this.min = new long[ intersection.numDimensions() ];
+		this.max = new long[ intersection.numDimensions() ];
+		intersection.min( min );
+		intersection.max( max );
+		this.values = values;
+	}
+
+	public TileInfo getTile() { return tile; }
+	public int getOrder() { return order; }
+	public Interval getIntersection() { return new FinalInterval( min, max ); }
+
+	public RandomAccessibleInterval< FloatType > getValues()
+	{
+		final long[] dimensions = new long[ min.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			dimensions[ d ] = max[ d ] - min[ d ] + 1;
+		return Views.translate( ArrayImgs.floats( values, dimensions ), min );
+	}
+}
@@ -0,0 +1,213 @@
+package org.janelia.stitching;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
+import org.janelia.dataaccess.DataProvider;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * Executor-local cache of tile images bounded by the total size in bytes.
+ * Least recently used tiles are evicted first when the capacity is exceeded.
+ *
+ * There is a single instance per JVM, so all tasks running within the same executor share the loaded tiles.
+ * Concurrent requests for the same tile are coalesced so that the tile is loaded only once.
+ *
+ * Lazily loaded images (such as N5 datasets) are copied into memory before they are cached,
+ * so the size of every cached image is the amount of memory that it actually holds.
+ */
+public class TileImageCache
+{
+	@FunctionalInterface
+	public static interface TileImageLoader< T >
+	{
+		RandomAccessibleInterval< T > load() throws IOException;
+	}
+
+	/**
+	 * Spark accumulators for collecting cache statistics across all executors.
+	 */
+	public static class Accumulators implements Serializable
+	{
+		private static final long serialVersionUID = 4526338147260325785L;
+
+		public final LongAccumulator hits, misses, evictions;
+
+		public Accumulators( final JavaSparkContext sparkContext )
+		{
+			hits = sparkContext.sc().longAccumulator( "tile cache hits" );
+			misses = sparkContext.sc().longAccumulator( "tile cache misses" );
+			evictions = sparkContext.sc().longAccumulator( "tile cache evictions" );
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "hits=%d, misses=%d, evictions=%d", hits.value(), misses.value(), evictions.value() );
+		}
+	}
+
+	private static TileImageCache instance;
+
+	/**
+	 * Returns the executor-wide cache instance. If the instance already exists, its capacity is updated to {@code maxBytes}.
+	 */
+	public static synchronized TileImageCache getInstance( final long maxBytes )
+	{
+		if ( instance == null )
+			instance = new TileImageCache( maxBytes );
+		else
+			instance.setMaxBytes( maxBytes );
+		return instance;
+	}
+
+	private final Map< String, RandomAccessibleInterval< ? > > images = new LinkedHashMap<>( 16, 0.75f, true );
+	private final Map< String, Long > imageBytes = new ConcurrentHashMap<>();
+	private final Map< String, Object > loadingLocks = new ConcurrentHashMap<>();
+
+	private long maxBytes;
+	private long currentBytes;
+
+	public TileImageCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public synchronized long getCurrentBytes()
+	{
+		return currentBytes;
+	}
+
+	public synchronized int size()
+	{
+		return images.size();
+	}
+
+	public synchronized void setMaxBytes( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		evict( null );
+	}
+
+	public synchronized void clear()
+	{
+		images.clear();
+		imageBytes.clear();
+		currentBytes = 0;
+	}
+
+	/**
+	 * Loads the tile image through {@link TileLoader} or returns the cached instance if the tile has been loaded before.
+	 */
+	public < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > loadTile(
+			final TileInfo tile,
+			final DataProvider dataProvider,
+			final Accumulators accumulators ) throws IOException
+	{
+		return get( tile.getFilePath(), () -> TileLoader.loadTile( tile, dataProvider ), accumulators );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > get(
+			final String key,
+			final TileImageLoader< T > loader,
+			final Accumulators accumulators ) throws IOException
+	{
+		synchronized ( this )
+		{
+			final RandomAccessibleInterval< ? > cached = images.get( key );
+			if ( cached != null )
+			{
+				if ( accumulators != null )
+					accumulators.hits.add( 1 );
+				return ( RandomAccessibleInterval< T > ) cached;
+			}
+		}
+
+		// only one thread loads a particular tile, others wait for it and then pick it up from the cache
+		final Object loadingLock = loadingLocks.computeIfAbsent( key, k -> new Object() );
+		synchronized ( loadingLock )
+		{
+			synchronized ( this )
+			{
+				final RandomAccessibleInterval< ? > cached = images.get( key );
+				if ( cached != null )
+				{
+					if ( accumulators != null )
+						accumulators.hits.add( 1 );
+					return ( RandomAccessibleInterval< T > ) cached;
+				}
+			}
+
+			if ( accumulators != null )
+				accumulators.misses.add( 1 );
+
+			try
+			{
+				final RandomAccessibleInterval< T > loadedImg = loader.load();
+				if ( loadedImg == null )
+					return null;
+
+				// do not cache images that would not fit into the cache entirely
+				final long bytes = getSizeInBytes( loadedImg );
+				if ( bytes > getMaxBytes() )
+					return loadedImg;
+
+				final RandomAccessibleInterval< T > img = loadedImg instanceof CachedCellImg ? TileLoader.copyIntoMemory( loadedImg ) : loadedImg;
+				synchronized ( this )
+				{
+					images.put( key, img );
+					imageBytes.put( key, bytes );
+					currentBytes += bytes;
+					evict( accumulators );
+				}
+				return img;
+			}
+			finally
+			{
+				// the threads that are already waiting on the lock check the cache again once they acquire it
+				loadingLocks.remove( key, loadingLock );
+			}
+		}
+	}
+
+	int numLoadingLocks()
+	{
+		return loadingLocks.size();
+	}
+
+	private synchronized void evict( final Accumulators accumulators )
+	{
+		for ( final Iterator< Map.Entry< String, RandomAccessibleInterval< ? > > > it = images.entrySet().iterator(); it.hasNext() && currentBytes > maxBytes; )
+		{
+			final String key = it.next().getKey();
+			it.remove();
+			currentBytes -= imageBytes.remove( key );
+			if ( accumulators != null )
+				accumulators.evictions.add( 1 );
+		}
+	}
+
+	public static < T extends NativeType< T > & RealType< T > > long getSizeInBytes( final RandomAccessibleInterval< T > img )
+	{
+		final int bitsPerPixel = Util.getTypeFromInterval( img ).getBitsPerPixel();
+		return Intervals.numElements( img ) * Math.max( bitsPerPixel / 8, 1 );
+	}
+}
@@ -4,17 +4,25 @@ import java.io.IOException;
 import java.nio.file.Paths;
 
 import org.janelia.dataaccess.DataProvider;
+import org.janelia.dataaccess.DataProviderType;
 import org.janelia.dataaccess.PathResolver;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.util.ImageImporter;
+import org.janelia.util.LazyTiffReader;
 
 import ij.ImagePlus;
+import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.imageplus.ImagePlusImg;
+import net.imglib2.img.imageplus.ImagePlusImgFactory;
 import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
 public class TileLoader
 {
@@ -72,10 +80,47 @@ public class TileLoader
 		// if it is a file, try to read it as an image file
 		if ( dataProvider.fileExists( tile.getFilePath() ) )
 		{
+			// local .tif images are opened lazily so that only the slices intersecting the accessed region are read.
+			// Every slice is loaded with a separate request, and skipping to the slice offset is only cheap for local files:
+			// object stores send the data up to the offset (or the whole object), so cloud tiles are read in a single pass instead
+			if ( isTiff( tile.getFilePath() ) && dataProvider.getType() == DataProviderType.FILESYSTEM )
+			{
+				final RandomAccessibleInterval< T > img = LazyTiffReader.open( () -> dataProvider.getInputStream( tile.getFilePath() ) );
+				if ( img != null )
+					return img;
+			}
+
 			final ImagePlus imp = ImageImporter.openImage( tile.getFilePath() );
 			return ImagePlusImgs.from( imp );
 		}
 
 		throw new IOException( "Tile image does not exist: " + tile.getFilePath() );
 	}
+
+	/**
+	 * Loads the tile image and copies it into memory, so that the pixels are read from the storage only once
+	 * even if the image is accessed multiple times.
+	 */
+	public static < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > loadTileIntoMemory( final TileInfo tile, final DataProvider dataProvider ) throws IOException
+	{
+		return copyIntoMemory( loadTile( tile, dataProvider ) );
+	}
+
+	/**
+	 * Copies the image into memory, so that the pixels of a lazily loaded image are read only once.
+	 */
+	public static < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > copyIntoMemory( final RandomAccessibleInterval< T > img )
+	{
+		final ImagePlusImg< T, ? > imgInMemory = new ImagePlusImgFactory< T >().create( Intervals.dimensionsAsLongArray( img ), Util.getTypeFromInterval( img ).createVariable() );
+		final Cursor< T > imgCursor = Views.flatIterable( img ).cursor();
+		final Cursor< T > imgInMemoryCursor = Views.flatIterable( imgInMemory ).cursor();
+		while ( imgInMemoryCursor.hasNext() )
+			imgInMemoryCursor.next().set( imgCursor.next() );
+		return Views.translate( imgInMemory, Intervals.minAsLongArray( img ) );
+	}
+
+	private static boolean isTiff( final String path )
+	{
+		return path.endsWith( ".tif" ) || path.endsWith( ".tiff" );
+	}
 }
@@ -2,7 +2,13 @@ package org.janelia.stitching;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.function.LongConsumer;
 
 import net.imglib2.Dimensions;
@@ -77,12 +83,56 @@ public class TileOperations
 	 */
 	public static ArrayList< TilePair > findOverlappingTiles( final TileInfo[] tiles )
 	{
-		final ArrayList< TilePair > overlappingTiles = new ArrayList<>();
-		for ( int i = 0; i < tiles.length; i++ )
-			for ( int j = i + 1; j < tiles.length; j++ )
-				if ( overlap( tiles[ i ], tiles[ j ] ) )
-					overlappingTiles.add( new TilePair( tiles[ i ], tiles[ j ] ) );
-		return overlappingTiles;
+		return new TileSpatialIndex( tiles ).findOverlappingTiles();
+	}
+
+	/**
+	 * Reorders the pairs in a way such that the pairs sharing a tile are next to each other.
+	 * Tiles are visited in the spatial order (the last dimension is the slowest), and all not yet visited pairs of the current tile are appended.
+	 * When the resulting list is split into contiguous partitions, every tile is referenced by only a few of them.
+	 *
+	 * @return a new list containing the same pairs in the locality-preserving order
+	 */
+	public static List< TilePair > sortPairsByTileLocality( final List< TilePair > pairs )
+	{
+		final Map< Integer, List< TilePair > > tilePairs = new TreeMap<>();
+		final Map< Integer, TileInfo > tiles = new TreeMap<>();
+		for ( final TilePair pair : pairs )
+		{
+			for ( final TileInfo tile : pair.toArray() )
+			{
+				if ( !tilePairs.containsKey( tile.getIndex() ) )
+					tilePairs.put( tile.getIndex(), new ArrayList<>() );
+				tilePairs.get( tile.getIndex() ).add( pair );
+				tiles.put( tile.getIndex(), tile );
+			}
+		}
+
+		final List< TileInfo > sortedTiles = new ArrayList<>( tiles.values() );
+		Collections.sort( sortedTiles, new Comparator< TileInfo >()
+			{
+				@Override
+				public int compare( final TileInfo t1, final TileInfo t2 )
+				{
+					for ( int d = t1.numDimensions() - 1; d >= 0; --d )
+					{
+						final int cmp = Double.compare( t1.getPosition( d ), t2.getPosition( d ) );
+						if ( cmp != 0 )
+							return cmp;
+					}
+					return Integer.compare( t1.getIndex(), t2.getIndex() );
+				}
+			} );
+
+		final Set< TilePair > visitedPairs = Collections.newSetFromMap( new IdentityHashMap<>() );
+		final List< TilePair > sortedPairs = new ArrayList<>( pairs.size() );
+		for ( final TileInfo tile : sortedTiles )
+			for ( final TilePair pair : tilePairs.get( tile.getIndex() ) )
+				if ( visitedPairs.add( pair ) )
+					sortedPairs.add( pair );
+
+		assert sortedPairs.size() == pairs.size();
+		return sortedPairs;
 	}
 
 	/**
@@ -0,0 +1,196 @@
+package org.janelia.stitching;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.imglib2.RealInterval;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Uniform grid index over tile bounding boxes for fast overlap queries.
+ *
+ * The space is divided into bins of the size of the largest tile, so every tile is registered in at most 2^n bins,
+ * and an interval query only has to test the tiles registered in the bins that the interval touches.
+ * The results are returned in the same order as the tiles are given in the array, and use the same overlap criterion as
+ * {@link TileOperations#overlap(TileInfo, TileInfo)}, so they are identical to the results of the linear scans in {@link TileOperations}.
+ *
+ * The index is serializable and can be broadcast to the executors.
+ */
+public class TileSpatialIndex implements Serializable
+{
+	private static final long serialVersionUID = 4510744291735693781L;
+
+	private final TileInfo[] tiles;
+	private final double[] origin;
+	private final double[] binSize;
+	private final long[] gridDimensions;
+	private final Map< Long, int[] > bins;
+
+	public TileSpatialIndex( final TileInfo[] tiles )
+	{
+		this.tiles = tiles;
+
+		final int numDimensions = tiles.length != 0 ? tiles[ 0 ].numDimensions() : 0;
+		origin = new double[ numDimensions ];
+		binSize = new double[ numDimensions ];
+		gridDimensions = new long[ numDimensions ];
+
+		final double[] max = new double[ numDimensions ];
+		Arrays.fill( origin, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+		Arrays.fill( binSize, 1 );
+		for ( final TileInfo tile : tiles )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				origin[ d ] = Math.min( tile.realMin( d ), origin[ d ] );
+				max[ d ] = Math.max( tile.realMax( d ), max[ d ] );
+				binSize[ d ] = Math.max( tile.getSize( d ), binSize[ d ] );
+			}
+		}
+		for ( int d = 0; d < numDimensions; ++d )
+			gridDimensions[ d ] = ( long ) Math.floor( ( max[ d ] - origin[ d ] ) / binSize[ d ] ) + 1;
+
+		// tiles are added in ascending order, so the lists in every bin remain sorted
+		final Map< Long, List< Integer > > binLists = new HashMap<>();
+		final long[] binMin = new long[ numDimensions ], binMax = new long[ numDimensions ], binPosition = new long[ numDimensions ];
+		for ( int i = 0; i < tiles.length; ++i )
+		{
+			getBinRange( tiles[ i ], binMin, binMax );
+			final LocalizingIntervalIterator binIterator = new LocalizingIntervalIterator( binMin, binMax );
+			while ( binIterator.hasNext() )
+			{
+				binIterator.fwd();
+				binIterator.localize( binPosition );
+				final long binIndex = IntervalIndexer.positionToIndex( binPosition, gridDimensions );
+				if ( !binLists.containsKey( binIndex ) )
+					binLists.put( binIndex, new ArrayList<>() );
+				binLists.get( binIndex ).add( i );
+			}
+		}
+
+		bins = new HashMap<>();
+		for ( final Map.Entry< Long, List< Integer > > entry : binLists.entrySet() )
+		{
+			final int[] binTiles = new int[ entry.getValue().size() ];
+			for ( int j = 0; j < binTiles.length; ++j )
+				binTiles[ j ] = entry.getValue().get( j );
+			bins.put( entry.getKey(), binTiles );
+		}
+	}
+
+	public TileInfo[] getTiles()
+	{
+		return tiles;
+	}
+
+	/**
+	 * @return a list of tiles lying within specified subregion (overlapping with it)
+	 */
+	public ArrayList< TileInfo > findTilesWithinSubregion( final RealInterval subregion )
+	{
+		final ArrayList< TileInfo > tilesWithinSubregion = new ArrayList<>();
+		for ( final int i : findTileIndexesWithinSubregion( subregion, -1 ) )
+			tilesWithinSubregion.add( tiles[ i ] );
+		return tilesWithinSubregion;
+	}
+
+	/**
+	 * @return a list of overlapping pairs in the same order as the full pairwise enumeration
+	 */
+	public ArrayList< TilePair > findOverlappingTiles()
+	{
+		final ArrayList< TilePair > overlappingTiles = new ArrayList<>();
+		for ( int i = 0; i < tiles.length; ++i )
+			for ( final int j : findTileIndexesWithinSubregion( tiles[ i ], i ) )
+				overlappingTiles.add( new TilePair( tiles[ i ], tiles[ j ] ) );
+		return overlappingTiles;
+	}
+
+	/**
+	 * @return sorted positions in the tile array of the tiles that overlap with the subregion and come after {@code afterIndex}
+	 */
+	private int[] findTileIndexesWithinSubregion( final RealInterval subregion, final int afterIndex )
+	{
+		if ( tiles.length == 0 )
+			return new int[ 0 ];
+
+		final int numDimensions = gridDimensions.length;
+		final long[] binMin = new long[ numDimensions ], binMax = new long[ numDimensions ];
+		if ( !getBinRange( subregion, binMin, binMax ) )
+			return new int[ 0 ];
+
+		long numBins = 1;
+		for ( int d = 0; d < numDimensions; ++d )
+			numBins *= binMax[ d ] - binMin[ d ] + 1;
+
+		final int[] candidates;
+		if ( numBins > tiles.length )
+		{
+			// the subregion is large compared to the tiles, scanning all of them is cheaper
+			candidates = new int[ tiles.length ];
+			for ( int i = 0; i < candidates.length; ++i )
+				candidates[ i ] = i;
+		}
+		else
+		{
+			final List< int[] > binTiles = new ArrayList<>();
+			int numCandidates = 0;
+			final long[] binPosition = new long[ numDimensions ];
+			final LocalizingIntervalIterator binIterator = new LocalizingIntervalIterator( binMin, binMax );
+			while ( binIterator.hasNext() )
+			{
+				binIterator.fwd();
+				binIterator.localize( binPosition );
+				final int[] bin = bins.get( IntervalIndexer.positionToIndex( binPosition, gridDimensions ) );
+				if ( bin != null )
+				{
+					binTiles.add( bin );
+					numCandidates += bin.length;
+				}
+			}
+
+			final int[] allCandidates = new int[ numCandidates ];
+			int offset = 0;
+			for ( final int[] bin : binTiles )
+			{
+				System.arraycopy( bin, 0, allCandidates, offset, bin.length );
+				offset += bin.length;
+			}
+			Arrays.sort( allCandidates );
+			candidates = allCandidates;
+		}
+
+		final int[] result = new int[ candidates.length ];
+		int numResults = 0;
+		for ( int k = 0; k < candidates.length; ++k )
+		{
+			final int i = candidates[ k ];
+			if ( i > afterIndex && ( k == 0 || i != candidates[ k - 1 ] ) && TileOperations.overlap( tiles[ i ], subregion ) )
+				result[ numResults++ ] = i;
+		}
+		return Arrays.copyOf( result, numResults );
+	}
+
+	/**
+	 * Finds the range of bins touched by the interval clamped to the grid.
+	 *
+	 * @return false if the interval is outside of the grid
+	 */
+	private boolean getBinRange( final RealInterval interval, final long[] binMin, final long[] binMax )
+	{
+		for ( int d = 0; d < gridDimensions.length; ++d )
+		{
+			binMin[ d ] = Math.max( ( long ) Math.floor( ( interval.realMin( d ) - origin[ d ] ) / binSize[ d ] ), 0 );
+			binMax[ d ] = Math.min( ( long ) Math.floor( ( interval.realMax( d ) - origin[ d ] ) / binSize[ d ] ), gridDimensions[ d ] - 1 );
+			if ( binMin[ d ] > binMax[ d ] )
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,312 @@
+package org.janelia.stitching;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+
+/**
+ * Direct solver for the global optimization of tiles with translation models.
+ *
+ * For translations, minimizing the weighted squared displacements of the point matches is a linear least-squares problem
+ * whose normal equations are defined by the weighted graph Laplacian of the tiles (one system per dimension).
+ * The systems are solved using the conjugate gradient method with a Jacobi preconditioner.
+ * The fixed tiles keep their positions. If a connected graph of tiles does not contain any fixed tiles, its first tile is kept in place.
+ * If the residual does not reach the tolerance within the iteration limit, a warning is printed and {@link #hasConverged()} returns false.
+ *
+ * The errors are computed in the same way as in {@link mpicbg.models.TileConfiguration}:
+ * the error of a tile is the weighted average displacement of its matches, and the average and max errors are taken over all tiles.
+ */
+public class TranslationLeastSquaresSolver
+{
+	private static final double TOLERANCE = 1e-10;
+
+	private final List< Tile< ? > > tiles;
+	private final int numDimensions;
+
+	// sparse representation of the Laplacian: for every tile, indexes of the matched tiles and match weights
+	private final int[][] neighbors;
+	private final double[][] weights;
+	private final double[] diagonal;
+	private final double[][] rhs;
+	private final boolean[] pinned;
+
+	private double avgError, maxError;
+	private int iterations;
+	private boolean converged;
+
+	public TranslationLeastSquaresSolver( final Collection< ? extends Tile< ? > > tiles, final Set< ? extends Tile< ? > > fixedTiles )
+	{
+		this.tiles = new ArrayList<>( tiles );
+
+		final Map< Tile< ? >, Integer > tileIndexes = new IdentityHashMap<>();
+		final Map< Point, Integer > pointOwners = new IdentityHashMap<>();
+		for ( int i = 0; i < this.tiles.size(); ++i )
+		{
+			tileIndexes.put( this.tiles.get( i ), i );
+			for ( final PointMatch match : this.tiles.get( i ).getMatches() )
+				pointOwners.put( match.getP1(), i );
+		}
+
+		numDimensions = this.tiles.isEmpty() ? 0 : getTranslation( this.tiles.get( 0 ) ).length;
+		for ( final Tile< ? > tile : this.tiles )
+			if ( getTranslation( tile ).length != numDimensions )
+				throw new IllegalArgumentException( "All tiles should have translation models of the same dimensionality" );
+		neighbors = new int[ this.tiles.size() ][];
+		weights = new double[ this.tiles.size() ][];
+		diagonal = new double[ this.tiles.size() ];
+		rhs = new double[ numDimensions ][ this.tiles.size() ];
+		pinned = new boolean[ this.tiles.size() ];
+
+		// every match defines an equation x_tile + p1 = x_other + p2
+		// the matches are stored by both tiles (with swapped points), so each tile builds its own row of the normal equations
+		for ( int i = 0; i < this.tiles.size(); ++i )
+		{
+			final Set< PointMatch > matches = this.tiles.get( i ).getMatches();
+			neighbors[ i ] = new int[ matches.size() ];
+			weights[ i ] = new double[ matches.size() ];
+			int k = 0;
+			for ( final PointMatch match : matches )
+			{
+				final Integer other = pointOwners.get( match.getP2() );
+				if ( other == null )
+					throw new IllegalArgumentException( "Tile match refers to a tile that is not included in the configuration" );
+
+				final double weight = match.getWeight();
+				final double[] p1 = match.getP1().getL(), p2 = match.getP2().getL();
+				neighbors[ i ][ k ] = other;
+				weights[ i ][ k ] = weight;
+				diagonal[ i ] += weight;
+				for ( int d = 0; d < numDimensions; ++d )
+					rhs[ d ][ i ] += weight * ( p2[ d ] - p1[ d ] );
+				++k;
+			}
+		}
+
+		for ( final Tile< ? > fixedTile : fixedTiles )
+			if ( tileIndexes.containsKey( fixedTile ) )
+				pinned[ tileIndexes.get( fixedTile ) ] = true;
+		pinUnconstrainedGraphs();
+	}
+
+	/**
+	 * Solves the system for every dimension, updates the models and the matches of the tiles, and computes the errors.
+	 */
+	public void solve()
+	{
+		final double[][] translations = new double[ numDimensions ][ tiles.size() ];
+		for ( int i = 0; i < tiles.size(); ++i )
+		{
+			final double[] translation = getTranslation( tiles.get( i ) );
+			for ( int d = 0; d < numDimensions; ++d )
+				translations[ d ][ i ] = translation[ d ];
+		}
+
+		iterations = 0;
+		converged = true;
+		for ( int d = 0; d < numDimensions; ++d )
+			iterations = Math.max( solveConjugateGradient( rhs[ d ], translations[ d ] ), iterations );
+
+		final double[] translation = new double[ numDimensions ];
+		for ( int i = 0; i < tiles.size(); ++i )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+				translation[ d ] = translations[ d ][ i ];
+			setTranslation( tiles.get( i ), translation );
+		}
+
+		for ( final Tile< ? > tile : tiles )
+			tile.apply();
+
+		updateErrors();
+	}
+
+	public double getAvgError() { return avgError; }
+	public double getMaxError() { return maxError; }
+	public int getIterations() { return iterations; }
+	public boolean hasConverged() { return converged; }
+
+	private int solveConjugateGradient( final double[] b, final double[] x )
+	{
+		final int n = x.length;
+		final double[] r = new double[ n ], z = new double[ n ], p = new double[ n ], q = new double[ n ];
+
+		multiply( x, q );
+		double rz = 0, bNorm = 0;
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( pinned[ i ] )
+				continue;
+			r[ i ] = b[ i ] - q[ i ];
+			z[ i ] = r[ i ] / diagonal[ i ];
+			p[ i ] = z[ i ];
+			rz += r[ i ] * z[ i ];
+			bNorm += b[ i ] * b[ i ];
+		}
+
+		final double threshold = TOLERANCE * TOLERANCE * Math.max( bNorm, 1 );
+		int iteration = 0;
+		while ( iteration < 10 * n && squaredNorm( r ) > threshold )
+		{
+			++iteration;
+			multiply( p, q );
+			double pq = 0;
+			for ( int i = 0; i < n; ++i )
+				if ( !pinned[ i ] )
+					pq += p[ i ] * q[ i ];
+			if ( pq <= 0 )
+				break;
+
+			final double alpha = rz / pq;
+			double rzNext = 0;
+			for ( int i = 0; i < n; ++i )
+			{
+				if ( pinned[ i ] )
+					continue;
+				x[ i ] += alpha * p[ i ];
+				r[ i ] -= alpha * q[ i ];
+				z[ i ] = r[ i ] / diagonal[ i ];
+				rzNext += r[ i ] * z[ i ];
+			}
+
+			final double beta = rzNext / rz;
+			rz = rzNext;
+			for ( int i = 0; i < n; ++i )
+				if ( !pinned[ i ] )
+					p[ i ] = z[ i ] + beta * p[ i ];
+		}
+
+		// also catches non-finite values in the matches, for which the loop above stops right away
+		final double residualNorm = squaredNorm( r );
+		if ( !( residualNorm <= threshold ) )
+		{
+			converged = false;
+			System.out.println( String.format(
+					"WARNING: translation least-squares solver did not converge for %d tiles after %d iterations: relative residual %.3g exceeds the tolerance %.1g",
+					n, iteration, Math.sqrt( residualNorm / Math.max( bNorm, 1 ) ), TOLERANCE ) );
+		}
+		return iteration;
+	}
+
+	/**
+	 * Computes {@code result = L * v} for the rows of the tiles that are not pinned.
+	 * The pinned tiles always have zero values in the search directions, so they only contribute through the initial positions.
+	 */
+	private void multiply( final double[] v, final double[] result )
+	{
+		for ( int i = 0; i < v.length; ++i )
+		{
+			if ( pinned[ i ] )
+			{
+				result[ i ] = 0;
+				continue;
+			}
+			double val = diagonal[ i ] * v[ i ];
+			for ( int k = 0; k < neighbors[ i ].length; ++k )
+				val -= weights[ i ][ k ] * v[ neighbors[ i ][ k ] ];
+			result[ i ] = val;
+		}
+	}
+
+	private double squaredNorm( final double[] v )
+	{
+		double norm = 0;
+		for ( int i = 0; i < v.length; ++i )
+			if ( !pinned[ i ] )
+				norm += v[ i ] * v[ i ];
+		return norm;
+	}
+
+	/**
+	 * Pins the first tile of every connected graph that does not have fixed tiles, and the tiles without matches.
+	 */
+	private void pinUnconstrainedGraphs()
+	{
+		final int[] graphIds = new int[ tiles.size() ];
+		Arrays.fill( graphIds, -1 );
+		final Queue< Integer > queue = new ArrayDeque<>();
+		for ( int start = 0, graphId = 0; start < tiles.size(); ++start, ++graphId )
+		{
+			if ( graphIds[ start ] != -1 )
+				continue;
+
+			final List< Integer > graph = new ArrayList<>();
+			boolean hasPinned = false;
+			graphIds[ start ] = graphId;
+			queue.add( start );
+			while ( !queue.isEmpty() )
+			{
+				final int i = queue.remove();
+				graph.add( i );
+				hasPinned |= pinned[ i ];
+				for ( final int j : neighbors[ i ] )
+				{
+					if ( graphIds[ j ] == -1 )
+					{
+						graphIds[ j ] = graphId;
+						queue.add( j );
+					}
+				}
+			}
+
+			if ( !hasPinned )
+				pinned[ graph.get( 0 ) ] = true;
+		}
+		for ( int i = 0; i < tiles.size(); ++i )
+			if ( diagonal[ i ] <= 0 )
+				pinned[ i ] = true;
+	}
+
+	private void updateErrors()
+	{
+		double errorSum = 0;
+		maxError = 0;
+		for ( final Tile< ? > tile : tiles )
+		{
+			double distance = 0, weightSum = 0;
+			for ( final PointMatch match : tile.getMatches() )
+			{
+				distance += match.getDistance() * match.getWeight();
+				weightSum += match.getWeight();
+			}
+			if ( weightSum > 0 )
+				distance /= weightSum;
+
+			errorSum += distance;
+			maxError = Math.max( distance, maxError );
+		}
+		avgError = tiles.isEmpty() ? 0 : errorSum / tiles.size();
+	}
+
+	private static double[] getTranslation( final Tile< ? > tile )
+	{
+		final Object model = tile.getModel();
+		if ( model instanceof TranslationModel2D )
+			return ( ( TranslationModel2D ) model ).apply( new double[ 2 ] );
+		if ( model instanceof TranslationModel3D )
+			return ( ( TranslationModel3D ) model ).apply( new double[ 3 ] );
+		throw new IllegalArgumentException( "Only translation models are supported, got " + model.getClass().getSimpleName() );
+	}
+
+	private static void setTranslation( final Tile< ? > tile, final double[] translation )
+	{
+		final Object model = tile.getModel();
+		if ( model instanceof TranslationModel2D )
+			( ( TranslationModel2D ) model ).set( translation[ 0 ], translation[ 1 ] );
+		else if ( model instanceof TranslationModel3D )
+			( ( TranslationModel3D ) model ).set( translation[ 0 ], translation[ 1 ], translation[ 2 ] );
+		else
+			throw new IllegalArgumentException( "Only translation models are supported, got " + model.getClass().getSimpleName() );
+	}
+}
@@ -0,0 +1,173 @@
+package org.janelia.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.in.ZeissCZIReader;
+
+/**
+ * Executor-local pool of Bio-Formats readers that have already parsed the metadata of their image containers.
+ *
+ * Opening a container parses its entire header, which is expensive for large .czi files, so the readers are returned
+ * to the pool after use and reused by subsequent tasks that read from the same file.
+ * A reader is used by one thread at a time, so there may be several readers for the same file when tasks run concurrently.
+ * The readers are opened with the same options as {@link ImageImporter#openBioformatsImageSeries(String)},
+ * so the series indices match the indices of the images returned by it.
+ *
+ * There is a single instance per JVM. The least recently used idle readers are closed when the number of idle readers exceeds the limit.
+ */
+public class BioformatsReaderPool
+{
+	/**
+	 * Spark accumulators for collecting reader statistics across all executors.
+	 */
+	public static class Accumulators implements Serializable
+	{
+		private static final long serialVersionUID = -3470921645722437316L;
+
+		public final LongAccumulator opened, reused, openTimeMsec, acquireTimeMsec;
+
+		public Accumulators( final JavaSparkContext sparkContext )
+		{
+			opened = sparkContext.sc().longAccumulator( "bioformats readers opened" );
+			reused = sparkContext.sc().longAccumulator( "bioformats readers reused" );
+			openTimeMsec = sparkContext.sc().longAccumulator( "bioformats readers open time" );
+			acquireTimeMsec = sparkContext.sc().longAccumulator( "bioformats readers acquire time" );
+		}
+
+		@Override
+		public String toString()
+		{
+			final long requests = opened.value() + reused.value();
+			return String.format(
+					"opened=%d, reused=%d, avg open time=%dms, avg acquire time per request=%dms",
+					opened.value(),
+					reused.value(),
+					opened.value() != 0 ? openTimeMsec.value() / opened.value() : 0,
+					requests != 0 ? acquireTimeMsec.value() / requests : 0
+				);
+		}
+	}
+
+	private static final class PooledReader
+	{
+		final String path;
+		final IFormatReader reader;
+
+		PooledReader( final String path, final IFormatReader reader )
+		{
+			this.path = path;
+			this.reader = reader;
+		}
+	}
+
+	private static BioformatsReaderPool instance;
+
+	/**
+	 * Returns the executor-wide pool instance.
+	 */
+	public static synchronized BioformatsReaderPool getInstance()
+	{
+		if ( instance == null )
+			instance = new BioformatsReaderPool( Runtime.getRuntime().availableProcessors() );
+		return instance;
+	}
+
+	// most recently released readers go first
+	private final Deque< PooledReader > idleReaders = new ArrayDeque<>();
+	private final int maxIdleReaders;
+
+	public BioformatsReaderPool( final int maxIdleReaders )
+	{
+		this.maxIdleReaders = maxIdleReaders;
+	}
+
+	/**
+	 * Returns an idle reader for the given file, or opens a new one if there are no idle readers for this file.
+	 * The reader has to be returned to the pool with {@link #release(String, IFormatReader)} when the caller is done with it.
+	 * If reading has failed, the reader should be closed instead, so that a reader in an inconsistent state is not reused.
+	 */
+	public IFormatReader acquire( final String path, final Accumulators accumulators ) throws IOException, FormatException
+	{
+		final long startMsec = System.currentTimeMillis();
+		synchronized ( this )
+		{
+			for ( final Iterator< PooledReader > it = idleReaders.iterator(); it.hasNext(); )
+			{
+				final PooledReader pooledReader = it.next();
+				if ( pooledReader.path.equals( path ) )
+				{
+					it.remove();
+					if ( accumulators != null )
+					{
+						accumulators.reused.add( 1 );
+						accumulators.acquireTimeMsec.add( System.currentTimeMillis() - startMsec );
+					}
+					return pooledReader.reader;
+				}
+			}
+		}
+
+		final IFormatReader reader = openReader( path );
+		final long elapsedMsec = System.currentTimeMillis() - startMsec;
+		System.out.println( "Opened " + path + " (" + reader.getSeriesCount() + " series), took " + elapsedMsec + "ms" );
+		if ( accumulators != null )
+		{
+			accumulators.opened.add( 1 );
+			accumulators.openTimeMsec.add( elapsedMsec );
+			accumulators.acquireTimeMsec.add( elapsedMsec );
+		}
+		return reader;
+	}
+
+	/**
+	 * Returns the reader to the pool so it can be reused by subsequent tasks.
+	 */
+	public void release( final String path, final IFormatReader reader ) throws IOException
+	{
+		final PooledReader evicted;
+		synchronized ( this )
+		{
+			idleReaders.addFirst( new PooledReader( path, reader ) );
+			evicted = idleReaders.size() > maxIdleReaders ? idleReaders.removeLast() : null;
+		}
+		if ( evicted != null )
+			evicted.reader.close();
+	}
+
+	public void clear() throws IOException
+	{
+		synchronized ( this )
+		{
+			for ( final PooledReader pooledReader : idleReaders )
+				pooledReader.reader.close();
+			idleReaders.clear();
+		}
+	}
+
+	private static IFormatReader openReader( final String path ) throws IOException, FormatException
+	{
+		final DynamicMetadataOptions options = new DynamicMetadataOptions();
+		options.setBoolean( ZeissCZIReader.ALLOW_AUTOSTITCHING_KEY, false );
+		options.setBoolean( ZeissCZIReader.INCLUDE_ATTACHMENTS_KEY, false );
+
+		final IFormatReader reader = new ImageReader();
+		reader.setMetadataOptions( options );
+
+		// do not attempt to read similarly named files that are stored in the same directory
+		reader.setGroupFiles( false );
+
+		reader.setId( path );
+		return reader;
+	}
+}
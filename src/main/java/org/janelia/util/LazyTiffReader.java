@@ -0,0 +1,113 @@
+package org.janelia.util;
+
+import java.io.IOException;
+
+import org.janelia.util.TiffSliceReader.TiffInputStreamSupplier;
+
+import ij.io.FileInfo;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Opens a .tif image as a lazy cell image where every cell is a single slice.
+ * Only the slices intersecting the accessed region are read, and they are cached using soft references.
+ *
+ * The pixel types are the same as in {@link net.imglib2.img.imageplus.ImagePlusImgs#from(ij.ImagePlus)},
+ * so the lazy image can be used as a drop-in replacement of the image opened with {@link ImageImporter}.
+ *
+ * Every slice is loaded from a newly opened stream that is skipped to the slice offset,
+ * so the stream supplier should support cheap skipping (e.g. a local file). Streams from object stores
+ * transfer all the data up to the offset, which makes reading the whole image quadratic in the number of slices.
+ */
+public class LazyTiffReader
+{
+	/**
+	 * @return
+	 * 			a lazy image, or null if the image type is not supported (the image should be read fully in this case)
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > open( final TiffInputStreamSupplier inSupplier ) throws IOException
+	{
+		final FileInfo[] sliceFileInfos = TiffSliceReader.getSliceFileInfos( inSupplier );
+		if ( sliceFileInfos == null || sliceFileInfos.length == 0 )
+			return null;
+
+		final T type = ( T ) getType( sliceFileInfos[ 0 ] );
+		if ( type == null )
+			return null;
+
+		final int width = sliceFileInfos[ 0 ].width, height = sliceFileInfos[ 0 ].height;
+		for ( final FileInfo sliceFileInfo : sliceFileInfos )
+			if ( sliceFileInfo.width != width || sliceFileInfo.height != height || sliceFileInfo.fileType != sliceFileInfos[ 0 ].fileType )
+				return null;
+
+		final long[] dimensions;
+		final int[] cellDimensions;
+		if ( sliceFileInfos.length == 1 )
+		{
+			dimensions = new long[] { width, height };
+			cellDimensions = new int[] { width, height };
+		}
+		else
+		{
+			dimensions = new long[] { width, height, sliceFileInfos.length };
+			cellDimensions = new int[] { width, height, 1 };
+		}
+
+		final CellLoader< T > loader = cell ->
+		{
+			final int slice = cell.numDimensions() > 2 ? ( int ) cell.min( 2 ) : 0;
+			final Object pixels = TiffSliceReader.readSlicePixels( inSupplier, sliceFileInfos[ slice ] );
+			if ( pixels == null )
+				throw new IOException( "Cannot read slice " + ( slice + 1 ) );
+
+			final RandomAccessibleInterval< T > slicePixels = ( RandomAccessibleInterval< T > ) wrapPixels( pixels, width, height );
+			final Cursor< T > srcCursor = Views.flatIterable( slicePixels ).cursor();
+			final Cursor< T > dstCursor = Views.flatIterable( cell ).cursor();
+			while ( dstCursor.hasNext() || srcCursor.hasNext() )
+				dstCursor.next().set( srcCursor.next() );
+		};
+
+		return new ReadOnlyCachedCellImgFactory( ReadOnlyCachedCellImgOptions.options().cellDimensions( cellDimensions ) ).create( dimensions, type, loader );
+	}
+
+	private static NativeType< ? > getType( final FileInfo fileInfo )
+	{
+		switch ( fileInfo.fileType )
+		{
+		case FileInfo.GRAY8:
+			return new UnsignedByteType();
+		case FileInfo.GRAY16_SIGNED:
+		case FileInfo.GRAY16_UNSIGNED:
+			return new UnsignedShortType();
+		case FileInfo.GRAY32_INT:
+		case FileInfo.GRAY32_UNSIGNED:
+		case FileInfo.GRAY32_FLOAT:
+			return new FloatType();
+		default:
+			return null;
+		}
+	}
+
+	private static RandomAccessibleInterval< ? > wrapPixels( final Object pixels, final int width, final int height )
+	{
+		if ( pixels instanceof byte[] )
+			return ArrayImgs.unsignedBytes( ( byte[] ) pixels, width, height );
+		else if ( pixels instanceof short[] )
+			return ArrayImgs.unsignedShorts( ( short[] ) pixels, width, height );
+		else if ( pixels instanceof float[] )
+			return ArrayImgs.floats( ( float[] ) pixels, width, height );
+		else
+			throw new IllegalArgumentException( "Unsupported pixel array: " + pixels.getClass().getName() );
+	}
+}
@@ -0,0 +1,153 @@
+package org.janelia.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Packs raw image planes into N5 data blocks of a 2D or 3D dataset.
+ *
+ * The planes are primitive arrays of the dataset data type (e.g. short[] for UINT16) in XY order.
+ * Every row of a plane is copied into the corresponding blocks with {@link System#arraycopy(Object, int, Object, int, int)},
+ * and the blocks are written as soon as all planes of their Z chunk have been received,
+ * so only one layer of blocks is kept in memory regardless of the image depth.
+ *
+ * The planes can arrive in any order within a Z chunk, but the chunks have to be filled one after another in increasing order.
+ */
+public class N5PlaneBlockWriter
+{
+	private final N5Writer n5;
+	private final String datasetPath;
+	private final DatasetAttributes attributes;
+
+	private final boolean is3D;
+	private final int width, height, depth;
+	private final int[] blockSize;
+	private final long[] gridDimensions;
+
+	private DataBlock< ? >[] chunkBlocks;
+	private int currentChunk = -1, chunkPlanesReceived;
+	private boolean[] chunkPlanes;
+
+	public N5PlaneBlockWriter( final N5Writer n5, final String datasetPath ) throws IOException
+	{
+		this( n5, datasetPath, n5.getDatasetAttributes( datasetPath ) );
+	}
+
+	public N5PlaneBlockWriter( final N5Writer n5, final String datasetPath, final DatasetAttributes attributes )
+	{
+		final long[] dimensions = attributes.getDimensions();
+		if ( dimensions.length != 2 && dimensions.length != 3 )
+			throw new IllegalArgumentException( "only 2D and 3D datasets are supported, got " + Arrays.toString( dimensions ) );
+		if ( dimensions[ 0 ] * dimensions[ 1 ] > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "plane is too large: " + Arrays.toString( dimensions ) );
+
+		this.n5 = n5;
+		this.datasetPath = datasetPath;
+		this.attributes = attributes;
+
+		width = ( int ) dimensions[ 0 ];
+		height = ( int ) dimensions[ 1 ];
+		is3D = dimensions.length > 2;
+		depth = is3D ? ( int ) dimensions[ 2 ] : 1;
+		blockSize = attributes.getBlockSize();
+		gridDimensions = new CellGrid( dimensions, blockSize ).getGridDimensions();
+	}
+
+	public int getPlaneSize()
+	{
+		return width * height;
+	}
+
+	/**
+	 * Copies the plane into the blocks of its Z chunk, and writes the blocks if this was the last missing plane of the chunk.
+	 *
+	 * @param z
+	 * 			position of the plane in the dataset
+	 * @param plane
+	 * 			primitive array of the dataset data type with {@link #getPlaneSize()} elements
+	 */
+	public void writePlane( final int z, final Object plane ) throws IOException
+	{
+		if ( z < 0 || z >= depth )
+			throw new IllegalArgumentException( "plane " + z + " is outside of the dataset " + datasetPath + " of depth " + depth );
+
+		final int chunk = is3D ? z / blockSize[ 2 ] : 0;
+		if ( chunkBlocks == null || chunk != currentChunk )
+		{
+			if ( chunkBlocks != null )
+				throw new IllegalStateException( "Z chunk " + currentChunk + " of " + datasetPath + " is incomplete: received " + chunkPlanesReceived + " planes" );
+			if ( chunk <= currentChunk )
+				throw new IllegalStateException( "Z chunk " + chunk + " of " + datasetPath + " has already been written" );
+			startChunk( chunk );
+		}
+
+		final int planeZ = z - ( is3D ? chunk * blockSize[ 2 ] : 0 );
+		if ( chunkPlanes[ planeZ ] )
+			throw new IllegalStateException( "plane " + z + " of " + datasetPath + " has already been written" );
+
+		for ( int gridY = 0, blockIndex = 0; gridY < gridDimensions[ 1 ]; ++gridY )
+		{
+			final int minY = gridY * blockSize[ 1 ];
+			for ( int gridX = 0; gridX < gridDimensions[ 0 ]; ++gridX, ++blockIndex )
+			{
+				final DataBlock< ? > block = chunkBlocks[ blockIndex ];
+				final int[] size = block.getSize();
+				final int minX = gridX * blockSize[ 0 ];
+				final Object blockData = block.getData();
+				if ( blockData.getClass() != plane.getClass() )
+					throw new IllegalArgumentException( "plane type " + plane.getClass().getSimpleName() + " does not match the data type " + attributes.getDataType() + " of " + datasetPath );
+
+				for ( int y = 0; y < size[ 1 ]; ++y )
+					System.arraycopy( plane, ( minY + y ) * width + minX, blockData, ( planeZ * size[ 1 ] + y ) * size[ 0 ], size[ 0 ] );
+			}
+		}
+
+		chunkPlanes[ planeZ ] = true;
+		if ( ++chunkPlanesReceived == chunkPlanes.length )
+			writeChunk();
+	}
+
+	/**
+	 * @return {@code true} if all blocks that have been started have been written
+	 */
+	public boolean isComplete()
+	{
+		return chunkBlocks == null;
+	}
+
+	private void startChunk( final int chunk )
+	{
+		final int chunkDepth = is3D ? Math.min( blockSize[ 2 ], depth - chunk * blockSize[ 2 ] ) : 1;
+
+		chunkBlocks = new DataBlock< ? >[ ( int ) ( gridDimensions[ 0 ] * gridDimensions[ 1 ] ) ];
+		for ( int gridY = 0, blockIndex = 0; gridY < gridDimensions[ 1 ]; ++gridY )
+		{
+			for ( int gridX = 0; gridX < gridDimensions[ 0 ]; ++gridX, ++blockIndex )
+			{
+				final int sizeX = Math.min( blockSize[ 0 ], width - gridX * blockSize[ 0 ] );
+				final int sizeY = Math.min( blockSize[ 1 ], height - gridY * blockSize[ 1 ] );
+				final int[] size = is3D ? new int[] { sizeX, sizeY, chunkDepth } : new int[] { sizeX, sizeY };
+				final long[] gridPosition = is3D ? new long[] { gridX, gridY, chunk } : new long[] { gridX, gridY };
+				chunkBlocks[ blockIndex ] = attributes.getDataType().createDataBlock( size, gridPosition );
+			}
+		}
+
+		currentChunk = chunk;
+		chunkPlanesReceived = 0;
+		chunkPlanes = new boolean[ chunkDepth ];
+	}
+
+	private void writeChunk() throws IOException
+	{
+		for ( final DataBlock< ? > block : chunkBlocks )
+			n5.writeBlock( datasetPath, attributes, block );
+		chunkBlocks = null;
+		chunkPlanes = null;
+	}
+}
@@ -0,0 +1,143 @@
+package org.janelia.util;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.janelia.util.TiffSliceReader.TiffInputStreamSupplier;
+
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+
+/**
+ * Reads the slices of a .tif image through a single input stream that is kept open between the slices.
+ *
+ * Unlike {@link TiffSliceReader#readSlicePixels(TiffInputStreamSupplier, FileInfo)}, which opens a new stream
+ * and skips to the slice offset every time, the stream only moves forward from one slice to the next one,
+ * so reading the slices in the order they are stored transfers the file only once. This matters for object stores
+ * where skipping is not a seek (S3 sends the data up to the offset, and GCS downloads the whole blob).
+ * If a slice is stored before the current stream position, the stream is reopened.
+ */
+public class SequentialTiffReader implements Closeable
+{
+	/**
+	 * Counts the bytes consumed from the stream, so the distance to the next slice is known.
+	 */
+	private static class PositionTrackingInputStream extends FilterInputStream
+	{
+		private long position;
+
+		public PositionTrackingInputStream( final InputStream in )
+		{
+			super( in );
+		}
+
+		public long getPosition()
+		{
+			return position;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final int b = super.read();
+			if ( b != -1 )
+				++position;
+			return b;
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len ) throws IOException
+		{
+			final int bytesRead = super.read( b, off, len );
+			if ( bytesRead > 0 )
+				position += bytesRead;
+			return bytesRead;
+		}
+
+		@Override
+		public long skip( final long n ) throws IOException
+		{
+			final long bytesSkipped = super.skip( n );
+			if ( bytesSkipped > 0 )
+				position += bytesSkipped;
+			return bytesSkipped;
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			// abort the remaining transfer instead of draining the connection
+			if ( in instanceof S3ObjectInputStream )
+				( ( S3ObjectInputStream ) in ).abort();
+			super.close();
+		}
+	}
+
+	private final TiffInputStreamSupplier inSupplier;
+	private final FileInfo[] sliceFileInfos;
+
+	private PositionTrackingInputStream in;
+
+	/**
+	 * @param inSupplier
+	 * 			an input stream supplier for the desired tiff file
+	 * @param sliceFileInfos
+	 * 			file infos of the slices obtained with {@link TiffSliceReader#getSliceFileInfos(TiffInputStreamSupplier)}
+	 */
+	public SequentialTiffReader( final TiffInputStreamSupplier inSupplier, final FileInfo[] sliceFileInfos )
+	{
+		this.inSupplier = inSupplier;
+		this.sliceFileInfos = sliceFileInfos;
+	}
+
+	public int numSlices()
+	{
+		return sliceFileInfos.length;
+	}
+
+	/**
+	 * Reads the pixel data of a single slice.
+	 * @param slice
+	 * 			an index of the desired slice (0-indexed)
+	 * @return
+	 * 			a primitive array with the pixel data, or null if it cannot be read
+	 * @throws IOException
+	 */
+	public Object readSlicePixels( final int slice ) throws IOException
+	{
+		final FileInfo fileInfo = sliceFileInfos[ slice ];
+		final long offset = fileInfo.getOffset();
+		if ( in != null && in.getPosition() > offset )
+			close();
+		if ( in == null )
+			in = new PositionTrackingInputStream( inSupplier.get() );
+
+		return new ImageReader( fileInfo ).readPixels( in, offset - in.getPosition() );
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if ( in != null )
+		{
+			try
+			{
+				in.close();
+			}
+			finally
+			{
+				in = null;
+			}
+		}
+	}
+}
@@ -6,6 +6,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import org.janelia.saalfeldlab.n5.DataType;
+
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 
 import ij.CompositeImage;
@@ -66,36 +68,8 @@ public class TiffSliceReader
 	 */
 	public static ImagePlus readSlice( final TiffInputStreamSupplier inSupplier, final int slice ) throws IOException
 	{
-		final FileInfo fileInfo;
-
-		final FileInfo[] fileInfos;
-		try ( final InputStream in = inSupplier.get() )
-		{
-			fileInfos = new TiffDecoder( in, "" ).getTiffInfo();
-			if ( in instanceof S3ObjectInputStream )
-				( ( S3ObjectInputStream ) in ).abort();
-		}
-
-		// Hack to read uncompressed float images correctly (at least in my case). Otherwise, it detects a single slice but with nImages=501
-		if ( fileInfos.length == 1 && fileInfos[ 0 ].nImages > 1 && fileInfos[ 0 ].compression == FileInfo.COMPRESSION_NONE )
-		{
-			fileInfo = fileInfos[ 0 ];
-			final int numPixels = fileInfo.width * fileInfo.height;
-			fileInfo.offset += ( numPixels * bytesPerPixel( fileInfo ) + fileInfo.gapBetweenImages ) * ( slice - 1 );
-		}
-		else
-		{
-			fileInfo = fileInfos[ slice - 1 ];
-		}
-
-		final ImageReader reader = new ImageReader( fileInfo );
-		final Object pixels;
-		try ( final InputStream in = inSupplier.get() )
-		{
-			pixels = reader.readPixels( in, fileInfo.getOffset() );
-			if ( in instanceof S3ObjectInputStream )
-				( ( S3ObjectInputStream ) in ).abort();
-		}
+		final FileInfo fileInfo = getSliceFileInfos( inSupplier )[ slice - 1 ];
+		final Object pixels = readSlicePixels( inSupplier, fileInfo );
 		if ( pixels == null )
 			return null;
 
@@ -149,6 +123,91 @@ public class TiffSliceReader
 	}
 
 
+	/**
+	 * Parses the image file directories of a .tif image without reading the pixel data.
+	 * @param inSupplier
+	 * 			an input stream supplier for the desired tiff file
+	 * @return
+	 * 			an array of file infos, one for each slice (0-indexed)
+	 * @throws IOException
+	 */
+	public static FileInfo[] getSliceFileInfos( final TiffInputStreamSupplier inSupplier ) throws IOException
+	{
+		final FileInfo[] fileInfos;
+		try ( final InputStream in = inSupplier.get() )
+		{
+			fileInfos = new TiffDecoder( in, "" ).getTiffInfo();
+			if ( in instanceof S3ObjectInputStream )
+				( ( S3ObjectInputStream ) in ).abort();
+		}
+
+		// Hack to read uncompressed float images correctly (at least in my case). Otherwise, it detects a single slice but with nImages=501
+		if ( fileInfos.length == 1 && fileInfos[ 0 ].nImages > 1 && fileInfos[ 0 ].compression == FileInfo.COMPRESSION_NONE )
+		{
+			final FileInfo fileInfo = fileInfos[ 0 ];
+			final long sliceBytes = ( long ) fileInfo.width * fileInfo.height * bytesPerPixel( fileInfo ) + fileInfo.gapBetweenImages;
+			final FileInfo[] sliceFileInfos = new FileInfo[ fileInfo.nImages ];
+			for ( int i = 0; i < sliceFileInfos.length; ++i )
+			{
+				sliceFileInfos[ i ] = ( FileInfo ) fileInfo.clone();
+				sliceFileInfos[ i ].nImages = 1;
+				sliceFileInfos[ i ].longOffset = fileInfo.getOffset() + sliceBytes * i;
+			}
+			return sliceFileInfos;
+		}
+
+		return fileInfos;
+	}
+
+	/**
+	 * Reads the pixel data of a single slice.
+	 * @param inSupplier
+	 * 			an input stream supplier for the desired tiff file
+	 * @param fileInfo
+	 * 			file info of the slice obtained with {@link #getSliceFileInfos(TiffInputStreamSupplier)}
+	 * @return
+	 * 			a primitive array with the pixel data, or null if it cannot be read
+	 * @throws IOException
+	 */
+	public static Object readSlicePixels( final TiffInputStreamSupplier inSupplier, final FileInfo fileInfo ) throws IOException
+	{
+		final ImageReader reader = new ImageReader( fileInfo );
+		try ( final InputStream in = inSupplier.get() )
+		{
+			final Object pixels = reader.readPixels( in, fileInfo.getOffset() );
+			if ( in instanceof S3ObjectInputStream )
+				( ( S3ObjectInputStream ) in ).abort();
+			return pixels;
+		}
+	}
+
+
+	/**
+	 * Returns the N5 data type of the pixel arrays returned by {@link #readSlicePixels(TiffInputStreamSupplier, FileInfo)}.
+	 * @param fileInfo
+	 * 			file info of the slice
+	 * @return
+	 * 			the data type, or null if the slice pixels are not stored as a grayscale byte, short, or float array
+	 */
+	public static DataType getDataType( final FileInfo fileInfo )
+	{
+		switch ( fileInfo.fileType )
+		{
+		case FileInfo.GRAY8:
+			return DataType.UINT8;
+		case FileInfo.GRAY16_SIGNED:
+		case FileInfo.GRAY16_UNSIGNED:
+			return DataType.UINT16;
+		case FileInfo.GRAY32_INT:
+		case FileInfo.GRAY32_UNSIGNED:
+		case FileInfo.GRAY32_FLOAT:
+			return DataType.FLOAT32;
+		default:
+			return null;
+		}
+	}
+
+
 	/**
 	 * Opens the requested slice of a .tif image.
 	 * @param path
@@ -0,0 +1,42 @@
+package org.janelia.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+import ij.io.TiffEncoder;
+
+/**
+ * Encodes an image as .tif directly into an output stream, so it can be uploaded to a cloud storage without saving a local file first.
+ * Mirrors what IJ's {@link FileSaver#saveAsTiff(String)} puts into the file header.
+ */
+public class TiffStreamWriter
+{
+	/**
+	 * Writes the image into the stream. The stream is flushed but not closed.
+	 *
+	 * @param imp
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write( final ImagePlus imp, final OutputStream out ) throws IOException
+	{
+		final FileInfo fi = imp.getFileInfo();
+		fi.info = imp.getInfoProperty();
+		fi.description = new FileSaver( imp ).getDescriptionString();
+		if ( imp.getStackSize() > 1 )
+		{
+			fi.sliceLabels = imp.getStack().getSliceLabels();
+			if ( imp.getStack().isVirtual() )
+				fi.virtualStack = ( VirtualStack ) imp.getStack();
+		}
+
+		final BufferedOutputStream bufferedOut = new BufferedOutputStream( out, 1 << 16 );
+		new TiffEncoder( fi ).write( bufferedOut );
+		bufferedOut.flush();
+	}
+}
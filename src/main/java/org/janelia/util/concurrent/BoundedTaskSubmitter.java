@@ -0,0 +1,81 @@
+package org.janelia.util.concurrent;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Submits tasks to a shared thread pool while limiting the number of tasks that are pending at a time,
+ * so that a producer that iterates over a large listing does not queue up all of it in memory.
+ * When the limit is reached, {@link #submit(Runnable)} waits for the oldest task to complete.
+ *
+ * The first failed task cancels the remaining ones, and its exception is rethrown from {@link #submit(Runnable)} or {@link #awaitAll()}.
+ */
+public class BoundedTaskSubmitter
+{
+	private final ExecutorService threadPool;
+	private final int maxPendingTasks;
+	private final Queue< Future< ? > > pendingTasks = new ArrayDeque<>();
+
+	private long completedTasks;
+
+	public BoundedTaskSubmitter( final ExecutorService threadPool, final int maxPendingTasks )
+	{
+		if ( maxPendingTasks < 1 )
+			throw new IllegalArgumentException( "at least one task should be allowed to be pending" );
+
+		this.threadPool = threadPool;
+		this.maxPendingTasks = maxPendingTasks;
+	}
+
+	public void submit( final Runnable task ) throws IOException
+	{
+		while ( pendingTasks.size() >= maxPendingTasks )
+			awaitOldest();
+		pendingTasks.add( threadPool.submit( task ) );
+	}
+
+	/**
+	 * Waits until all submitted tasks are completed.
+	 *
+	 * @return number of tasks that were completed since this submitter was created
+	 * @throws IOException
+	 */
+	public long awaitAll() throws IOException
+	{
+		while ( !pendingTasks.isEmpty() )
+			awaitOldest();
+		return completedTasks;
+	}
+
+	private void awaitOldest() throws IOException
+	{
+		try
+		{
+			pendingTasks.peek().get();
+			pendingTasks.remove();
+			++completedTasks;
+		}
+		catch ( final InterruptedException e )
+		{
+			cancelAll();
+			throw new InterruptedIOException( "interrupted while waiting for a task to complete" );
+		}
+		catch ( final ExecutionException e )
+		{
+			cancelAll();
+			throw new IOException( e.getCause() );
+		}
+	}
+
+	private void cancelAll()
+	{
+		for ( final Future< ? > pendingTask : pendingTasks )
+			pendingTask.cancel( true );
+		pendingTasks.clear();
+	}
+}
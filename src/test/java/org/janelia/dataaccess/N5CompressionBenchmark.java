@@ -0,0 +1,155 @@
+package org.janelia.dataaccess;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+/**
+ * Measures write throughput and compression ratio of the N5 codecs supported by {@link N5CompressionFactory}
+ * on synthetic blocks that resemble the data written by the pipeline:
+ * 16-bit tile blocks (smooth signal with noise), per-pixel histograms (sparse float counts), and 32-bit deconvolved tile blocks.
+ *
+ * Usage: N5CompressionBenchmark [numBlocks] [codec...]
+ */
+public class N5CompressionBenchmark
+{
+	private static final List< String > defaultCodecs = Arrays.asList( "raw", "gzip:1", "gzip", "lz4", "bzip2", "xz:1" );
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final int numBlocks = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 16;
+		final List< String > codecs = args.length > 1 ? Arrays.asList( args ).subList( 1, args.length ) : defaultCodecs;
+
+		final Random rnd = new Random( 1 );
+		final DataBlock< ? >[][] blockTypes = new DataBlock< ? >[][] {
+			createTileBlocks( rnd, numBlocks ),
+			createHistogramsBlocks( rnd, numBlocks ),
+			createFloatTileBlocks( rnd, numBlocks )
+		};
+		final String[] blockTypeNames = new String[] { "16-bit tile 128x128x64", "histograms 32x32x16x258", "float tile 128x128x64" };
+		final DataType[] blockDataTypes = new DataType[] { DataType.UINT16, DataType.FLOAT32, DataType.FLOAT32 };
+
+		final File tempDir = Files.createTempDirectory( "n5-compression-benchmark" ).toFile();
+		try
+		{
+			final N5Writer n5 = new N5FSWriter( tempDir.getAbsolutePath() );
+
+			System.out.println( String.format( "%-26s %-8s %12s %8s", "data", "codec", "write MB/s", "ratio" ) );
+			for ( int i = 0; i < blockTypes.length; ++i )
+			{
+				for ( final String codec : codecs )
+				{
+					final DataBlock< ? >[] blocks = blockTypes[ i ];
+					final String dataset = "benchmark";
+					final DatasetAttributes attributes = new DatasetAttributes(
+							new long[] { blocks.length * blocks[ 0 ].getSize()[ 0 ] },
+							new int[] { blocks[ 0 ].getNumElements() },
+							blockDataTypes[ i ],
+							N5CompressionFactory.create( codec )
+						);
+					n5.createDataset( dataset, attributes );
+
+					long elapsedMsec = System.currentTimeMillis();
+					for ( final DataBlock< ? > block : blocks )
+						n5.writeBlock( dataset, attributes, block );
+					elapsedMsec = Math.max( System.currentTimeMillis() - elapsedMsec, 1 );
+
+					final long rawBytes = ( long ) blocks.length * blocks[ 0 ].getNumElements() * ( blockDataTypes[ i ] == DataType.UINT16 ? Short.BYTES : Float.BYTES );
+					final long compressedBytes = getBlocksSize( Paths.get( tempDir.getAbsolutePath(), dataset ) );
+					System.out.println( String.format( "%-26s %-8s %12.1f %8.2f",
+							blockTypeNames[ i ],
+							codec,
+							rawBytes / 1e6 / ( elapsedMsec / 1e3 ),
+							( double ) rawBytes / compressedBytes ) );
+
+					n5.remove( dataset );
+				}
+				System.out.println();
+			}
+		}
+		finally
+		{
+			FileUtils.deleteDirectory( tempDir );
+		}
+	}
+
+	// blocks are stored as 1D blocks of the same number of elements, the codecs are not aware of the block shape
+	private static DataBlock< ? >[] createTileBlocks( final Random rnd, final int numBlocks )
+	{
+		final int[] size = new int[] { 128, 128, 64 };
+		final DataBlock< ? >[] blocks = new DataBlock< ? >[ numBlocks ];
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			final short[] data = new short[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+			for ( int z = 0, i = 0; z < size[ 2 ]; ++z )
+				for ( int y = 0; y < size[ 1 ]; ++y )
+					for ( int x = 0; x < size[ 0 ]; ++x, ++i )
+						data[ i ] = ( short ) Math.max( 0, 100 + 1000 * ( 1 + Math.sin( x / 20.0 + b ) * Math.cos( y / 15.0 ) ) + z + rnd.nextGaussian() * 30 );
+			blocks[ b ] = new ShortArrayDataBlock( new int[] { data.length }, new long[] { b }, data );
+		}
+		return blocks;
+	}
+
+	private static DataBlock< ? >[] createHistogramsBlocks( final Random rnd, final int numBlocks )
+	{
+		final int pixels = 32 * 32 * 16, bins = 258, samples = 500;
+		final DataBlock< ? >[] blocks = new DataBlock< ? >[ numBlocks ];
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			final float[] data = new float[ pixels * bins ];
+			for ( int p = 0; p < pixels; ++p )
+			{
+				final double peak = 60 + rnd.nextGaussian() * 5;
+				for ( int s = 0; s < samples; ++s )
+				{
+					final int bin = ( int ) Math.min( Math.max( Math.round( peak + rnd.nextGaussian() * 10 ), 0 ), bins - 1 );
+					++data[ p * bins + bin ];
+				}
+			}
+			blocks[ b ] = new FloatArrayDataBlock( new int[] { data.length }, new long[] { b }, data );
+		}
+		return blocks;
+	}
+
+	private static DataBlock< ? >[] createFloatTileBlocks( final Random rnd, final int numBlocks )
+	{
+		final int[] size = new int[] { 128, 128, 64 };
+		final DataBlock< ? >[] blocks = new DataBlock< ? >[ numBlocks ];
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			final float[] data = new float[ size[ 0 ] * size[ 1 ] * size[ 2 ] ];
+			for ( int z = 0, i = 0; z < size[ 2 ]; ++z )
+				for ( int y = 0; y < size[ 1 ]; ++y )
+					for ( int x = 0; x < size[ 0 ]; ++x, ++i )
+						data[ i ] = ( float ) Math.max( 0, 1000 * ( 1 + Math.sin( x / 20.0 + b ) * Math.cos( y / 15.0 ) ) + rnd.nextGaussian() * 5 );
+			blocks[ b ] = new FloatArrayDataBlock( new int[] { data.length }, new long[] { b }, data );
+		}
+		return blocks;
+	}
+
+	private static long getBlocksSize( final Path datasetPath ) throws IOException
+	{
+		try ( final Stream< Path > paths = Files.walk( datasetPath ) )
+		{
+			return paths
+					.filter( path -> Files.isRegularFile( path ) && !path.getFileName().toString().equals( "attributes.json" ) )
+					.mapToLong( path -> path.toFile().length() )
+					.sum();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package org.janelia.dataaccess;
+
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class N5CompressionFactoryTest
+{
+	@Test
+	public void testCreate()
+	{
+		Assert.assertTrue( N5CompressionFactory.create( "raw" ) instanceof RawCompression );
+		Assert.assertTrue( N5CompressionFactory.create( "gzip" ) instanceof GzipCompression );
+		Assert.assertTrue( N5CompressionFactory.create( "GZIP:1" ) instanceof GzipCompression );
+		Assert.assertTrue( N5CompressionFactory.create( "lz4" ) instanceof Lz4Compression );
+		Assert.assertTrue( N5CompressionFactory.create( "bzip2:9" ) instanceof Bzip2Compression );
+		Assert.assertTrue( N5CompressionFactory.create( "xz:0" ) instanceof XzCompression );
+
+		Assert.assertTrue( N5CompressionFactory.create( N5CompressionFactory.DEFAULT ) instanceof GzipCompression );
+		Assert.assertTrue( N5CompressionFactory.create( N5CompressionFactory.DEFAULT_INTERMEDIATE ) instanceof Lz4Compression );
+	}
+
+	@Test
+	public void testInvalid()
+	{
+		for ( final String compression : new String[] { "zip", "gzip:10", "gzip:fast", "raw:1", "xz:1:2", "" } )
+		{
+			try
+			{
+				N5CompressionFactory.create( compression );
+				Assert.fail( "expected an exception for " + compression );
+			}
+			catch ( final IllegalArgumentException e ) {}
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package org.janelia.dataaccess.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.janelia.util.TiffStreamWriter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.Opener;
+import ij.process.ShortProcessor;
+
+public class S3MultipartOutputStreamTest
+{
+	/**
+	 * Minimal in-memory stand-in for S3 that supports the requests issued by {@link S3MultipartOutputStream}.
+	 */
+	private static class InMemoryS3 extends AbstractAmazonS3
+	{
+		final Map< String, byte[] > objects = new ConcurrentHashMap<>();
+		final Map< String, Map< Integer, byte[] > > uploads = new ConcurrentHashMap<>();
+		final AtomicInteger putRequests = new AtomicInteger(), partRequests = new AtomicInteger(), abortRequests = new AtomicInteger();
+		volatile int failPartNumber = -1;
+		volatile boolean failAbort;
+
+		@Override
+		public PutObjectResult putObject( final String bucket, final String key, final InputStream input, final ObjectMetadata metadata )
+		{
+			putRequests.incrementAndGet();
+			objects.put( bucket + "/" + key, readAll( input ) );
+			return new PutObjectResult();
+		}
+
+		@Override
+		public InitiateMultipartUploadResult initiateMultipartUpload( final InitiateMultipartUploadRequest request )
+		{
+			final String uploadId = "upload-" + uploads.size();
+			uploads.put( uploadId, new ConcurrentHashMap<>() );
+			final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+			result.setUploadId( uploadId );
+			return result;
+		}
+
+		@Override
+		public UploadPartResult uploadPart( final UploadPartRequest request )
+		{
+			partRequests.incrementAndGet();
+			if ( request.getPartNumber() == failPartNumber )
+				throw new AmazonServiceException( "part upload failed" );
+
+			final byte[] data = readAll( request.getInputStream() );
+			Assert.assertEquals( request.getPartSize(), data.length );
+			uploads.get( request.getUploadId() ).put( request.getPartNumber(), data );
+
+			final UploadPartResult result = new UploadPartResult();
+			result.setPartNumber( request.getPartNumber() );
+			result.setETag( "etag-" + request.getPartNumber() );
+			return result;
+		}
+
+		@Override
+		public CompleteMultipartUploadResult completeMultipartUpload( final CompleteMultipartUploadRequest request )
+		{
+			final Map< Integer, byte[] > parts = new TreeMap<>( uploads.remove( request.getUploadId() ) );
+			Assert.assertEquals( parts.size(), request.getPartETags().size() );
+
+			final ByteArrayOutputStream object = new ByteArrayOutputStream();
+			int expectedPartNumber = 1;
+			for ( final PartETag partETag : request.getPartETags() )
+			{
+				Assert.assertEquals( expectedPartNumber++, partETag.getPartNumber() );
+				final byte[] part = parts.get( partETag.getPartNumber() );
+				object.write( part, 0, part.length );
+			}
+			objects.put( request.getBucketName() + "/" + request.getKey(), object.toByteArray() );
+			return new CompleteMultipartUploadResult();
+		}
+
+		@Override
+		public void abortMultipartUpload( final AbortMultipartUploadRequest request )
+		{
+			abortRequests.incrementAndGet();
+			if ( failAbort )
+				throw new AmazonServiceException( "abort failed" );
+			uploads.remove( request.getUploadId() );
+		}
+
+		private static byte[] readAll( final InputStream input )
+		{
+			try
+			{
+				return IOUtils.toByteArray( input );
+			}
+			catch ( final IOException e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+	}
+
+	private static final int partSize = S3MultipartOutputStream.MIN_PART_SIZE;
+
+	private InMemoryS3 s3;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp()
+	{
+		s3 = new InMemoryS3();
+		executor = Executors.newFixedThreadPool( 4 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testMultipartUpload() throws IOException
+	{
+		final byte[] data = new byte[ 4 * partSize + 12345 ];
+		new Random( 1 ).nextBytes( data );
+
+		try ( final OutputStream out = new S3MultipartOutputStream( s3, "bucket", "key", partSize, 2, executor ) )
+		{
+			// write in uneven chunks that cross the part boundaries
+			for ( int offset = 0; offset < data.length; )
+			{
+				final int length = Math.min( 1000003, data.length - offset );
+				out.write( data, offset, length );
+				offset += length;
+			}
+			out.write( 7 );
+		}
+
+		final byte[] expected = new byte[ data.length + 1 ];
+		System.arraycopy( data, 0, expected, 0, data.length );
+		expected[ data.length ] = 7;
+
+		Assert.assertArrayEquals( expected, s3.objects.get( "bucket/key" ) );
+		Assert.assertEquals( 5, s3.partRequests.get() );
+		Assert.assertEquals( 0, s3.putRequests.get() );
+		Assert.assertTrue( s3.uploads.isEmpty() );
+	}
+
+	@Test
+	public void testSmallObject() throws IOException
+	{
+		final byte[] data = "{\"small\":\"object\"}".getBytes();
+		try ( final OutputStream out = new S3MultipartOutputStream( s3, "bucket", "small.json", partSize, 2, executor ) )
+		{
+			out.write( data );
+		}
+		Assert.assertArrayEquals( data, s3.objects.get( "bucket/small.json" ) );
+		Assert.assertEquals( 1, s3.putRequests.get() );
+		Assert.assertEquals( 0, s3.partRequests.get() );
+
+		new S3MultipartOutputStream( s3, "bucket", "empty", partSize, 2, executor ).close();
+		Assert.assertArrayEquals( new byte[ 0 ], s3.objects.get( "bucket/empty" ) );
+	}
+
+	@Test
+	public void testGrowingBuffer() throws IOException
+	{
+		// written byte by byte and in small chunks across the boundaries of the growing buffer, but still fits into a single part
+		final byte[] data = new byte[ 5 * S3MultipartOutputStream.INITIAL_BUFFER_SIZE + 17 ];
+		new Random( 1 ).nextBytes( data );
+		try ( final OutputStream out = new S3MultipartOutputStream( s3, "bucket", "key", partSize, 2, executor ) )
+		{
+			for ( int i = 0; i < S3MultipartOutputStream.INITIAL_BUFFER_SIZE + 1; ++i )
+				out.write( data[ i ] );
+			for ( int offset = S3MultipartOutputStream.INITIAL_BUFFER_SIZE + 1; offset < data.length; offset += 1000 )
+				out.write( data, offset, Math.min( 1000, data.length - offset ) );
+		}
+		Assert.assertArrayEquals( data, s3.objects.get( "bucket/key" ) );
+		Assert.assertEquals( 1, s3.putRequests.get() );
+		Assert.assertEquals( 0, s3.partRequests.get() );
+	}
+
+	@Test
+	public void testFailedAbortIsSuppressed()
+	{
+		s3.failPartNumber = 2;
+		s3.failAbort = true;
+		try
+		{
+			try ( final OutputStream out = new S3MultipartOutputStream( s3, "bucket", "key", partSize, 2, executor ) )
+			{
+				out.write( new byte[ 3 * partSize ] );
+			}
+			Assert.fail( "expected the upload to fail" );
+		}
+		catch ( final IOException e )
+		{
+			Assert.assertEquals( 1, e.getSuppressed().length );
+			Assert.assertEquals( "abort failed", ( ( AmazonServiceException ) e.getSuppressed()[ 0 ] ).getErrorMessage() );
+		}
+		Assert.assertEquals( 1, s3.abortRequests.get() );
+	}
+
+	@Test
+	public void testFailedPartAbortsUpload()
+	{
+		s3.failPartNumber = 2;
+		final byte[] data = new byte[ 3 * partSize ];
+		try
+		{
+			try ( final OutputStream out = new S3MultipartOutputStream( s3, "bucket", "key", partSize, 2, executor ) )
+			{
+				out.write( data );
+			}
+			Assert.fail( "expected the upload to fail" );
+		}
+		catch ( final IOException e ) {}
+
+		Assert.assertEquals( 1, s3.abortRequests.get() );
+		Assert.assertFalse( s3.objects.containsKey( "bucket/key" ) );
+		Assert.assertTrue( s3.uploads.isEmpty() );
+	}
+
+	@Test
+	public void testTiffStream() throws IOException
+	{
+		final int width = 1024, height = 1024, depth = 4;
+		final ImageStack stack = new ImageStack( width, height );
+		final Random rnd = new Random( 1 );
+		for ( int z = 0; z < depth; ++z )
+		{
+			final short[] pixels = new short[ width * height ];
+			for ( int i = 0; i < pixels.length; ++i )
+				pixels[ i ] = ( short ) rnd.nextInt( 4096 );
+			stack.addSlice( new ShortProcessor( width, height, pixels, null ) );
+		}
+		final ImagePlus imp = new ImagePlus( "tile", stack );
+
+		// 8MB of pixel data is uploaded in two parts
+		try ( final OutputStream out = new S3MultipartOutputStream( s3, "bucket", "tile.tif", partSize, 2, executor ) )
+		{
+			TiffStreamWriter.write( imp, out );
+		}
+		Assert.assertEquals( 2, s3.partRequests.get() );
+
+		final ImagePlus impRead = new Opener().openTiff( new ByteArrayInputStream( s3.objects.get( "bucket/tile.tif" ) ), "tile.tif" );
+		Assert.assertEquals( depth, impRead.getStackSize() );
+		for ( int z = 1; z <= depth; ++z )
+			Assert.assertArrayEquals( ( short[] ) stack.getPixels( z ), ( short[] ) impRead.getStack().getPixels( z ) );
+	}
+}
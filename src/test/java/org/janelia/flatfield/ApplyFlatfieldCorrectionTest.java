@@ -0,0 +1,82 @@
+package org.janelia.flatfield;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class ApplyFlatfieldCorrectionTest
+{
+	@Test
+	public void testCorrectBlock()
+	{
+		final Random rnd = new Random( 3 );
+		final long[] tileDimensions = new long[] { 7, 5, 4 };
+
+		// 2D flatfield with large translation values to test clamping on both ends
+		final Img< FloatType > scalingImg = ArrayImgs.floats( 7, 5 ), translationImg = ArrayImgs.floats( 7, 5 );
+		for ( final FloatType val : scalingImg )
+			val.set( 0.5f + rnd.nextFloat() );
+		for ( final FloatType val : translationImg )
+			val.set( rnd.nextFloat() * 80000 - 40000 );
+		final FlatfieldCorrector corrector = new FlatfieldCorrector( scalingImg, translationImg );
+
+		final Img< UnsignedShortType > tileImg = ArrayImgs.unsignedShorts( tileDimensions );
+		for ( final UnsignedShortType val : tileImg )
+			val.set( rnd.nextInt( 1 << 16 ) );
+		final RandomAccessibleInterval< FloatType > expected = corrector.correct( tileImg );
+
+		// copy a block at the border of the tile
+		final long[] blockMin = new long[] { 4, 2, 1 };
+		final int[] blockSize = new int[] { 3, 3, 2 };
+		final short[] block = new short[ 3 * 3 * 2 ];
+		final RandomAccess< UnsignedShortType > tileAccess = tileImg.randomAccess();
+		for ( int z = 0, i = 0; z < blockSize[ 2 ]; ++z )
+			for ( int y = 0; y < blockSize[ 1 ]; ++y )
+				for ( int x = 0; x < blockSize[ 0 ]; ++x, ++i )
+				{
+					tileAccess.setPosition( new long[] { blockMin[ 0 ] + x, blockMin[ 1 ] + y, blockMin[ 2 ] + z } );
+					block[ i ] = ( short ) tileAccess.get().get();
+				}
+
+		ApplyFlatfieldCorrection.correctBlock( corrector, block, blockSize, blockMin, tileDimensions );
+
+		final RandomAccess< FloatType > expectedAccess = expected.randomAccess();
+		final Cursor< UnsignedShortType > blockCursor = ArrayImgs.unsignedShorts( block, 3, 3, 2 ).localizingCursor();
+		while ( blockCursor.hasNext() )
+		{
+			blockCursor.fwd();
+			for ( int d = 0; d < 3; ++d )
+				expectedAccess.setPosition( blockMin[ d ] + blockCursor.getLongPosition( d ), d );
+			final long expectedValue = Math.min( Math.max( Math.round( expectedAccess.get().get() ), 0 ), 0xffff );
+			Assert.assertEquals( expectedValue, blockCursor.get().get() );
+		}
+	}
+
+	@Test
+	public void testFlatfieldDimensionsMismatch()
+	{
+		final FlatfieldCorrector corrector = new FlatfieldCorrector( ArrayImgs.floats( 7, 5 ), ArrayImgs.floats( 7, 5 ) );
+
+		// the flatfield is applied to every slice of the 3D tile
+		ApplyFlatfieldCorrection.checkFlatfieldDimensions( corrector, new long[] { 7, 5, 4 }, "tile.tif" );
+
+		try
+		{
+			ApplyFlatfieldCorrection.checkFlatfieldDimensions( corrector, new long[] { 8, 5, 4 }, "tile.tif" );
+			Assert.fail( "expected the tile to be rejected" );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			Assert.assertTrue( e.getMessage(), e.getMessage().contains( "[7, 5]" ) && e.getMessage().contains( "[8, 5, 4]" ) );
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package org.janelia.flatfield;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.janelia.flatfield.FlatfieldCorrectionSolver.FlatfieldRegularizerMetadata;
+import org.janelia.flatfield.FlatfieldCorrectionSolver.FlatfieldRegularizerMetadata.RegularizerMode;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.RandomAccessiblePairNullable;
+import net.imglib2.view.Views;
+
+public class FlatfieldCorrectionSolverTest
+{
+	private static final long[] dimensions = new long[] { 8, 6 };
+
+	@Test
+	public void testOpenRegularizer() throws Exception
+	{
+		final File tempDir = Files.createTempDirectory( "flatfield-solver" ).toFile();
+		try
+		{
+			final N5Writer n5 = new N5FSWriter( tempDir.getAbsolutePath() );
+
+			// scaling depends on x and translation depends on y, so the regularizers cannot be confused with each other
+			final RandomAccessibleInterval< DoubleType > scalingImg = ArrayImgs.doubles( dimensions );
+			final RandomAccessibleInterval< DoubleType > translationImg = ArrayImgs.doubles( dimensions );
+			for ( final Cursor< DoubleType > cursor = Views.flatIterable( scalingImg ).localizingCursor(); cursor.hasNext(); )
+				cursor.next().set( 2 + cursor.getDoublePosition( 0 ) );
+			for ( final Cursor< DoubleType > cursor = Views.flatIterable( translationImg ).localizingCursor(); cursor.hasNext(); )
+				cursor.next().set( 100 + cursor.getDoublePosition( 1 ) );
+			N5Utils.save( scalingImg, n5, "scaling", new int[] { 4, 4 }, new GzipCompression() );
+			N5Utils.save( translationImg, n5, "translation", new int[] { 4, 4 }, new GzipCompression() );
+
+			final ShiftedDownsampling< AffineTransform2D > shiftedDownsampling = new ShiftedDownsampling<>( dimensions, new int[] { 4, 4 } );
+
+			// both resampling modes keep the values unchanged at the same scale level, but the scaling and translation modes differ
+			for ( final RegularizerMode[] modes : new RegularizerMode[][] {
+					{ RegularizerMode.UPSAMPLE_CURRENT_SOLUTION, RegularizerMode.DOWNSAMPLE_PREVIOUS_SOLUTION },
+					{ RegularizerMode.DOWNSAMPLE_PREVIOUS_SOLUTION, RegularizerMode.UPSAMPLE_CURRENT_SOLUTION } } )
+			{
+				final FlatfieldRegularizerMetadata regularizerMetadata = new FlatfieldRegularizerMetadata( "scaling", "translation", modes[ 0 ], modes[ 1 ] );
+				final RandomAccessiblePairNullable< DoubleType, DoubleType > regularizer = FlatfieldCorrectionSolver.openRegularizer( n5, regularizerMetadata, shiftedDownsampling, 0 );
+				final RandomAccessiblePairNullable< DoubleType, DoubleType >.RandomAccess regularizerRandomAccess = regularizer.randomAccess();
+
+				for ( final Cursor< DoubleType > cursor = Views.flatIterable( scalingImg ).localizingCursor(); cursor.hasNext(); )
+				{
+					cursor.fwd();
+					regularizerRandomAccess.setPosition( cursor );
+					Assert.assertEquals( 2 + cursor.getDoublePosition( 0 ), regularizerRandomAccess.getA().get(), 1e-10 );
+					Assert.assertEquals( 100 + cursor.getDoublePosition( 1 ), regularizerRandomAccess.getB().get(), 1e-10 );
+				}
+			}
+		}
+		finally
+		{
+			FileUtils.deleteDirectory( tempDir );
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package org.janelia.flatfield;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Compares applying the flatfield correction to a 16-bit tile through {@link FlatfieldCorrectedRandomAccessible}
+ * with the bulk correction of the storage arrays in {@link FlatfieldCorrector}.
+ *
+ * Usage: FlatfieldCorrectorBenchmark [width] [height] [depth] [repeats]
+ */
+public class FlatfieldCorrectorBenchmark
+{
+	public static void main( final String[] args )
+	{
+		final int width = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 1024;
+		final int height = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 1024;
+		final int depth = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 64;
+		final int repeats = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 5;
+
+		final Random rnd = new Random( 1 );
+		final Img< FloatType > scalingImg = ArrayImgs.floats( width, height ), translationImg = ArrayImgs.floats( width, height );
+		for ( final FloatType val : scalingImg )
+			val.set( 0.8f + 0.4f * rnd.nextFloat() );
+		for ( final FloatType val : translationImg )
+			val.set( 20 * rnd.nextFloat() - 10 );
+		final FlatfieldCorrector corrector = new FlatfieldCorrector( scalingImg, translationImg );
+
+		final Img< UnsignedShortType > tileImg = ImagePlusImgs.unsignedShorts( width, height, depth );
+		for ( final UnsignedShortType val : tileImg )
+			val.set( 100 + rnd.nextInt( 4000 ) );
+		final double megabytes = Intervals.numElements( tileImg ) * Short.BYTES / 1e6;
+
+		System.out.println( "Tile " + width + "x" + height + "x" + depth + " (" + String.format( "%.1f", megabytes ) + "MB), 2D flatfield" );
+
+		for ( int repeat = 0; repeat < repeats; ++repeat )
+		{
+			long elapsedRandomAccess = System.nanoTime();
+			final Img< FloatType > randomAccessResult = ImagePlusImgs.floats( width, height, depth );
+			final RandomAccessibleInterval< FloatType > correctedView = Views.interval(
+					new FlatfieldCorrectedRandomAccessible<>( tileImg, corrector.toRandomAccessiblePair( tileImg.numDimensions() ) ),
+					tileImg
+				);
+			final Cursor< FloatType > srcCursor = Views.flatIterable( correctedView ).cursor();
+			final Cursor< FloatType > dstCursor = Views.flatIterable( randomAccessResult ).cursor();
+			while ( dstCursor.hasNext() )
+				dstCursor.next().set( srcCursor.next() );
+			elapsedRandomAccess = System.nanoTime() - elapsedRandomAccess;
+
+			long elapsedBulk = System.nanoTime();
+			final RandomAccessibleInterval< FloatType > bulkResult = corrector.correct( tileImg );
+			elapsedBulk = System.nanoTime() - elapsedBulk;
+
+			// make sure that both paths produce the same values
+			final Cursor< FloatType > randomAccessCursor = Views.flatIterable( randomAccessResult ).cursor();
+			final Cursor< FloatType > bulkCursor = Views.flatIterable( bulkResult ).cursor();
+			long mismatches = 0;
+			while ( bulkCursor.hasNext() )
+				if ( bulkCursor.next().get() != randomAccessCursor.next().get() )
+					++mismatches;
+
+			System.out.println( String.format(
+					"RandomAccess: %.1fMB/s,  bulk: %.1fMB/s,  speedup: %.1fx,  mismatches: %d",
+					megabytes / ( elapsedRandomAccess / 1e9 ),
+					megabytes / ( elapsedBulk / 1e9 ),
+					( double ) elapsedRandomAccess / elapsedBulk,
+					mismatches ) );
+		}
+	}
+}
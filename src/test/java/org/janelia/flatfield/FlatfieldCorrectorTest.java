@@ -0,0 +1,108 @@
+package org.janelia.flatfield;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+public class FlatfieldCorrectorTest
+{
+	private final Random rnd = new Random( 11 );
+
+	@Test
+	public void testArrayImg()
+	{
+		final FlatfieldCorrector corrector = randomCorrector( 9, 7, 4 );
+		final Img< UnsignedShortType > img = fillRandom( ArrayImgs.unsignedShorts( 9, 7, 4 ) );
+		assertCorrected( corrector, img );
+	}
+
+	@Test
+	public void testPlanarImg2dFlatfield()
+	{
+		// 2D flatfield is repeated for every slice
+		final FlatfieldCorrector corrector = randomCorrector( 9, 7 );
+		final Img< UnsignedShortType > img = fillRandom( ImagePlusImgs.unsignedShorts( 9, 7, 5 ) );
+		assertCorrected( corrector, img );
+	}
+
+	@Test
+	public void testCellImg()
+	{
+		final FlatfieldCorrector corrector = randomCorrector( 9, 7 );
+		final Img< UnsignedShortType > img = fillRandom( new CellImgFactory<>( new UnsignedShortType(), 9, 7, 2 ).create( 9, 7, 5 ) );
+		assertCorrected( corrector, img );
+	}
+
+	@Test
+	public void testLineKernel()
+	{
+		final FlatfieldCorrector corrector = randomCorrector( 5, 3 );
+		final RandomAccessibleInterval< FloatType > scalingImg = Views.interval( corrector.toRandomAccessiblePair( 2 ).getA(), new long[] { 0, 0 }, new long[] { 4, 2 } );
+		final RandomAccessibleInterval< FloatType > translationImg = Views.interval( corrector.toRandomAccessiblePair( 2 ).getB(), new long[] { 0, 0 }, new long[] { 4, 2 } );
+		final float[] scaling = new float[ 15 ], translation = new float[ 15 ];
+		final Cursor< FloatType > scalingCursor = Views.flatIterable( scalingImg ).cursor(), translationCursor = Views.flatIterable( translationImg ).cursor();
+		for ( int i = 0; i < 15; ++i )
+		{
+			scaling[ i ] = scalingCursor.next().get();
+			translation[ i ] = translationCursor.next().get();
+		}
+
+		// the line starts in the middle of the field and wraps around
+		final short[] src = new short[] { 100, 200, ( short ) 65535, 0, 5, 6, 7, 8, 9, 10 };
+		final float[] dst = new float[ src.length ];
+		corrector.correct( src, dst, 10 );
+		for ( int i = 0; i < src.length; ++i )
+			Assert.assertEquals( ( float ) ( ( src[ i ] & 0xffff ) * ( double ) scaling[ ( 10 + i ) % 15 ] + translation[ ( 10 + i ) % 15 ] ), dst[ i ], 0 );
+	}
+
+	@Test
+	public void testFallbackForViews()
+	{
+		final FlatfieldCorrector corrector = randomCorrector( 9, 7, 4 );
+		final RandomAccessibleInterval< UnsignedShortType > img = Views.translate( fillRandom( ArrayImgs.unsignedShorts( 9, 7, 4 ) ), 0, 0, 0 );
+		assertCorrected( corrector, img );
+	}
+
+	private FlatfieldCorrector randomCorrector( final long... dimensions )
+	{
+		final Img< FloatType > scalingImg = ArrayImgs.floats( dimensions ), translationImg = ArrayImgs.floats( dimensions );
+		for ( final FloatType val : scalingImg )
+			val.set( 0.5f + rnd.nextFloat() );
+		for ( final FloatType val : translationImg )
+			val.set( rnd.nextFloat() * 100 - 50 );
+		return new FlatfieldCorrector( scalingImg, translationImg );
+	}
+
+	private Img< UnsignedShortType > fillRandom( final Img< UnsignedShortType > img )
+	{
+		for ( final UnsignedShortType val : img )
+			val.set( rnd.nextInt( 1 << 16 ) );
+		return img;
+	}
+
+	/**
+	 * Compares the result with the correction applied through {@link FlatfieldCorrectedRandomAccessible}.
+	 */
+	private static < T extends RealType< T > > void assertCorrected( final FlatfieldCorrector corrector, final RandomAccessibleInterval< T > img )
+	{
+		final RandomAccessibleInterval< FloatType > expected = Views.interval( new FlatfieldCorrectedRandomAccessible<>( img, corrector.toRandomAccessiblePair( img.numDimensions() ) ), img );
+		final RandomAccessibleInterval< FloatType > actual = corrector.correct( img );
+		final Cursor< FloatType > expectedCursor = Views.flatIterable( expected ).cursor();
+		final Cursor< FloatType > actualCursor = Views.flatIterable( actual ).cursor();
+		while ( expectedCursor.hasNext() )
+			Assert.assertEquals( expectedCursor.next().get(), actualCursor.next().get(), 0 );
+		Assert.assertFalse( actualCursor.hasNext() );
+	}
+}
@@ -1,10 +1,19 @@
 package org.janelia.flatfield;
 
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import mpicbg.models.Affine1D;
+import mpicbg.models.AffineModel1D;
+import mpicbg.models.FixedScalingAffineModel1D;
+import mpicbg.models.FixedTranslationAffineModel1D;
+import mpicbg.models.IndependentlyInterpolatedAffineModel1D;
+import mpicbg.models.InterpolatedAffineModel1D;
+import mpicbg.models.Model;
+import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
 import net.imglib2.histogram.Real1dBinMapper;
 import net.imglib2.img.array.ArrayImgs;
@@ -263,6 +272,96 @@ public class HistogramMatchingTest
 		Assert.assertArrayEquals( new double[] { 1.0 }, arrays[ 2 ], EPSILON );
 	}
 
+	@Test
+	public void testClosedFormFit() throws Exception
+	{
+		final Random rnd = new Random( 13 );
+		final int bins = 20;
+		final double pivotValue = 7;
+		final double[] binValues = HistogramMatching.getBinValues( new HistogramSettings( 0., 40., bins ) );
+		final double[] regularizerValues = new double[] { 1.1, -0.4 };
+		final HistogramMatching.MatchStatistics matchStatistics = new HistogramMatching.MatchStatistics();
+
+		for ( int iteration = 0; iteration < 20; ++iteration )
+		{
+			final double[][] histograms = new double[ 2 ][ bins ];
+			for ( int i = 0; i < 2; ++i )
+				for ( int sample = 0; sample < 100; ++sample )
+					histograms[ i ][ Math.min( bins - 1, ( int ) Math.abs( rnd.nextGaussian() * bins / 3 + ( i + 1 ) * bins / 4 ) ) ] += 1;
+
+			final List< PointMatch > matches = HistogramMatching.generateHistogramMatches( wrap( histograms[ 0 ] ), wrap( histograms[ 1 ] ), binValues );
+			for ( final PointMatch match : matches )
+				for ( final Point point : new Point[] { match.getP1(), match.getP2() } )
+					for ( final double[] value : new double[][] { point.getL(), point.getW() } )
+						value[ 0 ] -= pivotValue;
+
+			HistogramMatching.matchHistograms( histograms[ 0 ], histograms[ 1 ], binValues, matchStatistics.reset( pivotValue, pivotValue ) );
+			Assert.assertEquals( matches.size(), matchStatistics.getCount() );
+
+			for ( final FlatfieldCorrectionSolver.ModelType modelType : FlatfieldCorrectionSolver.ModelType.values() )
+			{
+				final double[] expected;
+				switch ( modelType )
+				{
+				case FixedTranslationAffineModel:
+					expected = fitInterpolatedModel( new FixedTranslationAffineModel1D( regularizerValues[ 1 ] ), matches, regularizerValues );
+					break;
+				case FixedScalingAffineModel:
+					expected = fitInterpolatedModel( new FixedScalingAffineModel1D( regularizerValues[ 0 ] ), matches, regularizerValues );
+					break;
+				default:
+					expected = fitInterpolatedModel( new AffineModel1D(), matches, regularizerValues );
+					break;
+				}
+
+				final double[] actual = new double[ 2 ];
+				Assert.assertTrue( FlatfieldCorrectionSolver.fitInterpolatedModel( modelType, matchStatistics, regularizerValues, regularizerValues, actual ) );
+				Assert.assertArrayEquals( expected, actual, 1e-8 );
+			}
+		}
+	}
+
+	@Test
+	public void testClosedFormFitFallback()
+	{
+		final double[] binValues = HistogramMatching.getBinValues( new HistogramSettings( 0., 16., 8 ) );
+		final double[] regularizerValues = new double[] { 1.5, 2 };
+		final double[] actual = new double[ 2 ];
+
+		// a single match is not enough for the affine model
+		final HistogramMatching.MatchStatistics matchStatistics = new HistogramMatching.MatchStatistics();
+		HistogramMatching.matchHistograms( new double[] { 0, 0, 0, 3, 0, 0, 0, 0 }, new double[] { 0, 0, 0, 0, 3, 0, 0, 0 }, binValues, matchStatistics.reset( 0, 0 ) );
+		Assert.assertEquals( 1, matchStatistics.getCount() );
+		Assert.assertFalse( FlatfieldCorrectionSolver.fitInterpolatedModel( FlatfieldCorrectionSolver.ModelType.AffineModel, matchStatistics, regularizerValues, regularizerValues, actual ) );
+		Assert.assertArrayEquals( regularizerValues, actual, EPSILON );
+
+		// all matched values are at the pivot
+		HistogramMatching.matchHistograms( new double[] { 0, 0, 0, 3, 0, 0, 0, 0 }, new double[] { 0, 0, 0, 0, 3, 0, 0, 0 }, binValues, matchStatistics.reset( binValues[ 3 ], binValues[ 3 ] ) );
+		Assert.assertFalse( FlatfieldCorrectionSolver.fitInterpolatedModel( FlatfieldCorrectionSolver.ModelType.FixedTranslationAffineModel, matchStatistics, regularizerValues, regularizerValues, actual ) );
+		Assert.assertArrayEquals( regularizerValues, actual, EPSILON );
+	}
+
+	/**
+	 * Fits the models in the same way as it was done for every pixel before the closed-form solution was introduced.
+	 */
+	private static < M extends Model< M > & Affine1D< M > > double[] fitInterpolatedModel( final M model, final List< PointMatch > matches, final double[] regularizerValues ) throws Exception
+	{
+		final InterpolatedAffineModel1D< M, FixedTranslationAffineModel1D > pivotedModel = new InterpolatedAffineModel1D<>( model, new FixedTranslationAffineModel1D( 0 ), 0.5 );
+		pivotedModel.fit( matches );
+
+		final AffineModel1D regularizerModel = new AffineModel1D();
+		regularizerModel.set( regularizerValues[ 0 ], regularizerValues[ 1 ] );
+
+		final double[] values = new double[ 2 ];
+		new IndependentlyInterpolatedAffineModel1D<>( pivotedModel, regularizerModel, 0.5, 0.5 ).toArray( values );
+		return values;
+	}
+
+	private static RealComposite< DoubleType > wrap( final double[] histogram )
+	{
+		return new RealComposite<>( ArrayImgs.doubles( histogram, histogram.length ).randomAccess(), histogram.length );
+	}
+
 	private double[][] matchesToArrays( final List< PointMatch > matches )
 	{
 		final double[] p = new double[ matches.size() ], q = new double[ matches.size() ], w = new double[ matches.size() ];
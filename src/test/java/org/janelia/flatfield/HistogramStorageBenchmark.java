@@ -0,0 +1,155 @@
+package org.janelia.flatfield;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the size on disk and the read/write throughput of the per-pixel histograms stored in different data types.
+ *
+ * Usage: HistogramStorageBenchmark [fieldOfViewSize] [bins] [numTiles]
+ */
+public class HistogramStorageBenchmark
+{
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static void main( final String[] args ) throws IOException
+	{
+		final int fieldOfViewSize = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 512;
+		final int bins = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 258;
+		final int numTiles = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 2000;
+		final int blockSize = 64;
+
+		final long[] dimensions = new long[] { fieldOfViewSize, fieldOfViewSize, bins };
+		final int[] extendedBlockSize = new int[] { blockSize, blockSize, bins };
+		final int numBlocks = fieldOfViewSize / blockSize;
+
+		// synthetic histograms: the intensity distribution is shifted smoothly across the field of view
+		final Random rnd = new Random( 1 );
+		final int[][] blockHistograms = new int[ numBlocks * numBlocks ][];
+		for ( int block = 0; block < blockHistograms.length; ++block )
+		{
+			final int[] histograms = new int[ blockSize * blockSize * bins ];
+			final int pixels = blockSize * blockSize;
+			for ( int pixel = 0; pixel < pixels; ++pixel )
+			{
+				final double mean = bins * ( 0.3 + 0.2 * ( block + ( double ) pixel / pixels ) / blockHistograms.length );
+				for ( int tile = 0; tile < numTiles; ++tile )
+				{
+					final int bin = ( int ) Math.max( 0, Math.min( bins - 1, Math.round( mean + rnd.nextGaussian() * bins * 0.05 ) ) );
+					++histograms[ bin * pixels + pixel ];
+				}
+			}
+			blockHistograms[ block ] = histograms;
+		}
+
+		System.out.println( "Field of view " + fieldOfViewSize + "x" + fieldOfViewSize + ", " + bins + " bins, " + numTiles + " tiles" );
+		System.out.println( "Selected storage type with compact storage: " + HistogramsProvider.getStorageDataType( numTiles, true ) );
+		System.out.println();
+
+		final Path basePath = Files.createTempDirectory( "histogram-storage-benchmark" );
+		try
+		{
+			final N5Writer n5 = new N5FSWriter( basePath.toString() );
+			for ( final DataType dataType : new DataType[] { DataType.FLOAT64, DataType.FLOAT32, DataType.UINT32, DataType.UINT16 } )
+			{
+				final String dataset = dataType.toString();
+				n5.createDataset( dataset, dimensions, extendedBlockSize, dataType, new GzipCompression() );
+
+				long elapsedWrite = System.nanoTime();
+				for ( int block = 0; block < blockHistograms.length; ++block )
+				{
+					final long[] blockDimensions = new long[] { blockSize, blockSize, bins };
+					final long[] blockPosition = new long[] { block % numBlocks, block / numBlocks, 0 };
+					N5Utils.saveBlock( createBlock( blockHistograms[ block ], blockDimensions, dataType ), n5, dataset, blockPosition );
+				}
+				elapsedWrite = System.nanoTime() - elapsedWrite;
+
+				long elapsedRead = System.nanoTime();
+				final RandomAccessibleInterval< ? extends RealType< ? > > histogramsImg = ( RandomAccessibleInterval ) N5Utils.open( n5, dataset );
+				double sum = 0;
+				for ( final RealType< ? > val : Views.flatIterable( histogramsImg ) )
+					sum += val.getRealDouble();
+				elapsedRead = System.nanoTime() - elapsedRead;
+
+				final long uncompressedBytes = ( long ) fieldOfViewSize * fieldOfViewSize * bins * bytesPerElement( dataType );
+				final long storedBytes = getSize( basePath.resolve( dataset ) );
+				System.out.println( String.format(
+						"%-8s  stored=%.1fMB (%.1f%% of uncompressed %.1fMB), write=%.1fMB/s, read=%.1fMB/s  (checksum %.0f)",
+						dataType,
+						storedBytes / 1e6,
+						100.0 * storedBytes / uncompressedBytes,
+						uncompressedBytes / 1e6,
+						uncompressedBytes / 1e6 / ( elapsedWrite / 1e9 ),
+						uncompressedBytes / 1e6 / ( elapsedRead / 1e9 ),
+						sum ) );
+			}
+		}
+		finally
+		{
+			try ( final Stream< Path > paths = Files.walk( basePath ) )
+			{
+				paths.sorted( Comparator.reverseOrder() ).forEach( path -> path.toFile().delete() );
+			}
+		}
+	}
+
+	@SuppressWarnings( "rawtypes" )
+	private static RandomAccessibleInterval createBlock( final int[] histograms, final long[] blockDimensions, final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case FLOAT64:
+			final double[] doubles = new double[ histograms.length ];
+			for ( int i = 0; i < histograms.length; ++i )
+				doubles[ i ] = histograms[ i ];
+			return ArrayImgs.doubles( doubles, blockDimensions );
+		case FLOAT32:
+			final float[] floats = new float[ histograms.length ];
+			for ( int i = 0; i < histograms.length; ++i )
+				floats[ i ] = histograms[ i ];
+			return ArrayImgs.floats( floats, blockDimensions );
+		case UINT32:
+			return ArrayImgs.unsignedInts( histograms.clone(), blockDimensions );
+		case UINT16:
+			final short[] shorts = new short[ histograms.length ];
+			for ( int i = 0; i < histograms.length; ++i )
+				shorts[ i ] = ( short ) histograms[ i ];
+			return ArrayImgs.unsignedShorts( shorts, blockDimensions );
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+
+	private static int bytesPerElement( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case FLOAT64: return 8;
+		case FLOAT32: case UINT32: return 4;
+		case UINT16: return 2;
+		default: throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+
+	private static long getSize( final Path path ) throws IOException
+	{
+		try ( final Stream< Path > paths = Files.walk( path ) )
+		{
+			return paths.filter( Files::isRegularFile ).mapToLong( p -> p.toFile().length() ).sum();
+		}
+	}
+}
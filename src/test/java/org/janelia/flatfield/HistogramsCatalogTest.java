@@ -0,0 +1,111 @@
+package org.janelia.flatfield;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.histogram.Real1dBinMapper;
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class HistogramsCatalogTest
+{
+	@Test
+	public void testBinMapping()
+	{
+		final HistogramSettings source = new HistogramSettings( 100.0, 500.0, 400 + 2 );
+
+		// coarser binning of the same range
+		assertBinMappingMatchesBinning( source, new HistogramSettings( 100.0, 500.0, 100 + 2 ) );
+
+		// sub-range with coarser binning
+		assertBinMappingMatchesBinning( source, new HistogramSettings( 150.0, 450.0, 150 + 2 ) );
+
+		// min value is not aligned with the source bins
+		Assert.assertNull( HistogramsCatalog.getBinMapping( source, new HistogramSettings( 100.5, 500.0, 100 + 2 ) ) );
+
+		// range outside of the source range
+		Assert.assertNull( HistogramsCatalog.getBinMapping( source, new HistogramSettings( 50.0, 500.0, 100 + 2 ) ) );
+
+		// finer binning
+		Assert.assertNull( HistogramsCatalog.getBinMapping( source, new HistogramSettings( 100.0, 500.0, 800 + 2 ) ) );
+	}
+
+	@Test
+	public void testCatalog() throws Exception
+	{
+		final File tempDir = Files.createTempDirectory( "histograms-catalog" ).toFile();
+		try
+		{
+			final N5FSWriter n5 = new N5FSWriter( tempDir.getAbsolutePath() );
+			final HistogramsCatalog catalog = new HistogramsCatalog( n5, "/" );
+			final HistogramSettings histogramSettings = new HistogramSettings( 100.0, 500.0, 400 + 2 );
+			final FinalInterval interval = new FinalInterval( 20, 30 );
+			catalog.add( new HistogramsCatalog.Entry( "histograms-n5", "tiles", interval, histogramSettings ) );
+
+			Assert.assertNotNull( catalog.find( "tiles", interval, new HistogramSettings( 100.0, 500.0, 400 + 2 ) ) );
+			Assert.assertNull( catalog.find( "other-tiles", interval, histogramSettings ) );
+			Assert.assertNull( catalog.find( "tiles", interval, new HistogramSettings( 100.0, 500.0, 100 + 2 ) ) );
+
+			// coarser binning and sub-interval can be derived
+			Assert.assertNotNull( catalog.findSource( "tiles", interval, new HistogramSettings( 100.0, 500.0, 100 + 2 ) ) );
+			Assert.assertNotNull( catalog.findSource( "tiles", new FinalInterval( new long[] { 5, 5 }, new long[] { 10, 10 } ), histogramSettings ) );
+			Assert.assertNull( catalog.findSource( "tiles", new FinalInterval( 30, 30 ), histogramSettings ) );
+
+			// the entry for the same dataset is replaced
+			catalog.add( new HistogramsCatalog.Entry( "histograms-n5", "tiles", interval, new HistogramSettings( 0.0, 1000.0, 10 + 2 ) ) );
+			Assert.assertEquals( 1, catalog.getEntries().size() );
+			Assert.assertNull( catalog.find( "tiles", interval, histogramSettings ) );
+
+			// the histograms collected from a different tile set for the same interval and binning replace the stale dataset
+			n5.createDataset( "histograms-n5", new long[] { 20, 30, 10 + 2 }, new int[] { 20, 30, 10 + 2 }, DataType.FLOAT32, new RawCompression() );
+			n5.createDataset( "histograms-other-n5", new long[] { 20, 30, 10 + 2 }, new int[] { 20, 30, 10 + 2 }, DataType.FLOAT32, new RawCompression() );
+			catalog.add( new HistogramsCatalog.Entry( "histograms-other-n5", "other-tiles", interval, new HistogramSettings( 0.0, 1000.0, 10 + 2 ) ) );
+			Assert.assertEquals( 1, catalog.getEntries().size() );
+			Assert.assertNotNull( catalog.find( "other-tiles", interval, new HistogramSettings( 0.0, 1000.0, 10 + 2 ) ) );
+			Assert.assertFalse( n5.datasetExists( "histograms-n5" ) );
+			Assert.assertTrue( n5.datasetExists( "histograms-other-n5" ) );
+
+			// the histograms for a different binning are kept
+			catalog.add( new HistogramsCatalog.Entry( "histograms-coarse-n5", "other-tiles", interval, new HistogramSettings( 0.0, 1000.0, 5 + 2 ) ) );
+			Assert.assertEquals( 2, catalog.getEntries().size() );
+			Assert.assertTrue( n5.datasetExists( "histograms-other-n5" ) );
+		}
+		finally
+		{
+			Files.walk( tempDir.toPath() ).sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+		}
+	}
+
+	/**
+	 * Checks that the histograms derived with the bin mapping are the same as the histograms binned directly
+	 * (the values are chosen away from the bin boundaries).
+	 */
+	private static void assertBinMappingMatchesBinning( final HistogramSettings source, final HistogramSettings target )
+	{
+		final int[] binMapping = HistogramsCatalog.getBinMapping( source, target );
+		Assert.assertNotNull( binMapping );
+
+		final Real1dBinMapper< DoubleType > sourceBinMapper = new Real1dBinMapper<>( source.histMinValue, source.histMaxValue, source.bins, true );
+		final Real1dBinMapper< DoubleType > targetBinMapper = new Real1dBinMapper<>( target.histMinValue, target.histMaxValue, target.bins, true );
+		final long[] derivedHistogram = new long[ target.bins ], expectedHistogram = new long[ target.bins ];
+
+		final Random rnd = new Random( 7 );
+		final DoubleType value = new DoubleType();
+		for ( int i = 0; i < 10000; ++i )
+		{
+			value.set( rnd.nextInt( 700 ) + 0.25 );
+			++derivedHistogram[ binMapping[ ( int ) sourceBinMapper.map( value ) ] ];
+			++expectedHistogram[ ( int ) targetBinMapper.map( value ) ];
+		}
+		Assert.assertArrayEquals( expectedHistogram, derivedHistogram );
+	}
+}
@@ -0,0 +1,44 @@
+package org.janelia.flatfield;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramsProviderTest
+{
+	@Test
+	public void testBlockBatches()
+	{
+		final long[] dimensions = new long[] { 100, 70 };
+		final int[] blockSize = new int[] { 32, 32 };
+		final List< long[] > blockPositions = HistogramsProvider.getBlockPositions( dimensions, blockSize );
+		Assert.assertEquals( 12, blockPositions.size() );
+
+		for ( final int numBatches : new int[] { 1, 3, 5, 12, 50 } )
+		{
+			final List< List< long[] > > blockBatches = HistogramsProvider.getBlockBatches( dimensions, blockSize, numBatches );
+			Assert.assertEquals( Math.min( numBatches, blockPositions.size() ), blockBatches.size() );
+
+			// all blocks are included exactly once and in the same order
+			final List< long[] > batchedBlockPositions = new ArrayList<>();
+			for ( final List< long[] > blockBatch : blockBatches )
+			{
+				Assert.assertFalse( blockBatch.isEmpty() );
+				batchedBlockPositions.addAll( blockBatch );
+			}
+			Assert.assertEquals( blockPositions.size(), batchedBlockPositions.size() );
+			for ( int i = 0; i < blockPositions.size(); ++i )
+				Assert.assertArrayEquals( blockPositions.get( i ), batchedBlockPositions.get( i ) );
+		}
+	}
+
+	@Test
+	public void testBlockBatchesSingleBlock()
+	{
+		final List< List< long[] > > blockBatches = HistogramsProvider.getBlockBatches( new long[] { 5, 5, 5 }, new int[] { 8, 8, 8 }, 10 );
+		Assert.assertEquals( 1, blockBatches.size() );
+		Assert.assertArrayEquals( new long[] { 0, 0, 0 }, blockBatches.get( 0 ).get( 0 ) );
+	}
+}
@@ -10,11 +10,16 @@ import org.apache.spark.broadcast.Broadcast;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
 import net.imglib2.Cursor;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
@@ -61,4 +66,41 @@ public class KryoSerializationTest
 			Assert.assertArrayEquals( image, result.get( 0 ) );
 		}
 	}
+
+	@Test
+	public void testFlatfieldField()
+	{
+		final Random rnd = new Random();
+		final long[] dimensions = new long[] { rnd.nextInt( 10 ) + 1, rnd.nextInt( 10 ) + 1 };
+		final float[] scaling = new float[ ( int ) Intervals.numElements( dimensions ) ], translation = new float[ scaling.length ];
+		for ( int i = 0; i < scaling.length; ++i )
+		{
+			scaling[ i ] = rnd.nextFloat();
+			translation[ i ] = rnd.nextFloat() * 100;
+		}
+
+		for ( final Double pivotValue : new Double[] { 101.0, null } )
+		{
+			final FlatfieldField field = new FlatfieldField( dimensions, scaling, translation, pivotValue );
+
+			final Kryo kryo = new Kryo();
+			final Output output = new Output( 1024, -1 );
+			kryo.writeObject( output, field );
+
+			// only the arrays and a few header bytes are written
+			Assert.assertTrue( output.position() < ( scaling.length + translation.length ) * Float.BYTES + dimensions.length * Long.BYTES + 16 );
+
+			final FlatfieldField deserialized = kryo.readObject( new Input( output.toBytes() ), FlatfieldField.class );
+			Assert.assertArrayEquals( dimensions, deserialized.getDimensions() );
+			Assert.assertArrayEquals( scaling, deserialized.getScaling(), 0 );
+			Assert.assertArrayEquals( translation, deserialized.getTranslation(), 0 );
+			Assert.assertEquals( pivotValue, deserialized.getPivotValue() );
+
+			// 2D field is extended along the third dimension
+			final RandomAccessibleInterval< FloatType > scalingImg = Views.interval( deserialized.getCorrectionImages( 3 ).getA(), new long[] { 0, 0, 5 }, new long[] { dimensions[ 0 ] - 1, dimensions[ 1 ] - 1, 5 } );
+			final Cursor< FloatType > cursor = Views.flatIterable( scalingImg ).cursor();
+			for ( int i = 0; i < scaling.length; ++i )
+				Assert.assertEquals( scaling[ i ], cursor.next().get(), 0 );
+		}
+	}
 }
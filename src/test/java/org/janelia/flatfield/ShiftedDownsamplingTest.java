@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.stream.LongStream;
 
 import org.apache.spark.SparkConf;
@@ -18,6 +19,7 @@ import org.janelia.stitching.TileInfo;
 import org.janelia.stitching.Utils;
 import org.janelia.util.Conversions;
 import org.janelia.util.ImageImporter;
+import org.janelia.util.concurrent.MultithreadedExecutor;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -171,6 +173,128 @@ public class ShiftedDownsamplingTest
 		Assert.assertFalse( n5.datasetExists( downsampledHistogramsDataset ) );
 	}
 
+	@Test
+	public void testInMemory() throws Exception
+	{
+		final ShiftedDownsampling< AffineTransform3D > shiftedDownsampling = new ShiftedDownsampling<>( dimensions, blockSize );
+		Assert.assertEquals( 2, shiftedDownsampling.getNumScales() );
+		Assert.assertArrayEquals( dimensions, shiftedDownsampling.getDimensionsAtScale( 0 ) );
+		Assert.assertArrayEquals( new long[] { 2, 2, 1 }, shiftedDownsampling.getDimensionsAtScale( 1 ) );
+
+		// same expected values as for the stored pyramid
+		final RandomAccessibleInterval< DoubleType > downsampledHistogramsStorageImg;
+		try ( final MultithreadedExecutor threadPool = new MultithreadedExecutor( 2 ) )
+		{
+			downsampledHistogramsStorageImg = shiftedDownsampling.downsampleHistograms( createTestHistograms(), 1, threadPool );
+		}
+		final CompositeIntervalView< DoubleType, RealComposite< DoubleType > > downsampledHistogramsImg = Views.collapseReal( downsampledHistogramsStorageImg );
+		Assert.assertArrayEquals( new long[] { 2, 2, 1 }, Intervals.dimensionsAsLongArray( downsampledHistogramsImg ) );
+
+		Assert.assertArrayEquals( new double[] { 0, 5, 0, 1, 0 },       getHistogramArray( downsampledHistogramsImg, new long[] { 0, 0, 0 } ), EPSILON );
+		Assert.assertArrayEquals( new double[] { 0, 2.5, 3, 0.5, 0 },   getHistogramArray( downsampledHistogramsImg, new long[] { 1, 0, 0 } ), EPSILON );
+		Assert.assertArrayEquals( new double[] { 0, 1, 2.5, 2.5, 0 },   getHistogramArray( downsampledHistogramsImg, new long[] { 0, 1, 0 } ), EPSILON );
+		Assert.assertArrayEquals( new double[] { 0, 1.25, 2.75, 2, 0 }, getHistogramArray( downsampledHistogramsImg, new long[] { 1, 1, 0 } ), EPSILON );
+	}
+
+	@Test
+	public void testScalePyramidDimensions()
+	{
+		final long[][] expectedDimensions = new long[][] { { 9, 7, 5 }, { 5, 4, 3 }, { 2, 2, 1 } };
+		final List< long[] > scalePyramidDimensions = ShiftedDownsampling.getScalePyramidDimensions( new long[] { 9, 7, 5 }, new int[] { 2, 2, 2 } );
+		Assert.assertEquals( expectedDimensions.length, scalePyramidDimensions.size() );
+		for ( int scale = 0; scale < expectedDimensions.length; ++scale )
+			Assert.assertArrayEquals( expectedDimensions[ scale ], scalePyramidDimensions.get( scale ) );
+	}
+
+	@Test
+	public void testInMemoryMatchesStoredPyramid() throws Exception
+	{
+		final long[] largerDimensions = new long[] { 9, 7, 5 };
+		final int[] largerBlockSize = new int[] { 2, 2, 2 };
+		final long[] extendedDimensions = new long[] { largerDimensions[ 0 ], largerDimensions[ 1 ], largerDimensions[ 2 ], bins };
+		final RandomAccessibleInterval< DoubleType > histograms = ArrayImgs.doubles( extendedDimensions );
+		final Random rnd = new Random( 7 );
+		for ( final DoubleType val : Views.iterable( histograms ) )
+			val.set( rnd.nextInt( 10 ) );
+
+		final DataProvider dataProvider = DataProviderFactory.createFSDataProvider();
+		final N5Writer n5 = dataProvider.createN5Writer( histogramsN5BasePath );
+		N5Utils.save( histograms, n5, histogramsDataset, getExtendedBlockSize( largerBlockSize ), new GzipCompression() );
+
+		final ShiftedDownsampling< AffineTransform3D > storedPyramid = new ShiftedDownsampling<>(
+				sparkContext,
+				dataProvider.getType(),
+				histogramsN5BasePath,
+				histogramsDataset,
+				new FinalInterval( largerDimensions )
+			);
+		final ShiftedDownsampling< AffineTransform3D > inMemoryPyramid = new ShiftedDownsampling<>( largerDimensions, largerBlockSize );
+
+		Assert.assertEquals( storedPyramid.getNumScales(), inMemoryPyramid.getNumScales() );
+		try ( final MultithreadedExecutor threadPool = new MultithreadedExecutor( 2 ) )
+		{
+			for ( int scale = 0; scale < storedPyramid.getNumScales(); ++scale )
+			{
+				Assert.assertArrayEquals( storedPyramid.getDimensionsAtScale( scale ), inMemoryPyramid.getDimensionsAtScale( scale ) );
+
+				final RandomAccessibleInterval< DoubleType > stored = N5Utils.open( n5, storedPyramid.getDatasetAtScale( scale ) );
+				final RandomAccessibleInterval< DoubleType > inMemory = inMemoryPyramid.downsampleHistograms( histograms, scale, threadPool );
+				Assert.assertArrayEquals( Intervals.dimensionsAsLongArray( stored ), Intervals.dimensionsAsLongArray( inMemory ) );
+				Assert.assertArrayEquals( getArrayFromRandomAccessibleInterval( stored ), getArrayFromRandomAccessibleInterval( inMemory ), EPSILON );
+			}
+		}
+
+		storedPyramid.cleanupDownsampledHistograms();
+	}
+
+	private RandomAccessibleInterval< DoubleType > createTestHistograms()
+	{
+		final double[][] histograms = new double[ ( int ) Intervals.numElements( dimensions ) ][];
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 0, 0, 0 }, dimensions ) ] = createHistogram( 5, 0, 1 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 1, 0, 0 }, dimensions ) ] = createHistogram( 3, 2, 1 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 2, 0, 0 }, dimensions ) ] = createHistogram( 2, 4, 0 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 3, 0, 0 }, dimensions ) ] = createHistogram( 5, 1, 0 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 0, 1, 0 }, dimensions ) ] = createHistogram( 2, 2, 2 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 1, 1, 0 }, dimensions ) ] = createHistogram( 3, 1, 2 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 2, 1, 0 }, dimensions ) ] = createHistogram( 1, 4, 1 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 3, 1, 0 }, dimensions ) ] = createHistogram( 1, 1, 4 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 0, 2, 0 }, dimensions ) ] = createHistogram( 0, 3, 3 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 1, 2, 0 }, dimensions ) ] = createHistogram( 1, 0, 5 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 2, 2, 0 }, dimensions ) ] = createHistogram( 0, 6, 0 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 3, 2, 0 }, dimensions ) ] = createHistogram( 3, 1, 2 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 0, 0, 1 }, dimensions ) ] = createHistogram( 0, 2, 4 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 1, 0, 1 }, dimensions ) ] = createHistogram( 4, 1, 1 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 2, 0, 1 }, dimensions ) ] = createHistogram( 0, 0, 6 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 3, 0, 1 }, dimensions ) ] = createHistogram( 0, 4, 2 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 0, 1, 1 }, dimensions ) ] = createHistogram( 1, 2, 3 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 1, 1, 1 }, dimensions ) ] = createHistogram( 3, 1, 2 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 2, 1, 1 }, dimensions ) ] = createHistogram( 4, 2, 0 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 3, 1, 1 }, dimensions ) ] = createHistogram( 1, 3, 2 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 0, 2, 1 }, dimensions ) ] = createHistogram( 0, 5, 1 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 1, 2, 1 }, dimensions ) ] = createHistogram( 1, 5, 0 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 2, 2, 1 }, dimensions ) ] = createHistogram( 4, 2, 0 );
+		histograms[ ( int ) IntervalIndexer.positionToIndex( new long[] { 3, 2, 1 }, dimensions ) ] = createHistogram( 6, 0, 0 );
+
+		final long[] extendedDimensions = new long[ dimensions.length + 1 ];
+		System.arraycopy( dimensions, 0, extendedDimensions, 0, dimensions.length );
+		extendedDimensions[ dimensions.length ] = bins;
+
+		final double[] histogramsHelperArray = new double[ histograms.length * bins ];
+		int helperArrayIndex = 0;
+		for ( int bin = 0; bin < bins; ++bin )
+			for ( int i = 0; i < histograms.length; ++i )
+				histogramsHelperArray[ helperArrayIndex++ ] = histograms[ i ][ bin ];
+		return ArrayImgs.doubles( histogramsHelperArray, extendedDimensions );
+	}
+
+	private static int[] getExtendedBlockSize( final int[] blockSize )
+	{
+		final int[] extendedBlockSize = new int[ blockSize.length + 1 ];
+		System.arraycopy( blockSize, 0, extendedBlockSize, 0, blockSize.length );
+		extendedBlockSize[ blockSize.length ] = bins;
+		return extendedBlockSize;
+	}
+
 	private double[] getHistogramArray( final CompositeIntervalView< DoubleType, RealComposite< DoubleType > > downsampledHistogramsImg, final long[] position )
 	{
 		final double[] histogram = new double[ bins ];
@@ -0,0 +1,129 @@
+package org.janelia.stitching;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ij.ImagePlus;
+import mpicbg.stitching.StitchingParameters;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the legacy imglib1-based phase correlation with {@link FFTPhaseCorrelation} on typical 2D and 3D overlap sizes.
+ * Usage: FFTPhaseCorrelationBenchmark [repeats]
+ */
+public class FFTPhaseCorrelationBenchmark
+{
+	private static final Random rnd = new Random( 42 );
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final int repeats = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 10;
+
+		final StitchingParameters params = new StitchingParameters();
+		params.channel1 = 1;
+		params.channel2 = 1;
+		params.checkPeaks = 50;
+		params.subpixelAccuracy = true;
+		PairwiseStitchingPerformer.setThreads( 1 );
+
+		benchmark( "2D", new long[] { 1000, 200 }, new long[] { 7, -5 }, params, repeats );
+		benchmark( "3D", new long[] { 300, 60, 100 }, new long[] { 4, -3, 2 }, params, repeats );
+	}
+
+	private static void benchmark( final String name, final long[] overlapSize, final long[] shift, final StitchingParameters params, final int repeats ) throws Exception
+	{
+		final long[] imgSize = new long[ overlapSize.length ];
+		final long[] min1 = new long[ overlapSize.length ], max1 = new long[ overlapSize.length ];
+		final long[] min2 = new long[ overlapSize.length ], max2 = new long[ overlapSize.length ];
+		for ( int d = 0; d < overlapSize.length; ++d )
+		{
+			imgSize[ d ] = overlapSize[ d ] + 2 * Math.abs( shift[ d ] );
+			min1[ d ] = Math.abs( shift[ d ] );
+			max1[ d ] = min1[ d ] + overlapSize[ d ] - 1;
+			min2[ d ] = min1[ d ] + shift[ d ];
+			max2[ d ] = min2[ d ] + overlapSize[ d ] - 1;
+		}
+
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( imgSize );
+		final Cursor< FloatType > cursor = img.cursor();
+		while ( cursor.hasNext() )
+			cursor.next().set( rnd.nextFloat() * 1000 );
+
+		final RandomAccessibleInterval< FloatType > img1 = Views.zeroMin( Views.interval( img, new FinalInterval( min1, max1 ) ) );
+		final RandomAccessibleInterval< FloatType > img2 = Views.zeroMin( Views.interval( img, new FinalInterval( min2, max2 ) ) );
+		final ImagePlus imp1 = Utils.copyToImagePlus( img1 ), imp2 = Utils.copyToImagePlus( img2 );
+
+		// warm up
+		PairwiseStitchingPerformer.stitchPairwise( imp1, imp2, null, null, null, null, 1, 1, params, 1, null, null );
+		PairwiseStitchingPerformer.computePhaseCorrelation( img1, img2, params.checkPeaks, params.subpixelAccuracy, 1, null, null );
+
+		long elapsedLegacy = 0, elapsedNew = 0;
+		SerializablePairWiseStitchingResult[] legacyResult = null, newResult = null;
+		for ( int i = 0; i < repeats; ++i )
+		{
+			long start = System.nanoTime();
+			legacyResult = PairwiseStitchingPerformer.stitchPairwise( imp1, imp2, null, null, null, null, 1, 1, params, 1, null, null );
+			elapsedLegacy += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			newResult = PairwiseStitchingPerformer.computePhaseCorrelation( img1, img2, params.checkPeaks, params.subpixelAccuracy, 1, null, null );
+			elapsedNew += System.nanoTime() - start;
+		}
+
+		System.out.println( String.format( "%s overlap %s:", name, Arrays.toString( overlapSize ) ) );
+		System.out.println( String.format( "  legacy: %.1f ms/pair, shift=%s, r=%.4f", elapsedLegacy / 1e6 / repeats, Arrays.toString( legacyResult[ 0 ].getOffset() ), legacyResult[ 0 ].getCrossCorrelation() ) );
+		System.out.println( String.format( "  new:    %.1f ms/pair, shift=%s, r=%.4f", elapsedNew / 1e6 / repeats, Arrays.toString( newResult[ 0 ].getOffset() ), newResult[ 0 ].getCrossCorrelation() ) );
+
+		benchmarkVerification( img1, img2, params.checkPeaks * ( 1 << overlapSize.length ), repeats );
+	}
+
+	/**
+	 * Compares verification of the given number of candidate shifts by walking the overlap for every shift and by using summed-area tables.
+	 */
+	private static void benchmarkVerification( final RandomAccessibleInterval< FloatType > img1, final RandomAccessibleInterval< FloatType > img2, final int numCandidates, final int repeats )
+	{
+		final int[] dimensions1 = Intervals.dimensionsAsIntArray( img1 ), dimensions2 = Intervals.dimensionsAsIntArray( img2 );
+		final float[] image1 = toArray( img1 ), image2 = toArray( img2 );
+		final int[] minOverlapPx = new int[ dimensions1.length ];
+		Arrays.fill( minOverlapPx, 3 );
+
+		final int[][] shifts = new int[ numCandidates ][ dimensions1.length ];
+		for ( final int[] shift : shifts )
+			for ( int d = 0; d < shift.length; ++d )
+				shift[ d ] = rnd.nextInt( dimensions1[ d ] ) - dimensions1[ d ] / 2;
+
+		long elapsedNaive = 0, elapsedIntegral = 0;
+		for ( int i = 0; i < repeats; ++i )
+		{
+			long start = System.nanoTime();
+			for ( final int[] shift : shifts )
+				FFTPhaseCorrelation.testCrossCorrelation( shift, image1, dimensions1, image2, dimensions2, minOverlapPx, null );
+			elapsedNaive += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			final IntegralCrossCorrelation crossCorrelation = new IntegralCrossCorrelation( image1, dimensions1, image2, dimensions2 );
+			for ( final int[] shift : shifts )
+				crossCorrelation.testCrossCorrelation( shift, minOverlapPx, null );
+			elapsedIntegral += System.nanoTime() - start;
+		}
+
+		System.out.println( String.format( "  verification of %d candidates: %.1f ms/pair without tables, %.1f ms/pair with summed-area tables", numCandidates, elapsedNaive / 1e6 / repeats, elapsedIntegral / 1e6 / repeats ) );
+	}
+
+	private static float[] toArray( final RandomAccessibleInterval< FloatType > img )
+	{
+		final float[] array = new float[ ( int ) Intervals.numElements( img ) ];
+		final Cursor< FloatType > cursor = Views.flatIterable( img ).cursor();
+		for ( int i = 0; cursor.hasNext(); ++i )
+			array[ i ] = cursor.next().get();
+		return array;
+	}
+}
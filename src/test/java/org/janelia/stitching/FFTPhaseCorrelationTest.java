@@ -0,0 +1,84 @@
+package org.janelia.stitching;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+public class FFTPhaseCorrelationTest
+{
+	@Test
+	public void testKnownShift2D()
+	{
+		final ArrayImg< FloatType, FloatArray > img = randomImage( new Random( 1 ), 200, 150 );
+		final RandomAccessibleInterval< FloatType > img1 = Views.zeroMin( Views.interval( img, new FinalInterval( new long[] { 10, 20 }, new long[] { 109, 99 } ) ) );
+		final RandomAccessibleInterval< FloatType > img2 = Views.zeroMin( Views.interval( img, new FinalInterval( new long[] { 27, 11 }, new long[] { 126, 90 } ) ) );
+
+		final SerializablePairWiseStitchingResult[] results = PairwiseStitchingPerformer.computePhaseCorrelation( img1, img2, 10, true, 1, null, null );
+		Assert.assertEquals( 1, results.length );
+		Assert.assertEquals( 17, results[ 0 ].getOffset()[ 0 ], 0.5 );
+		Assert.assertEquals( -9, results[ 0 ].getOffset()[ 1 ], 0.5 );
+		Assert.assertEquals( 1, results[ 0 ].getCrossCorrelation(), 1e-5 );
+	}
+
+	@Test
+	public void testKnownShift3DWithReusedWorkspace()
+	{
+		final ArrayImg< FloatType, FloatArray > img = randomImage( new Random( 2 ), 60, 50, 40 );
+		for ( int i = 0; i < 2; ++i )
+		{
+			final RandomAccessibleInterval< FloatType > img1 = Views.zeroMin( Views.interval( img, new FinalInterval( new long[] { 5, 5, 5 }, new long[] { 44, 39, 29 } ) ) );
+			final RandomAccessibleInterval< FloatType > img2 = Views.zeroMin( Views.interval( img, new FinalInterval( new long[] { 5 + i, 8, 2 }, new long[] { 44 + i, 42, 26 } ) ) );
+
+			final FFTPhaseCorrelation phaseCorr = new FFTPhaseCorrelation( img1, img2 );
+			phaseCorr.process();
+			Assert.assertArrayEquals( new int[] { i, 3, -3 }, phaseCorr.getShift().getPosition() );
+		}
+	}
+
+	@Test
+	public void testCrossCorrelationOfIdenticalImages()
+	{
+		final ArrayImg< FloatType, FloatArray > img = randomImage( new Random( 3 ), 20, 10 );
+		final float[] data = img.update( null ).getCurrentStorageArray();
+		final long[] numPixels = new long[ 1 ];
+		Assert.assertEquals( 1, FFTPhaseCorrelation.testCrossCorrelation( new int[ 2 ], data, new int[] { 20, 10 }, data, new int[] { 20, 10 }, new int[] { 3, 3 }, numPixels ), 1e-6 );
+		Assert.assertEquals( 200, numPixels[ 0 ] );
+
+		// no overlap
+		Assert.assertEquals( 0, FFTPhaseCorrelation.testCrossCorrelation( new int[] { 19, 0 }, data, new int[] { 20, 10 }, data, new int[] { 20, 10 }, new int[] { 3, 3 }, numPixels ), 0 );
+		Assert.assertEquals( 0, numPixels[ 0 ] );
+	}
+
+	@Test
+	public void testWorkspaceSizeIncludesGrowingBuffers()
+	{
+		final FFTPhaseCorrelation.Workspace workspace = new FFTPhaseCorrelation.Workspace( new int[] { 16, 10 } );
+		final long fftBytes = workspace.sizeInBytes();
+		Assert.assertTrue( fftBytes >= ( 16 * 10 + 4 * 9 * 10 ) * Float.BYTES );
+
+		workspace.ensureImageCapacity( 100, 50 );
+		Assert.assertEquals( fftBytes + 150 * Float.BYTES, workspace.sizeInBytes() );
+
+		workspace.ensureIntegralCapacity( 121, 66 );
+		Assert.assertEquals( fftBytes + 150 * Float.BYTES + 2 * ( 121 + 66 ) * Double.BYTES, workspace.sizeInBytes() );
+	}
+
+	private static ArrayImg< FloatType, FloatArray > randomImage( final Random rnd, final long... dimensions )
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( dimensions );
+		final Cursor< FloatType > cursor = img.cursor();
+		while ( cursor.hasNext() )
+			cursor.next().set( rnd.nextFloat() * 1000 );
+		return img;
+	}
+}
@@ -0,0 +1,84 @@
+package org.janelia.stitching;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.dataaccess.DataProvider;
+import org.janelia.dataaccess.DataProviderFactory;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.imageplus.ImagePlusImg;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Measures blending fusion of a single cell covered by a 2x2 grid of overlapping synthetic tiles using different numbers of threads.
+ * Usage: FusionPerformerBenchmark [maxThreads] [repeats]
+ */
+public class FusionPerformerBenchmark
+{
+	public static void main( final String[] args ) throws Exception
+	{
+		final int maxThreads = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : Runtime.getRuntime().availableProcessors();
+		final int repeats = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 3;
+
+		final DataProvider dataProvider = DataProviderFactory.createFSDataProvider();
+		final List< TileInfo > tiles = createTiles( new Random( 42 ), 512, 512, 128 );
+		final Interval cell = new FinalInterval( new long[] { 256, 256, 0 }, new long[] { 767, 767, 127 } );
+
+		for ( int numThreads = 1; numThreads <= maxThreads; numThreads *= 2 )
+		{
+			// warm up
+			FusionPerformer.fuseTilesWithinCellUsingBlending( dataProvider, tiles, cell, new UnsignedShortType(), 0, null, null, numThreads );
+
+			long elapsed = 0;
+			for ( int i = 0; i < repeats; ++i )
+			{
+				final long start = System.nanoTime();
+				final ImagePlusImg< UnsignedShortType, ? > fused = FusionPerformer.fuseTilesWithinCellUsingBlending( dataProvider, tiles, cell, new UnsignedShortType(), 0, null, null, numThreads );
+				elapsed += System.nanoTime() - start;
+				fused.close();
+			}
+			System.out.println( String.format( "%d thread(s): %.1f ms/cell", numThreads, elapsed / 1e6 / repeats ) );
+		}
+	}
+
+	private static List< TileInfo > createTiles( final Random rnd, final int width, final int height, final int depth ) throws Exception
+	{
+		final File dir = Files.createTempDirectory( "fusion-performer-benchmark" ).toFile();
+		dir.deleteOnExit();
+
+		final List< TileInfo > tiles = new ArrayList<>();
+		for ( int t = 0; t < 4; ++t )
+		{
+			final ImageStack stack = new ImageStack( width, height );
+			for ( int z = 0; z < depth; ++z )
+			{
+				final short[] pixels = new short[ width * height ];
+				for ( int i = 0; i < pixels.length; ++i )
+					pixels[ i ] = ( short ) rnd.nextInt( 1 << 12 );
+				stack.addSlice( new ShortProcessor( width, height, pixels, null ) );
+			}
+
+			final File file = new File( dir, "tile" + t + ".tif" );
+			file.deleteOnExit();
+			IJ.saveAsTiff( new ImagePlus( "tile" + t, stack ), file.getAbsolutePath() );
+
+			final TileInfo tile = new TileInfo( 3 );
+			tile.setIndex( t );
+			tile.setFilePath( file.getAbsolutePath() );
+			tile.setPosition( new double[] { ( t % 2 ) * width * 0.9 + rnd.nextDouble(), ( t / 2 ) * height * 0.9 + rnd.nextDouble(), rnd.nextDouble() } );
+			tile.setSize( new long[] { width, height, depth } );
+			tile.setType( ImageType.GRAY16 );
+			tiles.add( tile );
+		}
+		return tiles;
+	}
+}
@@ -0,0 +1,242 @@
+package org.janelia.stitching;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.janelia.dataaccess.DataProvider;
+import org.janelia.dataaccess.DataProviderFactory;
+import org.janelia.stitching.FusionPerformer.FusionMode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.imageplus.ImagePlusImg;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Translation;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.IntervalsNullable;
+import net.imglib2.view.Views;
+
+public class FusionPerformerTest
+{
+	@Test
+	public void testBlendingIsIdenticalToCursorBasedAccumulation() throws Exception
+	{
+		final DataProvider dataProvider = DataProviderFactory.createFSDataProvider();
+		final List< TileInfo > tiles = createTiles( new Random( 7 ) );
+		final Interval cell = new FinalInterval( new long[] { 5, 3, 2 }, new long[] { 60, 45, 17 } );
+
+		final Map< Integer, Set< Integer > > pairwiseConnectionsMap = new HashMap<>();
+		pairwiseConnectionsMap.put( 0, new HashSet<>( Arrays.asList( 1 ) ) );
+		pairwiseConnectionsMap.put( 1, new HashSet<>( Arrays.asList( 0 ) ) );
+
+		for ( final Map< Integer, Set< Integer > > connections : Arrays.asList( null, pairwiseConnectionsMap ) )
+		{
+			final int[] expected = fuseUsingCursors( dataProvider, tiles, cell, connections );
+			for ( final int numThreads : new int[] { 1, 3, 8 } )
+			{
+				final ImagePlusImg< UnsignedShortType, ? > fused = FusionPerformer.fuseTilesWithinCellUsingBlending(
+						dataProvider, tiles, cell, new UnsignedShortType(), 0, null, connections, numThreads );
+
+				final Cursor< UnsignedShortType > cursor = Views.flatIterable( fused ).cursor();
+				for ( int i = 0; i < expected.length; ++i )
+					Assert.assertEquals( "pixel " + i + " with " + numThreads + " threads", expected[ i ], cursor.next().get() );
+			}
+		}
+	}
+
+	@Test
+	public void testTileContributionsAreIdenticalToCellFusion() throws Exception
+	{
+		final DataProvider dataProvider = DataProviderFactory.createFSDataProvider();
+		final List< TileInfo > tiles = createTiles( new Random( 11 ) );
+		final Interval cell = new FinalInterval( new long[] { 20, 10, 4 }, new long[] { 51, 41, 15 } );
+
+		// load every tile once and send it to the cell in reversed order to check that contributions are sorted
+		final List< TileContribution > contributions = new ArrayList<>();
+		for ( int i = tiles.size() - 1; i >= 0; --i )
+		{
+			final RandomAccessibleInterval< UnsignedShortType > rawTile = TileLoader.loadTileIntoMemory( tiles.get( i ), dataProvider );
+			contributions.add( FusionPerformer.getTileContribution( rawTile, tiles.get( i ), i, cell, null ) );
+		}
+
+		for ( final FusionMode mode : FusionMode.values() )
+		{
+			final ImagePlusImg< UnsignedShortType, ? > expected = FusionPerformer.fuseTilesWithinCell(
+					dataProvider, mode, tiles, cell, new UnsignedShortType(), 0, null, null, 1 );
+			final ImagePlusImg< UnsignedShortType, ? > actual = FusionPerformer.fuseTileContributionsWithinCell(
+					mode, contributions, cell, new UnsignedShortType(), 0, null, 2 );
+
+			final Cursor< UnsignedShortType > expectedCursor = Views.flatIterable( expected ).cursor();
+			final Cursor< UnsignedShortType > actualCursor = Views.flatIterable( actual ).cursor();
+			while ( expectedCursor.hasNext() )
+				Assert.assertEquals( mode.toString(), expectedCursor.next().get(), actualCursor.next().get() );
+		}
+	}
+
+	@Test
+	public void testSlabs()
+	{
+		final List< Interval > slabs = FusionPerformer.splitIntoSlabs( new FinalInterval( new long[] { 0, 0, 3 }, new long[] { 9, 9, 12 } ), 2, 4 );
+		Assert.assertEquals( 4, slabs.size() );
+		long total = 0;
+		for ( int i = 0; i < slabs.size(); ++i )
+		{
+			total += slabs.get( i ).dimension( 2 );
+			if ( i > 0 )
+				Assert.assertEquals( slabs.get( i - 1 ).max( 2 ) + 1, slabs.get( i ).min( 2 ) );
+		}
+		Assert.assertEquals( 10, total );
+		Assert.assertEquals( 2, FusionPerformer.splitIntoSlabs( new FinalInterval( 5, 2 ), 1, 4 ).size() );
+	}
+
+	private static List< TileInfo > createTiles( final Random rnd ) throws Exception
+	{
+		final File dir = Files.createTempDirectory( "fusion-performer-test" ).toFile();
+		dir.deleteOnExit();
+
+		final double[][] positions = new double[][] { { 0, 0, 0 }, { 30.4, 1.7, 0.6 }, { 2.2, 25.5, -0.3 } };
+		final int width = 40, height = 30, depth = 20;
+		final List< TileInfo > tiles = new ArrayList<>();
+		for ( int t = 0; t < positions.length; ++t )
+		{
+			final ImageStack stack = new ImageStack( width, height );
+			for ( int z = 0; z < depth; ++z )
+			{
+				final short[] pixels = new short[ width * height ];
+				for ( int i = 0; i < pixels.length; ++i )
+					pixels[ i ] = ( short ) rnd.nextInt( 1 << 12 );
+				stack.addSlice( new ShortProcessor( width, height, pixels, null ) );
+			}
+
+			final File file = new File( dir, "tile" + t + ".tif" );
+			file.deleteOnExit();
+			Assert.assertTrue( IJ.saveAsTiff( new ImagePlus( "tile" + t, stack ), file.getAbsolutePath() ) );
+
+			final TileInfo tile = new TileInfo( 3 );
+			tile.setIndex( t );
+			tile.setFilePath( file.getAbsolutePath() );
+			tile.setPosition( positions[ t ] );
+			tile.setSize( new long[] { width, height, depth } );
+			tile.setType( ImageType.GRAY16 );
+			tiles.add( tile );
+		}
+		return tiles;
+	}
+
+	/**
+	 * Reference implementation that accumulates through lockstep cursors over {@link FloatType} images.
+	 */
+	private static int[] fuseUsingCursors(
+			final DataProvider dataProvider,
+			final List< TileInfo > tiles,
+			final Interval targetInterval,
+			final Map< Integer, Set< Integer > > pairwiseConnectionsMap ) throws Exception
+	{
+		final RandomAccessibleInterval< FloatType > weights = ArrayImgs.floats( Intervals.dimensionsAsLongArray( targetInterval ) );
+		final RandomAccessibleInterval< FloatType > values = ArrayImgs.floats( Intervals.dimensionsAsLongArray( targetInterval ) );
+		final List< Set< Integer > > tileIndexes = new ArrayList<>();
+		for ( int i = 0; i < Intervals.numElements( targetInterval ); ++i )
+			tileIndexes.add( new HashSet<>() );
+
+		for ( final TileInfo tile : tiles )
+		{
+			final FinalRealInterval intersection = IntervalsNullable.intersectReal( new FinalRealInterval( tile.getPosition(), tile.getMax() ), targetInterval );
+			final double[] offset = new double[ targetInterval.numDimensions() ];
+			final long[] min = new long[ offset.length ], max = new long[ offset.length ];
+			for ( int d = 0; d < offset.length; ++d )
+			{
+				offset[ d ] = tile.getPosition( d ) - targetInterval.min( d );
+				min[ d ] = ( long ) Math.floor( intersection.realMin( d ) ) - targetInterval.min( d );
+				max[ d ] = ( long ) Math.ceil ( intersection.realMax( d ) ) - targetInterval.min( d );
+			}
+			final Interval intersectionInterval = new FinalInterval( min, max );
+
+			final RandomAccessibleInterval< UnsignedShortType > rawTile = TileLoader.loadTile( tile, dataProvider );
+			final RandomAccessibleInterval< FloatType > convertedTile = Converters.convert( rawTile, new RealFloatConverter<>(), new FloatType() );
+			final RandomAccessibleInterval< FloatType > sourceInterval = Views.interval( Views.raster( RealViews.affine(
+					Views.interpolate( Views.extendBorder( convertedTile ), new NLinearInterpolatorFactory<>() ), new Translation( offset ) ) ), intersectionInterval );
+
+			final Cursor< FloatType > sourceCursor = Views.flatIterable( sourceInterval ).localizingCursor();
+			final Cursor< FloatType > weightsCursor = Views.flatIterable( Views.interval( weights, intersectionInterval ) ).cursor();
+			final Cursor< FloatType > valuesCursor = Views.flatIterable( Views.interval( values, intersectionInterval ) ).cursor();
+			final long[] targetPosition = new long[ offset.length ];
+			final double[] position = new double[ offset.length ];
+			while ( sourceCursor.hasNext() )
+			{
+				final double value = sourceCursor.next().getRealDouble();
+				sourceCursor.localize( position );
+				sourceCursor.localize( targetPosition );
+
+				double minDistance = 1;
+				for ( int d = 0; d < position.length; ++d )
+				{
+					final double localImgPos = position[ d ] - offset[ d ];
+					double v = Math.max( 1, Math.min( localImgPos, tile.getSize( d ) - 1 - localImgPos ) );
+					final float imgAreaBlend = Math.round( 0.2 * 0.5f * ( tile.getSize( d ) - 1 ) );
+					v = v < imgAreaBlend ? v / imgAreaBlend : 1;
+					minDistance *= v;
+				}
+				final double weight = minDistance == 1 ? 1 : minDistance <= 0 ? 0.0000001 : ( Math.cos( ( 1 - minDistance ) * Math.PI ) + 1 ) / 2;
+
+				final FloatType weightAccum = weightsCursor.next();
+				final FloatType valueAccum = valuesCursor.next();
+				weightAccum.setReal( weightAccum.getRealDouble() + weight );
+				valueAccum.setReal( valueAccum.getRealDouble() + value * weight );
+
+				tileIndexes.get( ( int ) IntervalIndexer.positionToIndex( targetPosition, Intervals.dimensionsAsLongArray( targetInterval ) ) ).add( tile.getIndex() );
+			}
+		}
+
+		final int[] out = new int[ ( int ) Intervals.numElements( targetInterval ) ];
+		final Cursor< FloatType > weightsCursor = Views.flatIterable( weights ).cursor();
+		final Cursor< FloatType > valuesCursor = Views.flatIterable( values ).cursor();
+		final UnsignedShortType outType = new UnsignedShortType();
+		for ( int i = 0; i < out.length; ++i )
+		{
+			final double weight = weightsCursor.next().getRealDouble();
+			final double value = valuesCursor.next().getRealDouble();
+			outType.setReal( weight == 0 ? 0 : value / weight );
+
+			if ( pairwiseConnectionsMap != null )
+			{
+				boolean retainPixel = false;
+				final Set< Integer > tilesAtPoint = tileIndexes.get( i );
+				for ( final Integer testTileIndex : tilesAtPoint )
+				{
+					final Set< Integer > connectedTileIndexes = pairwiseConnectionsMap.get( testTileIndex );
+					if ( connectedTileIndexes != null && !Collections.disjoint( tilesAtPoint, connectedTileIndexes ) )
+						retainPixel = true;
+				}
+				if ( !retainPixel )
+					outType.setZero();
+			}
+			out[ i ] = outType.get();
+		}
+		return out;
+	}
+}
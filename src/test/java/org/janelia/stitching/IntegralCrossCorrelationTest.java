@@ -0,0 +1,106 @@
+package org.janelia.stitching;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IntegralCrossCorrelationTest
+{
+	@Test
+	public void test2D()
+	{
+		testRandomShifts( new Random( 1 ), new int[] { 50, 30 }, new int[] { 45, 33 } );
+	}
+
+	@Test
+	public void test3D()
+	{
+		testRandomShifts( new Random( 2 ), new int[] { 20, 15, 10 }, new int[] { 18, 16, 10 } );
+	}
+
+	@Test
+	public void testConstantImages()
+	{
+		final float[] image = new float[ 100 ];
+		Arrays.fill( image, 7 );
+		final int[] dimensions = new int[] { 10, 10 };
+		final IntegralCrossCorrelation crossCorrelation = new IntegralCrossCorrelation( image, dimensions, image, dimensions );
+		Assert.assertEquals( 1, crossCorrelation.testCrossCorrelation( new int[] { 2, -3 }, new int[] { 3, 3 }, null ), 0 );
+	}
+
+	@Test
+	public void testLocallyConstantOverlap()
+	{
+		// the first image varies, but contains a constant patch at [10,30)x[5,25).
+		// Non-integer values make the table sums inexact, so the variance of the patch does not cancel out to exactly zero
+		final int[] dimensions1 = new int[] { 40, 30 }, dimensions2 = new int[] { 20, 20 };
+		final Random rnd = new Random( 3 );
+		final float[] image1 = new float[ dimensions1[ 0 ] * dimensions1[ 1 ] ];
+		for ( int i = 0; i < image1.length; ++i )
+			image1[ i ] = rnd.nextFloat() * ( 1 << 16 );
+		for ( int y = 5; y < 25; ++y )
+			Arrays.fill( image1, y * dimensions1[ 0 ] + 10, y * dimensions1[ 0 ] + 30, 1234.567f );
+
+		final int[] shift = new int[] { 10, 5 }, minOverlapPx = new int[] { 3, 3 };
+		final long[] numPixels = new long[ 1 ];
+
+		final float[] constantImage2 = new float[ 400 ];
+		Arrays.fill( constantImage2, 1234.567f );
+		Assert.assertEquals( 1, new IntegralCrossCorrelation( image1, dimensions1, constantImage2, dimensions2 ).testCrossCorrelation( shift, minOverlapPx, numPixels ), 0 );
+		Assert.assertEquals( 400, numPixels[ 0 ] );
+
+		Arrays.fill( constantImage2, 1235.567f );
+		Assert.assertEquals( 0, new IntegralCrossCorrelation( image1, dimensions1, constantImage2, dimensions2 ).testCrossCorrelation( shift, minOverlapPx, numPixels ), 0 );
+
+		final float[] randomImage2 = randomImage( new Random( 4 ), dimensions2 );
+		final IntegralCrossCorrelation crossCorrelation = new IntegralCrossCorrelation( image1, dimensions1, randomImage2, dimensions2 );
+		Assert.assertEquals( FFTPhaseCorrelation.testCrossCorrelation( shift, image1, dimensions1, randomImage2, dimensions2, minOverlapPx, null ), crossCorrelation.testCrossCorrelation( shift, minOverlapPx, null ), 0 );
+
+		// the overlaps that partially cover the patch still vary, and the correlation stays within the valid range
+		for ( int dx = -5; dx <= 5; ++dx )
+		{
+			for ( int dy = -5; dy <= 5; ++dy )
+			{
+				final int[] partialShift = new int[] { shift[ 0 ] + dx, shift[ 1 ] + dy };
+				final double expected = FFTPhaseCorrelation.testCrossCorrelation( partialShift, image1, dimensions1, randomImage2, dimensions2, minOverlapPx, null );
+				final double actual = crossCorrelation.testCrossCorrelation( partialShift, minOverlapPx, null );
+				Assert.assertEquals( expected, actual, 1e-6 );
+				Assert.assertTrue( actual >= -1 && actual <= 1 );
+			}
+		}
+	}
+
+	private static void testRandomShifts( final Random rnd, final int[] dimensions1, final int[] dimensions2 )
+	{
+		final float[] image1 = randomImage( rnd, dimensions1 ), image2 = randomImage( rnd, dimensions2 );
+		final IntegralCrossCorrelation crossCorrelation = new IntegralCrossCorrelation( image1, dimensions1, image2, dimensions2 );
+		final int[] minOverlapPx = new int[ dimensions1.length ];
+		Arrays.fill( minOverlapPx, 3 );
+
+		final long[] expectedNumPixels = new long[ 1 ], actualNumPixels = new long[ 1 ];
+		for ( int i = 0; i < 200; ++i )
+		{
+			final int[] shift = new int[ dimensions1.length ];
+			for ( int d = 0; d < shift.length; ++d )
+				shift[ d ] = rnd.nextInt( dimensions1[ d ] + dimensions2[ d ] ) - dimensions2[ d ];
+
+			final double expected = FFTPhaseCorrelation.testCrossCorrelation( shift, image1, dimensions1, image2, dimensions2, minOverlapPx, expectedNumPixels );
+			final double actual = crossCorrelation.testCrossCorrelation( shift, minOverlapPx, actualNumPixels );
+			Assert.assertEquals( expected, actual, 1e-6 );
+			Assert.assertEquals( expectedNumPixels[ 0 ], actualNumPixels[ 0 ] );
+		}
+	}
+
+	private static float[] randomImage( final Random rnd, final int[] dimensions )
+	{
+		int numElements = 1;
+		for ( final int dim : dimensions )
+			numElements *= dim;
+		final float[] image = new float[ numElements ];
+		for ( int i = 0; i < numElements; ++i )
+			image[ i ] = rnd.nextInt( 1 << 16 );
+		return image;
+	}
+}
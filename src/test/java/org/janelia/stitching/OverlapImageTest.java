@@ -0,0 +1,91 @@
+package org.janelia.stitching;
+
+import java.util.Random;
+
+import org.janelia.util.concurrent.SameThreadExecutorService;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+public class OverlapImageTest
+{
+	@Test
+	public void testAverageAndStatistics() throws Exception
+	{
+		final Random rnd = new Random( 3 );
+		final long[] dimensions = new long[] { 17, 12, 5 };
+		final ArrayImg< UnsignedShortType, ShortArray > channel1 = randomImage( rnd, dimensions ), channel2 = randomImage( rnd, dimensions );
+
+		final OverlapImage overlapImg = new OverlapImage( new FinalInterval( dimensions ) );
+		overlapImg.addChannel( channel1 );
+		overlapImg.addChannel( channel2 );
+		overlapImg.finish( null );
+
+		final Cursor< UnsignedShortType > cursor1 = channel1.cursor(), cursor2 = channel2.cursor();
+		final Cursor< FloatType > overlapCursor = Views.flatIterable( overlapImg.getImage() ).cursor();
+		double sum = 0, sumSquares = 0;
+		while ( overlapCursor.hasNext() )
+		{
+			final float expected = ( cursor1.next().getRealFloat() + cursor2.next().getRealFloat() ) / 2;
+			Assert.assertEquals( expected, overlapCursor.next().get(), 0 );
+			sum += expected;
+			sumSquares += expected * expected;
+		}
+
+		final double[] sums = new double[ 2 ];
+		Assert.assertEquals( channel1.size(), overlapImg.addStatistics( new FinalInterval( dimensions ), sums ) );
+		Assert.assertEquals( sum, sums[ 0 ], 1e-6 * sum );
+		Assert.assertEquals( sumSquares, sums[ 1 ], 1e-6 * sumSquares );
+
+		// statistics of a part of the overlap
+		final FinalInterval roiPart = new FinalInterval( new long[] { 3, 0, 0 }, new long[] { 8, 11, 4 } );
+		final double[] partSums = new double[ 2 ];
+		Assert.assertEquals( 6 * 12 * 5, overlapImg.addStatistics( roiPart, partSums ) );
+		double expectedPartSum = 0;
+		for ( final FloatType val : Views.interval( overlapImg.getImage(), roiPart ) )
+			expectedPartSum += val.get();
+		Assert.assertEquals( expectedPartSum, partSums[ 0 ], 1e-6 * expectedPartSum );
+	}
+
+	@Test
+	public void testBlurInPlace() throws Exception
+	{
+		final Random rnd = new Random( 4 );
+		final long[] dimensions = new long[] { 20, 15, 6 };
+		final ArrayImg< UnsignedShortType, ShortArray > channel = randomImage( rnd, dimensions );
+		final double[] sigmas = new double[] { 2, 2, 0.5 };
+
+		final OverlapImage overlapImg = new OverlapImage( new FinalInterval( dimensions ) );
+		overlapImg.addChannel( channel );
+		overlapImg.finish( sigmas );
+
+		final ArrayImg< FloatType, FloatArray > expected = ArrayImgs.floats( dimensions );
+		final Cursor< UnsignedShortType > channelCursor = channel.cursor();
+		for ( final FloatType val : expected )
+			val.set( channelCursor.next().getRealFloat() );
+		Gauss3.gauss( sigmas, Views.extendMirrorSingle( expected ), expected, new SameThreadExecutorService() );
+
+		final Cursor< FloatType > expectedCursor = expected.cursor();
+		final Cursor< FloatType > overlapCursor = Views.flatIterable( overlapImg.getImage() ).cursor();
+		while ( expectedCursor.hasNext() )
+			Assert.assertEquals( expectedCursor.next().get(), overlapCursor.next().get(), 0 );
+	}
+
+	private static ArrayImg< UnsignedShortType, ShortArray > randomImage( final Random rnd, final long[] dimensions )
+	{
+		final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( dimensions );
+		for ( final UnsignedShortType val : img )
+			val.set( rnd.nextInt( 1 << 12 ) );
+		return img;
+	}
+}
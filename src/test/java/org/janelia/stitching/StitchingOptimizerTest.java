@@ -0,0 +1,242 @@
+package org.janelia.stitching;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+import org.janelia.stitching.StitchingOptimizer.OptimizationCandidate;
+import org.janelia.stitching.StitchingOptimizer.OptimizationCandidateEvaluator;
+import org.janelia.stitching.StitchingOptimizer.OptimizationParameters;
+import org.janelia.stitching.StitchingOptimizer.OptimizationResult;
+import org.janelia.stitching.StitchingOptimizer.ParameterScan;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StitchingOptimizerTest
+{
+	private static final int gridSize = 4;
+
+	@Test
+	public void testPrunedScanFindsSameBestResult()
+	{
+		final List< SerializablePairWiseStitchingResult[] > shifts = createGridShifts( new Random( 7 ) );
+		final List< OptimizationParameters > optimizationParametersList = createParameterGrid();
+
+		for ( final double maxAllowedError : new double[] { 3, 8, 15 } )
+		{
+			final List< OptimizationResult > exhaustiveResults = new ArrayList<>();
+			for ( final OptimizationParameters optimizationParameters : optimizationParametersList )
+			{
+				final BitSet validPairs = getValidPairs( shifts, optimizationParameters );
+				final OptimizationCandidate candidate = new OptimizationCandidate( validPairs, getLargestGraphSize( shifts, validPairs ) );
+				candidate.optimizationParametersList.add( optimizationParameters );
+				exhaustiveResults.add( evaluate( shifts, candidate, maxAllowedError ) );
+			}
+			// stable sort in the order of the parameter grid as done by the exhaustive sweep
+			Collections.sort( exhaustiveResults );
+			final OptimizationResult exhaustiveBest = exhaustiveResults.get( 0 );
+
+			for ( final int batchSize : new int[] { 1, 3, 1000 } )
+			{
+				final List< Integer > batchSizes = new ArrayList<>();
+				final OptimizationCandidateEvaluator evaluator = batch ->
+					{
+						batchSizes.add( batch.size() );
+						final List< OptimizationResult > results = new ArrayList<>();
+						for ( final OptimizationCandidate candidate : batch )
+						{
+							// the union-find estimate is used as the upper bound for pruning, so it has to match the actual graph size
+							Assert.assertEquals( getLargestGraphSize( shifts, candidate.validPairs ), candidate.graphSize );
+							results.add( evaluate( shifts, candidate, maxAllowedError ) );
+						}
+						return results;
+					};
+
+				final ParameterScan scan = StitchingOptimizer.scanOptimizationParameters( shifts, optimizationParametersList, maxAllowedError, false, batchSize, evaluator );
+				final OptimizationResult prunedBest = scan.results.get( 0 );
+
+				final String message = "maxAllowedError=" + maxAllowedError + ", batchSize=" + batchSize;
+				Assert.assertEquals( message, 0, prunedBest.compareTo( exhaustiveBest ) );
+				Assert.assertEquals( message, exhaustiveBest.remainingGraphSize, prunedBest.remainingGraphSize );
+				Assert.assertEquals( message, exhaustiveBest.remainingPairs, prunedBest.remainingPairs );
+				Assert.assertEquals( message, exhaustiveBest.maxDisplacement, prunedBest.maxDisplacement, 0 );
+
+				// the tied results are resolved in the same way, so exactly the same parameters are chosen
+				Assert.assertSame( message, exhaustiveBest.optimizationParameters, prunedBest.optimizationParameters );
+				Assert.assertEquals( message, exhaustiveBest.avgDisplacement, prunedBest.avgDisplacement, 0 );
+
+				// the parameters reported as the best one do produce the best result
+				final BitSet bestValidPairs = getValidPairs( shifts, prunedBest.optimizationParameters );
+				final OptimizationCandidate bestCandidate = new OptimizationCandidate( bestValidPairs, getLargestGraphSize( shifts, bestValidPairs ) );
+				Assert.assertEquals( message, 0, evaluate( shifts, bestCandidate, maxAllowedError ).compareTo( exhaustiveBest ) );
+
+				// combinations that retain the same pairs are optimized once
+				Assert.assertTrue( message, scan.numCandidates < optimizationParametersList.size() );
+				Assert.assertEquals( message, scan.numCandidates, countDistinctPairSets( shifts, optimizationParametersList ) );
+
+				// each evaluated candidate is expanded back into all of its parameter combinations
+				int evaluatedParameters = 0;
+				for ( final int size : batchSizes )
+				{
+					Assert.assertTrue( message, size <= batchSize );
+					evaluatedParameters += size;
+				}
+				Assert.assertEquals( message, scan.evaluatedCandidates, evaluatedParameters );
+				Assert.assertEquals( message, optimizationParametersList.size(), scan.results.size() + scan.prunedParameters );
+				Assert.assertEquals( message, scan.numCandidates, scan.evaluatedCandidates + scan.prunedCandidates.size() );
+
+				if ( batchSize == 1 )
+				{
+					Assert.assertTrue( message, scan.evaluatedCandidates < scan.numCandidates );
+					Assert.assertTrue( message, scan.prunedParameters > 0 );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a grid of tiles connected with their horizontal and vertical neighbors,
+	 * where the pairs have random cross correlation and variance values.
+	 */
+	private static List< SerializablePairWiseStitchingResult[] > createGridShifts( final Random rnd )
+	{
+		final TileInfo[] tiles = new TileInfo[ gridSize * gridSize ];
+		for ( int i = 0; i < tiles.length; ++i )
+		{
+			tiles[ i ] = new TileInfo( 2 );
+			tiles[ i ].setIndex( i );
+		}
+
+		final List< SerializablePairWiseStitchingResult[] > shifts = new ArrayList<>();
+		for ( int y = 0; y < gridSize; ++y )
+		{
+			for ( int x = 0; x < gridSize; ++x )
+			{
+				if ( x + 1 < gridSize )
+					shifts.add( new SerializablePairWiseStitchingResult[] { createShift( rnd, tiles[ y * gridSize + x ], tiles[ y * gridSize + x + 1 ] ) } );
+				if ( y + 1 < gridSize )
+					shifts.add( new SerializablePairWiseStitchingResult[] { createShift( rnd, tiles[ y * gridSize + x ], tiles[ ( y + 1 ) * gridSize + x ] ) } );
+			}
+		}
+		return shifts;
+	}
+
+	private static SerializablePairWiseStitchingResult createShift( final Random rnd, final TileInfo tile1, final TileInfo tile2 )
+	{
+		return new SerializablePairWiseStitchingResult(
+				new TilePair( tile1, tile2 ),
+				new float[ 2 ],
+				0.1f + 0.9f * rnd.nextFloat(),
+				null,
+				( double ) rnd.nextInt( 300 ) );
+	}
+
+	private static List< OptimizationParameters > createParameterGrid()
+	{
+		final List< OptimizationParameters > optimizationParametersList = new ArrayList<>();
+		for ( double testMinCrossCorrelation = 0.1; testMinCrossCorrelation <= 1; testMinCrossCorrelation += 0.05 )
+			for ( double testMinVariance = 0; testMinVariance <= 300; testMinVariance += 1 + ( int ) testMinVariance / 10 )
+				optimizationParametersList.add( new OptimizationParameters( testMinCrossCorrelation, testMinVariance ) );
+		return optimizationParametersList;
+	}
+
+	/**
+	 * Deterministic stand-in for the global optimization: the error is driven by the least correlated pair in use,
+	 * and one tile is dropped from graphs with an odd number of pairs, so the resulting graph may be smaller than the connected one.
+	 */
+	private static OptimizationResult evaluate( final List< SerializablePairWiseStitchingResult[] > shifts, final OptimizationCandidate candidate, final double maxAllowedError )
+	{
+		double maxDisplacement = 0, sumDisplacement = 0;
+		int pairIndex = 0;
+		for ( final SerializablePairWiseStitchingResult[] pairMulti : shifts )
+		{
+			for ( final SerializablePairWiseStitchingResult pair : pairMulti )
+			{
+				if ( candidate.validPairs.get( pairIndex++ ) )
+				{
+					final double displacement = 20 * ( 1 - pair.getCrossCorrelation() );
+					maxDisplacement = Math.max( displacement, maxDisplacement );
+					sumDisplacement += displacement;
+				}
+			}
+		}
+
+		final int connectedGraphSize = getLargestGraphSize( shifts, candidate.validPairs );
+		final int remainingGraphSize = connectedGraphSize > 2 && candidate.numValidPairs % 2 == 1 ? connectedGraphSize - 1 : connectedGraphSize;
+		return new OptimizationResult(
+				candidate.optimizationParametersList.isEmpty() ? null : candidate.optimizationParametersList.get( 0 ),
+				maxAllowedError,
+				gridSize * gridSize,
+				remainingGraphSize,
+				candidate.numValidPairs,
+				candidate.numValidPairs == 0 ? 0 : sumDisplacement / candidate.numValidPairs,
+				maxDisplacement );
+	}
+
+	private static BitSet getValidPairs( final List< SerializablePairWiseStitchingResult[] > shifts, final OptimizationParameters optimizationParameters )
+	{
+		final BitSet validPairs = new BitSet();
+		int pairIndex = 0;
+		for ( final SerializablePairWiseStitchingResult[] pairMulti : shifts )
+			for ( final SerializablePairWiseStitchingResult pair : pairMulti )
+				validPairs.set( pairIndex++, pair.getCrossCorrelation() > optimizationParameters.minCrossCorrelation && pair.getVariance() > optimizationParameters.minVariance );
+		return validPairs;
+	}
+
+	private static int countDistinctPairSets( final List< SerializablePairWiseStitchingResult[] > shifts, final List< OptimizationParameters > optimizationParametersList )
+	{
+		final Set< BitSet > pairSets = new HashSet<>();
+		for ( final OptimizationParameters optimizationParameters : optimizationParametersList )
+			pairSets.add( getValidPairs( shifts, optimizationParameters ) );
+		return pairSets.size();
+	}
+
+	/**
+	 * Finds the largest connected graph with a breadth-first search, independently of the union-find used by the optimizer.
+	 */
+	private static int getLargestGraphSize( final List< SerializablePairWiseStitchingResult[] > shifts, final BitSet validPairs )
+	{
+		final Map< Integer, List< Integer > > connections = new HashMap<>();
+		int pairIndex = 0;
+		for ( final SerializablePairWiseStitchingResult[] pairMulti : shifts )
+		{
+			for ( final SerializablePairWiseStitchingResult pair : pairMulti )
+			{
+				if ( validPairs.get( pairIndex++ ) )
+				{
+					final int a = pair.getTilePair().getA().getIndex(), b = pair.getTilePair().getB().getIndex();
+					connections.computeIfAbsent( a, k -> new ArrayList<>() ).add( b );
+					connections.computeIfAbsent( b, k -> new ArrayList<>() ).add( a );
+				}
+			}
+		}
+
+		final Set< Integer > visited = new HashSet<>();
+		int largestGraphSize = 0;
+		for ( final Integer start : connections.keySet() )
+		{
+			if ( !visited.add( start ) )
+				continue;
+
+			int graphSize = 0;
+			final Queue< Integer > queue = new ArrayDeque<>( Collections.singleton( start ) );
+			while ( !queue.isEmpty() )
+			{
+				++graphSize;
+				for ( final Integer neighbor : connections.get( queue.remove() ) )
+					if ( visited.add( neighbor ) )
+						queue.add( neighbor );
+			}
+			largestGraphSize = Math.max( graphSize, largestGraphSize );
+		}
+		return largestGraphSize;
+	}
+}
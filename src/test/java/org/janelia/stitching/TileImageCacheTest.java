@@ -0,0 +1,126 @@
+package org.janelia.stitching;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+public class TileImageCacheTest
+{
+	@Test
+	public void testHitsAndEviction() throws IOException
+	{
+		// every image takes 10x10x2 bytes, so the cache can hold two of them
+		final TileImageCache cache = new TileImageCache( 400 );
+		final AtomicInteger loads = new AtomicInteger();
+
+		final RandomAccessibleInterval< UnsignedShortType > a1 = cache.get( "a", () -> { loads.incrementAndGet(); return ArrayImgs.unsignedShorts( 10, 10 ); }, null );
+		final RandomAccessibleInterval< UnsignedShortType > a2 = cache.get( "a", () -> { loads.incrementAndGet(); return ArrayImgs.unsignedShorts( 10, 10 ); }, null );
+		Assert.assertSame( a1, a2 );
+		Assert.assertEquals( 1, loads.get() );
+		Assert.assertEquals( 200, cache.getCurrentBytes() );
+
+		cache.get( "b", () -> { loads.incrementAndGet(); return ArrayImgs.unsignedShorts( 10, 10 ); }, null );
+		Assert.assertEquals( 2, cache.size() );
+
+		// touch 'a' so that 'b' becomes the least recently used entry
+		cache.get( "a", () -> { loads.incrementAndGet(); return ArrayImgs.unsignedShorts( 10, 10 ); }, null );
+		cache.get( "c", () -> { loads.incrementAndGet(); return ArrayImgs.unsignedShorts( 10, 10 ); }, null );
+		Assert.assertEquals( 2, cache.size() );
+		Assert.assertEquals( 400, cache.getCurrentBytes() );
+		Assert.assertEquals( 3, loads.get() );
+
+		cache.get( "a", () -> { loads.incrementAndGet(); return ArrayImgs.unsignedShorts( 10, 10 ); }, null );
+		Assert.assertEquals( 3, loads.get() );
+		cache.get( "b", () -> { loads.incrementAndGet(); return ArrayImgs.unsignedShorts( 10, 10 ); }, null );
+		Assert.assertEquals( 4, loads.get() );
+	}
+
+	@Test
+	public void testTooLargeImageIsNotCached() throws IOException
+	{
+		final TileImageCache cache = new TileImageCache( 100 );
+		final RandomAccessibleInterval< UnsignedShortType > img = cache.get( "a", () -> ArrayImgs.unsignedShorts( 10, 10 ), null );
+		Assert.assertNotNull( img );
+		Assert.assertEquals( 0, cache.size() );
+		Assert.assertEquals( 0, cache.getCurrentBytes() );
+	}
+
+	@Test
+	public void testLazyImageIsCopiedIntoMemory() throws IOException
+	{
+		final AtomicInteger loadedCells = new AtomicInteger();
+		final CellLoader< UnsignedShortType > cellLoader = cell ->
+			{
+				loadedCells.incrementAndGet();
+				for ( final Cursor< UnsignedShortType > cursor = Views.flatIterable( cell ).localizingCursor(); cursor.hasNext(); )
+					cursor.next().set( cursor.getIntPosition( 0 ) + 10 * cursor.getIntPosition( 1 ) );
+			};
+
+		final TileImageCache cache = new TileImageCache( 1000 );
+		final RandomAccessibleInterval< UnsignedShortType > img = cache.get(
+				"lazy",
+				() -> new ReadOnlyCachedCellImgFactory( ReadOnlyCachedCellImgOptions.options().cellDimensions( 5, 5 ) ).create( new long[] { 10, 10 }, new UnsignedShortType(), cellLoader ),
+				null
+			);
+
+		// all cells are read once when the image is cached, and the cache is charged for the in-memory copy
+		Assert.assertFalse( img instanceof CachedCellImg );
+		Assert.assertEquals( 4, loadedCells.get() );
+		Assert.assertEquals( 200, cache.getCurrentBytes() );
+		for ( final Cursor< UnsignedShortType > cursor = Views.flatIterable( img ).localizingCursor(); cursor.hasNext(); )
+			Assert.assertEquals( cursor.getIntPosition( 0 ) + 10 * cursor.getIntPosition( 1 ), cursor.next().get() );
+		final RandomAccessibleInterval< UnsignedShortType > cachedImg = cache.get( "lazy", () -> null, null );
+		Assert.assertSame( img, cachedImg );
+	}
+
+	@Test
+	public void testLoadingLocksAreReleased() throws IOException
+	{
+		final TileImageCache cache = new TileImageCache( 100 );
+		for ( int i = 0; i < 10; ++i )
+			cache.get( "tile" + i, () -> ArrayImgs.unsignedShorts( 10, 10 ), null );
+		final RandomAccessibleInterval< UnsignedShortType > missingImg = cache.get( "missing", () -> null, null );
+		Assert.assertNull( missingImg );
+		Assert.assertEquals( 0, cache.numLoadingLocks() );
+	}
+
+	@Test
+	public void testPairLocalityOrder()
+	{
+		// 1D row of 5 tiles where each tile overlaps with its two neighbors on each side
+		final TileInfo[] tiles = new TileInfo[ 5 ];
+		for ( int i = 0; i < tiles.length; ++i )
+		{
+			tiles[ i ] = new TileInfo( 1 );
+			tiles[ i ].setIndex( i );
+			tiles[ i ].setPosition( 0, ( tiles.length - 1 - i ) * 40 );
+			tiles[ i ].setSize( 0, 100 );
+		}
+
+		final List< TilePair > pairs = TileOperations.findOverlappingTiles( tiles );
+		final List< TilePair > sortedPairs = TileOperations.sortPairsByTileLocality( pairs );
+		Assert.assertEquals( pairs.size(), sortedPairs.size() );
+
+		// the leftmost tile (index 4) goes first, so all of its pairs should be at the beginning of the list
+		final List< TilePair > firstPairs = new ArrayList<>();
+		for ( final TilePair pair : pairs )
+			if ( pair.getA().getIndex() == 4 || pair.getB().getIndex() == 4 )
+				firstPairs.add( pair );
+		for ( int i = 0; i < firstPairs.size(); ++i )
+			Assert.assertTrue( firstPairs.contains( sortedPairs.get( i ) ) );
+	}
+}
@@ -0,0 +1,68 @@
+package org.janelia.stitching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TileSpatialIndexTest
+{
+	@Test
+	public void testOverlappingPairs()
+	{
+		final Random rnd = new Random( 5 );
+		for ( int iteration = 0; iteration < 50; ++iteration )
+		{
+			final TileInfo[] tiles = createRandomTiles( rnd, 1 + rnd.nextInt( 60 ), 2 + rnd.nextInt( 2 ) );
+
+			final List< TilePair > expected = new ArrayList<>();
+			for ( int i = 0; i < tiles.length; i++ )
+				for ( int j = i + 1; j < tiles.length; j++ )
+					if ( TileOperations.overlap( tiles[ i ], tiles[ j ] ) )
+						expected.add( new TilePair( tiles[ i ], tiles[ j ] ) );
+
+			final List< TilePair > actual = new TileSpatialIndex( tiles ).findOverlappingTiles();
+			Assert.assertEquals( expected.size(), actual.size() );
+			for ( int i = 0; i < expected.size(); ++i )
+			{
+				Assert.assertSame( expected.get( i ).getA(), actual.get( i ).getA() );
+				Assert.assertSame( expected.get( i ).getB(), actual.get( i ).getB() );
+			}
+		}
+	}
+
+	@Test
+	public void testSubregionQueries()
+	{
+		final Random rnd = new Random( 6 );
+		for ( int iteration = 0; iteration < 50; ++iteration )
+		{
+			final int numDimensions = 2 + rnd.nextInt( 2 );
+			final TileInfo[] tiles = createRandomTiles( rnd, 1 + rnd.nextInt( 60 ), numDimensions );
+			final TileSpatialIndex index = new TileSpatialIndex( tiles );
+
+			for ( final TileInfo subregion : createRandomTiles( rnd, 20, numDimensions ) )
+				Assert.assertEquals( TileOperations.findTilesWithinSubregion( tiles, subregion ), index.findTilesWithinSubregion( subregion ) );
+		}
+	}
+
+	private static TileInfo[] createRandomTiles( final Random rnd, final int numTiles, final int numDimensions )
+	{
+		final TileInfo[] tiles = new TileInfo[ numTiles ];
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			// mix integer and fractional positions to test the tiles that touch each other or the bin boundaries
+			tiles[ i ] = new TileInfo( numDimensions );
+			tiles[ i ].setIndex( i );
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				final double position = rnd.nextDouble() * 400 - 200;
+				tiles[ i ].setPosition( d, rnd.nextBoolean() ? Math.round( position ) : position );
+				tiles[ i ].setSize( d, 1 + rnd.nextInt( 100 ) );
+			}
+		}
+		return tiles;
+	}
+}
@@ -0,0 +1,107 @@
+package org.janelia.stitching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+
+public class TranslationLeastSquaresSolverTest
+{
+	private static final double EPSILON = 1e-6;
+
+	@Test
+	public void testConsistentShifts()
+	{
+		final Random rnd = new Random( 7 );
+		final int numTiles = 30;
+		final List< Tile< TranslationModel2D > > tiles = new ArrayList<>();
+		final double[][] positions = new double[ numTiles ][];
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			// initial positions are random, the fixed tile keeps its position
+			final TranslationModel2D model = new TranslationModel2D();
+			model.set( rnd.nextDouble() * 100, rnd.nextDouble() * 100 );
+			tiles.add( new Tile<>( model ) );
+			positions[ i ] = i == 0 ? model.apply( new double[ 2 ] ) : new double[] { i * 10, ( i % 5 ) * 7 };
+		}
+
+		for ( int i = 1; i < numTiles; ++i )
+			for ( final int j : new int[] { i - 1, rnd.nextInt( i ) } )
+				connect( tiles.get( j ), tiles.get( i ), new double[] { positions[ i ][ 0 ] - positions[ j ][ 0 ], positions[ i ][ 1 ] - positions[ j ][ 1 ] }, 0.5 + rnd.nextDouble() );
+
+		final TranslationLeastSquaresSolver solver = new TranslationLeastSquaresSolver( tiles, Collections.singleton( tiles.get( 0 ) ) );
+		solver.solve();
+		Assert.assertTrue( solver.hasConverged() );
+
+		for ( int i = 0; i < numTiles; ++i )
+			Assert.assertArrayEquals( positions[ i ], tiles.get( i ).getModel().apply( new double[ 2 ] ), EPSILON );
+		Assert.assertEquals( 0, solver.getAvgError(), EPSILON );
+		Assert.assertEquals( 0, solver.getMaxError(), EPSILON );
+	}
+
+	@Test
+	public void testWeightedConflictingShifts()
+	{
+		final Tile< TranslationModel2D > tileA = new Tile<>( new TranslationModel2D() ), tileB = new Tile<>( new TranslationModel2D() );
+		connect( tileA, tileB, new double[] { 10, 0 }, 1 );
+		connect( tileA, tileB, new double[] { 13, 3 }, 2 );
+
+		// none of the tiles is fixed, so the first one is kept in place
+		final TranslationLeastSquaresSolver solver = new TranslationLeastSquaresSolver( Arrays.asList( tileA, tileB ), Collections.emptySet() );
+		solver.solve();
+		Assert.assertTrue( solver.hasConverged() );
+
+		Assert.assertArrayEquals( new double[] { 0, 0 }, tileA.getModel().apply( new double[ 2 ] ), EPSILON );
+		Assert.assertArrayEquals( new double[] { 12, 2 }, tileB.getModel().apply( new double[ 2 ] ), EPSILON );
+
+		// weighted average displacement is the same for both tiles
+		final double expectedError = ( Math.sqrt( 8 ) + 2 * Math.sqrt( 2 ) ) / 3;
+		Assert.assertEquals( expectedError, solver.getAvgError(), EPSILON );
+		Assert.assertEquals( expectedError, solver.getMaxError(), EPSILON );
+	}
+
+	@Test
+	public void testNonFiniteShiftIsReported()
+	{
+		final Tile< TranslationModel2D > tileA = new Tile<>( new TranslationModel2D() ), tileB = new Tile<>( new TranslationModel2D() );
+		connect( tileA, tileB, new double[] { Double.NaN, 0 }, 1 );
+
+		final TranslationLeastSquaresSolver solver = new TranslationLeastSquaresSolver( Arrays.asList( tileA, tileB ), Collections.singleton( tileA ) );
+		solver.solve();
+		Assert.assertFalse( solver.hasConverged() );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testMixedDimensionalityIsRejected()
+	{
+		new TranslationLeastSquaresSolver( Arrays.asList( new Tile<>( new TranslationModel2D() ), new Tile<>( new TranslationModel3D() ) ), Collections.emptySet() );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testNonTranslationModelIsRejected()
+	{
+		new TranslationLeastSquaresSolver( Arrays.asList( new Tile<>( new TranslationModel2D() ), new Tile<>( new AffineModel2D() ) ), Collections.emptySet() );
+	}
+
+	/**
+	 * Adds a match between the tiles in the same way as {@link GlobalOptimizationPerformer}, where {@code shift} is the position of {@code t2} relative to {@code t1}.
+	 */
+	private static void connect( final Tile< ? > t1, final Tile< ? > t2, final double[] shift, final double weight )
+	{
+		final Point p1 = new Point( new double[] { 0, 0 } );
+		final Point p2 = new Point( new double[] { -shift[ 0 ], -shift[ 1 ] } );
+		t1.addMatch( new PointMatch( p1, p2, weight ) );
+		t2.addMatch( new PointMatch( p2, p1, weight ) );
+	}
+}
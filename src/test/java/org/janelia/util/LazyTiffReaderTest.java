@@ -0,0 +1,64 @@
+package org.janelia.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class LazyTiffReaderTest
+{
+	@Test
+	public void testUnsignedShortStack() throws IOException
+	{
+		final Random rnd = new Random( 42 );
+		final int width = 37, height = 23, depth = 5;
+		final ImageStack stack = new ImageStack( width, height );
+		for ( int z = 0; z < depth; ++z )
+		{
+			final short[] pixels = new short[ width * height ];
+			for ( int i = 0; i < pixels.length; ++i )
+				pixels[ i ] = ( short ) rnd.nextInt( 1 << 16 );
+			stack.addSlice( new ShortProcessor( width, height, pixels, null ) );
+		}
+
+		final File file = File.createTempFile( "lazy-tiff-reader-test", ".tif" );
+		file.deleteOnExit();
+		Assert.assertTrue( IJ.saveAsTiff( new ImagePlus( "test", stack ), file.getAbsolutePath() ) );
+
+		final RandomAccessibleInterval< UnsignedShortType > lazyImg = LazyTiffReader.open( () -> new FileInputStream( file ) );
+		final ImagePlus imp = ImageImporter.openImage( file.getAbsolutePath() );
+		final RandomAccessibleInterval< UnsignedShortType > fullImg = ImagePlusImgs.from( imp );
+
+		Assert.assertArrayEquals( new long[] { width, height, depth }, Intervals.dimensionsAsLongArray( lazyImg ) );
+		Assert.assertArrayEquals( Intervals.dimensionsAsLongArray( fullImg ), Intervals.dimensionsAsLongArray( lazyImg ) );
+
+		// access a single slice in the middle first
+		final RandomAccessibleInterval< UnsignedShortType > lazySlice = Views.hyperSlice( lazyImg, 2, depth / 2 );
+		final RandomAccessibleInterval< UnsignedShortType > fullSlice = Views.hyperSlice( fullImg, 2, depth / 2 );
+		assertEquals( fullSlice, lazySlice );
+
+		assertEquals( fullImg, lazyImg );
+	}
+
+	private static void assertEquals( final RandomAccessibleInterval< UnsignedShortType > expected, final RandomAccessibleInterval< UnsignedShortType > actual )
+	{
+		final Cursor< UnsignedShortType > expectedCursor = Views.flatIterable( expected ).cursor();
+		final Cursor< UnsignedShortType > actualCursor = Views.flatIterable( actual ).cursor();
+		while ( expectedCursor.hasNext() || actualCursor.hasNext() )
+			Assert.assertEquals( expectedCursor.next().get(), actualCursor.next().get() );
+	}
+}
@@ -0,0 +1,125 @@
+package org.janelia.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import ij.process.ShortProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the throughput of converting a synthetic 16-bit tile into N5 plane by plane with {@link N5PlaneBlockWriter}
+ * against the per-pixel copy through {@link ShortProcessor#getf(int, int)} into an imglib2 image that is saved with {@link N5Utils#saveBlock}.
+ *
+ * Usage: N5PlaneBlockWriterBenchmark [width height depth] [raw|gzip]
+ */
+public class N5PlaneBlockWriterBenchmark
+{
+	private static final int[] blockSize = new int[] { 128, 128, 64 };
+	private static final int numDistinctPlanes = 8;
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final long[] dimensions = args.length >= 3 ? new long[] { Long.parseLong( args[ 0 ] ), Long.parseLong( args[ 1 ] ), Long.parseLong( args[ 2 ] ) } : new long[] { 2048, 2048, 500 };
+		final Compression compression = args.length != 0 && args[ args.length - 1 ].equals( "gzip" ) ? new GzipCompression() : new RawCompression();
+		final int width = ( int ) dimensions[ 0 ], height = ( int ) dimensions[ 1 ], depth = ( int ) dimensions[ 2 ];
+		final double megabytes = ( double ) width * height * depth * Short.BYTES / ( 1 << 20 );
+
+		System.out.println( "Tile size " + Arrays.toString( dimensions ) + ", block size " + Arrays.toString( blockSize ) + ", compression " + compression.getClass().getSimpleName() );
+
+		// a few distinct planes are reused along Z to keep the memory footprint small
+		final Random rnd = new Random( 1 );
+		final short[][] planes = new short[ numDistinctPlanes ][ width * height ];
+		for ( final short[] plane : planes )
+			for ( int i = 0; i < plane.length; ++i )
+				plane[ i ] = ( short ) rnd.nextInt( 4096 );
+
+		final File tempDir = Files.createTempDirectory( "n5-plane-block-writer-benchmark" ).toFile();
+		try
+		{
+			final N5Writer n5 = new N5FSWriter( tempDir.getAbsolutePath() );
+
+			final long planeBlockWriterMsec = benchmarkPlaneBlockWriter( n5, "plane-block-writer", dimensions, compression, planes );
+			System.out.println( String.format( "Plane block writer: %.2fs, %.1f MB/s", planeBlockWriterMsec / 1e3, megabytes / ( planeBlockWriterMsec / 1e3 ) ) );
+
+			final long perPixelMsec = benchmarkPerPixelCopy( n5, "per-pixel", dimensions, compression, planes );
+			System.out.println( String.format( "Per-pixel copy:     %.2fs, %.1f MB/s", perPixelMsec / 1e3, megabytes / ( perPixelMsec / 1e3 ) ) );
+		}
+		finally
+		{
+			FileUtils.deleteDirectory( tempDir );
+		}
+	}
+
+	private static long benchmarkPlaneBlockWriter(
+			final N5Writer n5,
+			final String dataset,
+			final long[] dimensions,
+			final Compression compression,
+			final short[][] planes ) throws IOException
+	{
+		long elapsedMsec = System.currentTimeMillis();
+		n5.createDataset( dataset, dimensions, blockSize, DataType.UINT16, compression );
+		final N5PlaneBlockWriter planeBlockWriter = new N5PlaneBlockWriter( n5, dataset );
+		for ( int z = 0; z < dimensions[ 2 ]; ++z )
+			planeBlockWriter.writePlane( z, planes[ z % planes.length ] );
+		elapsedMsec = System.currentTimeMillis() - elapsedMsec;
+		n5.remove( dataset );
+		return elapsedMsec;
+	}
+
+	private static long benchmarkPerPixelCopy(
+			final N5Writer n5,
+			final String dataset,
+			final long[] dimensions,
+			final Compression compression,
+			final short[][] planes ) throws IOException
+	{
+		final int width = ( int ) dimensions[ 0 ], height = ( int ) dimensions[ 1 ];
+		long elapsedMsec = System.currentTimeMillis();
+		n5.createDataset( dataset, dimensions, blockSize, DataType.UINT16, compression );
+		for ( long zMin = 0; zMin < dimensions[ 2 ]; zMin += blockSize[ 2 ] )
+		{
+			final long zMax = Math.min( zMin + blockSize[ 2 ], dimensions[ 2 ] ) - 1;
+			final RandomAccessibleInterval< UnsignedShortType > dstImg = Views.translate(
+					new ArrayImgFactory<>( new UnsignedShortType() ).create( width, height, zMax - zMin + 1 ),
+					0, 0, zMin
+				);
+
+			for ( int z = ( int ) zMin; z <= zMax; ++z )
+			{
+				final ShortProcessor sliceProcessor = new ShortProcessor( width, height, planes[ z % planes.length ], null );
+				final IntervalView< UnsignedShortType > dstSliceImg = Views.hyperSlice( dstImg, 2, z );
+				final Cursor< UnsignedShortType > dstSliceCursor = Views.iterable( dstSliceImg ).localizingCursor();
+				final int[] positionInSlice = new int[ 2 ];
+				while ( dstSliceCursor.hasNext() )
+				{
+					dstSliceCursor.fwd();
+					dstSliceCursor.localize( positionInSlice );
+					dstSliceCursor.get().setReal( sliceProcessor.getf( positionInSlice[ 0 ], positionInSlice[ 1 ] ) );
+				}
+			}
+
+			N5Utils.saveBlock( dstImg, n5, dataset, new long[] { 0, 0, zMin / blockSize[ 2 ] } );
+		}
+		elapsedMsec = System.currentTimeMillis() - elapsedMsec;
+		n5.remove( dataset );
+		return elapsedMsec;
+	}
+}
@@ -0,0 +1,93 @@
+package org.janelia.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+public class N5PlaneBlockWriterTest
+{
+	private File tempDir;
+	private N5Writer n5;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		tempDir = Files.createTempDirectory( "n5-plane-block-writer" ).toFile();
+		n5 = new N5FSWriter( tempDir.getAbsolutePath() );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory( tempDir );
+	}
+
+	@Test
+	public void testWritePlanes() throws IOException
+	{
+		final long[] dimensions = new long[] { 50, 30, 23 };
+		final int[] blockSize = new int[] { 16, 16, 8 };
+		final int planeSize = ( int ) ( dimensions[ 0 ] * dimensions[ 1 ] );
+		n5.createDataset( "test", dimensions, blockSize, DataType.UINT16, new GzipCompression() );
+
+		final Random rnd = new Random( 1 );
+		final short[][] planes = new short[ ( int ) dimensions[ 2 ] ][ planeSize ];
+		for ( final short[] plane : planes )
+			for ( int i = 0; i < planeSize; ++i )
+				plane[ i ] = ( short ) rnd.nextInt( 1 << 16 );
+
+		final N5PlaneBlockWriter planeBlockWriter = new N5PlaneBlockWriter( n5, "test" );
+		Assert.assertEquals( planeSize, planeBlockWriter.getPlaneSize() );
+
+		// planes within a Z chunk may come in any order
+		for ( int chunkMin = 0; chunkMin < dimensions[ 2 ]; chunkMin += blockSize[ 2 ] )
+		{
+			for ( int z = ( int ) Math.min( chunkMin + blockSize[ 2 ], dimensions[ 2 ] ) - 1; z >= chunkMin; --z )
+			{
+				// the blocks are not written until the Z chunk is complete
+				Assert.assertNull( n5.readBlock( "test", n5.getDatasetAttributes( "test" ), new long[] { 0, 0, chunkMin / blockSize[ 2 ] } ) );
+				planeBlockWriter.writePlane( z, planes[ z ] );
+			}
+			Assert.assertTrue( planeBlockWriter.isComplete() );
+		}
+
+		final RandomAccessibleInterval< UnsignedShortType > img = N5Utils.open( n5, "test" );
+		final Cursor< UnsignedShortType > cursor = Views.flatIterable( img ).cursor();
+		for ( final short[] plane : planes )
+			for ( int i = 0; i < planeSize; ++i )
+				Assert.assertEquals( plane[ i ] & 0xffff, cursor.next().get() );
+	}
+
+	@Test( expected = IllegalStateException.class )
+	public void testIncompleteChunk() throws IOException
+	{
+		n5.createDataset( "test", new long[] { 10, 10, 10 }, new int[] { 4, 4, 4 }, DataType.UINT8, new GzipCompression() );
+		final N5PlaneBlockWriter planeBlockWriter = new N5PlaneBlockWriter( n5, "test" );
+		planeBlockWriter.writePlane( 0, new byte[ 100 ] );
+		planeBlockWriter.writePlane( 4, new byte[ 100 ] );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testTypeMismatch() throws IOException
+	{
+		n5.createDataset( "test", new long[] { 10, 10, 10 }, new int[] { 4, 4, 4 }, DataType.UINT8, new GzipCompression() );
+		new N5PlaneBlockWriter( n5, "test" ).writePlane( 0, new short[ 100 ] );
+	}
+}
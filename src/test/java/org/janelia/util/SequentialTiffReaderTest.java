@@ -0,0 +1,62 @@
+package org.janelia.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.util.TiffSliceReader.TiffInputStreamSupplier;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.process.ShortProcessor;
+
+public class SequentialTiffReaderTest
+{
+	@Test
+	public void testUnsignedShortStack() throws IOException
+	{
+		final Random rnd = new Random( 42 );
+		final int width = 37, height = 23, depth = 5;
+		final ImageStack stack = new ImageStack( width, height );
+		for ( int z = 0; z < depth; ++z )
+		{
+			final short[] pixels = new short[ width * height ];
+			for ( int i = 0; i < pixels.length; ++i )
+				pixels[ i ] = ( short ) rnd.nextInt( 1 << 16 );
+			stack.addSlice( new ShortProcessor( width, height, pixels, null ) );
+		}
+
+		final File file = File.createTempFile( "sequential-tiff-reader-test", ".tif" );
+		file.deleteOnExit();
+		Assert.assertTrue( IJ.saveAsTiff( new ImagePlus( "test", stack ), file.getAbsolutePath() ) );
+
+		final AtomicInteger openedStreams = new AtomicInteger();
+		final TiffInputStreamSupplier inSupplier = () ->
+			{
+				openedStreams.incrementAndGet();
+				return new FileInputStream( file );
+			};
+		final FileInfo[] sliceFileInfos = TiffSliceReader.getSliceFileInfos( inSupplier );
+		Assert.assertEquals( depth, sliceFileInfos.length );
+		openedStreams.set( 0 );
+
+		try ( final SequentialTiffReader sliceReader = new SequentialTiffReader( inSupplier, sliceFileInfos ) )
+		{
+			// all slices are read in order through a single stream
+			for ( int z = 0; z < depth; ++z )
+				Assert.assertArrayEquals( ( short[] ) stack.getPixels( z + 1 ), ( short[] ) sliceReader.readSlicePixels( z ) );
+			Assert.assertEquals( 1, openedStreams.get() );
+
+			// going back to an earlier slice reopens the stream
+			Assert.assertArrayEquals( ( short[] ) stack.getPixels( 2 ), ( short[] ) sliceReader.readSlicePixels( 1 ) );
+			Assert.assertArrayEquals( ( short[] ) stack.getPixels( 4 ), ( short[] ) sliceReader.readSlicePixels( 3 ) );
+			Assert.assertEquals( 2, openedStreams.get() );
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package org.janelia.util.concurrent;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BoundedTaskSubmitterTest
+{
+	private ExecutorService threadPool;
+
+	@Before
+	public void setUp()
+	{
+		threadPool = Executors.newFixedThreadPool( 4 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		threadPool.shutdownNow();
+	}
+
+	@Test
+	public void testAllTasksComplete() throws IOException
+	{
+		final AtomicInteger counter = new AtomicInteger();
+		final BoundedTaskSubmitter taskSubmitter = new BoundedTaskSubmitter( threadPool, 8 );
+		for ( int i = 0; i < 1000; ++i )
+			taskSubmitter.submit( counter::incrementAndGet );
+		Assert.assertEquals( 1000, taskSubmitter.awaitAll() );
+		Assert.assertEquals( 1000, counter.get() );
+	}
+
+	@Test
+	public void testSubmitBlocksWhenLimitIsReached() throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final BoundedTaskSubmitter taskSubmitter = new BoundedTaskSubmitter( threadPool, 2 );
+		for ( int i = 0; i < 2; ++i )
+			taskSubmitter.submit( () -> awaitUninterruptibly( release ) );
+
+		final CountDownLatch submitted = new CountDownLatch( 1 );
+		final Thread producer = new Thread( () ->
+			{
+				try
+				{
+					taskSubmitter.submit( () -> {} );
+					submitted.countDown();
+				}
+				catch ( final IOException e )
+				{
+					throw new RuntimeException( e );
+				}
+			} );
+		producer.start();
+
+		Assert.assertFalse( submitted.await( 200, TimeUnit.MILLISECONDS ) );
+		release.countDown();
+		Assert.assertTrue( submitted.await( 10, TimeUnit.SECONDS ) );
+		producer.join();
+	}
+
+	@Test
+	public void testFailurePropagates()
+	{
+		final BoundedTaskSubmitter taskSubmitter = new BoundedTaskSubmitter( threadPool, 4 );
+		try
+		{
+			for ( int i = 0; i < 100; ++i )
+			{
+				final int index = i;
+				taskSubmitter.submit( () ->
+					{
+						if ( index == 10 )
+							throw new IllegalStateException( "request failed" );
+					} );
+			}
+			taskSubmitter.awaitAll();
+			Assert.fail( "expected the failure to be rethrown" );
+		}
+		catch ( final IOException e )
+		{
+			Assert.assertTrue( e.getCause() instanceof IllegalStateException );
+		}
+	}
+
+	private static void awaitUninterruptibly( final CountDownLatch latch )
+	{
+		try
+		{
+			latch.await();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}